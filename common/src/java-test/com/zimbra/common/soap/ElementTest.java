@@ -872,6 +872,110 @@ public class ElementTest {
                 ZimbraLog.elapsedTime(start, System.currentTimeMillis()));
     }
 
+    private static Element newHit(ElementFactory factory, int id) {
+        Element hit = factory.createElement(MailConstants.E_MSG);
+        hit.addAttribute(MailConstants.A_ID, id);
+        hit.addAttribute(MailConstants.A_SORT_FIELD, Integer.toString(1000 - id));
+        hit.addNonUniqueElement(MailConstants.E_EMAIL).addAttribute(MailConstants.A_ADDRESS, "user" + id + "@example.com");
+        hit.addAttribute(MailConstants.E_SUBJECT, "subject <" + id + "> & more", Element.Disposition.CONTENT);
+        return hit;
+    }
+
+    private static void checkEncodedElements(ElementFactory factory) {
+        Element tree = factory.createElement(MailConstants.SEARCH_RESPONSE);
+        Element encoded = factory.createElement(MailConstants.SEARCH_RESPONSE);
+        tree.addAttribute(MailConstants.A_SORTBY, "dateDesc");
+        encoded.addAttribute(MailConstants.A_SORTBY, "dateDesc");
+        for (int i = 0; i < 5; i++) {
+            tree.addNonUniqueElement(newHit(factory, i));
+            encoded.addEncodedElement(newHit(factory, i));
+        }
+        tree.addAttribute(MailConstants.A_QUERY_MORE, true);
+        encoded.addAttribute(MailConstants.A_QUERY_MORE, true);
+        tree.addNonUniqueElement(MailConstants.E_INFO);
+        encoded.addNonUniqueElement(MailConstants.E_INFO);
+        Assert.assertEquals("encoded children marshal like the element tree", tree.toString(), encoded.toString());
+        Assert.assertEquals("clone", tree.toString(), encoded.clone().toString());
+
+        // encoded siblings can still be read back
+        List<Element> hits = tree.listElements(MailConstants.E_MSG);
+        List<Element> decoded = encoded.listElements(MailConstants.E_MSG);
+        Assert.assertEquals(hits.size(), decoded.size());
+        for (int i = 0; i < hits.size(); i++) {
+            Assert.assertEquals(hits.get(i).toString(), decoded.get(i).toString());
+        }
+        Assert.assertEquals(tree.listElements().size(), encoded.listElements().size());
+        Element first = encoded.getOptionalElement(MailConstants.E_MSG);
+        Assert.assertEquals("0", first.getAttribute(MailConstants.A_ID, null));
+        Assert.assertEquals(tree.getOptionalElement(MailConstants.E_MSG).getAttribute(MailConstants.E_SUBJECT, null),
+                first.getAttribute(MailConstants.E_SUBJECT, null));
+        // decoded copies are ordinary elements, but changing them doesn't change the response
+        first.addAttribute(MailConstants.A_ID, 99);
+        Assert.assertEquals(tree.toString(), encoded.toString());
+    }
+
+    @Test
+    public void xmlEncodedElements() {
+        checkEncodedElements(XMLElement.mFactory);
+    }
+
+    @Test
+    public void jsonEncodedElements() throws Exception {
+        checkEncodedElements(Element.JSONElement.mFactory);
+        Element json = Element.JSONElement.mFactory.createElement(MailConstants.SEARCH_RESPONSE);
+        json.addEncodedElement(newHit(Element.JSONElement.mFactory, 1));
+        Assert.assertEquals("encoded JSON survives a round trip", 1,
+                Element.parseJSON(json.toString()).listElements(MailConstants.E_MSG).size());
+    }
+
+    @Test
+    public void encodedElementsKeepDocumentOrder() {
+        Element tree = XMLElement.mFactory.createElement(MailConstants.SEARCH_RESPONSE);
+        Element encoded = XMLElement.mFactory.createElement(MailConstants.SEARCH_RESPONSE);
+        for (int i = 0; i < 3; i++) {
+            tree.addNonUniqueElement(newHit(XMLElement.mFactory, i));
+            tree.addNonUniqueElement(MailConstants.E_CONV).addAttribute(MailConstants.A_ID, i);
+            encoded.addEncodedElement(newHit(XMLElement.mFactory, i));
+            encoded.addNonUniqueElement(MailConstants.E_CONV).addAttribute(MailConstants.A_ID, i);
+        }
+        Assert.assertEquals("interleaved children", tree.toString(), encoded.toString());
+        Assert.assertEquals("encoded siblings are listed in place", tree.listElements().toString(),
+                encoded.listElements().toString());
+    }
+
+    private static long usedHeapAfterGC() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Enable for heap usage comparison @Test
+    public void encodedElementHeapUsage() throws Exception {
+        final int hits = 100000;
+        for (ElementFactory factory : new ElementFactory[] { XMLElement.mFactory, Element.JSONElement.mFactory }) {
+            long base = usedHeapAfterGC();
+            Element tree = factory.createElement(MailConstants.SEARCH_RESPONSE);
+            for (int i = 0; i < hits; i++) {
+                tree.addNonUniqueElement(newHit(factory, i));
+            }
+            long treeHeap = usedHeapAfterGC() - base;
+            int treeLength = tree.toString().length();
+            tree = null;
+
+            base = usedHeapAfterGC();
+            Element encoded = factory.createElement(MailConstants.SEARCH_RESPONSE);
+            for (int i = 0; i < hits; i++) {
+                encoded.addEncodedElement(newHit(factory, i));
+            }
+            long encodedHeap = usedHeapAfterGC() - base;
+            Assert.assertEquals("marshalled length", treeLength, encoded.toString().length());
+            ZimbraLog.test.info("encodedElementHeapUsage %s %d hits: tree=%dKB encoded=%dKB",
+                    factory.getClass().getSimpleName(), hits, treeHeap / 1024, encodedHeap / 1024);
+        }
+    }
+
     // Enable for performance comparison @Test
     public void parseXMLToDom4jDocUsingSecureProcessingPerformance()
     throws XmlParseException, SAXException, DocumentException {
@@ -0,0 +1,133 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void exactBelowPrecision() {
+        Histogram h = new Histogram(1000, 3);
+        for (int i = 0; i < 8; i++) {
+            h.record(i);
+        }
+        Assert.assertEquals(8, h.getCount());
+        Assert.assertEquals(28, h.getTotal());
+        Assert.assertEquals(7, h.getMax());
+        Assert.assertEquals(3, h.getValueAtPercentile(50));
+        Assert.assertEquals(7, h.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void percentiles() {
+        Histogram h = new Histogram(10000000L, 3);
+        for (int i = 1; i <= 10000; i++) {
+            h.record(i);
+        }
+        Assert.assertEquals(10000, h.getCount());
+        Assert.assertEquals(10000, h.getMax());
+        assertWithin(5000, h.getValueAtPercentile(50), 0.125);
+        assertWithin(9000, h.getValueAtPercentile(90), 0.125);
+        assertWithin(9900, h.getValueAtPercentile(99), 0.125);
+        Assert.assertEquals(10000, h.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void overflowAndNegative() {
+        Histogram h = new Histogram(100, 2);
+        h.record(-5);
+        h.record(1000);
+        Assert.assertEquals(2, h.getCount());
+        Assert.assertEquals(0, h.getValueAtPercentile(50));
+        Assert.assertEquals(1000, h.getMax());
+        Assert.assertEquals(1000, h.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void addAndReset() {
+        Histogram a = new Histogram(1000, 2);
+        Histogram b = new Histogram(1000, 2);
+        a.record(10);
+        b.record(20);
+        b.record(30);
+        a.add(b);
+        Assert.assertEquals(3, a.getCount());
+        Assert.assertEquals(60, a.getTotal());
+        Assert.assertEquals(30, a.getMax());
+        a.reset();
+        Assert.assertEquals(0, a.getCount());
+        Assert.assertEquals(0, a.getMax());
+        Assert.assertEquals(0, a.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void copyAndSince() {
+        Histogram h = new Histogram(1000, 2);
+        h.record(500);
+        h.record(10);
+        Histogram start = h.copy();
+        h.record(20);
+        h.record(30);
+        Assert.assertEquals(2, start.getCount());
+        Assert.assertEquals(500, start.getMax());
+
+        Histogram interval = h.since(start);
+        Assert.assertEquals(2, interval.getCount());
+        Assert.assertEquals(50, interval.getTotal());
+        // the upper bound of the bucket holding 30, not the overall maximum
+        assertWithin(30, interval.getMax(), 0.25);
+        Assert.assertTrue(interval.getMax() < 500);
+        Assert.assertEquals(0, h.since(h.copy()).getCount());
+        Assert.assertEquals(4, h.getCount());
+    }
+
+    @Test
+    public void percentileCalculatorInterval() {
+        Histogram h = new Histogram(1000, 2);
+        h.record(100);
+        PercentileCalculator pc = new PercentileCalculator(h, "test", 50);
+        Assert.assertEquals(0, pc.getLastInterval().getCount());
+        h.record(10);
+        h.record(10);
+        Assert.assertEquals(2L, pc.getData().get(0));
+        pc.reset();
+        Assert.assertEquals(2, pc.getLastInterval().getCount());
+        assertWithin(10, pc.getLastInterval().getMax(), 0.25);
+        // the shared histogram is left alone
+        Assert.assertEquals(3, h.getCount());
+
+        h.record(20);
+        Assert.assertEquals(1L, pc.getData().get(0));
+        pc.reset();
+        Assert.assertEquals(1, pc.getLastInterval().getCount());
+        Assert.assertEquals(0L, pc.getData().get(0));
+    }
+
+    @Test
+    public void percentileNames() {
+        Assert.assertEquals("p50", PercentileCalculator.percentileName(50));
+        Assert.assertEquals("p99", PercentileCalculator.percentileName(99));
+        Assert.assertEquals("p999", PercentileCalculator.percentileName(99.9));
+    }
+
+    private static void assertWithin(long expected, long actual, double error) {
+        Assert.assertTrue("expected ~" + expected + " but was " + actual,
+                actual >= expected && actual <= expected * (1 + error));
+    }
+}
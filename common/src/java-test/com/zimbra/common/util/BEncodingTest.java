@@ -59,4 +59,49 @@ public class BEncodingTest {
         Assert.assertEquals(new TreeMap<Object, Object>(), decoded.get("yy"));
     }
 
+    @Test
+    public void indexDictionary() throws Exception {
+        String encoded = "d1:ai-12e1:bli1e2:xxe1:cd1:di0eee";
+        int[] extents = BEncoding.indexDictionary(encoded);
+        Assert.assertEquals(9, extents.length);
+        Assert.assertEquals("a", BEncoding.decode(encoded, extents[0], extents[1]));
+        Assert.assertEquals(-12L, (long) BEncoding.<Long>decode(encoded, extents[1], extents[2]));
+        Assert.assertEquals("[1, xx]", BEncoding.decode(encoded, extents[4], extents[5]).toString());
+        Assert.assertEquals("c", BEncoding.decode(encoded, extents[6], extents[7]));
+        Assert.assertEquals("{d=0}", BEncoding.decode(encoded, extents[7], extents[8]).toString());
+        Assert.assertEquals(0, BEncoding.indexDictionary("de").length);
+    }
+
+    @Test
+    public void malformed() {
+        for (String bad : new String[] { "d1:ae", "d1:ai1", "d1:a5:xe", "d1:ai1x2ee", "d1:ai1eee", "l1:ae" }) {
+            try {
+                BEncoding.indexDictionary(bad);
+                Assert.fail("indexed " + bad);
+            } catch (BEncoding.BEncodingException expected) {
+            }
+        }
+        // a bad length is reported as a NumberFormatException, as before
+        try {
+            BEncoding.decode("d1:a2:xyz1:bi1ee");
+            Assert.fail();
+        } catch (BEncoding.BEncodingException expected) {
+            Assert.assertTrue(expected.getCause() instanceof NumberFormatException);
+        }
+        try {
+            BEncoding.indexDictionary("d1:a2:xyz1:bi1ee");
+            Assert.fail();
+        } catch (BEncoding.BEncodingException expected) {
+            Assert.assertTrue(expected.getCause() instanceof NumberFormatException);
+        }
+    }
+
+    @Test
+    public void longs() throws Exception {
+        Assert.assertEquals(Long.MAX_VALUE, (long) BEncoding.<Long>decode("i" + Long.MAX_VALUE + "e"));
+        Assert.assertEquals(Long.MIN_VALUE, (long) BEncoding.<Long>decode("i" + Long.MIN_VALUE + "e"));
+        Assert.assertEquals(7L, (long) BEncoding.<Long>decode("i+7e"));
+        Assert.assertEquals(0L, (long) BEncoding.<Long>decode("i-0e"));
+    }
+
 }
@@ -151,6 +151,9 @@ public final class LC {
     public static final KnownKey zimbra_store_copy_buffer_size_kb = KnownKey.newKey(16); // KB
     public static final KnownKey zimbra_nio_file_copy_chunk_size_kb = KnownKey.newKey(512); // KB
     public static final KnownKey zimbra_blob_input_stream_buffer_size_kb = KnownKey.newKey(1); // KB
+    // raw messages at least this large are sent to IMAP (NIO) and REST clients from a memory-mapped buffer instead
+    // of being copied through the heap; 0 disables
+    public static final KnownKey zimbra_blob_mmap_min_size_kb = KnownKey.newKey(256); // KB
 
     @Supported
     public static final KnownKey zimbra_mailbox_manager_hardref_cache = KnownKey.newKey(2500);
@@ -164,6 +167,14 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_mailbox_galsync_cache = KnownKey.newKey(10000);
 
+    // byte budgets for the item caches; 0 for the global budget means a tenth of the heap
+    public static final KnownKey zimbra_mailbox_item_cache_max_bytes = KnownKey.newKey(0L);
+    // byte budget of the server-wide parsed message cache; 0 derives it from zimbraMessageCacheSize times 8KB
+    public static final KnownKey zimbra_message_cache_max_bytes = KnownKey.newKey(0L);
+    public static final KnownKey zimbra_mailbox_active_cache_bytes = KnownKey.newKey(2 * 1024 * 1024);
+    public static final KnownKey zimbra_mailbox_inactive_cache_bytes = KnownKey.newKey(128 * 1024);
+    public static final KnownKey zimbra_mailbox_galsync_cache_bytes = KnownKey.newKey(32 * 1024 * 1024);
+
     @Supported
     public static final KnownKey zimbra_mailbox_change_checkpoint_frequency = KnownKey.newKey(100);
 
@@ -175,6 +186,10 @@ public final class LC {
 
     public static final KnownKey zimbra_mailbox_lock_readwrite = KnownKey.newKey(true);
 
+    public static final KnownKey zimbra_mailbox_lock_stats_enabled = KnownKey.newKey(false);
+
+    public static final KnownKey zimbra_mailbox_lock_optimistic_read = KnownKey.newKey(false);
+
     @Supported
     public static final KnownKey zimbra_index_threads = KnownKey.newKey(10);
 
@@ -237,12 +252,34 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_index_elasticsearch_url_base = KnownKey.newKey("http://localhost:9200/");
 
+    // index operations are sent to Elasticsearch as _bulk requests of at most this many actions/kilobytes
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_actions = KnownKey.newKey(500);
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_kb = KnownKey.newKey(5120);
+    // a partially filled _bulk request is sent once its oldest action has waited this long
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_delay_ms = KnownKey.newKey(1000);
+    // server-wide limit on concurrent _bulk requests; indexing blocks (back-pressure) when it is reached
+    public static final KnownKey zimbra_index_elasticsearch_bulk_concurrency = KnownKey.newKey(4);
+
     @Supported
     public static final KnownKey zimbra_index_wildcard_max_terms_expanded = KnownKey.newKey(20000);
 
     public static final KnownKey zimbra_index_rfc822address_max_token_length = KnownKey.newKey(256);
     public static final KnownKey zimbra_index_rfc822address_max_token_count = KnownKey.newKey(512);
 
+    // hits kept (across all cached searches) so that paging through a large result set resumes after the last hit
+    // fetched rather than re-running the search from the top, and how long an unused search is kept; 0 disables
+    public static final KnownKey zimbra_index_search_cursor_cache_max_hits = KnownKey.newKey(200000);
+    public static final KnownKey zimbra_index_search_cursor_cache_ttl = KnownKey.newKey(120);
+
+    // results of repeated searches kept as item ID/sort value arrays until the mailbox (or, for searches restricted
+    // to a folder, that folder) changes: total bytes across all mailboxes, hits kept per search, and how long an
+    // unused result is kept; off unless enabled
+    @Reloadable
+    public static final KnownKey zimbra_index_search_result_cache_enabled = KnownKey.newKey(false);
+    public static final KnownKey zimbra_index_search_result_cache_max_bytes = KnownKey.newKey(32 * 1024 * 1024);
+    public static final KnownKey zimbra_index_search_result_cache_max_hits = KnownKey.newKey(1000);
+    public static final KnownKey zimbra_index_search_result_cache_ttl = KnownKey.newKey(300);
+
     public static final KnownKey zimbra_rights_delegated_admin_supported = KnownKey.newKey(true);
 
     @Supported
@@ -299,6 +336,19 @@ public final class LC {
     @Supported
     @Reloadable
     public static final KnownKey soap_response_chunked_transfer_encoding_enabled = KnownKey.newKey(true);
+
+    // let handlers of large responses (e.g. SearchRequest) encode children as they are produced
+    // instead of holding the complete element tree until the servlet serializes it; off until every
+    // handler that reads back its response has been checked
+    @Reloadable
+    public static final KnownKey soap_response_incremental_encoding_enabled = KnownKey.newKey(false);
+
+    // BatchRequest execution="parallel": worker threads, queued sub-requests beyond which the servlet
+    // thread runs them itself, and how long each sub-request may take before it is answered with a fault
+    public static final KnownKey soap_batch_parallel_threads = KnownKey.newKey(16);
+    public static final KnownKey soap_batch_parallel_queue_size = KnownKey.newKey(256);
+    public static final KnownKey soap_batch_parallel_timeout_ms = KnownKey.newKey(30000L);
+
     public static final KnownKey zimbra_servlet_output_stream_buffer_size = KnownKey.newKey(5120);
 
     public static final KnownKey rest_response_cache_control_value = KnownKey.newKey("no-store, no-cache");
@@ -482,6 +532,12 @@ public final class LC {
     public static final KnownKey ldap_cache_reverseproxylookup_server_maxsize = KnownKey.newKey(100);
     public static final KnownKey ldap_cache_reverseproxylookup_server_maxage = KnownKey.newKey(15);
 
+    // reload LDAP cache entries in the background once they are past half their TTL
+    public static final KnownKey ldap_cache_refresh_async = KnownKey.newKey(false);
+    public static final KnownKey ldap_cache_refresh_threads = KnownKey.newKey(2);
+    // delay before retrying a failed background reload; doubles with each consecutive failure
+    public static final KnownKey ldap_cache_refresh_retry_delay_ms = KnownKey.newKey(1000L);
+
     // This combination will consume 128M (128K per target) of memory if the cache is full
     public static final KnownKey acl_cache_target_maxsize = KnownKey.newKey(1024);
     public static final KnownKey acl_cache_target_maxage = KnownKey.newKey(15);
@@ -556,6 +612,17 @@ public final class LC {
     public static final KnownKey sqlite_page_size = KnownKey.newKey(4096);
     public static final KnownKey sqlite_sync_mode = KnownKey.newKey("NORMAL");
 
+    // per-statement SQL stats: distinct statement fingerprints tracked before the rest are lumped
+    // together, and the threshold and size of the slow query ring buffer
+    public static final KnownKey sql_stats_max_statements = KnownKey.newKey(500);
+    public static final KnownKey sql_slow_query_threshold_ms = KnownKey.newKey(1000L);
+    public static final KnownKey sql_slow_query_buffer_size = KnownKey.newKey(100);
+
+    // prepared statements whose parsed form Connector/J caches per MySQL/MariaDB connection (prepStmtCacheSize),
+    // and how long a checkout may wait for a free connection before a warning is logged
+    public static final KnownKey zimbra_mysql_statement_cache_size = KnownKey.newKey(64);
+    public static final KnownKey zimbra_db_pool_wait_warn_threshold_ms = KnownKey.newKey(100L);
+
     @Supported
     public static final KnownKey mailboxd_directory = KnownKey.newKey("${zimbra_home}/mailboxd");
 
@@ -693,6 +760,10 @@ public final class LC {
     public static final KnownKey imap_throttle_acct_limit = KnownKey.newKey(5000);
     public static final KnownKey imap_throttle_command_limit = KnownKey.newKey(25);
     public static final KnownKey imap_throttle_fetch = KnownKey.newKey(true);
+    // FETCH looks up this many items per query and parses up to _depth messages ahead of the response writer
+    public static final KnownKey imap_fetch_prefetch_batch_size = KnownKey.newKey(200);
+    public static final KnownKey imap_fetch_prefetch_depth = KnownKey.newKey(8);
+    public static final KnownKey imap_fetch_prefetch_threads = KnownKey.newKey(8);
     public static final KnownKey data_source_imap_reuse_connections = KnownKey.newKey(false);
 
     @Supported
@@ -1057,13 +1128,49 @@ public final class LC {
     public static final KnownKey freebusy_exchange_cn2 = KnownKey.newKey(null);
     public static final KnownKey freebusy_exchange_cn3 = KnownKey.newKey(null);
     public static final KnownKey freebusy_disable_nodata_status = KnownKey.newKey(false);
+    // per-mailbox index of busy instances served to local free/busy lookups: estimated bytes kept across mailboxes
+    // (enough for a few thousand rooms), and how many days before and after now an index may cover (it only loads
+    // the days requested so far; lookups outside that window expand appointments as before)
+    @Reloadable
+    public static final KnownKey freebusy_index_enabled = KnownKey.newKey(true);
+    public static final KnownKey freebusy_index_max_bytes = KnownKey.newKey(64 * 1024 * 1024);
+    public static final KnownKey freebusy_index_past_days = KnownKey.newKey(7);
+    public static final KnownKey freebusy_index_future_days = KnownKey.newKey(90);
+
+    // file: ephemeral backend; the log is compacted once it holds this many records and twice the live values,
+    // and is forced to disk after each change only if sync is true
+    public static final KnownKey ephemeral_file_store_compact_min_records = KnownKey.newKey(10000);
+    public static final KnownKey ephemeral_file_store_sync = KnownKey.newKey(false);
 
     public static final KnownKey notes_enabled = KnownKey.newKey(false);
 
+    // redo logs are scanned through a read-ahead buffer of this size instead of one read per field
+    public static final KnownKey redolog_read_buffer_kb = KnownKey.newKey(1024);
+    // ParallelRedoPlayer logs replay throughput and the most backlogged mailboxes at this interval; 0 disables
+    public static final KnownKey redolog_replay_progress_interval_sec = KnownKey.newKey(30);
+
     public static final KnownKey zimbra_lmtp_validate_messages = KnownKey.newKey(true);
     public static final KnownKey zimbra_lmtp_max_line_length = KnownKey.newKey(10240);
 
+    // threads shared by all LMTP sessions for delivering a message to several local mailboxes or remote servers
+    // at once; 1 delivers to one recipient at a time on the LMTP thread
+    public static final KnownKey zimbra_lmtp_delivery_threads = KnownKey.newKey(8);
+    // messages with fewer local recipients are delivered sequentially on the LMTP thread
+    public static final KnownKey zimbra_lmtp_parallel_delivery_min_recipients = KnownKey.newKey(4);
+
     public static final KnownKey data_source_scheduling_enabled = KnownKey.newKey(true);
+    // threads running data source imports, and how many of them may import from the same remote host at once
+    // (0 for no limit)
+    public static final KnownKey data_source_import_threads = KnownKey.newKey(20);
+    public static final KnownKey data_source_import_max_per_host = KnownKey.newKey(0);
+    // scheduled imports start late by a fixed share, up to this percentage, of the polling interval, which differs
+    // between data sources so those that come due together are spread out
+    public static final KnownKey data_source_import_jitter_percent = KnownKey.newKey(10);
+    // once imports of this many data sources have failed to connect to a host:port, scheduled imports from it are
+    // skipped for the initial backoff, doubling with each further failure up to the max
+    public static final KnownKey data_source_host_backoff_min_sources = KnownKey.newKey(3);
+    public static final KnownKey data_source_host_backoff_initial_ms = KnownKey.newKey(60 * 1000);
+    public static final KnownKey data_source_host_backoff_max_ms = KnownKey.newKey(60 * 60 * 1000);
     public static final KnownKey data_source_eas_sync_email = KnownKey.newKey(true);
     public static final KnownKey data_source_eas_sync_contacts = KnownKey.newKey(true);
     public static final KnownKey data_source_eas_sync_calendar = KnownKey.newKey(true);
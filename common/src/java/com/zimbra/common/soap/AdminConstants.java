@@ -451,6 +451,12 @@ public final class AdminConstants {
     public static final String E_GET_SERVER_STATS_REQUEST = "GetServerStatsRequest";
     public static final String E_GET_SERVER_STATS_RESPONSE = "GetServerStatsResponse";
 
+    public static final String E_GET_MAILBOX_LOCK_STATS_REQUEST = "GetMailboxLockStatsRequest";
+    public static final String E_GET_MAILBOX_LOCK_STATS_RESPONSE = "GetMailboxLockStatsResponse";
+
+    public static final String E_GET_SQL_STATS_REQUEST = "GetSqlStatsRequest";
+    public static final String E_GET_SQL_STATS_RESPONSE = "GetSqlStatsResponse";
+
     public static final String E_GET_LOGGER_STATS_REQUEST = "GetLoggerStatsRequest";
     public static final String E_GET_LOGGER_STATS_RESPONSE = "GetLoggerStatsResponse";
 
@@ -960,6 +966,12 @@ public final class AdminConstants {
     public static final QName GET_SERVER_STATS_REQUEST = QName.get(E_GET_SERVER_STATS_REQUEST, NAMESPACE);
     public static final QName GET_SERVER_STATS_RESPONSE = QName.get(E_GET_SERVER_STATS_RESPONSE, NAMESPACE);
 
+    public static final QName GET_MAILBOX_LOCK_STATS_REQUEST = QName.get(E_GET_MAILBOX_LOCK_STATS_REQUEST, NAMESPACE);
+    public static final QName GET_MAILBOX_LOCK_STATS_RESPONSE = QName.get(E_GET_MAILBOX_LOCK_STATS_RESPONSE, NAMESPACE);
+
+    public static final QName GET_SQL_STATS_REQUEST = QName.get(E_GET_SQL_STATS_REQUEST, NAMESPACE);
+    public static final QName GET_SQL_STATS_RESPONSE = QName.get(E_GET_SQL_STATS_RESPONSE, NAMESPACE);
+
     public static final QName GET_LOGGER_STATS_REQUEST = QName.get(E_GET_LOGGER_STATS_REQUEST, NAMESPACE);
     public static final QName GET_LOGGER_STATS_RESPONSE = QName.get(E_GET_LOGGER_STATS_RESPONSE, NAMESPACE);
 
@@ -1427,6 +1439,34 @@ public final class AdminConstants {
     // Monitoring
     public static final String E_STAT = "stat";
     public static final String A_DESCRIPTION = "description";
+    public static final String A_WAIT_COUNT = "waitCount";
+    public static final String A_WAIT_TOTAL = "waitTotal";
+    public static final String A_WAIT_P50 = "waitP50";
+    public static final String A_WAIT_P99 = "waitP99";
+    public static final String A_WAIT_MAX = "waitMax";
+    public static final String A_READ_HOLD_COUNT = "readHoldCount";
+    public static final String A_READ_HOLD_P99 = "readHoldP99";
+    public static final String A_READ_HOLD_MAX = "readHoldMax";
+    public static final String A_WRITE_HOLD_COUNT = "writeHoldCount";
+    public static final String A_WRITE_HOLD_P99 = "writeHoldP99";
+    public static final String A_WRITE_HOLD_MAX = "writeHoldMax";
+    public static final String A_CONTENDED = "contended";
+    public static final String A_QUEUE_MAX = "queueMax";
+    public static final String A_PROMOTIONS = "promotions";
+    public static final String A_TIMEOUTS = "timeouts";
+    public static final String A_REJECTED = "rejected";
+    public static final String E_STATEMENT = "stmt";
+    public static final String E_SLOW_QUERY = "slow";
+    public static final String A_SQL = "sql";
+    public static final String A_FINGERPRINT = "fingerprint";
+    public static final String A_EXEC_COUNT = "count";
+    public static final String A_EXEC_TOTAL = "totalTime";
+    public static final String A_ROWS = "rows";
+    public static final String A_P50 = "p50";
+    public static final String A_P99 = "p99";
+    public static final String A_MAX_TIME = "maxTime";
+    public static final String A_ELAPSED = "elapsed";
+    public static final String A_BIND_COUNT = "binds";
 
     public static final String A_FULLSYNC = "fullSync";
     public static final String A_RESET    = "reset";
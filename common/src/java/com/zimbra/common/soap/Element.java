@@ -145,6 +145,19 @@ public abstract class Element implements Cloneable {
      */
     public abstract Element addNonUniqueElement(Element elt) throws ContainerException;
 
+    /** Adds an existing, fully populated {@code Element} to this {@code Element} and immediately encodes it.<br />
+     * Use this when emitting large numbers of children (e.g. search hits) so that each child's tree can be
+     * garbage collected as soon as it has been encoded rather than being held until the response is serialized.
+     * The encoded child is represented by a read-only {@link EncodedElement} and can no longer be modified;
+     * {@link #listElements} and {@link #getOptionalElement} return copies decoded from it.  Consecutive encoded
+     * children share a single {@link EncodedElement}.
+     * @return this {@code Element}
+     */
+    public Element addEncodedElement(Element elt) throws ContainerException {
+        addNonUniqueElement(elt);
+        return this;
+    }
+
     public Element addUniqueElement(String name) throws ContainerException  { return addNonUniqueElement(name); }
     public Element addUniqueElement(QName qname) throws ContainerException  { return addNonUniqueElement(qname); }
     public Element addUniqueElement(Element elt) throws ContainerException  { return addNonUniqueElement(elt); }
@@ -299,6 +312,24 @@ public abstract class Element implements Cloneable {
         return listElements(null);
     }
 
+    /** Adds {@code elt} to {@code list}, or the siblings decoded from it if it is an {@link EncodedElement}. */
+    static void addDecoded(List<Element> list, Element elt) {
+        if (elt instanceof EncodedElement) {
+            list.addAll(((EncodedElement) elt).decode());
+        } else {
+            list.add(elt);
+        }
+    }
+
+    /** Returns {@code elt}, or the first sibling decoded from it if it is an {@link EncodedElement}. */
+    static Element firstDecoded(Element elt) {
+        if (elt instanceof EncodedElement) {
+            List<Element> decoded = ((EncodedElement) elt).decode();
+            return decoded.isEmpty() ? null : decoded.get(0);
+        }
+        return elt;
+    }
+
     /** Returns all the sub-elements with the given name.  If <tt>name></tt>
      *  is <tt>null</tt>, returns <u>all</u> sub-elements.  If no elements
      *  with the given name exist, returns an empty <tt>List</tt> */
@@ -938,7 +969,7 @@ public abstract class Element implements Cloneable {
             } else if (elt.mParent != null) {
                 throw new ContainerException("element already has a parent");
             }
-            assert(elt instanceof JSONElement);
+            assert(elt instanceof JSONElement || elt instanceof EncodedElement);
             String name = elt.getName();
             Object obj = mAttributes.get(name);
             if (obj instanceof Element) {
@@ -956,6 +987,43 @@ public abstract class Element implements Cloneable {
             return elt.collapseNamespace();
         }
 
+        @Override
+        public Element addEncodedElement(Element elt) throws ContainerException {
+            if (elt == null) {
+                return this;
+            } else if (elt.mParent != null) {
+                throw new ContainerException("element already has a parent");
+            }
+            assert(elt instanceof JSONElement);
+            // encoded siblings of the same name are joined into the trailing EncodedElement of the list
+            EncodedElement encoded = null;
+            Object obj = mAttributes.get(elt.getName());
+            if (obj instanceof List<?> && !((List<?>) obj).isEmpty()) {
+                Object last = ((List<?>) obj).get(((List<?>) obj).size() - 1);
+                if (last instanceof EncodedElement) {
+                    encoded = (EncodedElement) last;
+                }
+            }
+            if (encoded == null) {
+                encoded = new EncodedElement(elt.getName(), true);
+                addNonUniqueElement(encoded);
+            }
+            StringBuilder sb = new StringBuilder();
+            elt.mParent = this;
+            try {
+                elt.collapseNamespace();
+                ((JSONElement) elt).marshal(sb, -1, false);
+            } catch (IOException e) {
+                // should really not happen with the StringBuilder impl of Appendable, just log it
+                ZimbraLog.soap.error("Caught IOException: ", e);
+            } finally {
+                elt.mParent = null;
+            }
+            encoded.append(sb.toString());
+            elt.destroy();
+            return this;
+        }
+
         @Override
         public Element addUniqueElement(String name) throws ContainerException {
             return addUniqueElement(new JSONElement(name));
@@ -1070,7 +1138,7 @@ public abstract class Element implements Cloneable {
             if (obj instanceof Element)
                 return (Element) obj;
             else if (obj instanceof List<?>)
-                return (Element) ((List<?>) obj).get(0);
+                return firstDecoded((Element) ((List<?>) obj).get(0));
             // could return a "pseudo-element" for attribute values...
             return null;
         }
@@ -1111,7 +1179,9 @@ public abstract class Element implements Cloneable {
                     if (obj instanceof Element)
                         list.add((Element) obj);
                     else if (obj instanceof List)
-                        list.addAll((List<Element>) obj);
+                        for (Element elt : (List<Element>) obj) {
+                            addDecoded(list, elt);
+                        }
                 }
             }
             return list;
@@ -1495,6 +1565,8 @@ public abstract class Element implements Cloneable {
                                     ((JSONElement) child).marshal(out, lindent, safe);
                                 } else if (child instanceof JSONKeyValuePair) {
                                     out.append(child.toString());
+                                } else if (child instanceof EncodedElement) {
+                                    ((EncodedElement) child).marshal(out);
                                 } else {
                                     out.append('"').append(StringUtil.jsEncode(child)).append('"');
                                 }
@@ -1649,7 +1721,7 @@ public abstract class Element implements Cloneable {
                         "cannot add children to element containing text - <" +
                         this.getName() + ">, trying to add <" + elt.getName() + ">");
             }
-            assert(elt instanceof XMLElement || elt instanceof FileBackedElement);
+            assert(elt instanceof XMLElement || elt instanceof FileBackedElement || elt instanceof EncodedElement);
             if (mChildren == null) {
                 mChildren = new ArrayList<Element>();
             }
@@ -1658,6 +1730,42 @@ public abstract class Element implements Cloneable {
             return elt.collapseNamespace();
         }
 
+        @Override
+        public Element addEncodedElement(Element elt) throws ContainerException {
+            if (elt == null) {
+                return this;
+            } else if (elt.mParent != null) {
+                throw new ContainerException("element already has a parent - <" + elt.getName() + ">");
+            }
+            assert(elt instanceof XMLElement);
+            // document order matters, so only join the EncodedElement if it is still the last child
+            EncodedElement encoded = null;
+            if (mChildren != null && !mChildren.isEmpty()) {
+                Element last = mChildren.get(mChildren.size() - 1);
+                if (last instanceof EncodedElement) {
+                    encoded = (EncodedElement) last;
+                }
+            }
+            if (encoded == null) {
+                encoded = new EncodedElement(elt.getName(), false);
+                addNonUniqueElement(encoded);
+            }
+            StringBuilder sb = new StringBuilder();
+            elt.mParent = this;
+            try {
+                elt.collapseNamespace();
+                ((XMLElement) elt).marshal(sb, -1, false);
+            } catch (IOException e) {
+                // should really not happen with the StringBuilder impl of Appendable, just log it
+                ZimbraLog.soap.error("Caught IOException: ", e);
+            } finally {
+                elt.mParent = null;
+            }
+            encoded.append(sb.toString());
+            elt.destroy();
+            return this;
+        }
+
         @Override
         public Element setText(String content) throws ContainerException {
             if (content != null && !content.trim().equals("") && mChildren != null) {
@@ -1741,7 +1849,7 @@ public abstract class Element implements Cloneable {
             if (mChildren != null && name != null) {
                 for (Element elt : mChildren) {
                     if (elt.getName().equals(name)) {
-                        return elt;
+                        return firstDecoded(elt);
                     }
                 }
             }
@@ -1753,7 +1861,7 @@ public abstract class Element implements Cloneable {
             if (mChildren != null && qname != null) {
                 for (Element elt : mChildren) {
                     if (elt.getQName().equals(qname)) {
-                        return elt;
+                        return firstDecoded(elt);
                     }
                 }
             }
@@ -1778,13 +1886,10 @@ public abstract class Element implements Cloneable {
                 return Collections.emptyList();
             }
             ArrayList<Element> list = new ArrayList<Element>();
-            if (name == null || name.trim().equals("")) {
-                list.addAll(mChildren);
-            } else {
-                for (Element elt : mChildren) {
-                    if (elt.getName().equals(name)) {
-                        list.add(elt);
-                    }
+            boolean all = name == null || name.trim().equals("");
+            for (Element elt : mChildren) {
+                if (all || elt.getName().equals(name)) {
+                    addDecoded(list, elt);
                 }
             }
             return list;
@@ -1988,7 +2093,7 @@ public abstract class Element implements Cloneable {
                     for (Element child : mChildren) {
                         if (child instanceof XMLElement) {
                             ((XMLElement) child).marshal(out, indent < 0 ? -1 : indent + INDENT_SIZE, safe);
-                        } else if (child instanceof FileBackedElement) {
+                        } else if (child instanceof FileBackedElement || child instanceof EncodedElement) {
                             child.marshal(out);
                         } else {
                             out.append(xmlEncode(child.toString(), false));
@@ -2170,6 +2275,173 @@ public abstract class Element implements Cloneable {
         }
     }
 
+    /**
+     * Read-only {@link Element} holding one or more sibling elements which have already been encoded by
+     * {@link Element#addEncodedElement}.  The encoded form is considerably more compact than the element tree it
+     * replaces, which keeps the heap footprint of large responses down until they are serialized.
+     * <p>
+     * The parent's {@link #listElements} and {@link #getOptionalElement} return the siblings decoded again, so
+     * handlers can still read a response after encoding it; changes to the decoded copies are not sent.  The
+     * {@code EncodedElement} itself has no attributes, text or children, and can't be modified.
+     * Note that the encoded siblings are always marshalled compactly, even by {@link #prettyPrint}.
+     */
+    public static final class EncodedElement extends Element {
+        private final boolean json;
+        private final List<String> encoded;
+
+        EncodedElement(String name, boolean json) {
+            this(name, json, new ArrayList<String>());
+        }
+
+        private EncodedElement(String name, boolean json, List<String> encoded) {
+            mName = name;
+            this.json = json;
+            this.encoded = encoded;
+        }
+
+        void append(String elt) {
+            encoded.add(elt);
+        }
+
+        /** Returns the number of encoded sibling elements. */
+        public int size() {
+            return encoded.size();
+        }
+
+        /** Returns copies of the encoded sibling elements, parsed from their encoded form. */
+        public List<Element> decode() {
+            List<Element> elts = new ArrayList<Element>(encoded.size());
+            for (String elt : encoded) {
+                try {
+                    elts.add(json ? parseJSON(elt, new QName(mName), JSONElement.mFactory) : parseXML(elt));
+                } catch (SoapParseException | XmlParseException e) {
+                    // we encoded it ourselves, so it must parse
+                    throw new IllegalStateException("unable to decode encoded element <" + mName + ">", e);
+                }
+            }
+            return elts;
+        }
+
+        @Override
+        public void destroy() {
+            encoded.clear();
+        }
+
+        @Override
+        public ElementFactory getFactory() {
+            return json ? JSONElement.mFactory : XMLElement.mFactory;
+        }
+
+        @Override
+        public Element addNonUniqueElement(String name) {
+            throw new UnsupportedOperationException("encoded element <" + mName + "> is read-only");
+        }
+
+        @Override
+        public Element addNonUniqueElement(QName qname) {
+            throw new UnsupportedOperationException("encoded element <" + mName + "> is read-only");
+        }
+
+        @Override
+        public Element addNonUniqueElement(Element elt) {
+            throw new UnsupportedOperationException("encoded element <" + mName + "> is read-only");
+        }
+
+        @Override
+        public Element setText(String content) {
+            throw new UnsupportedOperationException("encoded element <" + mName + "> is read-only");
+        }
+
+        @Override
+        public Element addAttribute(String key, String value, Disposition disp) {
+            throw new UnsupportedOperationException("encoded element <" + mName + "> is read-only");
+        }
+
+        @Override
+        public KeyValuePair addKeyValuePair(String key, String value, String eltname, String attrname) {
+            throw new UnsupportedOperationException("encoded element <" + mName + "> is read-only");
+        }
+
+        @Override
+        public Element clone() {
+            return new EncodedElement(mName, json, new ArrayList<String>(encoded));
+        }
+
+        @Override
+        public Element getOptionalElement(String name) {
+            return null;
+        }
+
+        @Override
+        public Set<Attribute> listAttributes() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public List<Element> listElements(String name) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean hasChildren() {
+            return false;
+        }
+
+        @Override
+        public List<KeyValuePair> listKeyValuePairs(String eltname, String attrname) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public String getText() {
+            return "";
+        }
+
+        @Override
+        String getRawText() {
+            // the parent reads the text of a child list from its first element
+            Element first = firstDecoded(this);
+            return first == null ? null : first.getRawText();
+        }
+
+        @Override
+        public String getAttribute(String key, String defaultValue) {
+            return defaultValue;
+        }
+
+        @Override
+        public String prettyPrint() {
+            return toString();
+        }
+
+        @Override
+        public String prettyPrint(boolean safe) {
+            return toString();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            try {
+                marshal(sb);
+            } catch (IOException e) {
+                // should really not happen with the StringBuilder impl of Appendable, just log it
+                ZimbraLog.soap.error("Caught IOException: ", e);
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public void marshal(Appendable out) throws IOException {
+            for (int i = 0, size = encoded.size(); i < size; i++) {
+                if (i > 0 && json) {
+                    out.append(',');
+                }
+                out.append(encoded.get(i));
+            }
+        }
+    }
+
     public static void main(String[] args) throws ContainerException, SoapParseException {
         System.out.println(Element.parseJSON("{ 'a':'b'}").getAttribute("a", null));
         System.out.println(Element.parseJSON("{ '_attrs' : {'a':'b'}}").getAttribute("a", null));
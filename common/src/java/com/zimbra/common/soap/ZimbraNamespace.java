@@ -47,10 +47,12 @@ public class ZimbraNamespace {
     public static final QName E_ARGUMENT = QName.get("a", ZIMBRA);
 
     public static final String A_ONERROR = "onerror";
+    public static final String A_EXECUTION = "execution";
     public static final String A_REQUEST_ID = "requestId";
     public static final String A_ARG_NAME = "n";
     public static final String A_ARG_TYPE = "t";
     public static final String DEF_ONERROR = "continue";
+    public static final String EXECUTION_PARALLEL = "parallel";
     
     public static final String E_NOTIFY   = "notify";
     public static final String E_REFRESH  = "refresh";
@@ -16,22 +16,24 @@
  */
 package com.zimbra.common.stats;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Tracks a total and count (number of calls to {@link #increment}).
+ * Tracks a total and count (number of calls to {@link #increment}).  Both are striped
+ * {@link LongAdder}s, so that counters bumped on every request (cache hit rates and the
+ * like) don't contend across cores.
  */
 public class Counter {
 
-    private AtomicLong mCount = new AtomicLong();
-    private AtomicLong mTotal = new AtomicLong();
+    private LongAdder mCount = new LongAdder();
+    private LongAdder mTotal = new LongAdder();
     
     public long getCount() {
-        return mCount.longValue();
+        return mCount.sum();
     }
     
     public long getTotal() { 
-        return mTotal.longValue();
+        return mTotal.sum();
     }
 
     /**
@@ -39,10 +41,11 @@ public class Counter {
      * call to {@link #reset}.
      */
     public synchronized double getAverage() {
-        if (mCount.longValue() == 0) {
+        long count = mCount.sum();
+        if (count == 0) {
             return 0.0;
         } else {
-            return (double) mTotal.longValue() / (double) mCount.longValue();
+            return (double) mTotal.sum() / (double) count;
         }
     }
 
@@ -50,8 +53,8 @@ public class Counter {
      * Increments the total by the specified value.  Increments the count by 1.
      */
     public void increment(long value) {
-        mCount.getAndIncrement();
-        mTotal.getAndAdd(value);
+        mCount.increment();
+        mTotal.add(value);
     }
 
     /**
@@ -62,7 +65,7 @@ public class Counter {
     }
     
     public synchronized void reset() {
-        mCount.set(0);
-        mTotal.set(0);
+        mCount.reset();
+        mTotal.reset();
     }
 }
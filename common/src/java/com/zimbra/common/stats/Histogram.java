@@ -0,0 +1,229 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram with log-linear buckets, in the spirit of HdrHistogram.  Values below
+ * {@code 2^precisionBits} are counted exactly; larger values fall into buckets whose width is
+ * {@code 1/2^precisionBits} of the power of two they belong to, so the relative error of any
+ * reported percentile is bounded by that fraction.  Recording a value never allocates.
+ * <p>
+ * {@link #reset()} is not atomic with respect to concurrent calls to {@link #record(long)}.  As
+ * with {@link Counter}, a value recorded during a reset may be partially lost.  A histogram that
+ * several readers report on should not be reset; each reader takes a {@link #copy()} at the start
+ * of its interval instead, and reports {@link #since(Histogram)} at the end of it.
+ */
+public class Histogram {
+
+    private final int precisionBits;
+    private final int subBucketCount;
+    private final long highestTrackableValue;
+    private final AtomicLongArray buckets;
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param highestTrackableValue values above this are counted in the last bucket
+     * @param precisionBits number of significant bits kept per power of two (1 - 10)
+     */
+    public Histogram(long highestTrackableValue, int precisionBits) {
+        if (precisionBits < 1 || precisionBits > 10) {
+            throw new IllegalArgumentException("precisionBits must be between 1 and 10: " + precisionBits);
+        }
+        if (highestTrackableValue < 1) {
+            throw new IllegalArgumentException("highestTrackableValue must be positive: " + highestTrackableValue);
+        }
+        this.precisionBits = precisionBits;
+        this.subBucketCount = 1 << precisionBits;
+        this.highestTrackableValue = highestTrackableValue;
+        this.buckets = new AtomicLongArray(indexOf(highestTrackableValue) + 1);
+    }
+
+    private int indexOf(long value) {
+        if (value < subBucketCount) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - precisionBits;
+        int group = shift + 1;
+        int sub = (int) (value >>> shift) - subBucketCount;
+        return (group << precisionBits) + sub;
+    }
+
+    private long lowestValueAt(int index) {
+        if (index < subBucketCount) {
+            return index;
+        }
+        int group = index >>> precisionBits;
+        int sub = index & (subBucketCount - 1);
+        return ((long) (subBucketCount + sub)) << (group - 1);
+    }
+
+    private long highestValueAt(int index) {
+        if (index < subBucketCount) {
+            return index;
+        }
+        int group = index >>> precisionBits;
+        return lowestValueAt(index) + (1L << (group - 1)) - 1;
+    }
+
+    /**
+     * Records a single value.  Negative values are counted as zero.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(indexOf(Math.min(value, highestTrackableValue)));
+        total.add(value);
+        long curMax = max.get();
+        while (value > curMax && !max.compareAndSet(curMax, value)) {
+            curMax = max.get();
+        }
+    }
+
+    /**
+     * Returns the number of recorded values.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the sum of all recorded values.
+     */
+    public long getTotal() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0.0 : (double) getTotal() / (double) count;
+    }
+
+    /**
+     * Returns an upper bound of the value at the given percentile (0 - 100), or {@code 0} if
+     * nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] counts = new long[buckets.length()];
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        double p = Math.max(0.0, Math.min(100.0, percentile));
+        long target = Math.max(1L, (long) Math.ceil(p / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                // the last bucket also holds everything above highestTrackableValue
+                return i == counts.length - 1 ? getMax() : Math.min(highestValueAt(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Adds all values recorded in {@code other} to this histogram.  Both histograms must have
+     * been created with the same parameters.
+     */
+    public void add(Histogram other) {
+        if (other.precisionBits != precisionBits || other.buckets.length() != buckets.length()) {
+            throw new IllegalArgumentException("incompatible histogram");
+        }
+        for (int i = 0; i < buckets.length(); i++) {
+            long c = other.buckets.get(i);
+            if (c != 0) {
+                buckets.addAndGet(i, c);
+            }
+        }
+        total.add(other.getTotal());
+        long otherMax = other.getMax();
+        long curMax = max.get();
+        while (otherMax > curMax && !max.compareAndSet(curMax, otherMax)) {
+            curMax = max.get();
+        }
+    }
+
+    /**
+     * Returns a snapshot of this histogram.  Values recorded while it is taken may or may not be
+     * included.
+     */
+    public Histogram copy() {
+        Histogram copy = new Histogram(highestTrackableValue, precisionBits);
+        copy.add(this);
+        return copy;
+    }
+
+    /**
+     * Returns the values recorded since {@code earlier}, a {@link #copy()} of this histogram.  The
+     * maximum of the result is the upper bound of its highest non-empty bucket, as the largest
+     * value recorded in the interval is not known exactly.
+     */
+    public Histogram since(Histogram earlier) {
+        if (earlier.precisionBits != precisionBits || earlier.buckets.length() != buckets.length()) {
+            throw new IllegalArgumentException("incompatible histogram");
+        }
+        Histogram delta = new Histogram(highestTrackableValue, precisionBits);
+        int highest = -1;
+        for (int i = 0; i < buckets.length(); i++) {
+            long c = buckets.get(i) - earlier.buckets.get(i);
+            if (c > 0) {
+                delta.buckets.set(i, c);
+                highest = i;
+            }
+        }
+        delta.total.add(Math.max(0L, getTotal() - earlier.getTotal()));
+        if (highest >= 0) {
+            long curMax = getMax();
+            // the last bucket also holds everything above highestTrackableValue
+            delta.max.set(highest == buckets.length() - 1 ? curMax : Math.min(highestValueAt(highest), curMax));
+        }
+        return delta;
+    }
+
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        total.reset();
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d,p50=%d,p90=%d,p99=%d,max=%d", getCount(), getValueAtPercentile(50),
+                getValueAtPercentile(90), getValueAtPercentile(99), getMax());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reports count, percentiles and maximum of the wrapped <tt>Histogram</tt> for the interval
+ * between subsequent calls to {@link #reset}.  The histogram itself is never reset, so that
+ * other readers of it are not affected; the interval is the difference between snapshots.
+ */
+public class PercentileCalculator
+implements Accumulator {
+
+    private final Histogram mHistogram;
+    private final String mPrefix;
+    private final double[] mPercentiles;
+    private final List<String> mNames;
+    private Histogram mStart;                   // snapshot at the start of the current interval
+    private Histogram mEnd;                     // snapshot taken by the last getData()
+    private Histogram mInterval;                // values reported by the last getData()
+    private volatile Histogram mLastInterval;   // values of the last completed interval
+
+    /**
+     * @param prefix stat names are built as <tt>prefix_count</tt>, <tt>prefix_p50</tt>, ...
+     *  <tt>prefix_max</tt>
+     * @param percentiles the percentiles to report, e.g. <tt>50, 99</tt>
+     */
+    public PercentileCalculator(Histogram histogram, String prefix, double... percentiles) {
+        mHistogram = histogram;
+        mPrefix = prefix;
+        mPercentiles = percentiles;
+        List<String> names = new ArrayList<String>(percentiles.length + 2);
+        names.add(prefix + "_count");
+        for (double p : percentiles) {
+            names.add(prefix + "_" + percentileName(p));
+        }
+        names.add(prefix + "_max");
+        mNames = Collections.unmodifiableList(names);
+        mStart = histogram.copy();
+        mLastInterval = mStart.since(mStart);
+    }
+
+    /**
+     * Returns the column suffix for a percentile: <tt>p50</tt>, <tt>p99</tt>, <tt>p999</tt>.
+     */
+    public static String percentileName(double percentile) {
+        String digits = Double.toString(percentile).replace(".", "");
+        while (digits.endsWith("0") && digits.length() > 2) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        return "p" + digits;
+    }
+
+    public String getPrefix() {
+        return mPrefix;
+    }
+
+    public List<String> getNames() {
+        return mNames;
+    }
+
+    /**
+     * Returns the values recorded in the last completed interval.
+     */
+    public Histogram getLastInterval() {
+        return mLastInterval;
+    }
+
+    public synchronized List<Object> getData() {
+        mEnd = mHistogram.copy();
+        mInterval = mEnd.since(mStart);
+        List<Object> data = new ArrayList<Object>(mNames.size());
+        data.add(mInterval.getCount());
+        for (double p : mPercentiles) {
+            data.add(mInterval.getValueAtPercentile(p));
+        }
+        data.add(mInterval.getMax());
+        return data;
+    }
+
+    public synchronized void reset() {
+        if (mEnd == null) {
+            mEnd = mHistogram.copy();
+            mInterval = mEnd.since(mStart);
+        }
+        mLastInterval = mInterval;
+        mStart = mEnd;
+        mEnd = null;
+        mInterval = null;
+    }
+}
@@ -17,11 +17,11 @@
 package com.zimbra.common.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
-import java.util.TreeMap;
 
 /**
  * @since Jul 7, 2005
@@ -45,10 +45,17 @@ public final class BEncoding {
     public static <T> T decode(String data) throws BEncodingException {
         if (data == null)
             return null;
+        return decode(data, 0, data.length());
+    }
+
+    /**
+     * Decodes the single value that occupies <tt>data[start, end)</tt>.
+     */
+    public static <T> T decode(String data, int start, int end) throws BEncodingException {
         try {
-            Offset offset = new Offset();
-            Object result = decode(data.toCharArray(), offset);
-            if (offset.offset != data.length()) {
+            Offset offset = new Offset(start);
+            Object result = decode(data, offset);
+            if (offset.offset != end) {
                 throw new BEncodingException("extra characters at end of encoded string");
             }
             @SuppressWarnings("unchecked")
@@ -61,18 +68,69 @@ public final class BEncoding {
         }
     }
 
+    /**
+     * Checks that <tt>data</tt> is a well-formed encoded dictionary and locates
+     * its entries without decoding them.  For the <i>n</i>th entry, the result
+     * holds the start of its key at <tt>3n</tt>, the start of its value at
+     * <tt>3n+1</tt> and the end of its value at <tt>3n+2</tt>; the key and
+     * value can then be decoded individually with {@link #decode(String, int, int)}.
+     */
+    public static int[] indexDictionary(String data) throws BEncodingException {
+        try {
+            if (data.isEmpty() || data.charAt(0) != 'd') {
+                throw new BEncodingException("encoded string is not a dictionary");
+            }
+            Offset offset = new Offset(1);
+            int[] extents = new int[24];
+            int count = 0;
+            int keyStart = offset.offset;
+            while (skip(data, offset)) {
+                int valueStart = offset.offset;
+                if (!skip(data, offset)) {
+                    throw new BEncodingException("missing dictionary value for key at " + keyStart);
+                }
+                if (count + 3 > extents.length) {
+                    extents = Arrays.copyOf(extents, extents.length * 2);
+                }
+                extents[count++] = keyStart;
+                extents[count++] = valueStart;
+                extents[count++] = offset.offset;
+                keyStart = offset.offset;
+            }
+            if (offset.offset != data.length()) {
+                throw new BEncodingException("extra characters at end of encoded string");
+            }
+            return Arrays.copyOf(extents, count);
+        } catch (BEncodingException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new BEncodingException(e);
+        }
+    }
+
     private static StringBuilder encode(StringBuilder sb, Object object) {
-        if (object instanceof Map) {
-            SortedMap<?, ?> tree = (object instanceof SortedMap ?
-                    (SortedMap<?, ?>) object : new TreeMap<Object, Object>((Map<?, ?>) object));
+        if (object instanceof SortedMap) {
             sb.append('d');
-            if (!tree.isEmpty())
-                for (Map.Entry<?, ?> entry : tree.entrySet()) {
-                    if (entry.getKey() != null && entry.getValue() != null) {
-                        encode(sb, entry.getKey().toString());
-                        encode(sb, entry.getValue());
-                    }
+            for (Map.Entry<?, ?> entry : ((SortedMap<?, ?>) object).entrySet()) {
+                if (entry.getKey() != null && entry.getValue() != null) {
+                    encode(sb, entry.getKey().toString());
+                    encode(sb, entry.getValue());
                 }
+            }
+            sb.append('e');
+        } else if (object instanceof Map) {
+            // sort the keys directly rather than copying the whole map into a TreeMap
+            Map<?, ?> map = (Map<?, ?>) object;
+            Object[] keys = map.keySet().toArray();
+            Arrays.sort(keys);
+            sb.append('d');
+            for (Object key : keys) {
+                Object value = map.get(key);
+                if (key != null && value != null) {
+                    encode(sb, key.toString());
+                    encode(sb, value);
+                }
+            }
             sb.append('e');
         } else if (object instanceof List) {
             sb.append('l');
@@ -93,16 +151,20 @@ public final class BEncoding {
 
     private static final class Offset {
         int offset;
+
+        Offset(int offset) {
+            this.offset = offset;
+        }
     }
 
-    private static Object decode(char[] buffer, Offset offset) throws BEncodingException {
+    private static Object decode(String data, Offset offset) throws BEncodingException {
         Object key, value;
-        char c = buffer[offset.offset++];
+        char c = data.charAt(offset.offset++);
         switch (c) {
             case 'd':
                 Map<String, Object> map = new HashMap<String, Object>();
-                while ((key = decode(buffer, offset)) != null) {
-                    if ((value = decode(buffer, offset)) == null) {
+                while ((key = decode(data, offset)) != null) {
+                    if ((value = decode(data, offset)) == null) {
                         throw new BEncodingException("missing dictionary value for key " + key.toString());
                     }
                     map.put(key.toString(), value);
@@ -111,7 +173,7 @@ public final class BEncoding {
 
             case 'l':
                 List<Object> list = new ArrayList<Object>();
-                while ((key = decode(buffer, offset)) != null) {
+                while ((key = decode(data, offset)) != null) {
                     list.add(key);
                 }
                 return list;
@@ -120,21 +182,83 @@ public final class BEncoding {
                 return null;
 
             case 'i':
-                return Long.valueOf(readLong(buffer, offset, 'e'));
+                return Long.valueOf(readLong(data, offset, 'e'));
 
             default:
                 offset.offset--;
-                long length = readLong(buffer, offset, ':');
+                long length = readLong(data, offset, ':');
                 int start = offset.offset;
                 offset.offset += length;
-                return new String(buffer, start, (int) length);
+                return data.substring(start, offset.offset);
+        }
+    }
+
+    /**
+     * Moves <tt>offset</tt> past the value that starts there, checking it the
+     * same way {@link #decode(String, Offset)} would but without building it.
+     * Returns <tt>false</tt> if the value is the end of a list or dictionary.
+     */
+    private static boolean skip(String data, Offset offset) throws BEncodingException {
+        char c = data.charAt(offset.offset++);
+        switch (c) {
+            case 'd':
+                while (skip(data, offset)) {
+                    if (!skip(data, offset)) {
+                        throw new BEncodingException("missing dictionary value at " + offset.offset);
+                    }
+                }
+                return true;
+
+            case 'l':
+                while (skip(data, offset)) ;
+                return true;
+
+            case 'e':
+                return false;
+
+            case 'i':
+                readLong(data, offset, 'e');
+                return true;
+
+            default:
+                offset.offset--;
+                long length = readLong(data, offset, ':');
+                if (length < 0 || offset.offset + length > data.length()) {
+                    throw new BEncodingException("string length out of range at " + offset.offset);
+                }
+                offset.offset += length;
+                return true;
         }
     }
 
-    private static long readLong(char[] buffer, Offset offset, char terminator) {
+    private static long readLong(String data, Offset offset, char terminator) {
         int start = offset.offset;
-        while (buffer[offset.offset++] != terminator) ;
-        return Long.parseLong(new String(buffer, start, offset.offset - start - 1));
+        int end = data.indexOf(terminator, start);
+        if (end < 0) {
+            throw new StringIndexOutOfBoundsException("missing '" + terminator + "' after offset " + start);
+        }
+        offset.offset = end + 1;
+
+        // parse in place; anything unusual is left to Long.parseLong, including its NumberFormatException
+        int i = start;
+        boolean negative = end > start && data.charAt(start) == '-';
+        if (negative) {
+            i++;
+        }
+        if (i < end && end - i < 19) {
+            long result = 0;
+            for (; i < end; i++) {
+                char c = data.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                result = result * 10 + (c - '0');
+            }
+            if (i == end) {
+                return negative ? -result : result;
+            }
+        }
+        return Long.parseLong(data.substring(start, end));
     }
 
 }
@@ -22,6 +22,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 import com.google.common.base.Function;
 import com.google.common.cache.CacheBuilder;
@@ -39,6 +40,16 @@ public class MapUtil {
         return new LruMap<K, V>(maxSize);
     }
 
+    /**
+     * Returns a new thread-safe map holding at most {@code maxSize} entries, evicting
+     * the least recently used ones first.  Unlike {@link #newLruMap}, it needs no
+     * external synchronization and reads don't contend with each other.  Null keys
+     * and values are not permitted.
+     */
+    public static <K, V> ConcurrentMap<K, V> newConcurrentLruMap(int maxSize) {
+        return CacheBuilder.newBuilder().maximumSize(maxSize).concurrencyLevel(16).<K, V>build().asMap();
+    }
+
     /**
      * Returns a new {@code LoadingCache} that maps a key to a {@code List} of values.
      * When {@code get()} is called on a key that does not exist in the map,
@@ -587,6 +587,18 @@ public final class ZimbraLog {
             CONTEXT_FILTER.add(item);
     }
 
+    /**
+     * Returns a copy of the current thread's logging context, so that work handed off to another thread
+     * can log under the same context via {@link #addToContext(String, String)}.
+     */
+    public static Map<String, String> getContextMap() {
+        Map<String, String> contextMap = sContextMap.get();
+        if (contextMap == null) {
+            return Collections.emptyMap();
+        }
+        return new LinkedHashMap<String, String>(contextMap);
+    }
+
     /**
      * Adds a key/value pair to the current thread's logging context. If <tt>key</tt> is null, does nothing. If
      * <tt>value</tt> is null, removes the context entry.
@@ -514,6 +514,8 @@ public final class JaxbUtil {
             com.zimbra.soap.admin.message.GetMailQueueInfoResponse.class,
             com.zimbra.soap.admin.message.GetMailQueueRequest.class,
             com.zimbra.soap.admin.message.GetMailQueueResponse.class,
+            com.zimbra.soap.admin.message.GetMailboxLockStatsRequest.class,
+            com.zimbra.soap.admin.message.GetMailboxLockStatsResponse.class,
             com.zimbra.soap.admin.message.GetMailboxRequest.class,
             com.zimbra.soap.admin.message.GetMailboxResponse.class,
             com.zimbra.soap.admin.message.GetMailboxStatsRequest.class,
@@ -546,6 +548,8 @@ public final class JaxbUtil {
             com.zimbra.soap.admin.message.GetSessionsResponse.class,
             com.zimbra.soap.admin.message.GetShareInfoRequest.class,
             com.zimbra.soap.admin.message.GetShareInfoResponse.class,
+            com.zimbra.soap.admin.message.GetSqlStatsRequest.class,
+            com.zimbra.soap.admin.message.GetSqlStatsResponse.class,
             com.zimbra.soap.admin.message.GetSyncStateRequest.class,
             com.zimbra.soap.admin.message.GetSyncStateResponse.class,
             com.zimbra.soap.admin.message.GetSystemRetentionPolicyRequest.class,
@@ -0,0 +1,71 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.soap.admin.message;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.zimbra.common.soap.AdminConstants;
+import com.zimbra.soap.type.ZmBoolean;
+
+/**
+ * @zm-api-command-auth-required true
+ * @zm-api-command-admin-auth-required true
+ * @zm-api-command-description Returns mailbox lock contention statistics for the mailboxes loaded on this server,
+ * hottest first.  All times are in microseconds and cover the period since the mailbox was loaded or since the
+ * statistics were last reset.
+ */
+@XmlAccessorType(XmlAccessType.NONE)
+@XmlRootElement(name=AdminConstants.E_GET_MAILBOX_LOCK_STATS_REQUEST)
+public class GetMailboxLockStatsRequest {
+
+    /**
+     * @zm-api-field-tag limit
+     * @zm-api-field-description Maximum number of mailboxes to return.  Default is 10
+     */
+    @XmlAttribute(name=AdminConstants.A_LIMIT /* limit */, required=false)
+    private Integer limit;
+
+    /**
+     * @zm-api-field-tag sort-by
+     * @zm-api-field-description Sort key - <b>waitTotal</b> (default), <b>waitMax</b>, <b>writeHoldP99</b>,
+     * <b>readHoldP99</b>, <b>queueMax</b> or <b>contended</b>
+     */
+    @XmlAttribute(name=AdminConstants.A_SORT_BY /* sortBy */, required=false)
+    private String sortBy;
+
+    /**
+     * @zm-api-field-tag reset
+     * @zm-api-field-description If set, the statistics of all loaded mailboxes are reset after being reported
+     */
+    @XmlAttribute(name=AdminConstants.A_RESET /* reset */, required=false)
+    private ZmBoolean reset;
+
+    public GetMailboxLockStatsRequest() {
+    }
+
+    public void setLimit(Integer limit) { this.limit = limit; }
+    public void setSortBy(String sortBy) { this.sortBy = sortBy; }
+    public void setReset(Boolean reset) { this.reset = ZmBoolean.fromBool(reset); }
+
+    public Integer getLimit() { return limit; }
+    public String getSortBy() { return sortBy; }
+    public Boolean getReset() { return ZmBoolean.toBool(reset); }
+}
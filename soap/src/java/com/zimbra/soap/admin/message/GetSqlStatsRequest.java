@@ -0,0 +1,62 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.soap.admin.message;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.zimbra.common.soap.AdminConstants;
+import com.zimbra.soap.type.ZmBoolean;
+
+/**
+ * @zm-api-command-auth-required true
+ * @zm-api-command-admin-auth-required true
+ * @zm-api-command-description Returns per-statement SQL statistics of this server, most expensive in total first,
+ * followed by the most recent slow queries.  Statements are grouped by fingerprint: the SQL text with literals
+ * replaced by <b>?</b> and lists of placeholders collapsed to <b>(...)</b>.  All times are in microseconds and
+ * cover the period since startup or since the statistics were last reset.
+ */
+@XmlAccessorType(XmlAccessType.NONE)
+@XmlRootElement(name=AdminConstants.E_GET_SQL_STATS_REQUEST)
+public class GetSqlStatsRequest {
+
+    /**
+     * @zm-api-field-tag limit
+     * @zm-api-field-description Maximum number of statements to return.  Default is 25
+     */
+    @XmlAttribute(name=AdminConstants.A_LIMIT /* limit */, required=false)
+    private Integer limit;
+
+    /**
+     * @zm-api-field-tag reset
+     * @zm-api-field-description If set, statement statistics and slow queries are cleared after being reported
+     */
+    @XmlAttribute(name=AdminConstants.A_RESET /* reset */, required=false)
+    private ZmBoolean reset;
+
+    public GetSqlStatsRequest() {
+    }
+
+    public void setLimit(Integer limit) { this.limit = limit; }
+    public void setReset(Boolean reset) { this.reset = ZmBoolean.fromBool(reset); }
+
+    public Integer getLimit() { return limit; }
+    public Boolean getReset() { return ZmBoolean.toBool(reset); }
+}
@@ -0,0 +1,82 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.soap.admin.message;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.zimbra.common.soap.AdminConstants;
+import com.zimbra.soap.admin.type.SlowSqlQueryInfo;
+import com.zimbra.soap.admin.type.SqlStatementStatsInfo;
+
+@XmlAccessorType(XmlAccessType.NONE)
+@XmlRootElement(name=AdminConstants.E_GET_SQL_STATS_RESPONSE)
+public class GetSqlStatsResponse {
+
+    /**
+     * @zm-api-field-description Statistics of the most expensive statements
+     */
+    @XmlElement(name=AdminConstants.E_STATEMENT /* stmt */, required=false)
+    private List<SqlStatementStatsInfo> statements = Lists.newArrayList();
+
+    /**
+     * @zm-api-field-description Most recent slow queries, newest first
+     */
+    @XmlElement(name=AdminConstants.E_SLOW_QUERY /* slow */, required=false)
+    private List<SlowSqlQueryInfo> slowQueries = Lists.newArrayList();
+
+    public GetSqlStatsResponse() {
+    }
+
+    public void setStatements(Iterable<SqlStatementStatsInfo> statements) {
+        this.statements.clear();
+        if (statements != null) {
+            Iterables.addAll(this.statements, statements);
+        }
+    }
+
+    public void addStatement(SqlStatementStatsInfo statement) {
+        this.statements.add(statement);
+    }
+
+    public void setSlowQueries(Iterable<SlowSqlQueryInfo> slowQueries) {
+        this.slowQueries.clear();
+        if (slowQueries != null) {
+            Iterables.addAll(this.slowQueries, slowQueries);
+        }
+    }
+
+    public void addSlowQuery(SlowSqlQueryInfo slowQuery) {
+        this.slowQueries.add(slowQuery);
+    }
+
+    public List<SqlStatementStatsInfo> getStatements() {
+        return Collections.unmodifiableList(statements);
+    }
+
+    public List<SlowSqlQueryInfo> getSlowQueries() {
+        return Collections.unmodifiableList(slowQueries);
+    }
+}
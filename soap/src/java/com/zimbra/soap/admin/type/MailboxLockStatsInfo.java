@@ -0,0 +1,203 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.soap.admin.type;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlType;
+
+import com.zimbra.common.soap.AdminConstants;
+
+/**
+ * Lock contention statistics of a single mailbox.  Times are in microseconds.
+ */
+@XmlAccessorType(XmlAccessType.NONE)
+@XmlType(propOrder = {})
+public class MailboxLockStatsInfo {
+
+    /**
+     * @zm-api-field-tag mailbox-id
+     * @zm-api-field-description Mailbox ID
+     */
+    @XmlAttribute(name=AdminConstants.A_MAILBOXID /* mbxid */, required=true)
+    private int mailboxId;
+
+    /**
+     * @zm-api-field-tag account-id
+     * @zm-api-field-description Account ID
+     */
+    @XmlAttribute(name=AdminConstants.A_ACCOUNTID /* id */, required=true)
+    private String accountId;
+
+    /**
+     * @zm-api-field-tag wait-count
+     * @zm-api-field-description Number of lock acquisitions
+     */
+    @XmlAttribute(name=AdminConstants.A_WAIT_COUNT /* waitCount */, required=false)
+    private long waitCount;
+
+    /**
+     * @zm-api-field-tag wait-total
+     * @zm-api-field-description Total time spent waiting for the lock
+     */
+    @XmlAttribute(name=AdminConstants.A_WAIT_TOTAL /* waitTotal */, required=false)
+    private long waitTotal;
+
+    /**
+     * @zm-api-field-tag wait-p50
+     * @zm-api-field-description Median time spent waiting for the lock
+     */
+    @XmlAttribute(name=AdminConstants.A_WAIT_P50 /* waitP50 */, required=false)
+    private long waitP50;
+
+    /**
+     * @zm-api-field-tag wait-p99
+     * @zm-api-field-description 99th percentile of the time spent waiting for the lock
+     */
+    @XmlAttribute(name=AdminConstants.A_WAIT_P99 /* waitP99 */, required=false)
+    private long waitP99;
+
+    /**
+     * @zm-api-field-tag wait-max
+     * @zm-api-field-description Longest time spent waiting for the lock
+     */
+    @XmlAttribute(name=AdminConstants.A_WAIT_MAX /* waitMax */, required=false)
+    private long waitMax;
+
+    /**
+     * @zm-api-field-tag read-hold-count
+     * @zm-api-field-description Number of read holds
+     */
+    @XmlAttribute(name=AdminConstants.A_READ_HOLD_COUNT /* readHoldCount */, required=false)
+    private long readHoldCount;
+
+    /**
+     * @zm-api-field-tag read-hold-p99
+     * @zm-api-field-description 99th percentile of the read hold time
+     */
+    @XmlAttribute(name=AdminConstants.A_READ_HOLD_P99 /* readHoldP99 */, required=false)
+    private long readHoldP99;
+
+    /**
+     * @zm-api-field-tag read-hold-max
+     * @zm-api-field-description Longest read hold time
+     */
+    @XmlAttribute(name=AdminConstants.A_READ_HOLD_MAX /* readHoldMax */, required=false)
+    private long readHoldMax;
+
+    /**
+     * @zm-api-field-tag write-hold-count
+     * @zm-api-field-description Number of write holds
+     */
+    @XmlAttribute(name=AdminConstants.A_WRITE_HOLD_COUNT /* writeHoldCount */, required=false)
+    private long writeHoldCount;
+
+    /**
+     * @zm-api-field-tag write-hold-p99
+     * @zm-api-field-description 99th percentile of the write hold time
+     */
+    @XmlAttribute(name=AdminConstants.A_WRITE_HOLD_P99 /* writeHoldP99 */, required=false)
+    private long writeHoldP99;
+
+    /**
+     * @zm-api-field-tag write-hold-max
+     * @zm-api-field-description Longest write hold time
+     */
+    @XmlAttribute(name=AdminConstants.A_WRITE_HOLD_MAX /* writeHoldMax */, required=false)
+    private long writeHoldMax;
+
+    /**
+     * @zm-api-field-tag contended
+     * @zm-api-field-description Number of acquisitions that had to wait for another thread
+     */
+    @XmlAttribute(name=AdminConstants.A_CONTENDED /* contended */, required=false)
+    private long contended;
+
+    /**
+     * @zm-api-field-tag queue-max
+     * @zm-api-field-description Largest number of threads found waiting by a contended caller
+     */
+    @XmlAttribute(name=AdminConstants.A_QUEUE_MAX /* queueMax */, required=false)
+    private long queueMax;
+
+    /**
+     * @zm-api-field-tag promotions
+     * @zm-api-field-description Number of read locks promoted to write locks
+     */
+    @XmlAttribute(name=AdminConstants.A_PROMOTIONS /* promotions */, required=false)
+    private long promotions;
+
+    /**
+     * @zm-api-field-tag timeouts
+     * @zm-api-field-description Number of acquisitions that timed out
+     */
+    @XmlAttribute(name=AdminConstants.A_TIMEOUTS /* timeouts */, required=false)
+    private long timeouts;
+
+    /**
+     * @zm-api-field-tag rejected
+     * @zm-api-field-description Number of acquisitions rejected because too many threads were waiting
+     */
+    @XmlAttribute(name=AdminConstants.A_REJECTED /* rejected */, required=false)
+    private long rejected;
+
+    public MailboxLockStatsInfo() {
+    }
+
+    public MailboxLockStatsInfo(int mailboxId, String accountId) {
+        this.mailboxId = mailboxId;
+        this.accountId = accountId;
+    }
+
+    public int getMailboxId() { return mailboxId; }
+    public String getAccountId() { return accountId; }
+    public long getWaitCount() { return waitCount; }
+    public long getWaitTotal() { return waitTotal; }
+    public long getWaitP50() { return waitP50; }
+    public long getWaitP99() { return waitP99; }
+    public long getWaitMax() { return waitMax; }
+    public long getReadHoldCount() { return readHoldCount; }
+    public long getReadHoldP99() { return readHoldP99; }
+    public long getReadHoldMax() { return readHoldMax; }
+    public long getWriteHoldCount() { return writeHoldCount; }
+    public long getWriteHoldP99() { return writeHoldP99; }
+    public long getWriteHoldMax() { return writeHoldMax; }
+    public long getContended() { return contended; }
+    public long getQueueMax() { return queueMax; }
+    public long getPromotions() { return promotions; }
+    public long getTimeouts() { return timeouts; }
+    public long getRejected() { return rejected; }
+
+    public void setWaitCount(long waitCount) { this.waitCount = waitCount; }
+    public void setWaitTotal(long waitTotal) { this.waitTotal = waitTotal; }
+    public void setWaitP50(long waitP50) { this.waitP50 = waitP50; }
+    public void setWaitP99(long waitP99) { this.waitP99 = waitP99; }
+    public void setWaitMax(long waitMax) { this.waitMax = waitMax; }
+    public void setReadHoldCount(long readHoldCount) { this.readHoldCount = readHoldCount; }
+    public void setReadHoldP99(long readHoldP99) { this.readHoldP99 = readHoldP99; }
+    public void setReadHoldMax(long readHoldMax) { this.readHoldMax = readHoldMax; }
+    public void setWriteHoldCount(long writeHoldCount) { this.writeHoldCount = writeHoldCount; }
+    public void setWriteHoldP99(long writeHoldP99) { this.writeHoldP99 = writeHoldP99; }
+    public void setWriteHoldMax(long writeHoldMax) { this.writeHoldMax = writeHoldMax; }
+    public void setContended(long contended) { this.contended = contended; }
+    public void setQueueMax(long queueMax) { this.queueMax = queueMax; }
+    public void setPromotions(long promotions) { this.promotions = promotions; }
+    public void setTimeouts(long timeouts) { this.timeouts = timeouts; }
+    public void setRejected(long rejected) { this.rejected = rejected; }
+}
@@ -0,0 +1,95 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.soap.admin.type;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlType;
+
+import com.zimbra.common.soap.AdminConstants;
+
+/**
+ * A SQL statement that took longer than the localconfig key <b>sql_slow_query_threshold_ms</b>.
+ */
+@XmlAccessorType(XmlAccessType.NONE)
+@XmlType(propOrder = {})
+public class SlowSqlQueryInfo {
+
+    /**
+     * @zm-api-field-tag sql
+     * @zm-api-field-description SQL text as sent to the database, truncated to 1024 characters
+     */
+    @XmlAttribute(name=AdminConstants.A_SQL /* sql */, required=true)
+    private String sql;
+
+    /**
+     * @zm-api-field-tag fingerprint
+     * @zm-api-field-description Fingerprint the statement is counted under
+     */
+    @XmlAttribute(name=AdminConstants.A_FINGERPRINT /* fingerprint */, required=false)
+    private String fingerprint;
+
+    /**
+     * @zm-api-field-tag time
+     * @zm-api-field-description When the statement finished, in milliseconds since the epoch
+     */
+    @XmlAttribute(name=AdminConstants.A_TIME /* time */, required=false)
+    private long time;
+
+    /**
+     * @zm-api-field-tag elapsed
+     * @zm-api-field-description Execution time in microseconds
+     */
+    @XmlAttribute(name=AdminConstants.A_ELAPSED /* elapsed */, required=false)
+    private long elapsed;
+
+    /**
+     * @zm-api-field-tag binds
+     * @zm-api-field-description Number of bind parameters
+     */
+    @XmlAttribute(name=AdminConstants.A_BIND_COUNT /* binds */, required=false)
+    private int binds;
+
+    /**
+     * @zm-api-field-tag mailbox-id
+     * @zm-api-field-description ID of the mailbox the statement was run for, if known
+     */
+    @XmlAttribute(name=AdminConstants.A_MAILBOXID /* mbxid */, required=false)
+    private Integer mailboxId;
+
+    public SlowSqlQueryInfo() {
+    }
+
+    public SlowSqlQueryInfo(String sql) {
+        this.sql = sql;
+    }
+
+    public String getSql() { return sql; }
+    public String getFingerprint() { return fingerprint; }
+    public long getTime() { return time; }
+    public long getElapsed() { return elapsed; }
+    public int getBinds() { return binds; }
+    public Integer getMailboxId() { return mailboxId; }
+
+    public void setFingerprint(String fingerprint) { this.fingerprint = fingerprint; }
+    public void setTime(long time) { this.time = time; }
+    public void setElapsed(long elapsed) { this.elapsed = elapsed; }
+    public void setBinds(int binds) { this.binds = binds; }
+    public void setMailboxId(Integer mailboxId) { this.mailboxId = mailboxId; }
+}
@@ -0,0 +1,105 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.soap.admin.type;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlType;
+
+import com.zimbra.common.soap.AdminConstants;
+
+/**
+ * Execution statistics of one SQL statement fingerprint.  Times are in microseconds.
+ */
+@XmlAccessorType(XmlAccessType.NONE)
+@XmlType(propOrder = {})
+public class SqlStatementStatsInfo {
+
+    /**
+     * @zm-api-field-tag fingerprint
+     * @zm-api-field-description SQL text with literals replaced by <b>?</b> and placeholder lists collapsed
+     * to <b>(...)</b>
+     */
+    @XmlAttribute(name=AdminConstants.A_SQL /* sql */, required=true)
+    private String sql;
+
+    /**
+     * @zm-api-field-tag count
+     * @zm-api-field-description Number of executions
+     */
+    @XmlAttribute(name=AdminConstants.A_EXEC_COUNT /* count */, required=false)
+    private long count;
+
+    /**
+     * @zm-api-field-tag total-time
+     * @zm-api-field-description Total execution time
+     */
+    @XmlAttribute(name=AdminConstants.A_EXEC_TOTAL /* totalTime */, required=false)
+    private long totalTime;
+
+    /**
+     * @zm-api-field-tag rows
+     * @zm-api-field-description Rows read from the results of queries, or affected by updates
+     */
+    @XmlAttribute(name=AdminConstants.A_ROWS /* rows */, required=false)
+    private long rows;
+
+    /**
+     * @zm-api-field-tag p50
+     * @zm-api-field-description Median execution time
+     */
+    @XmlAttribute(name=AdminConstants.A_P50 /* p50 */, required=false)
+    private long p50;
+
+    /**
+     * @zm-api-field-tag p99
+     * @zm-api-field-description 99th percentile of the execution time
+     */
+    @XmlAttribute(name=AdminConstants.A_P99 /* p99 */, required=false)
+    private long p99;
+
+    /**
+     * @zm-api-field-tag max-time
+     * @zm-api-field-description Longest execution time
+     */
+    @XmlAttribute(name=AdminConstants.A_MAX_TIME /* maxTime */, required=false)
+    private long maxTime;
+
+    public SqlStatementStatsInfo() {
+    }
+
+    public SqlStatementStatsInfo(String sql) {
+        this.sql = sql;
+    }
+
+    public String getSql() { return sql; }
+    public long getCount() { return count; }
+    public long getTotalTime() { return totalTime; }
+    public long getRows() { return rows; }
+    public long getP50() { return p50; }
+    public long getP99() { return p99; }
+    public long getMaxTime() { return maxTime; }
+
+    public void setCount(long count) { this.count = count; }
+    public void setTotalTime(long totalTime) { this.totalTime = totalTime; }
+    public void setRows(long rows) { this.rows = rows; }
+    public void setP50(long p50) { this.p50 = p50; }
+    public void setP99(long p99) { this.p99 = p99; }
+    public void setMaxTime(long maxTime) { this.maxTime = maxTime; }
+}
@@ -0,0 +1,163 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.account.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.NamedEntry;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.Server;
+
+/**
+ * Unit test for {@link NamedEntryCache}.
+ */
+public final class NamedEntryCacheTest {
+
+    private static final long TTL = 200;
+
+    private static Server server(String name, String id) {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, id);
+        return new Server(name, id, attrs, new HashMap<String, Object>(), new MockProvisioning());
+    }
+
+    @Test
+    public void staleEntryExpires() throws Exception {
+        NamedEntryCache<Server> cache = new NamedEntryCache<Server>(10, TTL);
+        Server server = server("server1", "id1");
+        cache.put(server);
+        Assert.assertSame(server, cache.getById("id1"));
+        Assert.assertSame(server, cache.getByName("server1"));
+
+        Thread.sleep(TTL * 2);
+        Assert.assertNull(cache.getById("id1"));
+        Assert.assertNull(cache.getByName("server1"));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void entryRefreshedBeforeExpiry() throws Exception {
+        final AtomicInteger reloads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<NamedEntryCache<Server>> self = new AtomicReference<NamedEntryCache<Server>>();
+        final NamedEntryCache<Server> cache = new NamedEntryCache<Server>(10, TTL, new EntryRefresher() {
+            @Override
+            protected void reload(NamedEntry entry) throws ServiceException {
+                reloads.incrementAndGet();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                self.get().replace((Server) entry);
+            }
+        });
+        self.set(cache);
+        Server server = server("server1", "id1");
+        cache.put(server);
+        Thread.sleep(TTL / 2 + 20);
+
+        // every lookup of the aging entry returns it, but only one reload is scheduled
+        for (int i = 0; i < 10; i++) {
+            Assert.assertSame(server, cache.getById("id1"));
+        }
+        release.countDown();
+        for (int i = 0; i < 100 && reloads.get() == 0; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, reloads.get());
+        Assert.assertEquals(100.0, cache.getHitRate(), 0.0);
+    }
+
+    @Test
+    public void expiredEntryNotServed() throws Exception {
+        final AtomicInteger reloads = new AtomicInteger();
+        NamedEntryCache<Server> cache = new NamedEntryCache<Server>(10, TTL, new EntryRefresher() {
+            @Override
+            protected void reload(NamedEntry entry) {
+                reloads.incrementAndGet();
+            }
+        });
+        cache.put(server("server1", "id1"));
+        Thread.sleep(TTL + 20);
+        Assert.assertNull(cache.getById("id1"));
+        Assert.assertEquals(0, reloads.get());
+    }
+
+    @Test
+    public void failedRefreshBacksOff() throws Exception {
+        final AtomicInteger reloads = new AtomicInteger();
+        NamedEntryCache<Server> cache = new NamedEntryCache<Server>(10, TTL, new EntryRefresher() {
+            @Override
+            protected void reload(NamedEntry entry) throws ServiceException {
+                reloads.incrementAndGet();
+                throw ServiceException.FAILURE("LDAP is down", null);
+            }
+        });
+        Server server = server("server1", "id1");
+        cache.put(server);
+        Thread.sleep(TTL / 2 + 20);
+
+        Assert.assertSame(server, cache.getById("id1"));
+        for (int i = 0; i < 100 && reloads.get() == 0; i++) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(20);
+        // within the retry delay, further lookups don't schedule another reload
+        for (int i = 0; i < 10; i++) {
+            Assert.assertSame(server, cache.getById("id1"));
+        }
+        Thread.sleep(20);
+        Assert.assertEquals(1, reloads.get());
+    }
+
+    @Test
+    public void retryDelayDoubles() {
+        TimedEntry<Server> entry = new TimedEntry<Server>(server("server1", "id1"), TTL);
+        Assert.assertTrue(entry.startRefresh());
+        Assert.assertFalse(entry.startRefresh());
+        entry.endRefresh();
+        Assert.assertTrue(entry.startRefresh());
+        entry.refreshFailed(0);
+        entry.endRefresh();
+        Assert.assertTrue(entry.startRefresh());
+        entry.refreshFailed(60000);
+        entry.endRefresh();
+        Assert.assertFalse(entry.startRefresh());
+    }
+
+    @Test
+    public void lruEviction() {
+        NamedEntryCache<Server> cache = new NamedEntryCache<Server>(2, 0);
+        for (int i = 0; i < 10; i++) {
+            cache.put(server("server" + i, "id" + i));
+        }
+        Assert.assertTrue(cache.getSize() <= 2);
+        Assert.assertNotNull(cache.getById("id9"));
+    }
+}
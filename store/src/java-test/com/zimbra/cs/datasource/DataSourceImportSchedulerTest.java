@@ -0,0 +1,276 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.datasource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.DataSource;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.soap.admin.type.DataSourceType;
+
+public class DataSourceImportSchedulerTest {
+
+    private Account account;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        account = Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        SyncErrorManager.clearHostErrors("pop.example.com:143");
+        MailboxTestUtil.clearData();
+    }
+
+    private DataSource newDataSource(String id, String host) {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraDataSourceHost, host);
+        attrs.put(Provisioning.A_zimbraDataSourcePort, "143");
+        attrs.put(Provisioning.A_zimbraDataSourcePollingInterval, "10m");
+        return new DataSource(account, DataSourceType.imap, id, id, attrs, null);
+    }
+
+    /**
+     * Records how many imports run at once per host, and blocks them until released.
+     */
+    private static class BlockingScheduler extends DataSourceImportScheduler {
+        final Map<String, AtomicInteger> running = new ConcurrentHashMap<String, AtomicInteger>();
+        final Map<String, AtomicInteger> maxRunning = new ConcurrentHashMap<String, AtomicInteger>();
+        final Map<String, AtomicInteger> imports = new ConcurrentHashMap<String, AtomicInteger>();
+        final Semaphore release = new Semaphore(0);
+        final Semaphore started = new Semaphore(0);
+        final CountDownLatch done;
+
+        BlockingScheduler(int numThreads, int maxPerHost, int expectedImports) {
+            super(numThreads, maxPerHost);
+            done = new CountDownLatch(expectedImports);
+        }
+
+        private static AtomicInteger get(Map<String, AtomicInteger> map, String key) {
+            map.putIfAbsent(key, new AtomicInteger());
+            return map.get(key);
+        }
+
+        @Override
+        protected boolean runImport(DataSource ds) throws ServiceException {
+            String host = ds.getHost();
+            int now = get(running, host).incrementAndGet();
+            AtomicInteger max = get(maxRunning, host);
+            synchronized (max) {
+                max.set(Math.max(max.get(), now));
+            }
+            get(imports, ds.getId()).incrementAndGet();
+            started.release();
+            try {
+                release.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                get(running, host).decrementAndGet();
+                done.countDown();
+            }
+            return true;
+        }
+    }
+
+    @Test
+    public void perHostLimit() throws Exception {
+        BlockingScheduler scheduler = new BlockingScheduler(6, 2, 8);
+        for (int i = 0; i < 6; i++) {
+            scheduler.submit(newDataSource("a" + i, "imap.example.com"));
+        }
+        scheduler.submit(newDataSource("b0", "imap.example.net"));
+        scheduler.submit(newDataSource("b1", "imap.example.net"));
+
+        // two imports from each host start; the other four wait for imap.example.com without holding a thread
+        assertTrue(scheduler.started.tryAcquire(4, 10, TimeUnit.SECONDS));
+        assertEquals(2, scheduler.running.get("imap.example.com").get());
+        assertEquals(2, scheduler.running.get("imap.example.net").get());
+        assertEquals(4, scheduler.getQueuedCount());
+
+        scheduler.release.release(8);
+        assertTrue(scheduler.done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, scheduler.maxRunning.get("imap.example.com").get());
+        assertEquals(0, scheduler.getQueuedCount());
+    }
+
+    @Test
+    public void queuedOnce() throws Exception {
+        BlockingScheduler scheduler = new BlockingScheduler(2, 1, 3);
+        DataSource first = newDataSource("first", "imap.example.com");
+        DataSource second = newDataSource("second", "imap.example.com");
+        scheduler.submit(first);
+        assertTrue(scheduler.started.tryAcquire(10, TimeUnit.SECONDS));
+        scheduler.submit(second);
+        scheduler.submit(second);
+        scheduler.submit(second, true, 0);
+        assertEquals(2, scheduler.getQueuedCount());
+
+        scheduler.release.release(3);
+        assertTrue(scheduler.done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, scheduler.imports.get("first").get());
+        assertEquals(2, scheduler.imports.get("second").get());
+    }
+
+    @Test
+    public void failingHostBackoff() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final Semaphore finished = new Semaphore(0);
+        DataSourceImportScheduler scheduler = new DataSourceImportScheduler(2, 2) {
+            @Override
+            protected boolean runImport(DataSource ds) throws ServiceException {
+                attempts.incrementAndGet();
+                finished.release();
+                throw ServiceException.FAILURE("unable to connect", new ConnectException("Connection refused"));
+            }
+        };
+        DataSource[] ds = new DataSource[3];
+        for (int i = 0; i < ds.length; i++) {
+            ds[i] = newDataSource("pop" + i, "pop.example.com");
+        }
+
+        // one data source failing again and again does not hold back the others
+        for (int i = 1; i <= 2; i++) {
+            scheduler.submit(ds[0], true, 0);
+            assertTrue(finished.tryAcquire(10, TimeUnit.SECONDS));
+            waitForHostErrors("pop.example.com:143", i);
+        }
+        assertEquals(0, SyncErrorManager.getHostRetryDelay("pop.example.com:143"));
+
+        scheduler.submit(ds[1], true, 0);
+        assertTrue(finished.tryAcquire(10, TimeUnit.SECONDS));
+        waitForHostErrors("pop.example.com:143", 3);
+        assertEquals(0, SyncErrorManager.getHostRetryDelay("pop.example.com:143"));
+        scheduler.submit(ds[2], true, 0);
+        assertTrue(finished.tryAcquire(10, TimeUnit.SECONDS));
+        waitForHostErrors("pop.example.com:143", 4);
+        assertTrue(SyncErrorManager.getHostRetryDelay("pop.example.com:143") > 0);
+        assertEquals(0, SyncErrorManager.getHostRetryDelay("pop.example.com:110"));
+
+        // scheduled imports are skipped while the host backs off, but the user can still ask for one
+        scheduler.submit(ds[0], true, 0);
+        scheduler.submit(ds[0]);
+        assertTrue(finished.tryAcquire(10, TimeUnit.SECONDS));
+        waitForHostErrors("pop.example.com:143", 5);
+        Thread.sleep(100);
+        assertEquals(5, attempts.get());
+        assertEquals(0, scheduler.getQueuedCount());
+
+        assertTrue(DataSourceImportScheduler.isConnectionFailure(
+                ServiceException.FAILURE("failed", new SocketTimeoutException("connect timed out"))));
+        assertFalse(DataSourceImportScheduler.isConnectionFailure(
+                ServiceException.FAILURE("failed", new SocketTimeoutException("Read timed out"))));
+        assertFalse(DataSourceImportScheduler.isConnectionFailure(
+                ServiceException.FAILURE("failed", new SocketException("Connection reset"))));
+        assertFalse(DataSourceImportScheduler.isConnectionFailure(ServiceException.FAILURE("bad login", null)));
+        assertFalse(DataSourceImportScheduler.isConnectionFailure(
+                ServiceException.FAILURE("disk full", new IOException("No space left on device"))));
+    }
+
+    @Test
+    public void skippedImportKeepsHostErrors() throws Exception {
+        final AtomicInteger ran = new AtomicInteger();
+        final Semaphore finished = new Semaphore(0);
+        DataSourceImportScheduler scheduler = new DataSourceImportScheduler(1, 1) {
+            @Override
+            protected boolean runImport(DataSource ds) throws ServiceException {
+                try {
+                    if (ds.getId().equals("failing")) {
+                        throw ServiceException.FAILURE("unable to connect",
+                                new ConnectException("Connection refused"));
+                    }
+                    if (ds.getId().equals("skipped")) {
+                        // returns without connecting, like an import of an inactive account
+                        return false;
+                    }
+                    ran.incrementAndGet();
+                    return true;
+                } finally {
+                    finished.release();
+                }
+            }
+        };
+        scheduler.submit(newDataSource("failing", "pop.example.com"));
+        assertTrue(finished.tryAcquire(10, TimeUnit.SECONDS));
+        waitForHostErrors("pop.example.com:143", 1);
+
+        scheduler.submit(newDataSource("skipped", "pop.example.com"));
+        assertTrue(finished.tryAcquire(10, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(1, SyncErrorManager.getHostErrorCount("pop.example.com:143"));
+
+        scheduler.submit(newDataSource("working", "pop.example.com"));
+        assertTrue(finished.tryAcquire(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000 && SyncErrorManager.getHostErrorCount("pop.example.com:143") > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, SyncErrorManager.getHostErrorCount("pop.example.com:143"));
+        assertEquals(1, ran.get());
+    }
+
+    @Test
+    public void scheduledDelay() throws Exception {
+        // up to 10% of the 10 minute polling interval, the same for a data source every time it comes due
+        Set<Long> delays = new HashSet<Long>();
+        for (int i = 0; i < 20; i++) {
+            DataSource ds = newDataSource("ds" + i, "imap.example.com");
+            long delay = DataSourceImportScheduler.getScheduledDelay(ds);
+            assertTrue(delay >= 0 && delay < 60 * 1000);
+            assertEquals(delay, DataSourceImportScheduler.getScheduledDelay(ds));
+            delays.add(delay);
+        }
+        assertTrue(delays.size() > 1);
+    }
+
+    private static void waitForHostErrors(String host, int count) throws InterruptedException {
+        for (int i = 0; i < 1000 && SyncErrorManager.getHostErrorCount(host) < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, SyncErrorManager.getHostErrorCount(host));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DebugConnectionTest {
+
+    /** Records the calls made on the physical connection. */
+    private List<String> calls;
+    private boolean failNextSet;
+    private DebugConnection conn;
+
+    @Before
+    public void setUp() {
+        calls = new ArrayList<String>();
+        failNextSet = false;
+        Connection physical = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { Connection.class }, new InvocationHandler() {
+            private boolean autoCommit = true;
+            private int isolation = Connection.TRANSACTION_REPEATABLE_READ;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                calls.add(args == null ? name : name + "(" + args[0] + ")");
+                if (name.startsWith("set") && failNextSet) {
+                    failNextSet = false;
+                    throw new SQLException("connection reset");
+                }
+                if (name.equals("getAutoCommit")) {
+                    return autoCommit;
+                } else if (name.equals("setAutoCommit")) {
+                    autoCommit = (Boolean) args[0];
+                } else if (name.equals("getTransactionIsolation")) {
+                    return isolation;
+                } else if (name.equals("setTransactionIsolation")) {
+                    isolation = (Integer) args[0];
+                }
+                return null;
+            }
+        });
+        conn = new DebugConnection(physical);
+    }
+
+    @Test
+    public void redundantChangesSkipped() throws Exception {
+        Assert.assertTrue(conn.getAutoCommit());
+        conn.setAutoCommit(false);
+        conn.setAutoCommit(false);
+        Assert.assertFalse(conn.getAutoCommit());
+        conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        Assert.assertEquals(Connection.TRANSACTION_READ_COMMITTED, conn.getTransactionIsolation());
+        Assert.assertEquals("[getAutoCommit, setAutoCommit(false), setTransactionIsolation(2)]", calls.toString());
+    }
+
+    @Test
+    public void autoCommitResetDeferredWhileIdle() throws Exception {
+        conn.setAutoCommit(false);
+        calls.clear();
+
+        // return to the pool and borrow again: DBCP turns auto-commit on, then off
+        conn.setIdleInPool(true);
+        conn.rollback();
+        conn.setAutoCommit(true);
+        Assert.assertTrue(conn.getAutoCommit());
+        conn.setAutoCommit(false);
+        conn.setIdleInPool(false);
+        Assert.assertEquals("[rollback]", calls.toString());
+
+        // a change that is not undone while idle is applied when the connection is borrowed
+        conn.setIdleInPool(true);
+        conn.setAutoCommit(true);
+        conn.setIdleInPool(false);
+        Assert.assertEquals("[rollback, setAutoCommit(true)]", calls.toString());
+        Assert.assertTrue(conn.getAutoCommit());
+    }
+
+    @Test
+    public void failedChangeForgetsState() throws Exception {
+        conn.setAutoCommit(false);
+        failNextSet = true;
+        try {
+            conn.setAutoCommit(true);
+            Assert.fail("expected SQLException");
+        } catch (SQLException expected) {
+        }
+        calls.clear();
+        Assert.assertFalse(conn.getAutoCommit());
+        Assert.assertEquals("[getAutoCommit]", calls.toString());
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.db;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SqlStatementStatsTest {
+
+    @Test
+    public void fingerprint() {
+        Assert.assertEquals("SELECT id FROM mboxgroup?.mail_item WHERE mailbox_id = ? AND id IN (...)",
+                SqlStatementStats.fingerprint(
+                        "SELECT id FROM mboxgroup12.mail_item WHERE mailbox_id = ? AND id IN (?, ?,?)"));
+        Assert.assertEquals("SELECT * FROM t1 WHERE name = ? AND size > ? AND x = ?",
+                SqlStatementStats.fingerprint(
+                        "SELECT *\n  FROM t1  WHERE name = 'O''Brien' AND size > 1024 AND x = 'a\\'b'"));
+        Assert.assertEquals("INSERT INTO t (a, b) VALUES (...)",
+                SqlStatementStats.fingerprint("INSERT INTO t (a, b) VALUES (?, ?), (?, ?), (?, ?)"));
+        Assert.assertEquals("UPDATE t SET a = ? WHERE id IN (...)",
+                SqlStatementStats.fingerprint("UPDATE t SET a = 5 WHERE id IN (1, 2, 3)"));
+    }
+
+    @Test
+    public void countBindParameters() {
+        Assert.assertEquals(2, SqlStatementStats.countBindParameters("a = ? AND b = '?' AND c IN (?)"));
+    }
+
+    @Test
+    public void groupByFingerprint() {
+        SqlStatementStats stats = new SqlStatementStats(10, 4);
+        stats.record("SELECT * FROM t WHERE id IN (?, ?)", 100, 0);
+        stats.record("SELECT * FROM t WHERE id IN (?, ?, ?, ?)", 300, 0);
+        stats.addRows("SELECT * FROM t WHERE id IN (?, ?)", 6);
+        stats.record("DELETE FROM t WHERE id = ?", 50, 1);
+
+        List<SqlStatementStats.StatementStats> statements = stats.getStatements();
+        Assert.assertEquals(2, statements.size());
+        SqlStatementStats.StatementStats select = statements.get(0);
+        Assert.assertEquals("SELECT * FROM t WHERE id IN (...)", select.getFingerprint());
+        Assert.assertEquals(2, select.getCount());
+        Assert.assertEquals(400, select.getTotalMicros());
+        Assert.assertEquals(6, select.getRows());
+        Assert.assertEquals(1, statements.get(1).getRows());
+        Assert.assertEquals(2, stats.getDataLines().size());
+
+        stats.reset();
+        Assert.assertTrue(stats.getStatements().isEmpty());
+    }
+
+    @Test
+    public void overflow() {
+        SqlStatementStats stats = new SqlStatementStats(1, 4);
+        stats.record("SELECT a FROM t", 10, 0);
+        stats.record("SELECT b FROM t", 10, 0);
+        stats.record("SELECT c FROM t", 10, 0);
+        List<SqlStatementStats.StatementStats> statements = stats.getStatements();
+        Assert.assertEquals(2, statements.size());
+        Assert.assertEquals(SqlStatementStats.OVERFLOW, statements.get(0).getFingerprint());
+        Assert.assertEquals(2, statements.get(0).getCount());
+    }
+
+    @Test
+    public void slowQueries() {
+        SqlStatementStats stats = new SqlStatementStats(10, 2);
+        stats.record("SELECT fast FROM t WHERE id = ?", 10, 0);
+        for (int i = 1; i <= 3; i++) {
+            stats.record("SELECT slow" + i + " FROM t WHERE id = ? AND b = ?", 3600000000L + i, 0);
+        }
+        List<SqlStatementStats.SlowQuery> slow = stats.getSlowQueries();
+        Assert.assertEquals(2, slow.size());
+        Assert.assertEquals("SELECT slow3 FROM t WHERE id = ? AND b = ?", slow.get(0).getSql());
+        Assert.assertEquals("SELECT slow2 FROM t WHERE id = ? AND b = ?", slow.get(1).getSql());
+        Assert.assertEquals(2, slow.get(0).getBindCount());
+        Assert.assertEquals(-1, slow.get(0).getMailboxId());
+    }
+}
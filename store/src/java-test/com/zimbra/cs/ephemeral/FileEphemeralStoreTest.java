@@ -0,0 +1,250 @@
+package com.zimbra.cs.ephemeral;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.ephemeral.EphemeralInput.AbsoluteExpiration;
+import com.zimbra.cs.ephemeral.EphemeralInput.RelativeExpiration;
+import com.zimbra.cs.ephemeral.EphemeralStoreTest.TestLocation;
+
+public class FileEphemeralStoreTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private FileEphemeralStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.newFolder("ephemeral");
+        store = new FileEphemeralStore(dir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    private FileEphemeralStore reopen() throws Exception {
+        store.close();
+        store = new FileEphemeralStore(dir);
+        return store;
+    }
+
+    @Test
+    public void lockedDirectory() throws Exception {
+        EphemeralKey key = new EphemeralKey("foo");
+        store.set(new EphemeralInput(key, "bar"), new TestLocation());
+        try {
+            new FileEphemeralStore(dir);
+            fail("opened a directory which is in use");
+        } catch (IOException expected) {
+        }
+        reopen();
+        assertEquals("bar", store.get(key, new TestLocation()).getValue());
+    }
+
+    @Test
+    public void setAndUpdate() throws Exception {
+        EphemeralKey key = new EphemeralKey("foo");
+        EphemeralLocation target = new TestLocation();
+        store.set(new EphemeralInput(key, "bar"), target);
+        store.set(new EphemeralInput(key, "baz"), target);
+        assertEquals("baz", store.get(key, target).getValue());
+
+        store.update(new EphemeralInput(key, "qux"), target);
+        store.update(new EphemeralInput(key, "qux"), target);
+        assertArrayEquals(new String[] { "baz", "qux" }, store.get(key, target).getValues());
+
+        EphemeralKey dynamicKey = new EphemeralKey("foo", "1");
+        store.update(new EphemeralInput(dynamicKey, "dynamic"), target);
+        assertEquals("dynamic", store.get(dynamicKey, target).getValue());
+        assertEquals(2, store.get(key, target).getValues().length);
+        assertFalse(store.has(new EphemeralKey("foo"), new TestLocation("other")));
+    }
+
+    @Test
+    public void updateRefreshesExpiration() throws Exception {
+        EphemeralKey key = new EphemeralKey("token", "1");
+        EphemeralLocation target = new TestLocation();
+        EphemeralInput expired = new EphemeralInput(key, "value");
+        expired.setExpiration(new AbsoluteExpiration(1000L));
+        store.update(expired, target);
+        assertFalse(store.has(key, target));
+
+        EphemeralInput current = new EphemeralInput(key, "value");
+        current.setExpiration(new RelativeExpiration(1L, TimeUnit.HOURS));
+        store.update(current, target);
+        assertTrue(store.has(key, target));
+        assertEquals(1, store.get(key, target).getValues().length);
+    }
+
+    @Test
+    public void deleteAndPurge() throws Exception {
+        EphemeralLocation target = new TestLocation();
+        EphemeralKey key1 = new EphemeralKey("foo", "1");
+        EphemeralKey key2 = new EphemeralKey("foo", "2");
+        store.update(new EphemeralInput(key1, "bar"), target);
+        store.update(new EphemeralInput(key2, "baz"), target);
+        store.delete(key1, "bar", target);
+        assertFalse(store.has(key1, target));
+        assertTrue(store.has(key2, target));
+
+        EphemeralInput expired = new EphemeralInput(key1, "old");
+        expired.setExpiration(new AbsoluteExpiration(1000L));
+        store.update(expired, target);
+        store.purgeExpired(new EphemeralKey("foo"), target);
+        reopen();
+        assertFalse(store.has(key1, target));
+        assertTrue(store.has(key2, target));
+
+        store.deleteData(target);
+        assertFalse(store.has(key2, target));
+        store.update(new EphemeralInput(key1, "new"), target);
+        reopen();
+        assertFalse(store.has(key2, target));
+        assertEquals("new", store.get(key1, target).getValue());
+    }
+
+    @Test
+    public void replay() throws Exception {
+        EphemeralKey key = new EphemeralKey("foo");
+        store.set(new EphemeralInput(key, "bar"), new TestLocation("a"));
+        store.update(new EphemeralInput(key, "baz"), new TestLocation("b"));
+        store.update(new EphemeralInput(key, "qux"), new TestLocation("b"));
+        long length = new File(dir, FileEphemeralStore.LOG_FILE).length();
+        store.update(new EphemeralInput(key, "torn"), new TestLocation("b"));
+
+        // cut the last record short, as if the server had died while writing it
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, FileEphemeralStore.LOG_FILE), "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        reopen();
+        assertEquals(length, new File(dir, FileEphemeralStore.LOG_FILE).length());
+        assertEquals("bar", store.get(key, new TestLocation("a")).getValue());
+        assertArrayEquals(new String[] { "baz", "qux" }, store.get(key, new TestLocation("b")).getValues());
+
+        store.update(new EphemeralInput(key, "quux"), new TestLocation("b"));
+        reopen();
+        assertEquals(3, store.get(key, new TestLocation("b")).getValues().length);
+    }
+
+    @Test
+    public void compact() throws Exception {
+        EphemeralKey key = new EphemeralKey("foo");
+        EphemeralLocation target = new TestLocation();
+        for (int i = 0; i < 100; i++) {
+            store.set(new EphemeralInput(key, "value" + i), target);
+        }
+        store.update(new EphemeralInput(new EphemeralKey("bar", "1"), "one"), target);
+        EphemeralInput expired = new EphemeralInput(new EphemeralKey("bar", "2"), "two");
+        expired.setExpiration(new AbsoluteExpiration(1000L));
+        store.update(expired, target);
+        assertEquals(102, store.getLogRecordCount());
+
+        store.compact();
+        assertEquals(2, store.getLogRecordCount());
+        store.set(new EphemeralInput(key, "last"), target);
+        reopen();
+        assertEquals(3, store.getLogRecordCount());
+        assertEquals("last", store.get(key, target).getValue());
+        assertEquals("one", store.get(new EphemeralKey("bar", "1"), target).getValue());
+        assertFalse(store.has(new EphemeralKey("bar", "2"), target));
+    }
+
+    /**
+     * Sets 50 keys 4 times over from each of several threads.
+     */
+    private void writeConcurrently(final EphemeralLocation target) throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            store.set(new EphemeralInput(new EphemeralKey("key" + thread + "_" + i % 50), "value" + i),
+                                    target);
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    private void checkConcurrentWrites(EphemeralLocation target) throws Exception {
+        for (int t = 0; t < 4; t++) {
+            for (int i = 150; i < 200; i++) {
+                assertEquals("value" + i, store.get(new EphemeralKey("key" + t + "_" + i % 50), target).getValue());
+            }
+        }
+    }
+
+    @Test
+    public void compactWhileWriting() throws Exception {
+        // enough live values that writing them out overlaps the changes made meanwhile
+        EphemeralLocation other = new TestLocation("other");
+        for (int i = 0; i < 50000; i++) {
+            store.set(new EphemeralInput(new EphemeralKey("live" + i), "value"), other);
+        }
+        Thread compaction = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    store.compact();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        compaction.start();
+        writeConcurrently(new TestLocation());
+        compaction.join();
+        reopen();
+        checkConcurrentWrites(new TestLocation());
+        assertEquals("value", store.get(new EphemeralKey("live49999"), other).getValue());
+    }
+
+    @Test
+    public void syncedWrites() throws Exception {
+        LC.ephemeral_file_store_sync.setDefault(true);
+        try {
+            writeConcurrently(new TestLocation());
+        } finally {
+            LC.ephemeral_file_store_sync.setDefault(false);
+        }
+        reopen();
+        checkConcurrentWrites(new TestLocation());
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.fb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.calendar.ICalTimeZone;
+import com.zimbra.common.calendar.ParsedDateTime;
+import com.zimbra.common.calendar.ParsedDuration;
+import com.zimbra.common.calendar.TimeZoneMap;
+import com.zimbra.common.account.ProvisioningConstants;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.fb.FreeBusy.FBInstance;
+import com.zimbra.cs.fb.FreeBusy.Interval;
+import com.zimbra.cs.fb.FreeBusy.IntervalList;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.mailbox.ScheduledTaskManager;
+import com.zimbra.cs.mailbox.calendar.IcalXmlStrMap;
+import com.zimbra.cs.mailbox.calendar.Invite;
+import com.zimbra.cs.mailbox.calendar.InviteInfo;
+import com.zimbra.cs.mailbox.calendar.Recurrence;
+import com.zimbra.cs.mailbox.calendar.Recurrence.IRecurrence;
+import com.zimbra.cs.mailbox.calendar.ZRecur;
+
+/**
+ * Unit test for {@link FreeBusyIndex}.
+ */
+public final class FreeBusyIndexTest {
+
+    private static final long HOUR = Constants.MILLIS_PER_HOUR;
+
+    private long base;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraDumpsterEnabled, ProvisioningConstants.FALSE);
+        prov.createAccount("test@zimbra.com", "secret", attrs);
+        // for the appointment reminders cancelled on delete
+        ScheduledTaskManager.startup();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        FreeBusyIndex.clear();
+        base = (System.currentTimeMillis() / Constants.MILLIS_PER_DAY + 1) * Constants.MILLIS_PER_DAY;
+    }
+
+    @After
+    public void tearDown() {
+        LC.freebusy_index_max_bytes.setDefault(64 * 1024 * 1024);
+        FreeBusyIndex.clear();
+    }
+
+    private static int addAppointment(Mailbox mbox, int folderId, String uid, long start, long end, String freeBusy,
+            boolean transparent, int dailyCount) throws Exception {
+        TimeZoneMap tzMap = new TimeZoneMap(ICalTimeZone.getUTC());
+        Invite inv = new Invite(MailItem.Type.APPOINTMENT, "REQUEST", tzMap, true);
+        inv.setUid(uid);
+        inv.setName(uid);
+        inv.setDtStart(ParsedDateTime.fromUTCTime(start));
+        inv.setDtEnd(ParsedDateTime.fromUTCTime(end));
+        inv.setDtStamp(start);
+        inv.setFreeBusy(freeBusy);
+        inv.setTransparency(transparent ? IcalXmlStrMap.TRANSP_TRANSPARENT : IcalXmlStrMap.TRANSP_OPAQUE);
+        if (dailyCount > 0) {
+            ParsedDuration duration = ParsedDuration.parse(false, 0, 0, 0, 0, (int) ((end - start) / 1000));
+            List<IRecurrence> addRules = new ArrayList<IRecurrence>();
+            addRules.add(new Recurrence.SimpleRepeatingRule(inv.getStartTime(), duration,
+                    new ZRecur("FREQ=DAILY;COUNT=" + dailyCount, tzMap), new InviteInfo(inv)));
+            inv.setRecurrence(new Recurrence.RecurrenceRule(inv.getStartTime(), duration, new InviteInfo(inv),
+                    addRules, new ArrayList<IRecurrence>()));
+        }
+        return mbox.addInvite(new OperationContext(mbox), inv, folderId).calItemId;
+    }
+
+    private static int addAppointment(Mailbox mbox, int folderId, String uid, long start, long end)
+    throws Exception {
+        return addAppointment(mbox, folderId, uid, start, end, IcalXmlStrMap.FBTYPE_BUSY, false, 0);
+    }
+
+    private static Map<String, Object> newRoomAttrs() {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, UUID.randomUUID().toString());
+        return attrs;
+    }
+
+    private static List<String> dump(FreeBusy fb) {
+        List<String> result = new ArrayList<String>();
+        for (Interval ival : fb) {
+            Set<String> instances = new TreeSet<String>();
+            for (FBInstance inst : ival.getInstances()) {
+                instances.add(inst.getApptId() + "@" + inst.getStartTime());
+            }
+            result.add(ival.getStart() + "-" + ival.getEnd() + " " + ival.getStatus() + " " + instances);
+        }
+        return result;
+    }
+
+    private static FreeBusy getFreeBusy(Mailbox mbox, long start, long end, boolean indexed) throws Exception {
+        LC.freebusy_index_enabled.setDefault(indexed);
+        try {
+            return mbox.getFreeBusy(null, start, end, FreeBusyQuery.CALENDAR_FOLDER_ALL);
+        } finally {
+            LC.freebusy_index_enabled.setDefault(true);
+        }
+    }
+
+    @Test
+    public void matchesSummaries() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder rooms = mbox.createFolder(null, "rooms", Mailbox.ID_FOLDER_USER_ROOT, new Folder.FolderOptions()
+                .setDefaultView(MailItem.Type.APPOINTMENT));
+        addAppointment(mbox, Mailbox.ID_FOLDER_CALENDAR, "busy", base + 9 * HOUR, base + 11 * HOUR);
+        addAppointment(mbox, Mailbox.ID_FOLDER_CALENDAR, "tentative", base + 10 * HOUR, base + 12 * HOUR,
+                IcalXmlStrMap.FBTYPE_BUSY_TENTATIVE, false, 0);
+        addAppointment(mbox, Mailbox.ID_FOLDER_CALENDAR, "transparent", base + 13 * HOUR, base + 14 * HOUR,
+                IcalXmlStrMap.FBTYPE_BUSY, true, 0);
+        addAppointment(mbox, rooms.getId(), "daily", base + 8 * HOUR, base + 9 * HOUR,
+                IcalXmlStrMap.FBTYPE_BUSY, false, 10);
+        Folder trash = mbox.getFolderById(null, Mailbox.ID_FOLDER_TRASH);
+        addAppointment(mbox, trash.getId(), "trashed", base + 15 * HOUR, base + 16 * HOUR);
+
+        long start = base;
+        long end = base + 7 * Constants.MILLIS_PER_DAY;
+        List<String> expected = dump(getFreeBusy(mbox, start, end, false));
+        Assert.assertEquals(expected, dump(getFreeBusy(mbox, start, end, true)));
+        // partial range, served from the index built above
+        Assert.assertEquals(dump(getFreeBusy(mbox, base + 10 * HOUR, base + 30 * HOUR, false)),
+                dump(getFreeBusy(mbox, base + 10 * HOUR, base + 30 * HOUR, true)));
+
+        // the daily instance abuts and joins the busy one; transparent and trashed appointments don't count
+        FreeBusy fb = getFreeBusy(mbox, start, base + Constants.MILLIS_PER_DAY, true);
+        List<String> statuses = new ArrayList<String>();
+        for (Interval ival : fb) {
+            statuses.add(ival.getStatus());
+        }
+        Assert.assertEquals(Arrays.asList(IcalXmlStrMap.FBTYPE_FREE, IcalXmlStrMap.FBTYPE_BUSY,
+                IcalXmlStrMap.FBTYPE_BUSY_TENTATIVE, IcalXmlStrMap.FBTYPE_FREE), statuses);
+        Assert.assertEquals(3, fb.mList.getHead().getNext().getInstances().size());
+    }
+
+    @Test
+    public void updatedOnChange() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        long start = base;
+        long end = base + Constants.MILLIS_PER_DAY;
+        Assert.assertEquals(1, dump(getFreeBusy(mbox, start, end, true)).size());
+
+        int id = addAppointment(mbox, Mailbox.ID_FOLDER_CALENDAR, "new", base + 9 * HOUR, base + 10 * HOUR);
+        List<String> fb = dump(getFreeBusy(mbox, start, end, true));
+        Assert.assertEquals(fb.toString(), 3, fb.size());
+        Assert.assertEquals(dump(getFreeBusy(mbox, start, end, false)), fb);
+
+        Folder rooms = mbox.createFolder(null, "rooms", Mailbox.ID_FOLDER_USER_ROOT, new Folder.FolderOptions()
+                .setDefaultView(MailItem.Type.APPOINTMENT));
+        int roomId = addAppointment(mbox, rooms.getId(), "room", base + 14 * HOUR, base + 15 * HOUR);
+        List<String> withRoom = dump(getFreeBusy(mbox, start, end, true));
+        Assert.assertEquals(withRoom.toString(), 5, withRoom.size());
+        Assert.assertEquals(dump(getFreeBusy(mbox, start, end, false)), withRoom);
+
+        mbox.alterTag(null, rooms.getId(), MailItem.Type.FOLDER, Flag.FlagInfo.EXCLUDE_FREEBUSY, true, null);
+        Assert.assertEquals(fb, dump(getFreeBusy(mbox, start, end, true)));
+        mbox.alterTag(null, rooms.getId(), MailItem.Type.FOLDER, Flag.FlagInfo.EXCLUDE_FREEBUSY, false, null);
+        Assert.assertEquals(withRoom, dump(getFreeBusy(mbox, start, end, true)));
+
+        mbox.delete(null, roomId, MailItem.Type.APPOINTMENT);
+        Assert.assertEquals(fb, dump(getFreeBusy(mbox, start, end, true)));
+        mbox.delete(null, id, MailItem.Type.APPOINTMENT);
+        Assert.assertEquals(1, dump(getFreeBusy(mbox, start, end, true)).size());
+    }
+
+    @Test
+    public void outsideWindow() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        long start = base + (LC.freebusy_index_future_days.longValue() + 1) * Constants.MILLIS_PER_DAY;
+        addAppointment(mbox, Mailbox.ID_FOLDER_CALENDAR, "later", start + HOUR, start + 2 * HOUR);
+        Assert.assertEquals(3, dump(getFreeBusy(mbox, start, start + Constants.MILLIS_PER_DAY, true)).size());
+    }
+
+    @Test
+    public void extendsWindow() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        long day = Constants.MILLIS_PER_DAY;
+        // crosses from the first day into the second
+        addAppointment(mbox, Mailbox.ID_FOLDER_CALENDAR, "overnight", base + 20 * HOUR,
+                base + 30 * HOUR);
+        addAppointment(mbox, Mailbox.ID_FOLDER_CALENDAR, "daily", base + 9 * HOUR, base + 10 * HOUR,
+                IcalXmlStrMap.FBTYPE_BUSY, false, 5);
+
+        // the index starts with the second day, then grows back to the first and forward to the fifth
+        long[][] ranges = new long[][] { { base + day + HOUR, base + day + 2 * HOUR }, { base, base + 2 * day },
+                { base + 10 * HOUR, base + 5 * day } };
+        for (long[] range : ranges) {
+            Assert.assertEquals(dump(getFreeBusy(mbox, range[0], range[1], false)),
+                    dump(getFreeBusy(mbox, range[0], range[1], true)));
+        }
+        // the overnight instance overlaps the first two days but is only indexed once
+        int extended = FreeBusyIndex.getNumInstances(mbox.getAccountId());
+        FreeBusyIndex.clear();
+        getFreeBusy(mbox, base, base + 5 * day, true);
+        Assert.assertEquals(FreeBusyIndex.getNumInstances(mbox.getAccountId()), extended);
+        Assert.assertEquals(6, extended);
+    }
+
+    /**
+     * More rooms than fit in {@code freebusy_index_max_bytes}: the least recently used indexes are dropped and
+     * rebuilt, and the results stay the same.
+     */
+    @Test
+    public void moreRoomsThanFit() throws Exception {
+        Provisioning prov = Provisioning.getInstance();
+        List<Mailbox> rooms = new ArrayList<Mailbox>();
+        for (int i = 0; i < 12; i++) {
+            Account acct = prov.createAccount("fit" + i + "@zimbra.com", "secret", newRoomAttrs());
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+            addAppointment(mbox, Mailbox.ID_FOLDER_CALENDAR, "fit" + i, base + (9 + i % 8) * HOUR,
+                    base + (10 + i % 8) * HOUR, IcalXmlStrMap.FBTYPE_BUSY, false, 20);
+            rooms.add(mbox);
+        }
+        // room for about eight of the indexes, a week of daily instances each
+        LC.freebusy_index_max_bytes.setDefault(8 * (1024 + 7 * 96));
+        FreeBusyIndex.clear();
+
+        long end = base + 7 * Constants.MILLIS_PER_DAY;
+        for (int round = 0; round < 2; round++) {
+            for (Mailbox mbox : rooms) {
+                Assert.assertEquals(dump(getFreeBusy(mbox, base, end, false)), dump(getFreeBusy(mbox, base, end, true)));
+            }
+        }
+        Assert.assertTrue(String.valueOf(FreeBusyIndex.size()), FreeBusyIndex.size() < rooms.size());
+        Assert.assertTrue(FreeBusyIndex.size() > 0);
+    }
+
+    /**
+     * Compares {@link IntervalList#build} with adding the same intervals one at a time.  The intervals and statuses
+     * are the same; each interval lists exactly the instances overlapping it, where addInterval() carries the
+     * instances of a joined interval over to the pieces it is later split into.
+     */
+    @Test
+    public void buildMatchesAddInterval() throws Exception {
+        Random random = new Random(1);
+        String[] statuses = new String[] { IcalXmlStrMap.FBTYPE_BUSY, IcalXmlStrMap.FBTYPE_BUSY_TENTATIVE,
+                IcalXmlStrMap.FBTYPE_BUSY_UNAVAILABLE, IcalXmlStrMap.FBTYPE_NODATA };
+        for (int round = 0; round < 200; round++) {
+            IntervalList added = new IntervalList(100, 1000);
+            List<Interval> batch = new ArrayList<Interval>();
+            List<FBInstance> instances = new ArrayList<FBInstance>();
+            int count = random.nextInt(20);
+            for (int i = 0; i < count; i++) {
+                long start = random.nextInt(1200);
+                long end = start + random.nextInt(300);
+                String status = statuses[random.nextInt(statuses.length)];
+                FBInstance inst = new FBInstance(status, start, end, i, 0);
+                instances.add(inst);
+                added.addInterval(new Interval(start, end, status, inst));
+                batch.add(new Interval(start, end, status, inst));
+            }
+            List<String> expected = new ArrayList<String>();
+            for (Interval ival : added) {
+                expected.add(ival.getStart() + "-" + ival.getEnd() + " " + ival.getStatus());
+            }
+            List<String> actual = new ArrayList<String>();
+            for (Interval ival : IntervalList.build(100, 1000, batch)) {
+                actual.add(ival.getStart() + "-" + ival.getEnd() + " " + ival.getStatus());
+                for (FBInstance inst : instances) {
+                    boolean overlaps = inst.getStartTime() < inst.getEndTime() &&
+                            inst.getStartTime() < ival.getEnd() && inst.getEndTime() > ival.getStart();
+                    Assert.assertEquals(overlaps, ival.getInstances().contains(inst));
+                }
+            }
+            Assert.assertEquals(expected, actual);
+        }
+    }
+
+    // Enable for performance comparison @Test
+    public void roomSearchPerformance() throws Exception {
+        Provisioning prov = Provisioning.getInstance();
+        List<Mailbox> rooms = new ArrayList<Mailbox>();
+        for (int i = 0; i < 100; i++) {
+            Account acct = prov.createAccount("room" + i + "@zimbra.com", "secret", newRoomAttrs());
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+            for (int j = 0; j < 20; j++) {
+                long start = base + (j % 10) * HOUR + (j / 10) * Constants.MILLIS_PER_DAY;
+                addAppointment(mbox, Mailbox.ID_FOLDER_CALENDAR, "room" + i + "-" + j, start, start + HOUR,
+                        IcalXmlStrMap.FBTYPE_BUSY, false, j % 4 == 0 ? 60 : 0);
+            }
+            rooms.add(mbox);
+        }
+        long end = base + 7 * Constants.MILLIS_PER_DAY;
+        for (boolean indexed : new boolean[] { false, true, false, true }) {
+            long startTime = System.currentTimeMillis();
+            for (int round = 0; round < 5; round++) {
+                for (Mailbox mbox : rooms) {
+                    getFreeBusy(mbox, base, end, indexed);
+                }
+            }
+            ZimbraLog.test.info("%s: %dms for %d lookups", indexed ? "index" : "summaries",
+                    System.currentTimeMillis() - startTime, rooms.size() * 5);
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package com.zimbra.cs.imap;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -12,6 +16,7 @@ import org.junit.Test;
 
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Flag;
 import com.zimbra.cs.mailbox.MailItem.Type;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
@@ -61,4 +66,65 @@ public class ImapFolderTest {
         Assert.assertNotNull(i4set);
         Assert.assertEquals(3, i4set.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSerialization() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapFolder i4folder = new ImapFolder(new ImapPath("trash", creds), (byte) 0, null);
+        i4folder.cache(new ImapMessage(300, Type.MESSAGE, 5, Flag.BITMASK_UNREAD, new String[] {"a", "b"}), false);
+        i4folder.cache(new ImapMessage(6, Type.CONTACT, 6, 0, null), true);
+        i4folder.cache(new ImapMessage(7, Type.MESSAGE, 100000, Flag.BITMASK_FLAGGED, new String[] {"a", "b"}), false);
+        i4folder.getBySequence(3).setExpunged(true);
+        Assert.assertSame(i4folder.getBySequence(1).tags, i4folder.getBySequence(3, true).tags);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bout);
+        out.writeObject(i4folder);
+        out.close();
+        ImapFolder copy = (ImapFolder) new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray())).readObject();
+
+        Assert.assertEquals(3, copy.getSize());
+        for (int seq = 1; seq <= 3; seq++) {
+            ImapMessage expected = i4folder.getBySequence(seq, true);
+            ImapMessage actual = copy.getBySequence(seq, true);
+            Assert.assertEquals(seq, actual.sequence);
+            Assert.assertEquals(expected.msgId, actual.msgId);
+            Assert.assertEquals(expected.imapUid, actual.imapUid);
+            Assert.assertEquals(expected.flags, actual.flags);
+            Assert.assertEquals(expected.sflags, actual.sflags);
+            Assert.assertEquals(expected.getType(), actual.getType());
+        }
+        Assert.assertNull(copy.getBySequence(2).tags);
+        Assert.assertEquals(2, copy.getBySequence(1).tags.length);
+        Assert.assertSame(copy.getBySequence(1).tags, copy.getBySequence(3, true).tags);
+        Assert.assertSame(copy.getBySequence(1), copy.getById(300));
+        Assert.assertNull(copy.getByImapId(100000));
+    }
+
+    @Test
+    public void lookupsFollowSequenceChanges() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapFolder i4folder = new ImapFolder(new ImapPath("trash", creds), (byte) 0, null);
+        for (int i = 1; i <= 40; i++) {
+            i4folder.cache(new ImapMessage(i, Type.MESSAGE, i, 0, null), false);
+        }
+        ImapMessage renumbered = new ImapMessage(3, Type.MESSAGE, 50, 0, null);
+        i4folder.getById(3).setExpunged(true);
+        i4folder.cache(renumbered, false);
+        Assert.assertSame(renumbered, i4folder.getById(3));
+        Assert.assertSame(renumbered, i4folder.getByImapId(50));
+
+        i4folder.collapseExpunged(true);
+        Assert.assertEquals(40, i4folder.getSize());
+        Assert.assertNull(i4folder.getByImapId(3));
+        Assert.assertEquals(3, i4folder.getByImapId(4).sequence);
+        Assert.assertSame(renumbered, i4folder.getById(3));
+        Assert.assertSame(renumbered, i4folder.getBySequence(40));
+
+        renumbered.setExpunged(true);
+        i4folder.collapseExpunged(true);
+        Assert.assertNull(i4folder.getById(3));
+        Assert.assertNull(i4folder.getById(50));
+        Assert.assertSame(i4folder.getBySequence(39), i4folder.getById(40));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.imap;
+
+import java.util.HashMap;
+import java.util.List;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.zimbra.common.mailbox.ZimbraMailItem;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTest;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.OperationContext;
+
+/**
+ * Unit test for {@link ImapMessagePrefetcher}.
+ */
+public final class ImapMessagePrefetcherTest {
+    private Account acct;
+    private Mailbox mbox;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        HashMap<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, "12aa345b-2b47-44e6-8cb8-7fdfa18c1a9f");
+        acct = Provisioning.getInstance().createAccount("prefetch@zimbra.com", "secret", attrs);
+        mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private List<ImapMessage> addMessages(int count) throws Exception {
+        List<ImapMessage> i4list = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage("prefetch " + i),
+                    MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+            i4list.add(new ImapMessage(msg));
+        }
+        return i4list;
+    }
+
+    private ImapMessagePrefetcher prefetcher(List<ImapMessage> i4list, boolean needMime) {
+        return new ImapMessagePrefetcher(mbox, new OperationContext(acct),
+                acct.getId(), i4list, needMime);
+    }
+
+    @Test
+    public void itemsAndMime() throws Exception {
+        List<ImapMessage> i4list = addMessages(5);
+        ImapMessagePrefetcher prefetcher = prefetcher(i4list, true);
+        try {
+            for (int i = 0; i < i4list.size(); i++) {
+                ZimbraMailItem item = prefetcher.getItem(i);
+                Assert.assertNotNull(item);
+                Assert.assertEquals(i4list.get(i).msgId, item.getIdInMailbox());
+                MimeMessage mm = prefetcher.getMimeMessage(i, item);
+                Assert.assertEquals("prefetch " + i, mm.getSubject());
+            }
+        } finally {
+            prefetcher.close();
+        }
+    }
+
+    @Test
+    public void skippedMessages() throws Exception {
+        List<ImapMessage> i4list = addMessages(4);
+        ImapMessagePrefetcher prefetcher = prefetcher(i4list, true);
+        try {
+            Assert.assertNotNull(prefetcher.getItem(0));
+            ZimbraMailItem item = prefetcher.getItem(3);
+            Assert.assertEquals("prefetch 3", prefetcher.getMimeMessage(3, item).getSubject());
+        } finally {
+            prefetcher.close();
+        }
+    }
+
+    @Test
+    public void deletedMessageFallsBack() throws Exception {
+        List<ImapMessage> i4list = addMessages(3);
+        mbox.delete(null, i4list.get(1).msgId, MailItem.Type.MESSAGE);
+        ImapMessagePrefetcher prefetcher = prefetcher(i4list, false);
+        try {
+            for (int i = 0; i < i4list.size(); i++) {
+                // the batch lookup fails, leaving every message to be looked up on its own
+                Assert.assertNull(prefetcher.getItem(i));
+            }
+        } finally {
+            prefetcher.close();
+        }
+    }
+}
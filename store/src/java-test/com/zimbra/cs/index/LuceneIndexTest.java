@@ -16,6 +16,24 @@
  */
 package com.zimbra.cs.index;
 
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.zimbra.common.mailbox.ContactConstants;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mime.ParsedContact;
+
 /**
  * Unit test for {@link LuceneIndex}.
  */
@@ -27,4 +45,44 @@ public final class LuceneIndexTest extends AbstractIndexStoreTest {
         // Default for LC.zimbra_class_index_store_factory.value() is USUALLY this
         return "com.zimbra.cs.index.LuceneIndex$Factory";
     }
+
+    @Test
+    public void searchAfter() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        for (int i = 0; i < 7; i++) {
+            mbox.createContact(null, new ParsedContact(Collections.singletonMap(ContactConstants.A_email,
+                    "user" + i + "@zimbra.com")), Mailbox.ID_FOLDER_CONTACTS, null);
+        }
+        mbox.index.indexDeferredItems();
+
+        ResumableIndexSearcher searcher = (ResumableIndexSearcher) mbox.index.getIndexStore().openSearcher();
+        Query query = new TermQuery(new Term(LuceneFields.L_CONTACT_DATA, "zimbra.com"));
+        // contacts created within the same second share a sort date, so this also covers ties
+        checkSearchAfter(searcher, query, new Sort(new SortField(LuceneFields.L_SORT_DATE, SortField.STRING, false)));
+        checkSearchAfter(searcher, query, new Sort(new SortField(LuceneFields.L_SORT_DATE, SortField.STRING, true)));
+        checkSearchAfter(searcher, query, new Sort(new SortField(LuceneFields.L_SORT_NAME, SortField.STRING, true)));
+        checkSearchAfter(searcher, query, null);
+        searcher.close();
+    }
+
+    private static void checkSearchAfter(ResumableIndexSearcher searcher, Query query, Sort sort) throws Exception {
+        ZimbraTopDocs all = sort == null ? searcher.search(query, null, 100) : searcher.search(query, null, 100, sort);
+        Assert.assertEquals("total hits", 7, all.getTotalHits());
+
+        List<ZimbraIndexDocumentID> paged = Lists.newArrayList();
+        ZimbraTopDocs page = sort == null ? searcher.search(query, null, 3) : searcher.search(query, null, 3, sort);
+        while (!page.getScoreDocs().isEmpty()) {
+            Assert.assertEquals("total hits of page", 7, page.getTotalHits());
+            for (ZimbraScoreDoc doc : page.getScoreDocs()) {
+                paged.add(doc.getDocumentID());
+            }
+            ZimbraScoreDoc last = page.getScoreDoc(page.getScoreDocs().size() - 1);
+            page = searcher.searchAfter(last, query, null, 3, sort);
+        }
+        List<ZimbraIndexDocumentID> expected = Lists.newArrayList();
+        for (ZimbraScoreDoc doc : all.getScoreDocs()) {
+            expected.add(doc.getDocumentID());
+        }
+        Assert.assertEquals("paged hits in " + sort, expected.toString(), paged.toString());
+    }
 }
@@ -20,6 +20,7 @@ import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -27,6 +28,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.zimbra.common.soap.SoapProtocol;
 import com.zimbra.cs.account.MockProvisioning;
 import com.zimbra.cs.account.Provisioning;
@@ -170,4 +172,47 @@ public final class LuceneQueryOperationTest {
         results.close();
     }
 
+    private static List<Integer> search(Mailbox mbox, String queryString) throws Exception {
+        SearchParams params = new SearchParams();
+        params.setQueryString(queryString);
+        params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+        params.setSortBy(SortBy.DATE_DESC);
+        params.setLimit(100);
+        ZimbraQuery query = new ZimbraQuery(new OperationContext(mbox), SoapProtocol.Soap12, mbox, params);
+        ZimbraQueryResults results = query.execute();
+        List<Integer> ids = Lists.newArrayList();
+        while (results.hasNext()) {
+            ids.add(results.getNext().getItemId());
+        }
+        results.close();
+        return ids;
+    }
+
+    @Test
+    public void resumeCachedSearch() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        Set<Integer> expected = Sets.newHashSet();
+        for (int i = 0; i < 5; i++) {
+            expected.add(mbox.addMessage(null, new ParsedMessage(("Subject: cursor " + i).getBytes(), false),
+                    dopt, null).getId());
+            // keep the term rare enough for the search to be run index-first
+            mbox.addMessage(null, new ParsedMessage(("Subject: other " + i).getBytes(), false), dopt, null);
+        }
+        MailboxTestUtil.index(mbox);
+
+        List<Integer> first = search(mbox, "subject:cursor");
+        Assert.assertEquals(expected, Sets.newHashSet(first));
+        // the second search picks up the hits of the first from the cursor cache
+        Assert.assertEquals(first, search(mbox, "subject:cursor"));
+
+        // a change to the mailbox invalidates the cached hits
+        expected.add(mbox.addMessage(null, new ParsedMessage("Subject: cursor 5".getBytes(), false),
+                dopt, null).getId());
+        MailboxTestUtil.index(mbox);
+        List<Integer> last = search(mbox, "subject:cursor");
+        Assert.assertEquals(6, last.size());
+        Assert.assertEquals(expected, Sets.newHashSet(last));
+    }
+
 }
@@ -0,0 +1,175 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Unit test for {@link SearchResultCache}.
+ */
+public final class SearchResultCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+        LC.zimbra_index_search_result_cache_enabled.setDefault(true);
+    }
+
+    @AfterClass
+    public static void destroy() {
+        LC.zimbra_index_search_result_cache_enabled.setDefault(false);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private static Message addMessage(Mailbox mbox, int folderId, String subject) throws Exception {
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId).setFlags(Flag.BITMASK_UNREAD);
+        return mbox.addMessage(null, new ParsedMessage(("Subject: " + subject).getBytes(), false), dopt, null);
+    }
+
+    /**
+     * Reads the hits the way SearchRequest does, and returns their IDs and whether they came from the cache.
+     */
+    private static List<Integer> search(Mailbox mbox, String query, MailItem.Type type, int offset, int limit,
+            boolean cached) throws Exception {
+        SearchParams params = new SearchParams();
+        params.setQueryString(query);
+        params.setTypes(EnumSet.of(type));
+        params.setSortBy(SortBy.DATE_DESC);
+        params.setOffset(offset);
+        params.setLimit(limit);
+        long hits = ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE.getTotal();
+        List<Integer> ids = Lists.newArrayList();
+        try (ZimbraQueryResults results = mbox.index.search(new OperationContext(mbox), params)) {
+            ResultsPager pager = ResultsPager.create(results, params);
+            while (pager.hasNext() && ids.size() < limit) {
+                ids.add(pager.getNextHit().getItemId());
+            }
+            pager.hasNext();
+        }
+        Assert.assertEquals(query, cached, ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE.getTotal() > hits);
+        return ids;
+    }
+
+    @Test
+    public void invalidatedByChange() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg1 = addMessage(mbox, Mailbox.ID_FOLDER_INBOX, "one");
+        Message msg2 = addMessage(mbox, Mailbox.ID_FOLDER_INBOX, "two");
+
+        List<Integer> ids = search(mbox, "is:unread", MailItem.Type.MESSAGE, 0, 10, false);
+        Assert.assertEquals(2, ids.size());
+        Assert.assertEquals(ids, search(mbox, "is:unread", MailItem.Type.MESSAGE, 0, 10, true));
+        Assert.assertEquals(ids, search(mbox, " is:unread  ", MailItem.Type.MESSAGE, 0, 10, true));
+        search(mbox, "is:unread", MailItem.Type.CONTACT, 0, 10, false);
+
+        mbox.alterTag(null, msg1.getId(), MailItem.Type.MESSAGE, Flag.FlagInfo.UNREAD, false, null);
+        Assert.assertEquals(Lists.newArrayList(msg2.getId()),
+                search(mbox, "is:unread", MailItem.Type.MESSAGE, 0, 10, false));
+        Assert.assertEquals(Lists.newArrayList(msg2.getId()),
+                search(mbox, "is:unread", MailItem.Type.MESSAGE, 0, 10, true));
+    }
+
+    @Test
+    public void folderRestricted() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg1 = addMessage(mbox, Mailbox.ID_FOLDER_INBOX, "one");
+        Message msg2 = addMessage(mbox, Mailbox.ID_FOLDER_INBOX, "two");
+
+        List<Integer> ids = search(mbox, "in:inbox", MailItem.Type.MESSAGE, 0, 10, false);
+        search(mbox, "in:inbox", MailItem.Type.CONVERSATION, 0, 10, false);
+
+        // changes elsewhere don't affect searches of the inbox, except for conversations
+        Message sent = addMessage(mbox, Mailbox.ID_FOLDER_SENT, "three");
+        Assert.assertEquals(ids, search(mbox, "in:inbox", MailItem.Type.MESSAGE, 0, 10, true));
+        search(mbox, "in:inbox", MailItem.Type.CONVERSATION, 0, 10, false);
+        search(mbox, "in:inbox or in:sent", MailItem.Type.MESSAGE, 0, 10, false);
+
+        // moving an item into the folder does
+        mbox.move(null, sent.getId(), MailItem.Type.MESSAGE, Mailbox.ID_FOLDER_INBOX);
+        Assert.assertEquals(3, search(mbox, "in:inbox", MailItem.Type.MESSAGE, 0, 10, false).size());
+        Assert.assertEquals(3, search(mbox, "in:inbox", MailItem.Type.MESSAGE, 0, 10, true).size());
+
+        // and so does changing an item in it
+        mbox.alterTag(null, msg1.getId(), MailItem.Type.MESSAGE, Flag.FlagInfo.UNREAD, false, null);
+        Assert.assertEquals(Lists.newArrayList(msg2.getId(), sent.getId()),
+                search(mbox, "in:inbox is:unread", MailItem.Type.MESSAGE, 0, 10, false));
+        mbox.alterTag(null, msg2.getId(), MailItem.Type.MESSAGE, Flag.FlagInfo.UNREAD, false, null);
+        Assert.assertEquals(Lists.newArrayList(sent.getId()),
+                search(mbox, "in:inbox is:unread", MailItem.Type.MESSAGE, 0, 10, false));
+    }
+
+    @Test
+    public void offsetWindow() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        for (int i = 0; i < 6; i++) {
+            addMessage(mbox, Mailbox.ID_FOLDER_INBOX, "message " + i);
+        }
+        List<Integer> all = search(mbox, "in:inbox", MailItem.Type.MESSAGE, 0, 10, false);
+        Assert.assertEquals(6, all.size());
+        SearchResultCache.clear();
+
+        // the first page keeps 3 hits, enough for the first 2 pages of 1 but not for the second page of 2
+        List<Integer> page = search(mbox, "in:inbox", MailItem.Type.MESSAGE, 0, 2, false);
+        Assert.assertEquals(all.subList(0, 2), page);
+        Assert.assertEquals(all.subList(1, 2), search(mbox, "in:inbox", MailItem.Type.MESSAGE, 1, 1, true));
+        Assert.assertEquals(all.subList(2, 4), search(mbox, "in:inbox", MailItem.Type.MESSAGE, 2, 2, false));
+        Assert.assertEquals(all.subList(2, 4), search(mbox, "in:inbox", MailItem.Type.MESSAGE, 2, 2, true));
+
+        // callers that read past the 5 hits cached get the rest from the query
+        SearchParams params = new SearchParams();
+        params.setQueryString("in:inbox");
+        params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+        params.setSortBy(SortBy.DATE_DESC);
+        params.setLimit(2);
+        List<Integer> ids = Lists.newArrayList();
+        try (ZimbraQueryResults results = mbox.index.search(new OperationContext(mbox), params)) {
+            while (results.hasNext()) {
+                ids.add(results.getNext().getItemId());
+            }
+        }
+        Assert.assertEquals(all, ids);
+    }
+}
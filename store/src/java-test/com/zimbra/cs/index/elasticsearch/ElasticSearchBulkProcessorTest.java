@@ -0,0 +1,277 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.index.elasticsearch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * Unit test for {@link ElasticSearchBulkProcessor} against a stand-in for the ElasticSearch {@code _bulk} endpoint.
+ */
+public final class ElasticSearchBulkProcessorTest {
+
+    private HttpServer server;
+    private String indexUrl;
+    private final List<String> requests = Lists.newCopyOnWriteArrayList();
+    private volatile int status = 200;
+    private volatile String response = "{\"took\":1,\"errors\":false,\"items\":[]}";
+    private final CountDownLatch unstall = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                if (path.startsWith("/stalled/")) {
+                    Uninterruptibles.awaitUninterruptibly(unstall);
+                }
+                requests.add(path + "\n" + read(exchange.getRequestBody()));
+                byte[] out = response.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(status, out.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(out);
+                os.close();
+            }
+        });
+        server.start();
+        indexUrl = String.format("http://127.0.0.1:%d/account/", server.getAddress().getPort());
+    }
+
+    @After
+    public void tearDown() {
+        unstall.countDown();
+        server.stop(0);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        for (int n; (n = in.read(chunk)) > 0; ) {
+            buf.write(chunk, 0, n);
+        }
+        return new String(buf.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static JSONObject doc(int id) throws Exception {
+        return new JSONObject().put("l.mbox_blob_id", id);
+    }
+
+    private static String id(int id) {
+        return id + "_0";
+    }
+
+    @Test
+    public void batchesByActionCount() throws Exception {
+        ElasticSearchBulkProcessor bulk = new ElasticSearchBulkProcessor(indexUrl, 3, 1024 * 1024, 60000L);
+        for (int i = 1; i <= 7; i++) {
+            bulk.index("zimbra", id(i), doc(i));
+        }
+        Assert.assertEquals(1, bulk.getBufferedActions());
+        bulk.close();
+        Assert.assertEquals(0, bulk.getBufferedActions());
+        Assert.assertEquals(3, requests.size());
+        int lines = 0;
+        for (String request : requests) {
+            String[] parts = request.split("\n");
+            Assert.assertEquals("/account/_bulk", parts[0]);
+            for (int i = 1; i < parts.length; i += 2) {
+                JSONObject meta = new JSONObject(parts[i]).getJSONObject("index");
+                Assert.assertEquals("zimbra", meta.getString("_type"));
+                Assert.assertEquals(id(new JSONObject(parts[i + 1]).getInt("l.mbox_blob_id")), meta.getString("_id"));
+            }
+            lines += parts.length - 1;
+        }
+        Assert.assertEquals(14, lines);
+    }
+
+    @Test
+    public void batchesBySize() throws Exception {
+        ElasticSearchBulkProcessor bulk = new ElasticSearchBulkProcessor(indexUrl, 1000, 1, 60000L);
+        bulk.index("zimbra", id(1), doc(1));
+        bulk.index("zimbra", id(2), doc(2));
+        bulk.close();
+        Assert.assertEquals(2, requests.size());
+    }
+
+    @Test
+    public void flushesOnTimer() throws Exception {
+        ElasticSearchBulkProcessor bulk = new ElasticSearchBulkProcessor(indexUrl, 1000, 1024 * 1024, 50L);
+        bulk.index("zimbra", id(1), doc(1));
+        for (int i = 0; i < 100 && requests.isEmpty(); i++) {
+            Thread.sleep(50L);
+        }
+        Assert.assertEquals(1, requests.size());
+        Assert.assertEquals(0, bulk.getBufferedActions());
+        bulk.close();
+        Assert.assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void saturatedClusterDoesNotStallTimer() throws Exception {
+        // take every in-flight slot with requests to an index that doesn't respond
+        String stalledUrl = indexUrl.replace("/account/", "/stalled/");
+        int concurrency = Math.max(1, LC.zimbra_index_elasticsearch_bulk_concurrency.intValue());
+        List<ElasticSearchBulkProcessor> stalled = Lists.newArrayList();
+        for (int i = 0; i < concurrency; i++) {
+            ElasticSearchBulkProcessor bulk = new ElasticSearchBulkProcessor(stalledUrl, 1000, 1024 * 1024, 60000L);
+            bulk.index("zimbra", id(i), doc(i));
+            bulk.flush();
+            stalled.add(bulk);
+        }
+
+        final ElasticSearchBulkProcessor bulk = new ElasticSearchBulkProcessor(indexUrl, 1000, 1024 * 1024, 50L);
+        bulk.index("zimbra", id(1), doc(1));
+        Thread.sleep(200L);
+        // the timer must not be parked in the processor's monitor waiting for a slot
+        Future<Integer> buffered = Executors.newSingleThreadExecutor().submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return bulk.getBufferedActions();
+            }
+        });
+        Assert.assertEquals(1, buffered.get(5, TimeUnit.SECONDS).intValue());
+        Assert.assertTrue(requests.isEmpty());
+
+        // once a slot is free, the timer sends it without any further action
+        unstall.countDown();
+        for (int i = 0; i < 100 && bulk.getBufferedActions() > 0; i++) {
+            Thread.sleep(50L);
+        }
+        Assert.assertEquals(0, bulk.getBufferedActions());
+        bulk.close();
+        for (ElasticSearchBulkProcessor s : stalled) {
+            s.close();
+        }
+        Assert.assertEquals(concurrency + 1, requests.size());
+    }
+
+    @Test
+    public void blockedFlushDoesNotHoldMonitor() throws Exception {
+        String stalledUrl = indexUrl.replace("/account/", "/stalled/");
+        int concurrency = Math.max(1, LC.zimbra_index_elasticsearch_bulk_concurrency.intValue());
+        List<ElasticSearchBulkProcessor> stalled = Lists.newArrayList();
+        for (int i = 0; i < concurrency; i++) {
+            ElasticSearchBulkProcessor bulk = new ElasticSearchBulkProcessor(stalledUrl, 1000, 1024 * 1024, 60000L);
+            bulk.index("zimbra", id(i), doc(i));
+            bulk.flush();
+            stalled.add(bulk);
+        }
+
+        final ElasticSearchBulkProcessor bulk = new ElasticSearchBulkProcessor(indexUrl, 1000, 1024 * 1024, 60000L);
+        bulk.index("zimbra", id(1), doc(1));
+        // waits for an in-flight slot
+        Future<?> flush = Executors.newSingleThreadExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                bulk.flush();
+            }
+        });
+        for (int i = 0; i < 100 && bulk.getBufferedActions() > 0; i++) {
+            Thread.sleep(10L);
+        }
+        Assert.assertFalse(flush.isDone());
+        // other callers can still add to the buffer meanwhile
+        Future<Integer> buffered = Executors.newSingleThreadExecutor().submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                bulk.index("zimbra", id(2), doc(2));
+                return bulk.getBufferedActions();
+            }
+        });
+        Assert.assertEquals(1, buffered.get(5, TimeUnit.SECONDS).intValue());
+
+        unstall.countDown();
+        flush.get(5, TimeUnit.SECONDS);
+        bulk.close();
+        for (ElasticSearchBulkProcessor s : stalled) {
+            s.close();
+        }
+        Assert.assertEquals(concurrency + 2, requests.size());
+    }
+
+    @Test
+    public void nothingToSend() throws Exception {
+        new ElasticSearchBulkProcessor(indexUrl, 10, 1024, 60000L).close();
+        Assert.assertTrue(requests.isEmpty());
+    }
+
+    @Test
+    public void rejectedDocumentIsNotRetried() throws Exception {
+        response = "{\"took\":1,\"errors\":true,\"items\":[" +
+                "{\"index\":{\"status\":201}},{\"index\":{\"status\":400,\"error\":\"MapperParsingException\"}}]}";
+        ElasticSearchBulkProcessor bulk = new ElasticSearchBulkProcessor(indexUrl, 10, 1024 * 1024, 60000L);
+        bulk.index("zimbra", id(1), doc(1));
+        bulk.index("zimbra", id(2), doc(2));
+        bulk.close();
+        Assert.assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void overloadedFailsClose() throws Exception {
+        response = "{\"took\":1,\"errors\":true,\"items\":[" +
+                "{\"index\":{\"status\":429,\"error\":\"EsRejectedExecutionException\"}}]}";
+        ElasticSearchBulkProcessor bulk = new ElasticSearchBulkProcessor(indexUrl, 10, 1024 * 1024, 60000L);
+        bulk.index("zimbra", id(1), doc(1));
+        try {
+            bulk.close();
+            Assert.fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void httpErrorFailsClose() throws Exception {
+        status = 500;
+        response = "{\"error\":\"boom\"}";
+        ElasticSearchBulkProcessor bulk = new ElasticSearchBulkProcessor(indexUrl, 1, 1024 * 1024, 60000L);
+        bulk.index("zimbra", id(1), doc(1));
+        bulk.index("zimbra", id(2), doc(2));
+        try {
+            bulk.close();
+            Assert.fail("expected IOException");
+        } catch (IOException expected) {
+        }
+        Assert.assertEquals(2, requests.size());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.lmtpserver;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link ZimbraLmtpBackend}.
+ */
+public final class ZimbraLmtpBackendTest {
+
+    private static final int NUM_RECIPIENTS = 12;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        for (int i = 0; i < NUM_RECIPIENTS; i++) {
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put(Provisioning.A_zimbraId, UUID.randomUUID().toString());
+            prov.createAccount("rcpt" + i + "@zimbra.com", "secret", attrs);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private static LmtpEnvelope newEnvelope() {
+        LmtpEnvelope env = new LmtpEnvelope();
+        env.setSender(new LmtpAddress("<sender@example.com>", new String[] { "BODY", "SIZE" }, null));
+        return env;
+    }
+
+    private static void deliver(LmtpEnvelope env, String subject) throws Exception {
+        byte[] raw = ("From: sender@example.com\r\nTo: all@zimbra.com\r\nSubject: " + subject + "\r\n\r\nhello\r\n")
+                .getBytes();
+        new ZimbraLmtpBackend(LmtpConfig.getInstance()).deliver(env, new ByteArrayInputStream(raw), raw.length);
+    }
+
+    private static int inboxSize(String name) throws Exception {
+        Account account = Provisioning.getInstance().getAccountByName(name);
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(account);
+        return mbox.getItemList(null, MailItem.Type.MESSAGE, Mailbox.ID_FOLDER_INBOX).size();
+    }
+
+    @Test
+    public void fanOut() throws Exception {
+        LmtpEnvelope env = newEnvelope();
+        for (int i = 0; i < NUM_RECIPIENTS; i++) {
+            env.addLocalRecipient(new LmtpAddress("<rcpt" + i + "@zimbra.com>", null, null));
+        }
+        env.addLocalRecipient(new LmtpAddress("<nobody@zimbra.com>", null, null));
+        deliver(env, "fan out");
+
+        for (LmtpAddress rcpt : env.getLocalRecipients()) {
+            if (rcpt.getEmailAddress().startsWith("nobody")) {
+                Assert.assertEquals(LmtpReply.PERMANENT_FAILURE, rcpt.getDeliveryStatus());
+            } else {
+                Assert.assertEquals(rcpt.getEmailAddress(), LmtpReply.DELIVERY_OK, rcpt.getDeliveryStatus());
+                Assert.assertEquals(rcpt.getEmailAddress(), 1, inboxSize(rcpt.getEmailAddress()));
+            }
+        }
+    }
+
+    @Test
+    public void sameMailboxTwice() throws Exception {
+        // a mailbox listed twice: the second delivery waits for the mailbox's delivery lock instead of failing
+        LmtpEnvelope env = newEnvelope();
+        for (int i = 0; i < NUM_RECIPIENTS; i++) {
+            env.addLocalRecipient(new LmtpAddress("<rcpt" + i + "@zimbra.com>", null, null));
+        }
+        env.addLocalRecipient(new LmtpAddress("<rcpt0@zimbra.com>", null, null));
+        deliver(env, "twice");
+
+        for (LmtpAddress rcpt : env.getLocalRecipients()) {
+            Assert.assertEquals(rcpt.getEmailAddress(), LmtpReply.DELIVERY_OK, rcpt.getDeliveryStatus());
+        }
+        Assert.assertTrue(inboxSize("rcpt0@zimbra.com") >= 1);
+    }
+}
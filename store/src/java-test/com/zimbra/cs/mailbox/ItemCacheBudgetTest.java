@@ -0,0 +1,97 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.util.Collection;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class ItemCacheBudgetTest {
+
+    private static final class FakeCache implements ItemCacheBudget.Trimmable {
+        long weight;
+        long requested = -1;
+
+        FakeCache(long weight) {
+            this.weight = weight;
+        }
+
+        @Override
+        public long weightedSize() {
+            return weight;
+        }
+
+        @Override
+        public void requestTrim(long bytes) {
+            requested = bytes;
+        }
+    }
+
+    @Test
+    public void withinBudget() {
+        ItemCacheBudget budget = new ItemCacheBudget(1000);
+        FakeCache a = new FakeCache(400);
+        FakeCache b = new FakeCache(500);
+        budget.register(a);
+        budget.register(b);
+        Assert.assertEquals(2, budget.getCacheCount());
+        Assert.assertEquals(900, budget.enforce());
+        Assert.assertEquals(-1, a.requested);
+        Assert.assertEquals(-1, b.requested);
+    }
+
+    @Test
+    public void trimsLargestToFairShare() {
+        ItemCacheBudget budget = new ItemCacheBudget(900);
+        FakeCache small = new FakeCache(100);
+        FakeCache medium = new FakeCache(350);
+        FakeCache large = new FakeCache(1000);
+        budget.register(small);
+        budget.register(medium);
+        budget.register(large);
+
+        // fair share is 300; trimming the largest mailbox alone brings the total back within budget
+        Assert.assertEquals(750, budget.enforce());
+        Assert.assertEquals(-1, small.requested);
+        Assert.assertEquals(-1, medium.requested);
+        Assert.assertEquals(300, large.requested);
+        // nothing is trimmed until the owning mailbox acts on the request under its own lock
+        Assert.assertEquals(1450, budget.getWeightedSize());
+        large.weight = large.requested;
+        Assert.assertEquals(750, budget.getWeightedSize());
+    }
+
+    @Test
+    public void typeStats() {
+        ItemCacheBudget budget = new ItemCacheBudget(1000);
+        budget.recordHit(MailItem.Type.CONTACT);
+        budget.recordHit(MailItem.Type.CONTACT);
+        budget.recordHit(MailItem.Type.CONTACT);
+        budget.recordMiss(MailItem.Type.CONTACT);
+        budget.recordEviction(MailItem.Type.APPOINTMENT, true);
+
+        Collection<String> lines = budget.getDataLines();
+        Assert.assertEquals(2, lines.size());
+        Assert.assertTrue(lines.contains(MailItem.Type.CONTACT + ",3,1,0,75.0"));
+        Assert.assertTrue(lines.contains(MailItem.Type.APPOINTMENT + ",0,0,1,0.0"));
+        Assert.assertEquals(1, budget.getTrimmedCount());
+        // counters reset after each dump
+        Assert.assertTrue(budget.getDataLines().isEmpty());
+    }
+}
@@ -36,6 +36,7 @@ import com.zimbra.cs.account.MockProvisioning;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.mailbox.Mailbox.FolderNode;
 import com.zimbra.cs.mailbox.MailboxLock.LockFailedException;
+import com.zimbra.cs.mailbox.lock.MailboxLockStats;
 import com.zimbra.cs.service.util.ItemId;
 
 public class MailboxLockTest {
@@ -687,4 +688,81 @@ public class MailboxLockTest {
             t.join();
         }
     }
+
+    @Test
+    public void lockStats() throws ServiceException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Assert.assertNull(mbox.lock.getStats());
+        MailboxLock lock;
+        LC.zimbra_mailbox_lock_stats_enabled.setDefault(true);
+        try {
+            lock = new MailboxLock(mbox.getAccountId(), mbox);
+        } finally {
+            LC.zimbra_mailbox_lock_stats_enabled.setDefault(false);
+        }
+        MailboxLockStats stats = lock.getStats();
+        Assert.assertNotNull(stats);
+
+        lock.lock(true);
+        lock.lock(false);
+        lock.release();
+        lock.release();
+        Assert.assertEquals(2, stats.getWaitTime().getCount());
+        Assert.assertEquals(1, stats.getWriteHoldTime().getCount());
+        // read lock nested in the write lock is not a separate hold
+        Assert.assertEquals(0, stats.getReadHoldTime().getCount());
+
+        lock.lock(false);
+        lock.lock(false);
+        lock.release();
+        lock.release();
+        Assert.assertEquals(4, stats.getWaitTime().getCount());
+        // one more outermost hold, in read or write mode depending on requiresWriteLock()
+        Assert.assertEquals(2, stats.getWriteHoldTime().getCount() + stats.getReadHoldTime().getCount());
+        Assert.assertEquals(0, stats.getQueueDepth().getCount());
+
+        // reset reports against a snapshot, the recorded values themselves are kept
+        stats.reset();
+        Assert.assertEquals(0, stats.getWaitTime().getCount());
+        Assert.assertEquals(0, stats.getWaitTime().getMax());
+        lock.lock(true);
+        lock.release();
+        Assert.assertEquals(1, stats.getWaitTime().getCount());
+        Assert.assertEquals(1, stats.getWriteHoldTime().getCount());
+        Assert.assertEquals(0, stats.getReadHoldTime().getCount());
+    }
+
+    @Test
+    public void optimisticRead() throws ServiceException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        LC.zimbra_mailbox_lock_optimistic_read.setDefault(true);
+        try {
+            MailboxLock lock = new MailboxLock(mbox.getAccountId(), mbox);
+            Assert.assertTrue(lock.isOptimisticReadEnabled());
+            long stamp = lock.tryOptimisticRead();
+            Assert.assertTrue(stamp != 0L);
+            Assert.assertTrue(lock.validate(stamp));
+
+            lock.lock(true);
+            lock.lock(true);
+            Assert.assertEquals(0L, lock.tryOptimisticRead());
+            Assert.assertFalse(lock.validate(stamp));
+            lock.release();
+            Assert.assertEquals(0L, lock.tryOptimisticRead());
+            lock.release();
+
+            Assert.assertFalse(lock.validate(stamp));
+            stamp = lock.tryOptimisticRead();
+            Assert.assertTrue(stamp != 0L);
+            if (!mbox.requiresWriteLock()) {
+                // readers do not invalidate optimistic reads
+                lock.lock(false);
+                Assert.assertTrue(lock.validate(stamp));
+                lock.release();
+            }
+            Assert.assertTrue(lock.validate(stamp));
+        } finally {
+            LC.zimbra_mailbox_lock_optimistic_read.setDefault(false);
+        }
+    }
 }
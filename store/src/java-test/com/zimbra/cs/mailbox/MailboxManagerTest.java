@@ -0,0 +1,285 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Mailbox.MailboxData;
+
+public final class MailboxManagerTest {
+
+    private static final int THREADS = 32;
+
+    /** Counts mailbox instantiations and can hold one mailbox's load open until released. */
+    private static final class CountingMailboxManager extends MailboxManager {
+        final AtomicInteger loads = new AtomicInteger();
+        volatile int blockedMailboxId = -1;
+        volatile int reentrantMailboxId = -1;
+        /** mailbox ID to the ID of the mailbox its load looks up once every such load has started */
+        final Map<Integer, Integer> nestedLookups = new ConcurrentHashMap<Integer, Integer>();
+        volatile CyclicBarrier nestedBarrier;
+        final CountDownLatch loadStarted = new CountDownLatch(1);
+        final CountDownLatch releaseLoad = new CountDownLatch(1);
+
+        CountingMailboxManager() throws ServiceException {
+            super();
+        }
+
+        @Override
+        protected Mailbox instantiateMailbox(MailboxData data) throws ServiceException {
+            loads.incrementAndGet();
+            if (data.id == reentrantMailboxId) {
+                reentrantMailboxId = -1;
+                getMailboxById(data.id);
+            }
+            Integer nestedId = nestedLookups.remove(data.id);
+            if (nestedId != null) {
+                try {
+                    nestedBarrier.await(30, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw ServiceException.FAILURE("waiting for the other load", e);
+                }
+                getMailboxById(nestedId);
+            }
+            if (data.id == blockedMailboxId) {
+                loadStarted.countDown();
+                try {
+                    releaseLoad.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.instantiateMailbox(data);
+        }
+    }
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        for (String name : new String[] { "test1@zimbra.com", "test2@zimbra.com" }) {
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put(Provisioning.A_zimbraId, UUID.randomUUID().toString());
+            prov.createAccount(name, "secret", attrs);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MailboxManager.setInstance(null);
+    }
+
+    /** Creates the mailboxes, then swaps in a fresh manager that knows about them but has none loaded. */
+    private CountingMailboxManager reload(Account... accounts) throws Exception {
+        for (Account account : accounts) {
+            MailboxManager.getInstance().getMailboxByAccount(account);
+        }
+        CountingMailboxManager mmgr = new CountingMailboxManager();
+        MailboxManager.setInstance(mmgr);
+        return mmgr;
+    }
+
+    @Test
+    public void concurrentFirstAccessLoadsOnce() throws Exception {
+        Account account = Provisioning.getInstance().getAccountByName("test1@zimbra.com");
+        final CountingMailboxManager mmgr = reload(account);
+        final int mailboxId = mmgr.lookupMailboxId(account.getId());
+
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Mailbox>> results = new ArrayList<Future<Mailbox>>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(new Callable<Mailbox>() {
+                    @Override
+                    public Mailbox call() throws Exception {
+                        start.await();
+                        return mmgr.getMailboxById(mailboxId);
+                    }
+                }));
+            }
+            mmgr.blockedMailboxId = mailboxId;
+            start.countDown();
+            // hold the first load open so that the other threads pile up behind it
+            Assert.assertTrue(mmgr.loadStarted.await(30, TimeUnit.SECONDS));
+            Thread.sleep(100);
+            mmgr.releaseLoad.countDown();
+
+            Mailbox first = results.get(0).get(30, TimeUnit.SECONDS);
+            for (Future<Mailbox> result : results) {
+                Assert.assertSame(first, result.get(30, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(1, mmgr.loads.get());
+            Assert.assertEquals(1, mmgr.getCacheSize());
+        } finally {
+            mmgr.releaseLoad.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void loadDoesNotBlockOtherMailboxes() throws Exception {
+        Provisioning prov = Provisioning.getInstance();
+        Account slow = prov.getAccountByName("test1@zimbra.com");
+        Account fast = prov.getAccountByName("test2@zimbra.com");
+        final CountingMailboxManager mmgr = reload(slow, fast);
+        final int slowId = mmgr.lookupMailboxId(slow.getId());
+        int fastId = mmgr.lookupMailboxId(fast.getId());
+        Mailbox fastMbox = mmgr.getMailboxById(fastId);
+
+        mmgr.blockedMailboxId = slowId;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Mailbox> slowLoad = executor.submit(new Callable<Mailbox>() {
+                @Override
+                public Mailbox call() throws Exception {
+                    return mmgr.getMailboxById(slowId);
+                }
+            });
+            Assert.assertTrue(mmgr.loadStarted.await(30, TimeUnit.SECONDS));
+
+            // while the first mailbox is stuck loading, the other is still served from the cache
+            Assert.assertSame(fastMbox, mmgr.getMailboxById(fastId));
+            Assert.assertEquals(1, mmgr.getAllLoadedMailboxes().size());
+            Assert.assertNull(mmgr.getMailboxById(slowId, MailboxManager.FetchMode.ONLY_IF_CACHED, false));
+
+            mmgr.releaseLoad.countDown();
+            Assert.assertEquals(slowId, slowLoad.get(30, TimeUnit.SECONDS).getId());
+            Assert.assertEquals(2, mmgr.loads.get());
+        } finally {
+            mmgr.releaseLoad.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void reentrantLoad() throws Exception {
+        Account account = Provisioning.getInstance().getAccountByName("test1@zimbra.com");
+        final CountingMailboxManager mmgr = reload(account);
+        final int mailboxId = mmgr.lookupMailboxId(account.getId());
+
+        mmgr.reentrantMailboxId = mailboxId;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Mailbox> load = executor.submit(new Callable<Mailbox>() {
+                @Override
+                public Mailbox call() throws Exception {
+                    return mmgr.getMailboxById(mailboxId);
+                }
+            });
+            // the nested lookup is loaded inline instead of waiting on the load that made it
+            Mailbox mbox = load.get(30, TimeUnit.SECONDS);
+            Assert.assertEquals(2, mmgr.loads.get());
+            Assert.assertSame(mbox, mmgr.getMailboxById(mailboxId));
+            Assert.assertEquals(1, mmgr.getCacheSize());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void crossedNestedLoads() throws Exception {
+        Provisioning prov = Provisioning.getInstance();
+        Account account1 = prov.getAccountByName("test1@zimbra.com");
+        Account account2 = prov.getAccountByName("test2@zimbra.com");
+        final CountingMailboxManager mmgr = reload(account1, account2);
+        final int id1 = mmgr.lookupMailboxId(account1.getId());
+        final int id2 = mmgr.lookupMailboxId(account2.getId());
+
+        mmgr.nestedBarrier = new CyclicBarrier(2);
+        mmgr.nestedLookups.put(id1, id2);
+        mmgr.nestedLookups.put(id2, id1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Mailbox> load1 = executor.submit(new Callable<Mailbox>() {
+                @Override
+                public Mailbox call() throws Exception {
+                    return mmgr.getMailboxById(id1);
+                }
+            });
+            Future<Mailbox> load2 = executor.submit(new Callable<Mailbox>() {
+                @Override
+                public Mailbox call() throws Exception {
+                    return mmgr.getMailboxById(id2);
+                }
+            });
+            // each load looks up the mailbox the other is loading; neither waits on the other
+            Assert.assertSame(load1.get(30, TimeUnit.SECONDS), mmgr.getMailboxById(id1));
+            Assert.assertSame(load2.get(30, TimeUnit.SECONDS), mmgr.getMailboxById(id2));
+            Assert.assertEquals(2, mmgr.getCacheSize());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void hardCapacity() {
+        Assert.assertEquals(0, new MailboxManager.MailboxMap(0).getHardCapacity());
+        Assert.assertEquals(2, new MailboxManager.MailboxMap(2).getHardCapacity());
+        Assert.assertEquals(1000, new MailboxManager.MailboxMap(1000).getHardCapacity());
+        Assert.assertEquals(MailboxManager.MailboxMap.STRIPES + 1,
+                new MailboxManager.MailboxMap(MailboxManager.MailboxMap.STRIPES + 1).getHardCapacity());
+    }
+
+    @Test
+    public void stripedCache() {
+        MailboxManager.MailboxMap map = new MailboxManager.MailboxMap(2);
+        Map<Integer, Object> expected = new HashMap<Integer, Object>();
+        for (int i = 1; i <= 200; i++) {
+            Object value = "mailbox-" + i;
+            map.put(i, value);
+            expected.put(i, value);
+        }
+        Assert.assertEquals(200, map.size());
+        Assert.assertEquals(expected.keySet(), map.keySet());
+        Assert.assertEquals("mailbox-17", map.get(17));
+        Assert.assertSame(map.lockFor(17), map.lockFor(17 + MailboxManager.MailboxMap.STRIPES));
+        Assert.assertEquals("mailbox-17", map.remove(17));
+        Assert.assertFalse(map.containsKey(17));
+        Assert.assertEquals(199, map.values().size());
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+    }
+}
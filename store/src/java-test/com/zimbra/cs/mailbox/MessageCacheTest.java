@@ -0,0 +1,152 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Unit test for {@link MessageCache}.
+ */
+public final class MessageCacheTest {
+    private Mailbox mbox;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        HashMap<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, "1e6d2b24-7b5d-4d0b-9b5b-3b1f4e0b8a10");
+        Account acct = Provisioning.getInstance().createAccount("msgcache@zimbra.com", "secret", attrs);
+        mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private Message addMessage() throws Exception {
+        Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage("message cache"),
+                MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+        MessageCache.purge(msg);
+        return msg;
+    }
+
+    @Test
+    public void rawAndExpandedShareEntry() throws Exception {
+        Message msg = addMessage();
+        int size = MessageCache.getSize();
+        long dataSize = MessageCache.getDataSize();
+        Assert.assertFalse(MessageCache.contains(msg.getDigest()));
+
+        MimeMessage raw = MessageCache.getMimeMessage(msg, false);
+        Assert.assertTrue(MessageCache.contains(msg.getDigest()));
+        Assert.assertEquals(size + 1, MessageCache.getSize());
+        Assert.assertSame(raw, MessageCache.getMimeMessage(msg, false));
+
+        Assert.assertEquals(dataSize + msg.getSize(), MessageCache.getDataSize());
+
+        MimeMessage expanded = MessageCache.getMimeMessage(msg, true);
+        Assert.assertEquals(size + 1, MessageCache.getSize());
+        Assert.assertSame(expanded, MessageCache.getMimeMessage(msg, true));
+        Assert.assertEquals("message cache", expanded.getSubject());
+
+        MessageCache.purge(msg);
+        Assert.assertFalse(MessageCache.contains(msg.getDigest()));
+        Assert.assertEquals(size, MessageCache.getSize());
+        Assert.assertEquals(dataSize, MessageCache.getDataSize());
+    }
+
+    @Test
+    public void replacedEntryKeepsDataSize() throws Exception {
+        Message msg = addMessage();
+        long dataSize = MessageCache.getDataSize();
+        MimeMessage raw = MessageCache.getMimeMessage(msg, false);
+        MessageCache.cacheMessage(msg.getDigest(), raw, null);
+        MessageCache.cacheMessage(msg.getDigest(), raw, raw);
+        Assert.assertSame(raw, MessageCache.getMimeMessage(msg, false));
+        MessageCache.purge(msg);
+        Assert.assertEquals(dataSize, MessageCache.getDataSize());
+    }
+
+    @Test
+    public void byteBudgetChangeRebuildsCache() throws Exception {
+        Message msg = addMessage();
+        MessageCache.getMimeMessage(msg, false);
+        Assert.assertTrue(MessageCache.contains(msg.getDigest()));
+        try {
+            LC.zimbra_message_cache_max_bytes.setDefault(8L * 1024 * 1024);
+            MessageCache.loadSettings();
+            Assert.assertEquals(8L * 1024 * 1024, MessageCache.getMaxBytes());
+            Assert.assertFalse(MessageCache.contains(msg.getDigest()));
+        } finally {
+            LC.zimbra_message_cache_max_bytes.setDefault(0L);
+            MessageCache.loadSettings();
+        }
+        int maxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
+        Assert.assertEquals((long) maxCacheSize * MessageCache.DEFAULT_ENTRY_WEIGHT, MessageCache.getMaxBytes());
+    }
+
+    @Test
+    public void concurrentMissesLoadOnce() throws Exception {
+        final Message msg = addMessage();
+        long loads = ZimbraPerf.STOPWATCH_MSG_CACHE_LOAD.getCount();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<MimeMessage>> futures = Lists.newArrayList();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<MimeMessage>() {
+                    @Override
+                    public MimeMessage call() throws Exception {
+                        return MessageCache.getMimeMessage(msg, false);
+                    }
+                }));
+            }
+            MimeMessage first = futures.get(0).get();
+            for (Future<MimeMessage> future : futures) {
+                Assert.assertSame(first, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(loads + 1, ZimbraPerf.STOPWATCH_MSG_CACHE_LOAD.getCount());
+    }
+}
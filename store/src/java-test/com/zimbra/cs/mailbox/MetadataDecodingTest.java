@@ -0,0 +1,86 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for the on-demand decoding of {@link Metadata}.
+ */
+public class MetadataDecodingTest {
+
+    private static final String ENCODED =
+            "d4:mseqi628e3:prtd1:X5:false1:fd1:a25:roland.schemers@gmail.com1:d6:Roland1:p15:Roland Schemerse2:noi2ee"
+            + "2:szi7596456e1:vi10e2:vti5ee";
+
+    @Test
+    @SuppressWarnings("deprecation") // the legacy version key is still in the encoded form and must stay hidden
+    public void lookup() throws Exception {
+        Metadata md = new Metadata(ENCODED);
+        Assert.assertEquals(628, md.getLong(Metadata.FN_MODSEQ));
+        Assert.assertEquals(5, md.getInt(Metadata.FN_VIEW, 0));
+        Assert.assertNull(md.get("missing", null));
+        Assert.assertFalse(md.containsKey(Metadata.FN_MD_VERSION));
+        Assert.assertTrue(md.containsKey(Metadata.FN_TOTAL_SIZE));
+        Metadata prt = md.getMap(Metadata.FN_PARTICIPANTS);
+        Assert.assertEquals("Roland", prt.getMap("f").get("d"));
+        Assert.assertEquals(4, md.size());
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        // unmodified metadata is written back as it was read
+        Metadata md = new Metadata(ENCODED);
+        md.get(Metadata.FN_MODSEQ, null);
+        Assert.assertSame(ENCODED, md.toString());
+
+        md.put(Metadata.FN_MODSEQ, 629);
+        String reencoded = md.toString();
+        Assert.assertEquals(ENCODED.replace("i628e", "i629e"), reencoded);
+        Assert.assertEquals(629, new Metadata(reencoded).getLong(Metadata.FN_MODSEQ));
+
+        // anything but the current version is rewritten
+        md = new Metadata("d1:vi9e2:vti5ee");
+        Assert.assertEquals("d1:vi10e2:vti5ee", md.toString());
+    }
+
+    @Test
+    public void nestedChange() throws Exception {
+        // containers handed out may be changed by the caller, so the encoded string can't be reused afterwards
+        Metadata md = new Metadata(ENCODED);
+        Metadata prt = md.getMap(Metadata.FN_PARTICIPANTS);
+        @SuppressWarnings("unchecked")
+        Map<Object, Object> from = (Map<Object, Object>) prt.map().get("f");
+        from.put("d", "Steve");
+        Assert.assertEquals(ENCODED.replace("6:Roland", "5:Steve"), md.toString());
+    }
+
+    @Test
+    public void duplicateKeys() throws Exception {
+        Metadata md = new Metadata("d1:ai1e1:bi2e1:ai3ee");
+        Assert.assertEquals(3, md.getLong("a"));
+        Assert.assertEquals(2, md.size());
+
+        md = new Metadata("d1:ai1e1:bi2e1:ai3ee");
+        Assert.assertEquals(2, md.size());
+        Assert.assertEquals(3, md.getLong("a"));
+    }
+}
@@ -13,7 +13,10 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class  FileLogWriterTest {
     @Rule public TemporaryFolder folder = new TemporaryFolder();
@@ -67,6 +70,125 @@ public class  FileLogWriterTest {
         Assert.assertEquals(sequence, logWriter.getSequence());
     }
 
+    @Test
+    public void concurrentSynchronousLogs() throws Exception {
+        final File file = folder.newFile("concurrent");
+        final FileLogWriter writer = new FileLogWriter(mockRedoLogManager, file, 10);
+        writer.open();
+
+        final int numThreads = 8;
+        final int numOps = 50;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    RedoableOp op = EasyMock.createMockBuilder(RedoableOp.class)
+                            .withConstructor(MailboxOperation.Preview)
+                            .createMock();
+                    try {
+                        for (int j = 0; j < numOps; j++) {
+                            writer.log(op, new ByteArrayInputStream("some bytes".getBytes()), true /* synchronous */);
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertNull(failure.get());
+
+        long expected = FileHeader.HEADER_LEN + numThreads * numOps * 10;
+        Assert.assertEquals("logical size", expected, writer.getSize());
+        Assert.assertEquals("file size", expected, file.length());
+        writer.close();
+        Assert.assertEquals(expected, file.length());
+    }
+
+    @Test
+    public void interruptedSynchronousLog() throws Exception {
+        final FileLogWriter writer = new FileLogWriter(mockRedoLogManager, folder.newFile("interrupted"), 10);
+        writer.open();
+        final RedoableOp op = EasyMock.createMockBuilder(RedoableOp.class)
+                .withConstructor(MailboxOperation.Preview)
+                .createMock();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                interrupt();
+                try {
+                    writer.log(op, new ByteArrayInputStream("some bytes".getBytes()), true /* synchronous */);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        Assert.assertNull(failure.get());
+
+        // the interrupted fsync must not have closed the file under the other loggers
+        writer.log(op, new ByteArrayInputStream("some bytes".getBytes()), true /* synchronous */);
+        Assert.assertEquals(FileHeader.HEADER_LEN + 20, writer.getSize());
+        writer.close();
+    }
+
+    @Test
+    public void reopenAfterCrash() throws Exception {
+        File file = folder.newFile("crashed");
+        FileLogWriter crashed = new FileLogWriter(mockRedoLogManager, file, 0);
+        crashed.open();
+        RedoableOp op = EasyMock.createMockBuilder(RedoableOp.class)
+                .withConstructor(MailboxOperation.Preview)
+                .createMock();
+        crashed.log(op, new ByteArrayInputStream("some bytes".getBytes()), true /* synchronous */);
+        // never closed
+
+        FileLogWriter writer = new FileLogWriter(mockRedoLogManager, file, 0);
+        writer.open();
+        Assert.assertEquals(FileHeader.HEADER_LEN + 10, writer.getSize());
+        writer.log(op, new ByteArrayInputStream("more bytes".getBytes()), true /* synchronous */);
+        writer.close();
+
+        Assert.assertEquals("no gap before the appended record", FileHeader.HEADER_LEN + 20, file.length());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] buf = new byte[20];
+            raf.seek(FileHeader.HEADER_LEN);
+            raf.readFully(buf);
+            Assert.assertEquals("some bytesmore bytes", new String(buf));
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void closeDoesNotGrowFile() throws Exception {
+        File file = folder.newFile("truncated");
+        FileLogWriter writer = new FileLogWriter(mockRedoLogManager, file, 0);
+        writer.open();
+        RedoableOp op = EasyMock.createMockBuilder(RedoableOp.class)
+                .withConstructor(MailboxOperation.Preview)
+                .createMock();
+        writer.log(op, new ByteArrayInputStream("some bytes".getBytes()), true /* synchronous */);
+
+        // crash recovery truncates the log while the writer has it open
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(FileHeader.HEADER_LEN + 4);
+        } finally {
+            raf.close();
+        }
+        writer.close();
+        Assert.assertEquals(FileHeader.HEADER_LEN + 4, file.length());
+    }
+
     @Test(expected = IOException.class)
     public void logBeforeOpen() throws Exception {
         logWriter.log(null, null, false);
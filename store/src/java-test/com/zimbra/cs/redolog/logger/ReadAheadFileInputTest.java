@@ -0,0 +1,63 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for {@link ReadAheadFileInput}.
+ */
+public class ReadAheadFileInputTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readLineMatchesRandomAccessFile() throws Exception {
+        StringBuilder content = new StringBuilder("first\r\nsecond\rthird\n\n\u00e9\r");
+        // make one "\r\n" straddle the end of the read-ahead buffer
+        while (content.length() < 8 * 1024 - 1) {
+            content.append('x');
+        }
+        content.append("\r\nlast");
+        File file = folder.newFile("lines");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.close();
+
+        RandomAccessFile expected = new RandomAccessFile(file, "r");
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ReadAheadFileInput input = new ReadAheadFileInput(raf.getChannel(), 8 * 1024);
+            String line;
+            do {
+                line = expected.readLine();
+                Assert.assertEquals(line, input.readLine());
+                Assert.assertEquals(expected.getFilePointer(), input.getFilePointer());
+            } while (line != null);
+        } finally {
+            expected.close();
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.redolog.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailboxOperation;
+import com.zimbra.cs.redolog.RedoLogInput;
+import com.zimbra.cs.redolog.RedoLogOutput;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+public class ParallelRedoPlayerTest {
+
+    private final AtomicInteger played = new AtomicInteger();
+
+    private class RecordingOp extends RedoableOp {
+        private final List<Integer> log;
+        private final int seq;
+
+        RecordingOp(int mboxId, List<Integer> log, int seq) {
+            super(MailboxOperation.Preview, null);
+            setMailboxId(mboxId);
+            this.log = log;
+            this.seq = seq;
+        }
+
+        @Override public void redo() throws Exception {
+            log.add(seq);
+            played.incrementAndGet();
+        }
+
+        @Override protected String getPrintableData() {
+            return "seq=" + seq;
+        }
+
+        @Override protected void serializeData(RedoLogOutput out) throws IOException {
+        }
+
+        @Override protected void deserializeData(RedoLogInput in) throws IOException {
+        }
+    }
+
+    @Test
+    public void playsEachMailboxInOrder() throws Exception {
+        ParallelRedoPlayer player = new ParallelRedoPlayer(false, true, false, false, 4, 10, false);
+        List<List<Integer>> logs = new ArrayList<List<Integer>>();
+        for (int mbox = 1; mbox <= 5; mbox++) {
+            logs.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        try {
+            for (int i = 0; i < 500; i++) {
+                for (int mbox = 1; mbox <= 5; mbox++) {
+                    player.playOp(new RecordingOp(mbox, logs.get(mbox - 1), i));
+                }
+            }
+        } finally {
+            player.shutdown();
+        }
+        for (List<Integer> log : logs) {
+            Assert.assertEquals(500, log.size());
+            for (int i = 0; i < 500; i++) {
+                Assert.assertEquals("op played out of order", i, log.get(i).intValue());
+            }
+        }
+    }
+
+    @Test
+    public void globalOpWaitsForQueuedOps() throws Exception {
+        ParallelRedoPlayer player = new ParallelRedoPlayer(false, true, false, false, 4, 10, false);
+        final List<Integer> seen = Collections.synchronizedList(new ArrayList<Integer>());
+        try {
+            for (int i = 0; i < 200; i++) {
+                player.playOp(new RecordingOp(1 + i % 3, new ArrayList<Integer>(), i) {
+                    @Override public void redo() throws Exception {
+                        Thread.sleep(1);
+                        super.redo();
+                    }
+                });
+            }
+            player.playOp(new RecordingOp(RedoableOp.UNKNOWN_ID, seen, 0) {
+                @Override public void redo() throws Exception {
+                    seen.add(played.get());
+                }
+            });
+        } finally {
+            player.shutdown();
+        }
+        Assert.assertEquals("barrier op ran before queued ops finished", 200, seen.get(0).intValue());
+    }
+}
@@ -17,6 +17,7 @@
 package com.zimbra.cs.service.mail;
 
 import java.util.List;
+import java.util.Map;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -39,6 +40,7 @@ import com.zimbra.cs.mailbox.MailboxManager;
 import com.zimbra.cs.mailbox.MailboxTestUtil;
 import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.util.ZTestWatchman;
+import com.zimbra.soap.SoapServlet;
 
 public class SearchTest {
     @Rule
@@ -140,6 +142,27 @@ public class SearchTest {
             hits.get(1).getAttributeLong(MailConstants.A_ID));
     }
 
+    @Test
+    public void encodeHits() throws Exception {
+        Account acct = Provisioning.getInstance().getAccountByName("test@zimbra.com");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        mbox.addMessage(null, MailboxTestUtil.generateMessage("first subject"), dopt, null);
+        mbox.addMessage(null, MailboxTestUtil.generateMessage("second subject"), dopt, null);
+
+        Element request = new Element.XMLElement(MailConstants.SEARCH_REQUEST).addAttribute(MailConstants.A_SEARCH_TYPES, "message");
+        request.addAttribute(MailConstants.E_QUERY, "subject", Element.Disposition.CONTENT);
+        Element response = new Search().handle(request, ServiceTestUtil.getRequestContext(acct));
+        Assert.assertEquals("2 hits", 2, response.listElements(MailConstants.E_MSG).size());
+
+        // hits encoded as they are produced must serialize exactly like the element tree
+        Map<String, Object> context = ServiceTestUtil.getRequestContext(acct);
+        context.put(SoapServlet.ENCODE_RESPONSE_INCREMENTALLY, Boolean.TRUE);
+        Element encoded = new Search().handle(request, context);
+        Assert.assertEquals("encoded hits", response.toString(), encoded.toString());
+        Assert.assertEquals("hits share one encoded element", 1, encoded.listElements(MailConstants.E_MSG).size());
+    }
+
     @After
     public void tearDown() {
         try {
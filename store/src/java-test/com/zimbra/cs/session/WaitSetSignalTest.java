@@ -0,0 +1,138 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.session;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Unit test for the signalling path of {@link WaitSetBase}.
+ */
+public final class WaitSetSignalTest {
+
+    private static final class TestWaitSet extends WaitSetBase {
+        private long seq = 1;
+
+        TestWaitSet() {
+            super("owner", "ws", EnumSet.of(MailItem.Type.MESSAGE));
+        }
+
+        void poll(WaitSetCallback cb) {
+            synchronized (this) {
+                mCb = cb;
+                trySendData();
+            }
+        }
+
+        @Override
+        public List<WaitSetError> doWait(WaitSetCallback cb, String lastKnownSeqNo, List<WaitSetAccount> addAccounts,
+                List<WaitSetAccount> updateAccounts) {
+            poll(cb);
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<WaitSetError> removeAccounts(List<String> removeAccounts) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        protected Map<String, WaitSetAccount> destroy() {
+            clearSignals();
+            return null;
+        }
+
+        @Override
+        protected int countSessions() {
+            return 0;
+        }
+
+        @Override
+        protected boolean cbSeqIsCurrent() {
+            return true;
+        }
+
+        @Override
+        protected String toNextSeqNo() {
+            return Long.toString(++seq);
+        }
+    }
+
+    private static PendingLocalModifications mods(MailItem.Type type) {
+        PendingLocalModifications pms = new PendingLocalModifications();
+        pms.changedTypes.add(type);
+        return pms;
+    }
+
+    @Test
+    public void coalesce() {
+        TestWaitSet ws = new TestWaitSet();
+        WaitSetSession session = new WaitSetSession(null, "a1", ws.getDefaultInterest(), null, null);
+        PendingLocalModifications first = mods(MailItem.Type.MESSAGE);
+        PendingLocalModifications second = mods(MailItem.Type.CONTACT);
+        ws.signal(session, first);
+        ws.signal(session, second);
+        ws.signal(new WaitSetSession(null, "a2", ws.getDefaultInterest(), null, null), null);
+
+        WaitSetCallback cb = new WaitSetCallback();
+        ws.poll(cb);
+        Assert.assertTrue(cb.completed);
+        Assert.assertEquals(2, cb.signalledAccounts.size());
+        PendingModifications<?> merged = cb.pendingModifications.get("a1");
+        Assert.assertEquals(EnumSet.of(MailItem.Type.MESSAGE, MailItem.Type.CONTACT), merged.changedTypes);
+        // the instances handed to the sessions are shared and must be left alone
+        Assert.assertEquals(EnumSet.of(MailItem.Type.MESSAGE), first.changedTypes);
+        Assert.assertEquals(EnumSet.of(MailItem.Type.CONTACT), second.changedTypes);
+    }
+
+    @Test
+    public void deliverToWaitingCallback() {
+        TestWaitSet ws = new TestWaitSet();
+        WaitSetCallback cb = new WaitSetCallback();
+        ws.poll(cb);
+        Assert.assertFalse(cb.completed);
+
+        PendingLocalModifications pms = mods(MailItem.Type.MESSAGE);
+        ws.signal(new WaitSetSession(null, "a1", ws.getDefaultInterest(), null, null), pms);
+        Assert.assertTrue(cb.completed);
+        Assert.assertEquals(Collections.singleton("a1"), cb.signalledAccounts);
+        Assert.assertSame(pms, cb.pendingModifications.get("a1"));
+        Assert.assertNull(ws.getCb());
+    }
+
+    @Test
+    public void unsignal() {
+        TestWaitSet ws = new TestWaitSet();
+        ws.signal(new WaitSetSession(null, "a1", ws.getDefaultInterest(), null, null), mods(MailItem.Type.MESSAGE));
+        ws.unsignal("a1");
+
+        WaitSetCallback cb = new WaitSetCallback();
+        ws.poll(cb);
+        Assert.assertFalse(cb.completed);
+
+        ws.signal(new WaitSetSession(null, "a1", ws.getDefaultInterest(), null, null), null);
+        Assert.assertTrue(cb.completed);
+        Assert.assertEquals(Collections.singleton("a1"), cb.signalledAccounts);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ActivityTrackerTest {
+
+    @Test
+    public void percentiles() {
+        ActivityTracker tracker = new ActivityTracker("test.csv");
+        for (int i = 1; i <= 100; i++) {
+            tracker.addStatNanos("GetMsgRequest", System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        tracker.addStat("NoOpRequest", System.currentTimeMillis());
+
+        List<String> lines = new ArrayList<String>(tracker.getDataLines());
+        Assert.assertEquals(2, lines.size());
+        String[] columns = null;
+        for (String line : lines) {
+            if (line.startsWith("GetMsgRequest,")) {
+                columns = line.split(",");
+            }
+        }
+        Assert.assertNotNull(columns);
+        Assert.assertEquals(tracker.getHeader().split(",").length, columns.length);
+        Assert.assertEquals("100", columns[1]);
+        assertWithin(50, Long.parseLong(columns[2]), 0.05);
+        assertWithin(50000, Long.parseLong(columns[3]), 0.05);
+        assertWithin(90000, Long.parseLong(columns[4]), 0.05);
+        assertWithin(99000, Long.parseLong(columns[5]), 0.05);
+        Assert.assertTrue(Long.parseLong(columns[7]) >= 100000);
+
+        ActivityTracker.CommandStats stats = tracker.getCommandStats().get("GetMsgRequest");
+        Assert.assertEquals(100, stats.getCount());
+        Assert.assertEquals(Long.parseLong(columns[5]), stats.getP99Micros());
+        Assert.assertTrue(tracker.getCommandStats().containsKey("NoOpRequest"));
+    }
+
+    @Test
+    public void resetAfterDump() {
+        ActivityTracker tracker = new ActivityTracker("test.csv");
+        tracker.addStat("SELECT", System.currentTimeMillis() - 5);
+        Assert.assertEquals(1, tracker.getDataLines().size());
+        Assert.assertTrue(tracker.getDataLines().isEmpty());
+        Assert.assertTrue(tracker.getCommandStats().isEmpty());
+    }
+
+    private static void assertWithin(long expected, long actual, double error) {
+        Assert.assertTrue("expected ~" + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected * error + 1);
+    }
+}
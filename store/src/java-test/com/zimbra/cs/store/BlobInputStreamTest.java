@@ -16,16 +16,20 @@
  */
 package com.zimbra.cs.store;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.zimbra.cs.stats.ZimbraPerf;
+
 public class BlobInputStreamTest {
     @Before
     public void startUp() {
@@ -90,4 +94,28 @@ public class BlobInputStreamTest {
         Assert.assertFalse("file is gone", file.exists());
         Assert.assertNull("can't create substream after delete", bis.newStream(0, CONTENT.length));
     }
+
+    @Test
+    public void map() throws Exception {
+        File file = createTempFile();
+        InputStream substream = new BlobInputStream(file, file.length()).newStream(2, 8);
+        Assert.assertEquals('2', substream.read());
+
+        ByteBuffer mapped = ((BlobInputStream) substream).map();
+        byte[] content = new byte[mapped.remaining()];
+        mapped.get(content);
+        Assert.assertEquals("mapped the rest of the substream", "34567", new String(content));
+        Assert.assertEquals("stream is at its end after mapping", -1, substream.read());
+
+        long zeroCopyBytes = ZimbraPerf.COUNTER_BLOB_ZERO_COPY_BYTES.getTotal();
+        BlobInputStream.recordSent(mapped);
+        Assert.assertEquals("counted once sent", zeroCopyBytes + 5, ZimbraPerf.COUNTER_BLOB_ZERO_COPY_BYTES.getTotal());
+    }
+
+    @Test
+    public void mapLargeBlobOnlyMapsLargeBlobs() throws Exception {
+        File file = createTempFile();
+        Assert.assertNull("small blob is copied", BlobInputStream.mapLargeBlob(new BlobInputStream(file, file.length())));
+        Assert.assertNull("other streams are copied", BlobInputStream.mapLargeBlob(new ByteArrayInputStream(CONTENT)));
+    }
 }
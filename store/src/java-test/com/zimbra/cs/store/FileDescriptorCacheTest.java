@@ -26,6 +26,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPOutputStream;
 
 import org.junit.After;
@@ -122,6 +123,76 @@ public class FileDescriptorCacheTest {
         assertEquals(2, fdc.getSize());
     }
 
+    @Test
+    public void evictsLeastRecentlyUsed()
+    throws Exception {
+        FileDescriptorCache fdc = new FileDescriptorCache(null);
+        fdc.setMaxSize(2);
+
+        File file1 = createUncompressed("one");
+        File file2 = createUncompressed("two");
+        File file3 = createUncompressed("three");
+        byte[] buf = new byte[10];
+
+        fdc.read(file1.getPath(), file1.length(), 0, buf, 0, buf.length);
+        fdc.read(file2.getPath(), file2.length(), 0, buf, 0, buf.length);
+        // touch file1 so that file2 is the least recently used
+        fdc.read(file1.getPath(), file1.length(), 0, buf, 0, buf.length);
+        fdc.read(file3.getPath(), file3.length(), 0, buf, 0, buf.length);
+
+        assertEquals(2, fdc.getSize());
+        assertTrue(fdc.contains(file1.getPath()));
+        assertFalse(fdc.contains(file2.getPath()));
+        assertTrue(fdc.contains(file3.getPath()));
+    }
+
+    @Test
+    public void concurrentReads()
+    throws Exception {
+        final FileDescriptorCache fdc = new FileDescriptorCache(null);
+        fdc.setMaxSize(4);
+        final List<File> files = Lists.newArrayList();
+        for (int i = 0; i < 8; i++) {
+            files.add(createUncompressed("content " + i));
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = Lists.newArrayList();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        byte[] buf = new byte[9];
+                        for (int i = 0; i < 1000; i++) {
+                            File file = files.get(i % files.size());
+                            int numRead = fdc.read(file.getPath(), file.length(), 0, buf, 0, buf.length);
+                            assertEquals("content " + (i % files.size()), new String(buf, 0, numRead));
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    private File createUncompressed(String content)
+    throws IOException {
+        File file = File.createTempFile(NAME_PREFIX, ".tmp");
+        tempFiles.add(file);
+        Files.write(content.getBytes(), file);
+        return file;
+    }
+
     private void write(File file, String content)
     throws IOException {
         OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
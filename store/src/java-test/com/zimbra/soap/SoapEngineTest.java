@@ -0,0 +1,203 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.soap;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dom4j.QName;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.HeaderConstants;
+import com.zimbra.common.soap.MailConstants;
+import com.zimbra.common.soap.SoapProtocol;
+import com.zimbra.common.soap.ZimbraNamespace;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.service.AuthProvider;
+import com.zimbra.cs.service.MockHttpServletRequest;
+import com.zimbra.cs.service.MockHttpServletResponse;
+import com.zimbra.cs.session.Session;
+import com.zimbra.cs.session.SessionCache;
+
+/**
+ * Unit test for {@link SoapEngine}.
+ */
+public final class SoapEngineTest {
+    private static final QName SLEEP_REQUEST = QName.get("SleepRequest", MailConstants.NAMESPACE);
+    private static final QName SLEEP_RESPONSE = QName.get("SleepResponse", MailConstants.NAMESPACE);
+    private static final QName ENCODE_REQUEST = QName.get("EncodeRequest", MailConstants.NAMESPACE);
+    private static final QName ENCODE_RESPONSE = QName.get("EncodeResponse", MailConstants.NAMESPACE);
+
+    private Account account;
+    private SoapEngine engine;
+
+    /**
+     * Sleeps for {@code ms} milliseconds, using the session like most mail handlers do.
+     */
+    private static final class SleepHandler extends DocumentHandler {
+        @Override
+        public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+            ZimbraSoapContext zsc = getZimbraSoapContext(context);
+            getSession(zsc);
+            long ms = request.getAttributeLong("ms", 0L);
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException e) {
+                throw ServiceException.INTERRUPTED(request.getName());
+            }
+            return zsc.createElement(SLEEP_RESPONSE).addAttribute("ms", ms);
+        }
+    }
+
+    /**
+     * Reports whether it was allowed to encode its response incrementally.
+     */
+    private static final class EncodeHandler extends DocumentHandler {
+        @Override
+        public boolean encodesResponseIncrementally() {
+            return true;
+        }
+
+        @Override
+        public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+            return getZimbraSoapContext(context).createElement(ENCODE_RESPONSE).addAttribute("encode",
+                    context.containsKey(SoapServlet.ENCODE_RESPONSE_INCREMENTALLY));
+        }
+    }
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, "5d4f9a5e-1e5c-4c0e-8f3b-2f6e2b7c9d01");
+        account = Provisioning.getInstance().createAccount("batch@zimbra.com", "secret", attrs);
+        engine = new MockSoapEngine(new DocumentService() {
+            @Override
+            public void registerHandlers(DocumentDispatcher dispatcher) {
+                dispatcher.registerHandler(SLEEP_REQUEST, new SleepHandler());
+                dispatcher.registerHandler(ENCODE_REQUEST, new EncodeHandler());
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        LC.soap_batch_parallel_timeout_ms.setDefault(30000L);
+        LC.soap_response_incremental_encoding_enabled.setDefault(false);
+        MailboxTestUtil.clearData();
+    }
+
+    private Element dispatchParallelBatch(long... sleeps) throws Exception {
+        Element batch = new Element.XMLElement(ZimbraNamespace.E_BATCH_REQUEST)
+                .addAttribute(ZimbraNamespace.A_EXECUTION, ZimbraNamespace.EXECUTION_PARALLEL)
+                .addAttribute(ZimbraNamespace.A_ONERROR, "continue");
+        for (int i = 0; i < sleeps.length; i++) {
+            batch.addNonUniqueElement(SLEEP_REQUEST).addAttribute("ms", sleeps[i])
+                    .addAttribute(SoapEngine.A_REQUEST_CORRELATOR, i);
+        }
+        return dispatch(batch);
+    }
+
+    private Element dispatch(Element request) throws Exception {
+        Element ctxt = new Element.XMLElement(HeaderConstants.CONTEXT);
+        ctxt.addUniqueElement(HeaderConstants.E_AUTH_TOKEN).setText(AuthProvider.getAuthToken(account).getEncoded());
+        ctxt.addUniqueElement(HeaderConstants.E_SESSION);
+        byte[] envelope = SoapProtocol.Soap12.soapEnvelope(request, ctxt).toString().getBytes(StandardCharsets.UTF_8);
+
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put(SoapServlet.SERVLET_REQUEST, new MockHttpServletRequest("test".getBytes(StandardCharsets.UTF_8),
+                new URL("http://localhost:7070/service/soap/" + request.getName()), ""));
+        context.put(SoapServlet.SERVLET_RESPONSE, new MockHttpServletResponse());
+        return engine.dispatch("/service/soap", envelope, context);
+    }
+
+    private int countSoapSessions() {
+        Collection<Session> sessions = SessionCache.getSoapSessions(account.getId());
+        return sessions == null ? 0 : sessions.size();
+    }
+
+    @Test
+    public void parallelBatchSharesOneSession() throws Exception {
+        int sessions = countSoapSessions();
+        Element response = dispatchParallelBatch(50L, 0L, 20L, 0L);
+
+        Element session = SoapProtocol.Soap12.getHeader(response, HeaderConstants.CONTEXT)
+                .getOptionalElement(HeaderConstants.E_SESSION);
+        Assert.assertNotNull("session header", session);
+        Assert.assertEquals(sessions + 1, countSoapSessions());
+        Assert.assertNotNull(SessionCache.lookup(session.getAttribute(HeaderConstants.A_ID), account.getId()));
+    }
+
+    @Test
+    public void parallelBatchKeepsRequestOrder() throws Exception {
+        Element response = dispatchParallelBatch(200L, 100L, 0L);
+
+        List<Element> responses = SoapProtocol.Soap12.getBodyElement(response).listElements();
+        Assert.assertEquals(3, responses.size());
+        for (int i = 0; i < responses.size(); i++) {
+            Assert.assertEquals(SLEEP_RESPONSE.getName(), responses.get(i).getName());
+            Assert.assertEquals(String.valueOf(i), responses.get(i).getAttribute(SoapEngine.A_REQUEST_CORRELATOR));
+        }
+    }
+
+    @Test
+    public void parallelBatchTimesOut() throws Exception {
+        LC.soap_batch_parallel_timeout_ms.setDefault(200L);
+        Element response = dispatchParallelBatch(0L, 2000L, 0L);
+
+        List<Element> responses = SoapProtocol.Soap12.getBodyElement(response).listElements();
+        Assert.assertEquals(3, responses.size());
+        Assert.assertEquals(SLEEP_RESPONSE.getName(), responses.get(0).getName());
+        Assert.assertTrue(SoapProtocol.Soap12.isFault(responses.get(1)));
+        Assert.assertEquals("1", responses.get(1).getAttribute(SoapEngine.A_REQUEST_CORRELATOR));
+        Assert.assertEquals(SLEEP_RESPONSE.getName(), responses.get(2).getName());
+    }
+
+    @Test
+    public void encodesTopLevelResponseIncrementally() throws Exception {
+        LC.soap_response_incremental_encoding_enabled.setDefault(true);
+        Element response = SoapProtocol.Soap12.getBodyElement(dispatch(new Element.XMLElement(ENCODE_REQUEST)));
+        Assert.assertTrue("top-level request", response.getAttributeBool("encode"));
+
+        Element batch = new Element.XMLElement(ZimbraNamespace.E_BATCH_REQUEST);
+        batch.addNonUniqueElement(ENCODE_REQUEST);
+        response = SoapProtocol.Soap12.getBodyElement(dispatch(batch)).listElements().get(0);
+        Assert.assertFalse("batched request", response.getAttributeBool("encode"));
+
+        LC.soap_response_incremental_encoding_enabled.setDefault(false);
+        response = SoapProtocol.Soap12.getBodyElement(dispatch(new Element.XMLElement(ENCODE_REQUEST)));
+        Assert.assertFalse("disabled", response.getAttributeBool("encode"));
+    }
+}
@@ -23,7 +23,7 @@
  */
 package com.zimbra.cs.account.cache;
 
-import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.lang.StringUtils;
 
@@ -33,42 +33,41 @@ import com.zimbra.common.stats.HitRateCounter;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
 
+/**
+ * Account cache keyed by id, name, alias, foreign principal and old mail address.  As in {@link NamedEntryCache},
+ * lookups are lock-free and mutations are serialized on the cache.
+ */
 public class AccountCache implements IAccountCache {
 
-    private Map<String, CacheEntry> mNameCache;
-    private Map<String, CacheEntry> mIdCache;
-    private Map<String, CacheEntry> mAliasCache;
-    private Map<String, CacheEntry> mForeignPrincipalCache;
-    private Map<String, CacheEntry> mOldNameCache;
-    private Counter mHitRate = new HitRateCounter();
-
-    private long mRefreshTTL;
-
-    static class CacheEntry {
-        long mLifetime;
-        Account mEntry;
-
-        CacheEntry(Account entry, long expires) {
-            mEntry = entry;
-            mLifetime = System.currentTimeMillis() + expires;
-        }
+    private final ConcurrentMap<String, TimedEntry<Account>> mNameCache;
+    private final ConcurrentMap<String, TimedEntry<Account>> mIdCache;
+    private final ConcurrentMap<String, TimedEntry<Account>> mAliasCache;
+    private final ConcurrentMap<String, TimedEntry<Account>> mForeignPrincipalCache;
+    private final ConcurrentMap<String, TimedEntry<Account>> mOldNameCache;
+    private final Counter mHitRate = new HitRateCounter();
 
-        boolean isStale() {
-            return mLifetime < System.currentTimeMillis();
-        }
-    }
+    private final long mRefreshTTL;
+    private final EntryRefresher mRefresher;
 
     /**
      * @param maxItems
      * @param refreshTTL
      */
     public AccountCache(int maxItems, long refreshTTL) {
-        mNameCache = MapUtil.newLruMap(maxItems);
-        mIdCache = MapUtil.newLruMap(maxItems);
-        mAliasCache = MapUtil.newLruMap(maxItems);
-        mForeignPrincipalCache = MapUtil.newLruMap(maxItems);
-        mOldNameCache = MapUtil.newLruMap(maxItems);
+        this(maxItems, refreshTTL, null);
+    }
+
+    /**
+     * @param refresher reloads entries in the background before they expire, or {@code null} to let them expire
+     */
+    public AccountCache(int maxItems, long refreshTTL, EntryRefresher refresher) {
+        mNameCache = MapUtil.newConcurrentLruMap(maxItems);
+        mIdCache = MapUtil.newConcurrentLruMap(maxItems);
+        mAliasCache = MapUtil.newConcurrentLruMap(maxItems);
+        mForeignPrincipalCache = MapUtil.newConcurrentLruMap(maxItems);
+        mOldNameCache = MapUtil.newConcurrentLruMap(maxItems);
         mRefreshTTL = refreshTTL;
+        mRefresher = refresher;
     }
 
     @Override
@@ -83,8 +82,8 @@ public class AccountCache implements IAccountCache {
     @Override
     public synchronized void remove(Account entry) {
         if (entry != null) {
-            mNameCache.remove(entry.getName());
-            mIdCache.remove(entry.getId());
+            removeKey(mNameCache, entry.getName());
+            removeKey(mIdCache, entry.getId());
 
             String aliases[] = entry.getMultiAttr(Provisioning.A_zimbraMailAlias);
             for (String alias : aliases) {
@@ -95,15 +94,30 @@ public class AccountCache implements IAccountCache {
             for (String fp : fps) {
                 mForeignPrincipalCache.remove(fp);
             }
-            mOldNameCache.remove(entry.getOldMailAddress());
+            removeKey(mOldNameCache, entry.getOldMailAddress());
+        }
+    }
+
+    private static void removeKey(ConcurrentMap<String, TimedEntry<Account>> cache, String key) {
+        if (key != null) {
+            cache.remove(key);
+        }
+    }
+
+    /** Removes a stale entry unless it has already been replaced by a fresher copy. */
+    private synchronized void remove(TimedEntry<Account> ce) {
+        if (mIdCache.get(ce.mEntry.getId()) == ce) {
+            remove(ce.mEntry);
         }
     }
 
     @Override
     public synchronized void put(Account entry) {
         if (entry != null) {
-            CacheEntry cacheEntry = new CacheEntry(entry, mRefreshTTL);
-            mNameCache.put(entry.getName(), cacheEntry);
+            TimedEntry<Account> cacheEntry = new TimedEntry<Account>(entry, mRefreshTTL);
+            if (entry.getName() != null) {
+                mNameCache.put(entry.getName(), cacheEntry);
+            }
             mIdCache.put(entry.getId(), cacheEntry);
 
             String aliases[] = entry.getMultiAttr(Provisioning.A_zimbraMailAlias);
@@ -127,14 +141,17 @@ public class AccountCache implements IAccountCache {
         put(entry);
     }
 
-    private Account get(String key, Map cache) {
-        CacheEntry ce = (CacheEntry) cache.get(key);
+    private Account get(String key, ConcurrentMap<String, TimedEntry<Account>> cache) {
+        TimedEntry<Account> ce = cache.get(key);
         if (ce != null) {
             if (mRefreshTTL != 0 && ce.isStale()) {
-                remove(ce.mEntry);
+                remove(ce);
                 mHitRate.increment(0);
                 return null;
             } else {
+                if (mRefreshTTL != 0 && mRefresher != null && ce.isRefreshDue()) {
+                    mRefresher.refreshAsync(ce);
+                }
                 mHitRate.increment(100);
                 return ce.mEntry;
             }
@@ -145,25 +162,30 @@ public class AccountCache implements IAccountCache {
     }
 
     @Override
-    public synchronized Account getById(String key) {
+    public Account getById(String key) {
         return get(key, mIdCache);
     }
 
     @Override
-    public synchronized Account getByName(String key) {
-        Account acct = get(key.toLowerCase(), mNameCache) != null ? get(key.toLowerCase(), mNameCache)
-                : get(key.toLowerCase(), mAliasCache) != null ? get(key.toLowerCase(), mAliasCache)
-                        : get(key.toLowerCase(), mOldNameCache);
+    public Account getByName(String key) {
+        String name = key.toLowerCase();
+        Account acct = get(name, mNameCache);
+        if (acct == null) {
+            acct = get(name, mAliasCache);
+        }
+        if (acct == null) {
+            acct = get(name, mOldNameCache);
+        }
         return acct;
     }
 
     @Override
-    public synchronized Account getByForeignPrincipal(String key) {
+    public Account getByForeignPrincipal(String key) {
         return get(key, mForeignPrincipalCache);
     }
 
     @Override
-    public synchronized int getSize() {
+    public int getSize() {
         return mIdCache.size();
     }
 
@@ -171,7 +193,7 @@ public class AccountCache implements IAccountCache {
      * Returns the cache hit rate as a value between 0 and 100.
      */
     @Override
-    public synchronized double getHitRate() {
+    public double getHitRate() {
         return mHitRate.getAverage();
     }
 }
@@ -33,17 +33,21 @@ import com.zimbra.cs.account.Domain;
 import com.zimbra.cs.account.Provisioning;
 
 /**
+ * Domain cache with a negative cache for domains known not to exist.  As in {@link NamedEntryCache}, lookups are
+ * lock-free and mutations are serialized on the cache.
+ *
  * @author schemers
  **/
 public class DomainCache implements IDomainCache {
     
-    private Map mNameCache;
-    private Map mIdCache;
-    private Map mVirtualHostnameCache;
-    private Map mForeignNameCache;
-    private Map mKrb5RealmCache;
+    private Map<String, TimedEntry<Domain>> mNameCache;
+    private Map<String, TimedEntry<Domain>> mIdCache;
+    private Map<String, TimedEntry<Domain>> mVirtualHostnameCache;
+    private Map<String, TimedEntry<Domain>> mForeignNameCache;
+    private Map<String, TimedEntry<Domain>> mKrb5RealmCache;
     
     private long mRefreshTTL;
+    private final EntryRefresher mRefresher;
     private Counter mHitRate = new HitRateCounter();
 
     
@@ -61,19 +65,6 @@ public class DomainCache implements IDomainCache {
      */
     private NegativeCache mNegativeCache;
 
-    static class CacheEntry {
-        long mLifetime;
-        Domain mEntry;
-        CacheEntry(Domain entry, long expires) {
-            mEntry = entry;
-            mLifetime = System.currentTimeMillis() + expires;
-        }
-        
-        boolean isStale() {
-            return mLifetime < System.currentTimeMillis();
-        }
-    }
-    
     public static class NonExistingDomain extends Domain {
         private NonExistingDomain() {
             super(null, null, null, null, null);
@@ -82,11 +73,11 @@ public class DomainCache implements IDomainCache {
     
 
     class NegativeCache {
-        private Map mNegativeNameCache;
-        private Map mNegativeIdCache;
-        private Map mNegativeVirtualHostnameCache;
-        private Map mNegativeForeignNameCache;
-        private Map mNegativeKrb5RealmCache;
+        private Map<String, NonExistingDomain> mNegativeNameCache;
+        private Map<String, NonExistingDomain> mNegativeIdCache;
+        private Map<String, NonExistingDomain> mNegativeVirtualHostnameCache;
+        private Map<String, NonExistingDomain> mNegativeForeignNameCache;
+        private Map<String, NonExistingDomain> mNegativeKrb5RealmCache;
 
         private long mNERefreshTTL;
         
@@ -97,11 +88,11 @@ public class DomainCache implements IDomainCache {
         private boolean mEnabled = true;
         
         private NegativeCache(int maxItems, long refreshTTL) {
-            mNegativeNameCache = MapUtil.newLruMap(maxItems);
-            mNegativeIdCache = MapUtil.newLruMap(maxItems);
-            mNegativeVirtualHostnameCache = MapUtil.newLruMap(maxItems);  
-            mNegativeForeignNameCache = MapUtil.newLruMap(maxItems);  
-            mNegativeKrb5RealmCache = MapUtil.newLruMap(maxItems);   
+            mNegativeNameCache = MapUtil.newConcurrentLruMap(maxItems);
+            mNegativeIdCache = MapUtil.newConcurrentLruMap(maxItems);
+            mNegativeVirtualHostnameCache = MapUtil.newConcurrentLruMap(maxItems);  
+            mNegativeForeignNameCache = MapUtil.newConcurrentLruMap(maxItems);  
+            mNegativeKrb5RealmCache = MapUtil.newConcurrentLruMap(maxItems);   
             mNERefreshTTL = refreshTTL;
         }
         
@@ -136,15 +127,15 @@ public class DomainCache implements IDomainCache {
             
             switch (domainBy) {
             case name:
-                return (NonExistingDomain)mNegativeNameCache.get(key);
+                return mNegativeNameCache.get(key);
             case id:
-                return (NonExistingDomain)mNegativeIdCache.get(key);
+                return mNegativeIdCache.get(key);
             case virtualHostname:
-                return (NonExistingDomain)mNegativeVirtualHostnameCache.get(key);
+                return mNegativeVirtualHostnameCache.get(key);
             case foreignName:
-                return (NonExistingDomain)mNegativeForeignNameCache.get(key);
+                return mNegativeForeignNameCache.get(key);
             case krb5Realm:
-                return (NonExistingDomain)mNegativeKrb5RealmCache.get(key);
+                return mNegativeKrb5RealmCache.get(key);
             }
             return null;
         }
@@ -204,12 +195,21 @@ public class DomainCache implements IDomainCache {
  * @param refreshTTL
  */
     public DomainCache(int maxItems, long refreshTTL, int maxItemsNegative, long refreshTTLNegative) {
-        mNameCache = MapUtil.newLruMap(maxItems);
-        mIdCache = MapUtil.newLruMap(maxItems);
-        mVirtualHostnameCache = MapUtil.newLruMap(maxItems);  
-        mForeignNameCache = MapUtil.newLruMap(maxItems); 
-        mKrb5RealmCache = MapUtil.newLruMap(maxItems);   
+        this(maxItems, refreshTTL, maxItemsNegative, refreshTTLNegative, null);
+    }
+
+    /**
+     * @param refresher reloads entries in the background before they expire, or {@code null} to let them expire
+     */
+    public DomainCache(int maxItems, long refreshTTL, int maxItemsNegative, long refreshTTLNegative,
+            EntryRefresher refresher) {
+        mNameCache = MapUtil.newConcurrentLruMap(maxItems);
+        mIdCache = MapUtil.newConcurrentLruMap(maxItems);
+        mVirtualHostnameCache = MapUtil.newConcurrentLruMap(maxItems);  
+        mForeignNameCache = MapUtil.newConcurrentLruMap(maxItems); 
+        mKrb5RealmCache = MapUtil.newConcurrentLruMap(maxItems);   
         mRefreshTTL = refreshTTL;
+        mRefresher = refresher;
         
         mNegativeCache = new NegativeCache(maxItemsNegative, refreshTTLNegative);
     }
@@ -245,6 +245,13 @@ public class DomainCache implements IDomainCache {
         }
     }
     
+    /** Removes a stale entry unless it has already been replaced by a fresher copy. */
+    private synchronized void remove(TimedEntry<Domain> ce) {
+        if (mIdCache.get(ce.mEntry.getId()) == ce) {
+            remove(ce.mEntry);
+        }
+    }
+
     @Override
     public synchronized void replace(Domain entry) {
         remove(entry);
@@ -262,7 +269,7 @@ public class DomainCache implements IDomainCache {
             // clean it from the non-existing cache first
             mNegativeCache.clean(domainBy, key, entry);
             
-            CacheEntry cacheEntry = new CacheEntry(entry, mRefreshTTL);
+            TimedEntry<Domain> cacheEntry = new TimedEntry<Domain>(entry, mRefreshTTL);
             mNameCache.put(entry.getName(), cacheEntry);
             mIdCache.put(entry.getId(), cacheEntry);
             
@@ -282,14 +289,17 @@ public class DomainCache implements IDomainCache {
         }
     }
 
-    private Domain get(String key, Map cache) {
-        CacheEntry ce = (CacheEntry) cache.get(key);
+    private Domain get(String key, Map<String, TimedEntry<Domain>> cache) {
+        TimedEntry<Domain> ce = cache.get(key);
         if (ce != null) {
             if (mRefreshTTL != 0 && ce.isStale()) {
-                remove(ce.mEntry);
+                remove(ce);
                 mHitRate.increment(0);
                 return null;
             } else {
+                if (mRefreshTTL != 0 && mRefresher != null && ce.isRefreshDue()) {
+                    mRefresher.refreshAsync(ce);
+                }
                 mHitRate.increment(100);
                 return ce.mEntry;
             }
@@ -300,7 +310,7 @@ public class DomainCache implements IDomainCache {
     }
     
     @Override
-    public synchronized Domain getById(String key, GetFromDomainCacheOption option) {
+    public Domain getById(String key, GetFromDomainCacheOption option) {
         
         switch (option) {
         case POSITIVE:
@@ -318,7 +328,7 @@ public class DomainCache implements IDomainCache {
     }
     
     @Override
-    public synchronized Domain getByName(String key, GetFromDomainCacheOption option) {
+    public Domain getByName(String key, GetFromDomainCacheOption option) {
         
         switch (option) {
         case POSITIVE:
@@ -336,7 +346,7 @@ public class DomainCache implements IDomainCache {
     }
     
     @Override
-    public synchronized Domain getByVirtualHostname(String key, GetFromDomainCacheOption option) {
+    public Domain getByVirtualHostname(String key, GetFromDomainCacheOption option) {
         
         switch (option) {
         case POSITIVE:
@@ -354,7 +364,7 @@ public class DomainCache implements IDomainCache {
     }
     
     @Override
-    public synchronized Domain getByForeignName(String key, GetFromDomainCacheOption option) {
+    public Domain getByForeignName(String key, GetFromDomainCacheOption option) {
         
         switch (option) {
         case POSITIVE:
@@ -372,7 +382,7 @@ public class DomainCache implements IDomainCache {
     }
     
     @Override
-    public synchronized Domain getByKrb5Realm(String key, GetFromDomainCacheOption option) {
+    public Domain getByKrb5Realm(String key, GetFromDomainCacheOption option) {
         
         switch (option) {
         case POSITIVE:
@@ -390,7 +400,7 @@ public class DomainCache implements IDomainCache {
     }
 
     @Override
-    public synchronized int getSize() {
+    public int getSize() {
         return mIdCache.size();
     }
     
@@ -398,7 +408,7 @@ public class DomainCache implements IDomainCache {
      * Returns the cache hit rate as a value between 0 and 100.<br />
      */
     @Override
-    public synchronized double getHitRate() {
+    public double getHitRate() {
     	 return mHitRate.getAverage();
     }
 }
@@ -0,0 +1,83 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account.cache;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.NamedEntry;
+
+/**
+ * Reloads entries of the LDAP entry caches in the background once they are past half their TTL, so that a lookup
+ * keeps returning the cached copy while it is refreshed instead of blocking on LDAP when it expires.  The reload is
+ * expected to put the refreshed entry back into its cache, which starts a new TTL.  A failed reload is retried by a
+ * later lookup after a delay that doubles with each consecutive failure.
+ */
+public abstract class EntryRefresher {
+
+    private static final long RETRY_DELAY = Math.max(LC.ldap_cache_refresh_retry_delay_ms.longValue(), 1L);
+
+    private static final ThreadPoolExecutor EXECUTOR;
+    static {
+        int threads = Math.max(LC.ldap_cache_refresh_threads.intValue(), 1);
+        EXECUTOR = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(1000),
+                new ThreadFactoryBuilder().setNameFormat("LdapCacheRefresh-%d").setDaemon(true).build());
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Reloads the entry from LDAP and puts it back into its cache.
+     */
+    protected abstract void reload(NamedEntry entry) throws ServiceException;
+
+    /**
+     * Schedules a background refresh of an entry unless one is already in progress or backing off.  If the refresh
+     * can't be scheduled, the entry simply expires at the end of its TTL.
+     */
+    void refreshAsync(final TimedEntry<?> cached) {
+        if (!cached.startRefresh()) {
+            return;
+        }
+        try {
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reload(cached.mEntry);
+                    } catch (ServiceException | RuntimeException e) {
+                        ZimbraLog.account.debug("unable to refresh cached entry %s", cached.mEntry.getName(), e);
+                        cached.refreshFailed(RETRY_DELAY);
+                    } finally {
+                        // a successful reload replaces this entry in the cache; after a failure, a later lookup
+                        // tries again once the retry delay has passed
+                        cached.endRefresh();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            cached.refreshFailed(RETRY_DELAY);
+            cached.endRefresh();
+        }
+    }
+}
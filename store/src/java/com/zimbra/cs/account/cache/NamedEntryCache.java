@@ -24,7 +24,7 @@
 package com.zimbra.cs.account.cache;
 
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 import com.zimbra.common.util.MapUtil;
 import com.zimbra.common.stats.Counter;
@@ -32,38 +32,38 @@ import com.zimbra.common.stats.HitRateCounter;
 import com.zimbra.cs.account.NamedEntry;
 
 /**
+ * Lookups don't take any lock: the maps are concurrent LRUs and the hit rate counter is striped.  Mutations are
+ * serialized on the cache so that an entry's name and id mappings change together.  If an {@link EntryRefresher} is
+ * given, an entry past half its TTL is reloaded in the background while it keeps being served, so that it is
+ * replaced before it expires.
+ *
  * @author schemers
  **/
 public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E> {
     
-    private Map mNameCache;
-    private Map mIdCache;
+    private final ConcurrentMap<String, TimedEntry<E>> mNameCache;
+    private final ConcurrentMap<String, TimedEntry<E>> mIdCache;
     
-    private long mRefreshTTL;
-    private Counter mHitRate = new HitRateCounter();
+    private final long mRefreshTTL;
+    private final EntryRefresher mRefresher;
+    private final Counter mHitRate = new HitRateCounter();
    
-
-    static class CacheEntry<E extends NamedEntry> {
-        long mLifetime;
-        E mEntry;
-        CacheEntry(E entry, long expires) {
-            mEntry = entry;
-            mLifetime = System.currentTimeMillis() + expires;
-        }
-        
-        boolean isStale() {
-            return mLifetime < System.currentTimeMillis();
-        }
-    }
-    
 /**
  * @param maxItems
  * @param refreshTTL
  */
     public NamedEntryCache(int maxItems, long refreshTTL) {
-        mNameCache = MapUtil.newLruMap(maxItems);
-        mIdCache = MapUtil.newLruMap(maxItems);
+        this(maxItems, refreshTTL, null);
+    }
+
+    /**
+     * @param refresher reloads entries in the background before they expire, or {@code null} to let them expire
+     */
+    public NamedEntryCache(int maxItems, long refreshTTL, EntryRefresher refresher) {
+        mNameCache = MapUtil.newConcurrentLruMap(maxItems);
+        mIdCache = MapUtil.newConcurrentLruMap(maxItems);
         mRefreshTTL = refreshTTL;
+        mRefresher = refresher;
     }
 
     @Override
@@ -74,24 +74,36 @@ public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E
 
     @Override
     public synchronized void remove(String name, String id) {
-        mNameCache.remove(name);
-        mIdCache.remove(id);
+        if (name != null)
+            mNameCache.remove(name);
+        if (id != null)
+            mIdCache.remove(id);
     }
     
     @Override
     public synchronized void remove(E entry) {
         if (entry != null) {
-            mNameCache.remove(entry.getName());
-            mIdCache.remove(entry.getId());
+            remove(entry.getName(), entry.getId());
         }
     }
+
+    /** Removes a stale entry unless it has already been replaced. */
+    private synchronized void remove(TimedEntry<E> ce) {
+        E entry = ce.mEntry;
+        if (entry.getName() != null)
+            mNameCache.remove(entry.getName(), ce);
+        if (entry.getId() != null)
+            mIdCache.remove(entry.getId(), ce);
+    }
     
     @Override
     public synchronized void put(E entry) {
         if (entry != null) {
-            CacheEntry<E> cacheEntry = new CacheEntry<E>(entry, mRefreshTTL);
-            mNameCache.put(entry.getName(), cacheEntry);
-            mIdCache.put(entry.getId(), cacheEntry);
+            TimedEntry<E> cacheEntry = new TimedEntry<E>(entry, mRefreshTTL);
+            if (entry.getName() != null)
+                mNameCache.put(entry.getName(), cacheEntry);
+            if (entry.getId() != null)
+                mIdCache.put(entry.getId(), cacheEntry);
         }
     }
     
@@ -110,15 +122,17 @@ public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private E get(String key, Map cache) {
-        CacheEntry<E> ce = (CacheEntry<E>) cache.get(key);
+    private E get(String key, ConcurrentMap<String, TimedEntry<E>> cache) {
+        TimedEntry<E> ce = key == null ? null : cache.get(key);
         if (ce != null) {
             if (mRefreshTTL != 0 && ce.isStale()) {
-                remove(ce.mEntry);
+                remove(ce);
                 mHitRate.increment(0);
                 return null;
             } else {
+                if (mRefreshTTL != 0 && mRefresher != null && ce.isRefreshDue()) {
+                    mRefresher.refreshAsync(ce);
+                }
                 mHitRate.increment(100);
                 return ce.mEntry;
             }
@@ -129,17 +143,17 @@ public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E
     }
     
     @Override
-    public synchronized E getById(String key) {
+    public E getById(String key) {
         return get(key, mIdCache);
     }
     
     @Override
-    public synchronized E getByName(String key) {
+    public E getByName(String key) {
         return get(key.toLowerCase(), mNameCache);
     }
     
     @Override
-    public synchronized int getSize() {
+    public int getSize() {
         return mIdCache.size();
     }
     
@@ -148,7 +162,7 @@ public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E
      * Returns the cache hit rate as a value between 0 and 100.
      */
     @Override
-    public synchronized double getHitRate() {
+    public double getHitRate() {
         return mHitRate.getAverage();
     }
 }
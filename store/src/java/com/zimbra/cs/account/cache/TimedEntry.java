@@ -0,0 +1,71 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account.cache;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.zimbra.cs.account.NamedEntry;
+
+/**
+ * A cached LDAP entry and the time after which it is stale.
+ */
+final class TimedEntry<E extends NamedEntry> {
+    final E mEntry;
+    private final long mCreated;
+    private final long mLifetime;
+    private final AtomicBoolean mRefreshing = new AtomicBoolean();
+    // only written by the thread holding mRefreshing
+    private int mFailures;
+    private volatile long mRetryAfter;
+
+    TimedEntry(E entry, long expires) {
+        mEntry = entry;
+        mCreated = System.currentTimeMillis();
+        mLifetime = mCreated + expires;
+    }
+
+    boolean isStale() {
+        return mLifetime < System.currentTimeMillis();
+    }
+
+    /**
+     * Returns true once the entry is past half its TTL, from which point lookups reload it in the background.  The
+     * entry is refreshed ahead of its expiry rather than after it, so it is never served past its TTL; if no refresh
+     * lands in time, it expires as usual.
+     */
+    boolean isRefreshDue() {
+        return mCreated + (mLifetime - mCreated) / 2 < System.currentTimeMillis();
+    }
+
+    /**
+     * Returns true if the caller won the right to refresh this entry; false while another refresh is running or
+     * while retries are backing off after a failed one.
+     */
+    boolean startRefresh() {
+        return mRetryAfter <= System.currentTimeMillis() && mRefreshing.compareAndSet(false, true);
+    }
+
+    /** Holds off the next refresh after a failure, doubling the delay with each consecutive failure. */
+    void refreshFailed(long retryDelay) {
+        mFailures++;
+        mRetryAfter = System.currentTimeMillis() + (retryDelay << Math.min(mFailures - 1, 10));
+    }
+
+    void endRefresh() {
+        mRefreshing.set(false);
+    }
+}
@@ -37,6 +37,7 @@ import com.zimbra.cs.account.XMPPComponent;
 import com.zimbra.cs.account.cache.AccountCache;
 import com.zimbra.cs.account.cache.DomainCache;
 import com.zimbra.cs.account.cache.DomainCache.GetFromDomainCacheOption;
+import com.zimbra.cs.account.cache.EntryRefresher;
 import com.zimbra.cs.account.cache.IAccountCache;
 import com.zimbra.cs.account.cache.IDomainCache;
 import com.zimbra.cs.account.cache.IMimeTypeCache;
@@ -69,44 +70,24 @@ abstract class LdapCache {
      */
     static class LRUMapCache extends LdapCache {
 
-        private final IAccountCache accountCache =
-            new AccountCache(
-                    LC.ldap_cache_account_maxsize.intValue(),
-                    LC.ldap_cache_account_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+        private final IAccountCache accountCache;
 
-        private final INamedEntryCache<LdapCos> cosCache =
-            new NamedEntryCache<LdapCos>(
-                    LC.ldap_cache_cos_maxsize.intValue(),
-                    LC.ldap_cache_cos_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+        private final INamedEntryCache<LdapCos> cosCache;
 
         private final INamedEntryCache<ShareLocator> shareLocatorCache =
                 new NamedEntryCache<ShareLocator>(
                         LC.ldap_cache_share_locator_maxsize.intValue(),
                         LC.ldap_cache_share_locator_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
 
-        private final IDomainCache domainCache =
-            new DomainCache(
-                    LC.ldap_cache_domain_maxsize.intValue(),
-                    LC.ldap_cache_domain_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
-                    LC.ldap_cache_external_domain_maxsize.intValue(),
-                    LC.ldap_cache_external_domain_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+        private final IDomainCache domainCache;
 
         private final IMimeTypeCache mimeTypeCache = new LdapMimeTypeCache();
 
-        private final INamedEntryCache<Server> serverCache =
-            new NamedEntryCache<Server>(
-                    LC.ldap_cache_server_maxsize.intValue(),
-                    LC.ldap_cache_server_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+        private final INamedEntryCache<Server> serverCache;
 
-        private final INamedEntryCache<UCService> ucServiceCache =
-            new NamedEntryCache<UCService>(
-                    LC.ldap_cache_ucservice_maxsize.intValue(),
-                    LC.ldap_cache_ucservice_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+        private final INamedEntryCache<UCService> ucServiceCache;
 
-        private final INamedEntryCache<LdapZimlet> zimletCache =
-            new NamedEntryCache<LdapZimlet>(
-                    LC.ldap_cache_zimlet_maxsize.intValue(),
-                    LC.ldap_cache_zimlet_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+        private final INamedEntryCache<LdapZimlet> zimletCache;
 
 
         private final INamedEntryCache<Group> groupCache =
@@ -114,15 +95,42 @@ abstract class LdapCache {
                     LC.ldap_cache_group_maxsize.intValue(),
                     LC.ldap_cache_group_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
 
-        private final INamedEntryCache<XMPPComponent> xmppComponentCache =
-            new NamedEntryCache<XMPPComponent>(
-                    LC.ldap_cache_xmppcomponent_maxsize.intValue(),
-                    LC.ldap_cache_xmppcomponent_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+        private final INamedEntryCache<XMPPComponent> xmppComponentCache;
+
+        private final INamedEntryCache<AlwaysOnCluster> alwaysOnClusterCache;
 
-        private final INamedEntryCache<AlwaysOnCluster> alwaysOnClusterCache =
-                new NamedEntryCache<AlwaysOnCluster>(
-                        LC.ldap_cache_alwaysoncluster_maxsize.intValue(),
-                        LC.ldap_cache_alwaysoncluster_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+        /**
+         * @param refresher reloads entries in the background before they expire, or {@code null} to let them expire.
+         *        Group and share locator entries are never refreshed in place, they just expire.
+         */
+        LRUMapCache(EntryRefresher refresher) {
+            accountCache = new AccountCache(
+                    LC.ldap_cache_account_maxsize.intValue(),
+                    LC.ldap_cache_account_maxage.intValue() * Constants.MILLIS_PER_MINUTE, refresher);
+            cosCache = new NamedEntryCache<LdapCos>(
+                    LC.ldap_cache_cos_maxsize.intValue(),
+                    LC.ldap_cache_cos_maxage.intValue() * Constants.MILLIS_PER_MINUTE, refresher);
+            domainCache = new DomainCache(
+                    LC.ldap_cache_domain_maxsize.intValue(),
+                    LC.ldap_cache_domain_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
+                    LC.ldap_cache_external_domain_maxsize.intValue(),
+                    LC.ldap_cache_external_domain_maxage.intValue() * Constants.MILLIS_PER_MINUTE, refresher);
+            serverCache = new NamedEntryCache<Server>(
+                    LC.ldap_cache_server_maxsize.intValue(),
+                    LC.ldap_cache_server_maxage.intValue() * Constants.MILLIS_PER_MINUTE, refresher);
+            ucServiceCache = new NamedEntryCache<UCService>(
+                    LC.ldap_cache_ucservice_maxsize.intValue(),
+                    LC.ldap_cache_ucservice_maxage.intValue() * Constants.MILLIS_PER_MINUTE, refresher);
+            zimletCache = new NamedEntryCache<LdapZimlet>(
+                    LC.ldap_cache_zimlet_maxsize.intValue(),
+                    LC.ldap_cache_zimlet_maxage.intValue() * Constants.MILLIS_PER_MINUTE, refresher);
+            xmppComponentCache = new NamedEntryCache<XMPPComponent>(
+                    LC.ldap_cache_xmppcomponent_maxsize.intValue(),
+                    LC.ldap_cache_xmppcomponent_maxage.intValue() * Constants.MILLIS_PER_MINUTE, refresher);
+            alwaysOnClusterCache = new NamedEntryCache<AlwaysOnCluster>(
+                    LC.ldap_cache_alwaysoncluster_maxsize.intValue(),
+                    LC.ldap_cache_alwaysoncluster_maxage.intValue() * Constants.MILLIS_PER_MINUTE, refresher);
+        }
 
         @Override
         IAccountCache accountCache() {
@@ -127,6 +127,7 @@ import com.zimbra.cs.account.auth.AuthMechanism.AuthMech;
 import com.zimbra.cs.account.auth.PasswordUtil;
 import com.zimbra.cs.account.cache.DomainCache;
 import com.zimbra.cs.account.cache.DomainCache.GetFromDomainCacheOption;
+import com.zimbra.cs.account.cache.EntryRefresher;
 import com.zimbra.cs.account.cache.IAccountCache;
 import com.zimbra.cs.account.cache.IDomainCache;
 import com.zimbra.cs.account.cache.IMimeTypeCache;
@@ -297,7 +298,17 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
         }
 
         if (this.useCache) {
-            cache = new LdapCache.LRUMapCache();
+            EntryRefresher refresher = null;
+            if (LC.ldap_cache_refresh_async.booleanValue()) {
+                refresher = new EntryRefresher() {
+                    @Override
+                    protected void reload(NamedEntry entry) throws ServiceException {
+                        // reload() puts the refreshed entry back into its cache
+                        LdapProvisioning.this.reload(entry, false);
+                    }
+                };
+            }
+            cache = new LdapCache.LRUMapCache(refresher);
         } else {
             cache = new LdapCache.NoopCache();
         }
@@ -0,0 +1,252 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.datasource;
+
+import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Strings;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.DataSource;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Runs data source imports on a fixed number of threads, optionally with at most
+ * <tt>data_source_import_max_per_host</tt> of them connected to the same remote host at once.  An import whose host
+ * is at its limit waits in a queue for that host, without holding a thread.
+ * <p>
+ * Each scheduled import is started late by an offset derived from the data source ID, so data sources that come due
+ * at the same moment are spread over part of the polling interval rather than starting together; the offset is the
+ * same every cycle, so each data source is still polled at its own interval.  When imports of several data sources
+ * fail to connect to a host:port, further scheduled imports from it are skipped until the backoff tracked by
+ * {@link SyncErrorManager} has passed.  Imports requested by the user always run.
+ */
+public class DataSourceImportScheduler {
+
+    private final ThreadPoolExecutor workers;
+    private final ScheduledThreadPoolExecutor timer;
+    private final int maxPerHost;
+    // host name -> imports running and waiting; guarded by itself
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+    // imports that are delayed or queued, so each data source is queued at most once per kind
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private static final class Host {
+        int running;
+        final Queue<Import> waiting = new ArrayDeque<Import>();
+    }
+
+    public DataSourceImportScheduler() {
+        this(LC.data_source_import_threads.intValue(), LC.data_source_import_max_per_host.intValue());
+    }
+
+    DataSourceImportScheduler(int numThreads, int maxPerHost) {
+        numThreads = Math.max(1, numThreads);
+        workers = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), newDaemonThreadFactory("ImportData"));
+        workers.allowCoreThreadTimeOut(true);
+        timer = new ScheduledThreadPoolExecutor(1, newDaemonThreadFactory("ImportDataTimer"));
+        this.maxPerHost = maxPerHost > 0 ? maxPerHost : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Queues an import requested by the user.
+     */
+    public void submit(DataSource ds) {
+        submit(ds, false, 0);
+    }
+
+    /**
+     * Queues a periodic import of the given data source, after its share of
+     * <tt>data_source_import_jitter_percent</tt> of its polling interval.
+     */
+    public void submitScheduled(DataSource ds) {
+        submit(ds, true, getScheduledDelay(ds));
+    }
+
+    static long getScheduledDelay(DataSource ds) {
+        long jitter = 0;
+        try {
+            jitter = ds.getPollingInterval() * LC.data_source_import_jitter_percent.intValue() / 100;
+        } catch (ServiceException e) {
+            ZimbraLog.datasource.debug("unable to get polling interval of %s", ds.getName(), e);
+        }
+        return jitter > 0 ? Math.floorMod((long) ds.getId().hashCode(), jitter) : 0;
+    }
+
+    void submit(DataSource ds, boolean scheduled, long delayMillis) {
+        final Import imp = new Import(ds, scheduled);
+        if (!pending.add(imp.key)) {
+            ZimbraLog.datasource.debug("import of %s is already queued", ds.getName());
+            return;
+        }
+        if (delayMillis > 0) {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    enqueue(imp);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } else {
+            enqueue(imp);
+        }
+    }
+
+    private void enqueue(Import imp) {
+        imp.queuedAt = System.currentTimeMillis();
+        if (imp.host != null) {
+            synchronized (hosts) {
+                Host host = hosts.get(imp.host);
+                if (host == null) {
+                    host = new Host();
+                    hosts.put(imp.host, host);
+                }
+                if (host.running >= maxPerHost) {
+                    host.waiting.add(imp);
+                    return;
+                }
+                host.running++;
+            }
+        }
+        workers.execute(imp);
+    }
+
+    /**
+     * Hands the host's connection slot to the next import waiting for it, if any.
+     */
+    private void release(String hostName) {
+        Import next;
+        synchronized (hosts) {
+            Host host = hosts.get(hostName);
+            next = host.waiting.poll();
+            if (next == null && --host.running == 0) {
+                hosts.remove(hostName);
+            }
+        }
+        if (next != null) {
+            workers.execute(next);
+        }
+    }
+
+    /**
+     * Runs the import in the current thread.
+     *
+     * @return <tt>false</tt> if the import was skipped without connecting to the remote host
+     */
+    protected boolean runImport(DataSource ds) throws ServiceException {
+        return DataSourceManager.importData(ds);
+    }
+
+    /**
+     * Returns <tt>true</tt> if the import could not open a connection to the remote host.  Failures after it was
+     * connected, such as a read timeout or a reset, say nothing about whether other imports can reach it.
+     */
+    static boolean isConnectionFailure(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof ConnectException || t instanceof NoRouteToHostException ||
+                    t instanceof UnknownHostException) {
+                return true;
+            }
+            // Socket.connect() reports its timeout with this message; reads report "Read timed out"
+            if (t instanceof SocketTimeoutException && "connect timed out".equals(t.getMessage())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int getQueuedCount() {
+        return pending.size();
+    }
+
+    private class Import implements Runnable {
+        final DataSource ds;
+        final boolean scheduled;
+        final String key;
+        final String host;
+        // host:port that connection failures are counted against
+        final String address;
+        long queuedAt;
+
+        Import(DataSource ds, boolean scheduled) {
+            this.ds = ds;
+            this.scheduled = scheduled;
+            this.key = ds.getAccountId() + ":" + ds.getId() + (scheduled ? ":scheduled" : "");
+            String hostName = ds.getHost();
+            this.host = Strings.isNullOrEmpty(hostName) ? null : hostName.toLowerCase();
+            Integer port = ds.getPort();
+            this.address = host == null || port == null ? host : host + ":" + port;
+        }
+
+        @Override
+        public void run() {
+            pending.remove(key);
+            ZimbraPerf.HISTOGRAM_DATASOURCE_QUEUE_DELAY.record(System.currentTimeMillis() - queuedAt);
+            try {
+                long retryDelay = address == null ? 0 : SyncErrorManager.getHostRetryDelay(address);
+                if (scheduled && retryDelay > 0) {
+                    ZimbraPerf.COUNTER_DATASOURCE_IMPORT_SKIPPED.increment();
+                    ZimbraLog.datasource.info("Skipping scheduled import of %s; %s has failed %d times, retry in %dms.",
+                            ds.getName(), address, SyncErrorManager.getHostErrorCount(address), retryDelay);
+                    return;
+                }
+                long start = ZimbraPerf.STOPWATCH_DATASOURCE_IMPORT.start();
+                try {
+                    ZimbraLog.clearContext();
+                    ZimbraLog.addMboxToContext(ds.getMailbox().getId());
+                    ZimbraLog.addAccountNameToContext(ds.getAccount().getName());
+                    ZimbraLog.addDataSourceNameToContext(ds.getName());
+                    ZimbraLog.datasource.debug("Running %s import for DataSource %s",
+                            scheduled ? "scheduled" : "on-demand", ds.getId());
+
+                    // an import that was skipped says nothing about the host
+                    if (runImport(ds) && address != null) {
+                        SyncErrorManager.clearHostErrors(address);
+                    }
+                } catch (Exception e) {
+                    if (address != null && isConnectionFailure(e)) {
+                        SyncErrorManager.incrementHostErrorCount(address, ds);
+                    }
+                    ZimbraLog.datasource.warn("%s DataSource import failed.", scheduled ? "Scheduled" : "On-demand", e);
+                } finally {
+                    ZimbraPerf.STOPWATCH_DATASOURCE_IMPORT.stop(start);
+                    ZimbraLog.clearContext();
+                }
+            } finally {
+                if (host != null) {
+                    release(host);
+                }
+            }
+        }
+    }
+}
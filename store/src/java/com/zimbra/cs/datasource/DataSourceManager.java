@@ -16,9 +16,7 @@
  */
 package com.zimbra.cs.datasource;
 
-import static com.zimbra.common.util.TaskUtil.newDaemonThreadFactory;
 import static java.util.Collections.newSetFromMap;
-import static java.util.concurrent.Executors.newCachedThreadPool;
 
 import java.io.File;
 import java.lang.reflect.Constructor;
@@ -29,7 +27,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
 
 import javax.mail.MessagingException;
 import javax.mail.Session;
@@ -90,7 +87,7 @@ public class DataSourceManager {
 
     private final DataSourceConfig config;
 
-    private static final ExecutorService executor = newCachedThreadPool(newDaemonThreadFactory("ImportData"));
+    private static final DataSourceImportScheduler importScheduler = new DataSourceImportScheduler();
 
     private static <E> Set<E> newConcurrentHashSet() {
         return newSetFromMap(new ConcurrentHashMap<E, Boolean>());
@@ -329,63 +326,52 @@ public class DataSourceManager {
         return importStatus;
     }
 
-    public static void asyncImportData(final DataSource ds) {
+    public static void asyncImportData(DataSource ds) {
         ZimbraLog.datasource.debug("Requesting async import for DataSource %s", ds.getId());
+        importScheduler.submit(ds);
+    }
 
-        executor.submit(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    // todo exploit comonality with DataSourceTask
-                    ZimbraLog.clearContext();
-                    ZimbraLog.addMboxToContext(ds.getMailbox().getId());
-                    ZimbraLog.addAccountNameToContext(ds.getAccount().getName());
-                    ZimbraLog.addDataSourceNameToContext(ds.getName());
-                    ZimbraLog.datasource.debug("Running on-demand import for DataSource %s", ds.getId());
-
-                    DataSourceManager.importData(ds);
-
-                } catch (Exception e) {
-                    ZimbraLog.datasource.warn("On-demand DataSource import failed.", e);
-                }
-                finally {
-                    ZimbraLog.clearContext();
-                }
-            }
-        });
+    /**
+     * Queues the periodic import of a data source, called by its {@link DataSourceTask}.
+     */
+    static void asyncScheduledImportData(DataSource ds) {
+        importScheduler.submitScheduled(ds);
     }
 
-    public static void importData(DataSource ds) throws ServiceException {
-        importData(ds, null, true);
+    public static boolean importData(DataSource ds) throws ServiceException {
+        return importData(ds, null, true);
     }
 
-    public static void importData(DataSource fs, boolean fullSync)
+    public static boolean importData(DataSource fs, boolean fullSync)
         throws ServiceException {
-        importData(fs, null, fullSync);
+        return importData(fs, null, fullSync);
     }
 
 
     /**
      * Executes the data source's {@link MailItemImport} implementation to import data in the current thread.
+     *
+     * @return <tt>false</tt> if the import was skipped, because the account is not active, the mailbox is in
+     * maintenance or another import of the data source is running
      */
-    public static void importData(DataSource ds, List<Integer> folderIds, boolean fullSync) throws ServiceException {
+    public static boolean importData(DataSource ds, List<Integer> folderIds, boolean fullSync) throws ServiceException {
 
         ZimbraLog.datasource.info("Requested import.");
         AccountStatus status = ds.getAccount().getAccountStatus();
         if (!(status.isActive() || status.isLocked() || status.isLockout())) {
             ZimbraLog.datasource.info("Account is not active. Skipping import.");
-            return;
+            return false;
         }
         if (DataSourceManager.getInstance().getMailbox(ds).getMaintenance() != null) {
             ZimbraLog.datasource.info("Mailbox is in maintenance mode. Skipping import.");
-            return;
+            return false;
         }
         ImportStatus importStatus = getImportStatus(ds.getAccount(), ds);
         synchronized (importStatus) {
             if (importStatus.isRunning()) {
                 ZimbraLog.datasource.info("Attempted to start import while " +
                     " an import process was already running.  Ignoring the second request.");
-                return;
+                return false;
             }
             importStatus.mHasRun = true;
             importStatus.mIsRunning = true;
@@ -415,6 +401,7 @@ public class DataSourceManager {
                 importStatus.mIsRunning = false;
             }
         }
+        return true;
     }
 
     public static void resetErrorStatus(DataSource ds) {
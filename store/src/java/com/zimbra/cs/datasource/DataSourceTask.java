@@ -79,8 +79,9 @@ public class DataSourceTask extends ScheduledTask {
                     return null;
                 }
                 
-                // Do the work
-                DataSourceManager.importData(ds);
+                // Hand the work to the import threads, so that slow remote hosts don't tie up the
+                // scheduled task threads
+                DataSourceManager.asyncScheduledImportData(ds);
             } else {
                 ZimbraLog.datasource.info("DataSource %s was deleted.  Cancelling future tasks.",
                     getDataSourceId());
@@ -16,15 +16,19 @@
  */
 package com.zimbra.cs.datasource;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.cs.account.DataSource;
 
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.LinkedHashMap;
 import java.util.Iterator;
+import java.util.Set;
 
 /**
- * Manage reporting of offline data source item sync failures.
+ * Manage reporting of offline data source item sync failures, and of remote host:port addresses that data source
+ * imports have failed to connect to.
  */
 public final class SyncErrorManager {
     private static final int MAX_ENTRIES = 64 * 1000;
@@ -35,7 +39,28 @@ public final class SyncErrorManager {
 
     private static final Map<String, AtomicInteger> ERRORS =
         new LinkedHashMap<String, AtomicInteger>() {
-            protected boolean removeEldestEntry(Map.Entry e) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AtomicInteger> e) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    private static final class HostErrors {
+        int count;
+        long lastFailure;
+        // data sources that failed, up to data_source_host_backoff_min_sources of them
+        final Set<String> dataSources = new HashSet<String>();
+    }
+
+    // remote host:port -> consecutive import failures
+    private static final Map<String, HostErrors> HOST_ERRORS =
+        new LinkedHashMap<String, HostErrors>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HostErrors> e) {
                 return size() > MAX_ENTRIES;
             }
         };
@@ -104,4 +129,59 @@ public final class SyncErrorManager {
             return count != null ? count.get() : 0;
         }
     }
+
+    public static int incrementHostErrorCount(String host, DataSource ds) {
+        synchronized (HOST_ERRORS) {
+            HostErrors errors = HOST_ERRORS.get(host);
+            if (errors == null) {
+                errors = new HostErrors();
+                HOST_ERRORS.put(host, errors);
+            }
+            if (errors.dataSources.size() < LC.data_source_host_backoff_min_sources.intValue()) {
+                errors.dataSources.add(ds.getId());
+            }
+            errors.lastFailure = System.currentTimeMillis();
+            return ++errors.count;
+        }
+    }
+
+    public static void clearHostErrors(String host) {
+        synchronized (HOST_ERRORS) {
+            HOST_ERRORS.remove(host);
+        }
+    }
+
+    public static int getHostErrorCount(String host) {
+        synchronized (HOST_ERRORS) {
+            HostErrors errors = HOST_ERRORS.get(host);
+            return errors != null ? errors.count : 0;
+        }
+    }
+
+    /**
+     * Returns how many milliseconds remain before scheduled imports from the given host:port should be tried again,
+     * or <tt>0</tt> if fewer than <tt>data_source_host_backoff_min_sources</tt> data sources have failed to connect
+     * to it since it was last reached, so that one misconfigured data source cannot hold back the others.  The delay
+     * starts at <tt>data_source_host_backoff_initial_ms</tt> and doubles with each further failure, up to
+     * <tt>data_source_host_backoff_max_ms</tt>.
+     */
+    public static long getHostRetryDelay(String host) {
+        int minSources = Math.max(1, LC.data_source_host_backoff_min_sources.intValue());
+        int count;
+        long lastFailure;
+        synchronized (HOST_ERRORS) {
+            HostErrors errors = HOST_ERRORS.get(host);
+            if (errors == null || errors.dataSources.size() < minSources) {
+                return 0;
+            }
+            count = errors.count;
+            lastFailure = errors.lastFailure;
+        }
+        long max = LC.data_source_host_backoff_max_ms.longValue();
+        long backoff = LC.data_source_host_backoff_initial_ms.longValue() << Math.min(count - minSources, 30);
+        if (backoff <= 0 || backoff > max) {
+            backoff = max;
+        }
+        return Math.max(0, lastFailure + backoff - System.currentTimeMillis());
+    }
 }
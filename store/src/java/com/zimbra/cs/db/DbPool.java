@@ -47,7 +47,7 @@ public class DbPool {
     private static PoolingDataSource sPoolingDataSource;
     private static String sRootUrl;
     private static String sLoggerRootUrl;
-    private static GenericObjectPool sConnectionPool;
+    private static GenericObjectPool<Connection> sConnectionPool;
     private static boolean sIsInitialized;
 
     private static boolean isShutdown;
@@ -214,6 +214,36 @@ public class DbPool {
         byte whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_BLOCK;
     }
 
+    /**
+     * Tells each <tt>DebugConnection</tt> when it enters and leaves the pool,
+     * so that the auto-commit reset done on return and undone on the next
+     * borrow does not cost two round trips to the database.
+     */
+    private static class ZimbraPoolableConnectionFactory extends PoolableConnectionFactory {
+        ZimbraPoolableConnectionFactory(ConnectionFactory cfac, GenericObjectPool<Connection> pool,
+                boolean defReadOnly, boolean defAutoCommit) {
+            super(cfac, pool, null, null, defReadOnly, defAutoCommit);
+        }
+
+        @Override
+        public void passivateObject(Object obj) throws Exception {
+            DebugConnection conn = DebugConnection.unwrap((Connection) obj);
+            if (conn != null) {
+                conn.setIdleInPool(true);
+            }
+            super.passivateObject(obj);
+        }
+
+        @Override
+        public void activateObject(Object obj) throws Exception {
+            super.activateObject(obj);
+            DebugConnection conn = DebugConnection.unwrap((Connection) obj);
+            if (conn != null) {
+                conn.setIdleInPool(false);
+            }
+        }
+    }
+
     /**
      * Initializes the connection pool.  Applications that access the
      * database must call this method before calling {@link DbPool#getConnection}.
@@ -279,11 +309,11 @@ public class DbPool {
             return sPoolingDataSource;
 
         PoolConfig pconfig = Db.getInstance().getPoolConfig();
-        sConnectionPool = new GenericObjectPool(null, pconfig.mPoolSize, pconfig.whenExhaustedAction, -1, pconfig.mPoolSize);
+        sConnectionPool = new GenericObjectPool<Connection>(null, pconfig.mPoolSize, pconfig.whenExhaustedAction, -1, pconfig.mPoolSize);
         ConnectionFactory cfac = ZimbraConnectionFactory.getConnectionFactory(pconfig);
 
         boolean defAutoCommit = false, defReadOnly = false;
-        new PoolableConnectionFactory(cfac, sConnectionPool, null, null, defReadOnly, defAutoCommit);
+        new ZimbraPoolableConnectionFactory(cfac, sConnectionPool, defReadOnly, defAutoCommit);
 
         try {
             Class.forName(pconfig.mDriverClassName).newInstance(); //derby requires the .newInstance() call
@@ -331,17 +361,22 @@ public class DbPool {
             Db.getInstance().preOpen(mboxId);
             long start = ZimbraPerf.STOPWATCH_DB_CONN.start();
 
-            // If the connection pool is overutilized, warn about potential leaks
             PoolingDataSource pool = getPool();
-            checkPoolUsage();
 
             Connection dbconn = null;
             DbConnection conn = null;
             try {
+                long waitStart = System.nanoTime();
                 dbconn = pool.getConnection();
+                long waitMicros = (System.nanoTime() - waitStart) / 1000;
+                ZimbraPerf.HISTOGRAM_DB_CONN_WAIT.record(waitMicros);
+
+                // If we had to wait for a connection, warn about potential leaks
+                checkPoolUsage(waitMicros);
 
-                if (dbconn.getAutoCommit() != false)
-                    dbconn.setAutoCommit(false);
+                // The session state is cached by DebugConnection, so these only
+                // reach the database when the value actually changes.
+                dbconn.setAutoCommit(false);
 
                 // We want READ COMMITTED transaction isolation level for duplicate
                 // handling code in BucketBlobStore.newBlobInfo().
@@ -382,13 +417,20 @@ public class DbPool {
         }
     }
 
-    private static void checkPoolUsage() {
+    /**
+     * Warns when a checkout had to wait longer than
+     * {@link LC#zimbra_db_pool_wait_warn_threshold_ms} for a free connection,
+     * which usually means that the pool is too small or that connections are
+     * leaking.
+     */
+    private static void checkPoolUsage(long waitMicros) {
+        long thresholdMillis = LC.zimbra_db_pool_wait_warn_threshold_ms.longValue();
+        if (waitMicros < thresholdMillis * 1000)
+            return;
+
         int numActive = sConnectionPool.getNumActive();
         int maxActive = sConnectionPool.getMaxActive();
 
-        if (numActive <= maxActive * 0.75)
-            return;
-
         String stackTraceMsg = "Turn on debug logging for zimbra.dbconn to see stack traces of connections not returned to the pool.";
         if (ZimbraLog.dbconn.isDebugEnabled()) {
             StringBuilder buf = new StringBuilder();
@@ -406,11 +448,11 @@ public class DbPool {
             }
             stackTraceMsg = buf.toString();
         }
-        String logMsg = "Connection pool is 75%% utilized (%d connections out of a maximum of %d in use).  %s";
+        String logMsg = "Waited %dms for a database connection (%d connections out of a maximum of %d in use).  %s";
         if (isUsageWarningEnabled) {
-            ZimbraLog.dbconn.warn(logMsg, numActive, maxActive, stackTraceMsg);
+            ZimbraLog.dbconn.warn(logMsg, waitMicros / 1000, numActive, maxActive, stackTraceMsg);
         } else {
-            ZimbraLog.dbconn.debug(logMsg, numActive, maxActive, stackTraceMsg);
+            ZimbraLog.dbconn.debug(logMsg, waitMicros / 1000, numActive, maxActive, stackTraceMsg);
         }
     }
 
@@ -527,6 +569,20 @@ public class DbPool {
         return sConnectionPool.getNumActive();
     }
 
+    /**
+     * Returns the number of open connections that are idle in the pool.
+     */
+    public static int getIdleSize() {
+        return sConnectionPool.getNumIdle();
+    }
+
+    /**
+     * Returns the maximum number of connections that can be in use at once.
+     */
+    public static int getMaxSize() {
+        return sConnectionPool.getMaxActive();
+    }
+
     /**
      * This is only to be used by DbOfflineMigration to completely close connection to Derby.
      * Note that this doesn't permanently shutdown.  A new getPool() call will restart connections.
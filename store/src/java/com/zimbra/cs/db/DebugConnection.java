@@ -23,9 +23,27 @@ import java.sql.SQLException;
 import com.zimbra.common.util.ZimbraLog;
 import org.apache.commons.dbcp.DelegatingConnection;
 
+/**
+ * Wraps the physical JDBC connection.  Besides logging, the wrapper remembers
+ * the session state (auto-commit, transaction isolation, read-only flag and
+ * catalog) that was last sent to the driver, so that the pool's per-checkout
+ * resets only go to the server when a value actually changes.  While the
+ * connection sits idle in the pool, auto-commit changes are deferred until it
+ * is handed out again; the pool turns auto-commit on when a connection is
+ * returned and off again when it is borrowed, and those two calls cancel out.
+ */
 class DebugConnection extends DelegatingConnection {
     protected final Connection mConn;
 
+    // Session state as last seen by the driver, or null if not known yet.
+    private Boolean mAutoCommit;
+    private Integer mIsolation;
+    private Boolean mReadOnly;
+    private String mCatalog;
+
+    private boolean mIdleInPool;
+    private Boolean mPendingAutoCommit;
+
     DebugConnection(Connection conn) {
         super(conn);
         mConn = conn;
@@ -34,7 +52,107 @@ class DebugConnection extends DelegatingConnection {
     Connection getConnection() {
         return mConn;
     }
-    
+
+    /**
+     * Returns the <tt>DebugConnection</tt> that <tt>conn</tt> wraps, or
+     * <tt>null</tt> if there is none.
+     */
+    static DebugConnection unwrap(Connection conn) {
+        while (conn instanceof DelegatingConnection) {
+            if (conn instanceof DebugConnection) {
+                return (DebugConnection) conn;
+            }
+            conn = ((DelegatingConnection) conn).getDelegate();
+        }
+        return null;
+    }
+
+    /**
+     * Called by the pool when the connection is returned (<tt>true</tt>) and
+     * when it is borrowed again (<tt>false</tt>).  Any auto-commit change
+     * requested while idle that was not undone is applied on borrow.
+     */
+    void setIdleInPool(boolean idle) throws SQLException {
+        mIdleInPool = idle;
+        if (!idle && mPendingAutoCommit != null) {
+            Boolean pending = mPendingAutoCommit;
+            mPendingAutoCommit = null;
+            setAutoCommit(pending);
+        }
+    }
+
+    public boolean getAutoCommit() throws SQLException {
+        if (mPendingAutoCommit != null) {
+            return mPendingAutoCommit;
+        }
+        if (mAutoCommit == null) {
+            mAutoCommit = mConn.getAutoCommit();
+        }
+        return mAutoCommit;
+    }
+
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        if (mIdleInPool) {
+            // the pool has already rolled back by now, so there is no implicit commit to lose
+            mPendingAutoCommit = (mAutoCommit != null && mAutoCommit == autoCommit) ? null : autoCommit;
+            return;
+        }
+        if (mAutoCommit != null && mAutoCommit == autoCommit) {
+            return;
+        }
+        mAutoCommit = null;
+        mConn.setAutoCommit(autoCommit);
+        mAutoCommit = autoCommit;
+    }
+
+    public int getTransactionIsolation() throws SQLException {
+        if (mIsolation == null) {
+            mIsolation = mConn.getTransactionIsolation();
+        }
+        return mIsolation;
+    }
+
+    public void setTransactionIsolation(int level) throws SQLException {
+        if (mIsolation != null && mIsolation == level) {
+            return;
+        }
+        mIsolation = null;
+        mConn.setTransactionIsolation(level);
+        mIsolation = level;
+    }
+
+    public boolean isReadOnly() throws SQLException {
+        if (mReadOnly == null) {
+            mReadOnly = mConn.isReadOnly();
+        }
+        return mReadOnly;
+    }
+
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        if (mReadOnly != null && mReadOnly == readOnly) {
+            return;
+        }
+        mReadOnly = null;
+        mConn.setReadOnly(readOnly);
+        mReadOnly = readOnly;
+    }
+
+    public String getCatalog() throws SQLException {
+        if (mCatalog == null) {
+            mCatalog = mConn.getCatalog();
+        }
+        return mCatalog;
+    }
+
+    public void setCatalog(String catalog) throws SQLException {
+        if (catalog != null && catalog.equals(mCatalog)) {
+            return;
+        }
+        mCatalog = null;
+        mConn.setCatalog(catalog);
+        mCatalog = catalog;
+    }
+
     public PreparedStatement prepareStatement(String sql) throws SQLException {
         return new DebugPreparedStatement(this, mConn.prepareStatement(sql), sql);
     }
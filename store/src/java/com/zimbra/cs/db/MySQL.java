@@ -180,12 +180,22 @@ public class MySQL extends Db {
             props.put("cacheResultSetMetadata", "true");
             props.put("cachePrepStmts", "true");
             // props.put("cacheCallableStmts", "true");
-            props.put("prepStmtCacheSize", "25");
-            // props.put("prepStmtCacheSqlLmiit", "256");
+            // Connector/J keeps the parsed form of this many statements per connection; statements are
+            // still created afresh, so settings such as a streaming fetch size don't carry over.
+            props.put("prepStmtCacheSize", LC.zimbra_mysql_statement_cache_size.value());
+            // many of our statements are longer than the driver's default limit of 256 characters
+            props.put("prepStmtCacheSqlLimit", "4096");
             props.put("autoReconnect", "true");
             props.put("useUnicode", "true");
             props.put("characterEncoding", "UTF-8");
             props.put("dumpQueriesOnException", "true");
+            // Let the driver answer getAutoCommit()/getTransactionIsolation() locally and skip
+            // rollbacks when no statement has run since the last commit.
+            props.put("useLocalSessionState", "true");
+            props.put("useLocalTransactionState", "true");
+            // Statements are prepared on the client unless zimbra_mysql_connector_useServerPrepStmts is
+            // set; server-side prepares hold a statement handle on the server for every cached statement
+            // of every connection.
 
             // props.put("connectTimeout", "0");    // connect timeout in msecs
             // props.put("initialTimeout", "2");    // time to wait between re-connects
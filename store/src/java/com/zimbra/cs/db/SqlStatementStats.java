@@ -0,0 +1,390 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.stats.Histogram;
+import com.zimbra.common.stats.StatsDumperDataSource;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Execution statistics per SQL statement shape.  Statements are grouped by fingerprint: the SQL text with
+ * string and numeric literals replaced by <tt>?</tt>, whitespace collapsed, <tt>mboxgroupN</tt> schema
+ * names unified and parenthesized lists of placeholders collapsed to <tt>(...)</tt>, so the variable-length
+ * <tt>IN</tt> lists built by {@link DbMailItem} and {@link DbSearch} all land on the same entry.
+ * <p>
+ * Each fingerprint keeps a latency {@link Histogram} in microseconds and the number of rows returned or
+ * affected.  Statements slower than <tt>sql_slow_query_threshold_ms</tt> are also kept in a ring buffer
+ * together with their bind parameter count and the mailbox that issued them.
+ */
+public final class SqlStatementStats implements StatsDumperDataSource {
+
+    /** Fingerprint that collects everything once <tt>sql_stats_max_statements</tt> has been reached. */
+    static final String OVERFLOW = "(other)";
+
+    private static final long MAX_TRACKED_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final int PRECISION_BITS = 4;
+    /** Bound on the raw SQL to fingerprint cache; it is simply cleared when full. */
+    private static final int MAX_CACHED_SQL = 4096;
+    private static final int MAX_SLOW_SQL_LENGTH = 1024;
+    private static final int CSV_ROWS = 50;
+
+    private static final Pattern MBOXGROUP = Pattern.compile("(?i)mboxgroup\\d+");
+    private static final Pattern PLACEHOLDER_LIST = Pattern.compile("\\(\\s*\\?(\\s*,\\s*\\?)*\\s*\\)");
+    private static final Pattern REPEATED_LIST = Pattern.compile("\\(\\.\\.\\.\\)(\\s*,\\s*\\(\\.\\.\\.\\))+");
+
+    private static final SqlStatementStats INSTANCE = new SqlStatementStats(LC.sql_stats_max_statements.intValue(),
+            LC.sql_slow_query_buffer_size.intValue());
+
+    private final int maxStatements;
+    private final ConcurrentHashMap<String, StatementStats> statements = new ConcurrentHashMap<String, StatementStats>();
+    private final ConcurrentHashMap<String, String> fingerprints = new ConcurrentHashMap<String, String>();
+    private final AtomicReferenceArray<SlowQuery> slowQueries;
+    private final AtomicLong slowQueryCount = new AtomicLong();
+
+    SqlStatementStats(int maxStatements, int slowQueryBufferSize) {
+        this.maxStatements = Math.max(maxStatements, 1);
+        this.slowQueries = new AtomicReferenceArray<SlowQuery>(Math.max(slowQueryBufferSize, 1));
+    }
+
+    public static SqlStatementStats getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records one execution of <tt>sql</tt>.
+     *
+     * @param rows rows affected by an update, or <tt>0</tt> for queries, whose rows are added by
+     *  {@link #addRows} as they are read
+     */
+    public void record(String sql, long elapsedMicros, long rows) {
+        StatementStats stats = getStatementStats(sql);
+        stats.latency.record(elapsedMicros);
+        if (rows > 0) {
+            stats.rows.add(rows);
+        }
+        if (elapsedMicros >= TimeUnit.MILLISECONDS.toMicros(LC.sql_slow_query_threshold_ms.longValue())) {
+            addSlowQuery(new SlowQuery(stats.fingerprint, sql, elapsedMicros));
+        }
+    }
+
+    public void addRows(String sql, long rows) {
+        if (rows > 0) {
+            getStatementStats(sql).rows.add(rows);
+        }
+    }
+
+    private StatementStats getStatementStats(String sql) {
+        String fingerprint = fingerprints.get(sql);
+        if (fingerprint == null) {
+            fingerprint = fingerprint(sql);
+            if (fingerprints.size() >= MAX_CACHED_SQL) {
+                fingerprints.clear();
+            }
+            fingerprints.put(sql, fingerprint);
+        }
+        StatementStats stats = statements.get(fingerprint);
+        if (stats == null) {
+            if (statements.size() >= maxStatements) {
+                fingerprint = OVERFLOW;
+                stats = statements.get(OVERFLOW);
+                if (stats != null) {
+                    return stats;
+                }
+            }
+            stats = new StatementStats(fingerprint);
+            StatementStats previous = statements.putIfAbsent(fingerprint, stats);
+            if (previous != null) {
+                stats = previous;
+            }
+        }
+        return stats;
+    }
+
+    private void addSlowQuery(SlowQuery query) {
+        long seq = slowQueryCount.getAndIncrement();
+        slowQueries.set((int) (seq % slowQueries.length()), query);
+        ZimbraLog.sqltrace.debug("Slow SQL (%dus, mbox=%d, binds=%d): %s", query.getElapsedMicros(),
+                query.getMailboxId(), query.getBindCount(), query.getSql());
+    }
+
+    /**
+     * Returns the stats of all tracked statements, slowest in total first.
+     */
+    public List<StatementStats> getStatements() {
+        List<StatementStats> result = new ArrayList<StatementStats>(statements.values());
+        Collections.sort(result, new Comparator<StatementStats>() {
+            @Override
+            public int compare(StatementStats a, StatementStats b) {
+                return Long.compare(b.getTotalMicros(), a.getTotalMicros());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the slow queries still in the ring buffer, newest first.
+     */
+    public List<SlowQuery> getSlowQueries() {
+        List<SlowQuery> result = new ArrayList<SlowQuery>(slowQueries.length());
+        long last = slowQueryCount.get();
+        for (long seq = last - 1; seq >= 0 && seq >= last - slowQueries.length(); seq--) {
+            SlowQuery query = slowQueries.get((int) (seq % slowQueries.length()));
+            if (query != null) {
+                result.add(query);
+            }
+        }
+        return result;
+    }
+
+    public void reset() {
+        statements.clear();
+        for (int i = 0; i < slowQueries.length(); i++) {
+            slowQueries.set(i, null);
+        }
+    }
+
+    /**
+     * Returns the fingerprint of a SQL statement.
+     */
+    public static String fingerprint(String sql) {
+        if (sql == null) {
+            return null;
+        }
+        sql = MBOXGROUP.matcher(sql).replaceAll("mboxgroup?");
+        StringBuilder sb = new StringBuilder(sql.length());
+        int len = sql.length();
+        int i = 0;
+        while (i < len) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                while (i < len && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                if (sb.length() > 0 && i < len) {
+                    sb.append(' ');
+                }
+            } else if (c == '\'' || c == '"') {
+                i = skipQuoted(sql, i, c);
+                sb.append('?');
+            } else if (Character.isDigit(c) && !isIdentifierPart(sb)) {
+                while (i < len && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                sb.append('?');
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        String result = PLACEHOLDER_LIST.matcher(sb).replaceAll("(...)");
+        return REPEATED_LIST.matcher(result).replaceAll("(...)");
+    }
+
+    /**
+     * Returns the index just past the quoted literal that starts at <tt>start</tt>.  Handles both doubled
+     * quotes and backslash escapes.
+     */
+    private static int skipQuoted(String sql, int start, char quote) {
+        int i = start + 1;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == quote) {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                } else {
+                    return i + 1;
+                }
+            } else {
+                i++;
+            }
+        }
+        return sql.length();
+    }
+
+    private static boolean isIdentifierPart(StringBuilder sb) {
+        if (sb.length() == 0) {
+            return false;
+        }
+        char prev = sb.charAt(sb.length() - 1);
+        return Character.isLetterOrDigit(prev) || prev == '_' || prev == '$';
+    }
+
+    /**
+     * Returns the number of <tt>?</tt> placeholders in <tt>sql</tt>, not counting those in literals.
+     */
+    static int countBindParameters(String sql) {
+        int count = 0;
+        int i = 0;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"') {
+                i = skipQuoted(sql, i, c);
+                continue;
+            }
+            if (c == '?') {
+                count++;
+            }
+            i++;
+        }
+        return count;
+    }
+
+    ////////////// StatsDumperDataSource implementation //////////////
+
+    @Override
+    public String getFilename() {
+        return "sql_statements.csv";
+    }
+
+    @Override
+    public String getHeader() {
+        return "statement,exec_count,exec_ms_total,rows,exec_us_p50,exec_us_p99,exec_us_max";
+    }
+
+    /**
+     * Returns the statements with the most total time.  Unlike <tt>sql.csv</tt>, the numbers are cumulative
+     * since startup or the last {@link #reset}.
+     */
+    @Override
+    public Collection<String> getDataLines() {
+        List<StatementStats> all = getStatements();
+        List<String> lines = new ArrayList<String>(Math.min(all.size(), CSV_ROWS));
+        for (StatementStats stats : all.subList(0, Math.min(all.size(), CSV_ROWS))) {
+            lines.add(String.format("\"%s\",%d,%d,%d,%d,%d,%d", stats.getFingerprint().replace("\"", "\"\""),
+                    stats.getCount(), TimeUnit.MICROSECONDS.toMillis(stats.getTotalMicros()), stats.getRows(),
+                    stats.getPercentileMicros(50), stats.getPercentileMicros(99), stats.getMaxMicros()));
+        }
+        return lines;
+    }
+
+    @Override
+    public boolean hasTimestampColumn() {
+        return true;
+    }
+
+    /**
+     * Stats of one statement fingerprint.
+     */
+    public static final class StatementStats {
+        private final String fingerprint;
+        private final Histogram latency = new Histogram(MAX_TRACKED_MICROS, PRECISION_BITS);
+        private final LongAdder rows = new LongAdder();
+
+        StatementStats(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        public long getTotalMicros() {
+            return latency.getTotal();
+        }
+
+        public long getRows() {
+            return rows.sum();
+        }
+
+        public long getPercentileMicros(double percentile) {
+            return latency.getValueAtPercentile(percentile);
+        }
+
+        public long getMaxMicros() {
+            return latency.getMax();
+        }
+    }
+
+    /**
+     * A statement that took longer than <tt>sql_slow_query_threshold_ms</tt>.
+     */
+    public static final class SlowQuery {
+        private final long timestamp = System.currentTimeMillis();
+        private final String fingerprint;
+        private final String sql;
+        private final long elapsedMicros;
+        private final int bindCount;
+        private final int mailboxId;
+
+        SlowQuery(String fingerprint, String sql, long elapsedMicros) {
+            this.fingerprint = fingerprint;
+            this.sql = sql.length() > MAX_SLOW_SQL_LENGTH ? sql.substring(0, MAX_SLOW_SQL_LENGTH) : sql;
+            this.elapsedMicros = elapsedMicros;
+            this.bindCount = countBindParameters(sql);
+            this.mailboxId = getMailboxIdFromContext();
+        }
+
+        private static int getMailboxIdFromContext() {
+            String mid = ZimbraLog.getContextMap().get(ZimbraLog.C_MID);
+            if (mid != null) {
+                try {
+                    return Integer.parseInt(mid);
+                } catch (NumberFormatException ignore) {
+                }
+            }
+            return -1;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public long getElapsedMicros() {
+            return elapsedMicros;
+        }
+
+        public int getBindCount() {
+            return bindCount;
+        }
+
+        /**
+         * Returns the id of the mailbox in the logging context of the thread that ran the statement, or
+         * <tt>-1</tt>.
+         */
+        public int getMailboxId() {
+            return mailboxId;
+        }
+    }
+}
@@ -38,6 +38,10 @@ import java.sql.SQLXML;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.dbcp.DelegatingResultSet;
+import org.apache.commons.dbcp.DelegatingStatement;
 
 import com.zimbra.cs.stats.ActivityTracker;
 import com.zimbra.cs.stats.ZimbraPerf;
@@ -49,6 +53,8 @@ import com.zimbra.cs.stats.ZimbraPerf;
  * since the actual SQL query can't reliably be retrieved from the PreparedStatement.
  * Calls to trackQueryStats happen in all "execute" methods that take no arguments;
  * all other calls simply delegate to the wrapped PreparedStatement instance.
+ * Every execution is also recorded under its statement fingerprint in
+ * {@link SqlStatementStats}, along with the number of rows read or updated.
  *
  * Added for bug #56968
  * @author iraykin
@@ -57,6 +63,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
     private final PreparedStatement stmt;
     private String queryString;
     private ActivityTracker tracker = ZimbraPerf.SQL_TRACKER;
+    private SqlStatementStats statementStats = SqlStatementStats.getInstance();
 
     public StatTrackingPreparedStatement(PreparedStatement stmt) {
         this.stmt = stmt;
@@ -75,6 +82,12 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
         this.tracker = tracker;
     }
 
+    /* Per-statement stats, also injectable for testing; null disables them.
+     */
+    public void setStatementStats(SqlStatementStats statementStats) {
+        this.statementStats = statementStats;
+    }
+
     /* The PreparedStatement interface doesn't allow access the actual SQL query
      * to be executed, so it needs to be provided explicitly in the constructor
      * or using this method. If the sql string is not available, nothing will be tracked.
@@ -105,24 +118,73 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
         }
     }
 
-    private void trackQueryStats(String sql, long startTime) {
+    private void trackQueryStats(String sql, long startNanos) {
+        trackQueryStats(sql, startNanos, 0);
+    }
+
+    private void trackQueryStats(String sql, long startNanos, long rows) {
         if (sql != null) {
-            tracker.addStat(getQueryType(sql), startTime);
+            tracker.addStatNanos(getQueryType(sql), startNanos);
+            if (statementStats != null) {
+                statementStats.record(sql, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos), rows);
+            }
+        }
+    }
+
+    /**
+     * Wraps the result set of a query so that the rows read from it are added to the statement's stats.
+     * Requires the wrapped statement to be a DBCP {@link DelegatingStatement}, which is what the pool hands out.
+     */
+    private ResultSet trackRows(String sql, ResultSet results) {
+        if (sql == null || statementStats == null || results == null || !(stmt instanceof DelegatingStatement)) {
+            return results;
+        }
+        return new RowCountingResultSet((DelegatingStatement) stmt, results, sql, statementStats);
+    }
+
+    private static final class RowCountingResultSet extends DelegatingResultSet {
+        private final String sql;
+        private final SqlStatementStats stats;
+        private long rows = 0;
+        private boolean reported = false;
+
+        RowCountingResultSet(DelegatingStatement stmt, ResultSet results, String sql, SqlStatementStats stats) {
+            super(stmt, results);
+            this.sql = sql;
+            this.stats = stats;
+        }
+
+        @Override
+        public boolean next() throws SQLException {
+            boolean hasNext = super.next();
+            if (hasNext) {
+                rows++;
+            }
+            return hasNext;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (!reported) {
+                reported = true;
+                stats.addRows(sql, rows);
+            }
+            super.close();
         }
     }
     @Override
     public ResultSet executeQuery(String sql) throws SQLException {
-        long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         ResultSet results = stmt.executeQuery(sql);
-        trackQueryStats(sql, startTime);
-        return results;
+        trackQueryStats(sql, startNanos);
+        return trackRows(sql, results);
     }
 
     @Override
     public int executeUpdate(String sql) throws SQLException {
-        long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         int results = stmt.executeUpdate(sql);
-        trackQueryStats(sql, startTime);
+        trackQueryStats(sql, startNanos, results);
         return results;
     }
 
@@ -190,9 +252,9 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public boolean execute(String sql) throws SQLException {
-        long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         boolean results = stmt.execute(sql);
-        trackQueryStats(sql, startTime);
+        trackQueryStats(sql, startNanos);
         return results;
     }
 
@@ -253,7 +315,14 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public int[] executeBatch() throws SQLException {
-        return stmt.executeBatch();
+        long startNanos = System.nanoTime();
+        int[] results = stmt.executeBatch();
+        long rows = 0;
+        for (int count : results) {
+            rows += Math.max(count, 0);
+        }
+        trackQueryStats(queryString, startNanos, rows);
+        return results;
     }
 
     @Override
@@ -348,17 +417,17 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public ResultSet executeQuery() throws SQLException {
-        long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         ResultSet results = stmt.executeQuery();
-        trackQueryStats(queryString, startTime);
-        return results;
+        trackQueryStats(queryString, startNanos);
+        return trackRows(queryString, results);
     }
 
     @Override
     public int executeUpdate() throws SQLException {
-        long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         int results = stmt.executeUpdate();
-        trackQueryStats(queryString, startTime);
+        trackQueryStats(queryString, startNanos, results);
         return results;
     }
 
@@ -471,9 +540,9 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public boolean execute() throws SQLException {
-        long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         boolean results = stmt.execute();
-        trackQueryStats(queryString, startTime);
+        trackQueryStats(queryString, startNanos);
         return results;
     }
 
@@ -0,0 +1,877 @@
+package com.zimbra.cs.ephemeral;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.Server;
+
+/**
+ * EphemeralStore kept on the local disk of the server, for installations where the LDAP modifies made by
+ * {@link LdapEphemeralStore} for every auth token, CSRF token and last logon update are too costly.
+ * <p>
+ * Values are encoded with {@link DynamicExpirationEncoder}, as in LDAP.  They are held in memory, indexed by
+ * location and key, and every change is appended to a log file in the store's directory, which is replayed when the
+ * store is opened.  With {@code ephemeral_file_store_sync}, changes made at the same time share one fsync of the
+ * log.  Expired values are never returned and are dropped from memory when their key is read.  Once the log holds
+ * many more records than there are live values, it is compacted: the live values are written to a new file while
+ * changes go on, and the new file replaces the log once the changes made meanwhile are copied to it.
+ * <p>
+ * The data is only visible to the mailbox server that holds it, so this backend is for single-server installations
+ * only: auth tokens, CSRF tokens and the like created on one server would not be found on another.  The store refuses
+ * to open, and the backend URL is rejected, when more than one mailbox server is provisioned.
+ * <p>
+ * The backend URL is {@code file:<directory>}, e.g. {@code file:/opt/zimbra/data/ephemeral}.  Only one store is
+ * opened per directory in a process, and an open store holds a lock on the directory, so opening it from another
+ * process fails.  Data can be moved here from LDAP with {@code zmmigrateattrs}, but since that runs in its own
+ * process, mailboxd must be stopped while it does.
+ */
+public class FileEphemeralStore extends EphemeralStore {
+
+    static final String LOG_FILE = "ephemeral.log";
+    private static final String COMPACT_FILE = "ephemeral.log.compact";
+    private static final String LOCK_FILE = "ephemeral.lock";
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    private static final byte OP_SET = 1;
+    private static final byte OP_ADD = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte OP_DELETE_LOCATION = 4;
+
+    private final File dir;
+    private final ConcurrentMap<String, Location> locations = new ConcurrentHashMap<String, Location>();
+    /**
+     * held shared while a change updates memory and the log, and exclusively while compaction takes its snapshot
+     * and while it swaps in the compacted log
+     */
+    private final ReadWriteLock compactLock = new ReentrantReadWriteLock();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final AtomicInteger liveValues = new AtomicInteger();
+    private final AtomicInteger logRecords = new AtomicInteger();
+    /** guarded by this */
+    private FileChannel log;
+    /** number of records appended since the store was opened; guarded by this */
+    private long appended;
+    /** set if a failed append could not be rolled back, leaving a partial record in the log; guarded by this */
+    private IOException logDamage;
+    /** number of those known to be on disk; guarded by syncLock */
+    private long synced;
+    private final Object syncLock = new Object();
+    private final FileLock dirLock;
+
+    /** Values of the keys of one location. */
+    private static final class Location {
+        final ReentrantLock lock = new ReentrantLock();
+        final Map<String, List<String>> keys = new HashMap<String, List<String>>();
+        /** set once deleteData() has removed this location from the store */
+        boolean deleted;
+    }
+
+    @VisibleForTesting
+    FileEphemeralStore(File dir) throws IOException {
+        this.dir = dir;
+        setAttributeEncoder(new DynamicExpirationEncoder());
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("unable to create directory " + dir);
+        }
+        dirLock = lockDirectory(dir);
+        try {
+            File file = new File(dir, LOG_FILE);
+            long validLength = replay(file);
+            log = new FileOutputStream(file, true).getChannel();
+            if (log.size() > validLength) {
+                ZimbraLog.ephemeral.warn("truncating incomplete record at offset %d of %s", validLength, file);
+                log.truncate(validLength);
+            }
+        } catch (IOException | RuntimeException e) {
+            dirLock.channel().close();
+            throw e;
+        }
+        ZimbraLog.ephemeral.info("opened ephemeral store in %s with %d values in %d locations",
+                dir, liveValues.get(), locations.size());
+    }
+
+    /**
+     * Locks the store's directory, so that no other process appends to or compacts the log while this one has it
+     * open.
+     */
+    private static FileLock lockDirectory(File dir) throws IOException {
+        FileChannel channel = FileChannel.open(new File(dir, LOCK_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = null;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by this process
+        } finally {
+            if (lock == null) {
+                channel.close();
+            }
+        }
+        if (lock == null) {
+            throw new IOException("ephemeral store in " + dir + " is already open");
+        }
+        return lock;
+    }
+
+    @Override
+    public EphemeralResult get(EphemeralKey key, EphemeralLocation target) throws ServiceException {
+        String encodedKey = encodeKey(key, target);
+        DynamicResultsHelper helper = new DynamicResultsHelper(key, target, encoder, null);
+        return helper.get(getValues(target, encodedKey));
+    }
+
+    @Override
+    public void set(EphemeralInput input, EphemeralLocation target) throws ServiceException {
+        String encodedKey = encodeKey(input, target);
+        String encodedValue = encodeValue(input, target);
+        String storeKey = getStoreKey(target);
+        compactLock.readLock().lock();
+        try {
+            Location loc = lockLocation(storeKey);
+            try {
+                append(OP_SET, storeKey, encodedKey, encodedValue);
+                apply(loc, OP_SET, encodedKey, encodedValue);
+            } finally {
+                loc.lock.unlock();
+            }
+        } finally {
+            compactLock.readLock().unlock();
+        }
+        maybeCompact();
+    }
+
+    @Override
+    public void update(EphemeralInput input, EphemeralLocation target) throws ServiceException {
+        String encodedKey = encodeKey(input, target);
+        String encodedValue = encodeValue(input, target);
+        String dynamicComponent = input.getEphemeralKey().getDynamicComponent();
+        String value = String.valueOf(input.getValue());
+        String storeKey = getStoreKey(target);
+        compactLock.readLock().lock();
+        try {
+            Location loc = lockLocation(storeKey);
+            try {
+                // updating a value that is already there only changes its expiration
+                List<String> values = loc.keys.get(encodedKey);
+                if (values != null) {
+                    for (String existing : new ArrayList<String>(values)) {
+                        EphemeralKeyValuePair kvp = decodeOrNull(encodedKey, existing);
+                        if (kvp != null && value.equals(kvp.getValue())
+                                && Objects.equal(dynamicComponent, kvp.getKey().getDynamicComponent())) {
+                            append(OP_REMOVE, storeKey, encodedKey, existing);
+                            apply(loc, OP_REMOVE, encodedKey, existing);
+                        }
+                    }
+                }
+                append(OP_ADD, storeKey, encodedKey, encodedValue);
+                apply(loc, OP_ADD, encodedKey, encodedValue);
+            } finally {
+                loc.lock.unlock();
+            }
+        } finally {
+            compactLock.readLock().unlock();
+        }
+        maybeCompact();
+    }
+
+    @Override
+    public void delete(EphemeralKey key, String valueToDelete, EphemeralLocation target) throws ServiceException {
+        String encodedKey = encodeKey(key, target);
+        DynamicResultsHelper helper = new DynamicResultsHelper(key, target, encoder, null);
+        remove(target, encodedKey, helper.delete(getValues(target, encodedKey), valueToDelete));
+    }
+
+    @Override
+    public boolean has(EphemeralKey key, EphemeralLocation target) throws ServiceException {
+        String encodedKey = encodeKey(key, target);
+        DynamicResultsHelper helper = new DynamicResultsHelper(key, target, encoder, null);
+        return helper.has(getValues(target, encodedKey));
+    }
+
+    @Override
+    public void purgeExpired(EphemeralKey key, EphemeralLocation target) throws ServiceException {
+        String encodedKey = encodeKey(key, target);
+        List<String> expired = new ArrayList<String>();
+        Location loc = locations.get(getStoreKey(target));
+        if (loc != null) {
+            long now = System.currentTimeMillis();
+            loc.lock.lock();
+            try {
+                List<String> values = loc.keys.get(encodedKey);
+                if (values != null) {
+                    for (String value : values) {
+                        if (isExpired(encodedKey, value, now)) {
+                            expired.add(value);
+                        }
+                    }
+                }
+            } finally {
+                loc.lock.unlock();
+            }
+        }
+        remove(target, encodedKey, expired);
+    }
+
+    @Override
+    public void deleteData(EphemeralLocation target) throws ServiceException {
+        String storeKey = getStoreKey(target);
+        compactLock.readLock().lock();
+        try {
+            Location loc = locations.get(storeKey);
+            if (loc == null) {
+                return;
+            }
+            loc.lock.lock();
+            try {
+                if (loc.deleted) {
+                    return;
+                }
+                append(OP_DELETE_LOCATION, storeKey, "", "");
+                deleteLocation(storeKey, loc);
+            } finally {
+                loc.lock.unlock();
+            }
+        } finally {
+            compactLock.readLock().unlock();
+        }
+        maybeCompact();
+    }
+
+    /**
+     * Returns the unexpired values of a key.  Expired values are dropped from memory; they stay in the log until it
+     * is compacted, and are dropped again when it is replayed.
+     */
+    private List<String> getValues(EphemeralLocation target, String encodedKey) {
+        Location loc = locations.get(getStoreKey(target));
+        if (loc == null) {
+            return new ArrayList<String>(0);
+        }
+        long now = System.currentTimeMillis();
+        loc.lock.lock();
+        try {
+            List<String> values = loc.keys.get(encodedKey);
+            if (values == null) {
+                return new ArrayList<String>(0);
+            }
+            for (Iterator<String> iter = values.iterator(); iter.hasNext(); ) {
+                if (isExpired(encodedKey, iter.next(), now)) {
+                    iter.remove();
+                    liveValues.decrementAndGet();
+                }
+            }
+            if (values.isEmpty()) {
+                loc.keys.remove(encodedKey);
+            }
+            return new ArrayList<String>(values);
+        } finally {
+            loc.lock.unlock();
+        }
+    }
+
+    private void remove(EphemeralLocation target, String encodedKey, Collection<String> toRemove)
+            throws ServiceException {
+        if (toRemove.isEmpty()) {
+            return;
+        }
+        String storeKey = getStoreKey(target);
+        compactLock.readLock().lock();
+        try {
+            Location loc = lockLocation(storeKey);
+            try {
+                for (String value : toRemove) {
+                    List<String> values = loc.keys.get(encodedKey);
+                    if (values != null && values.contains(value)) {
+                        append(OP_REMOVE, storeKey, encodedKey, value);
+                        apply(loc, OP_REMOVE, encodedKey, value);
+                    }
+                }
+            } finally {
+                loc.lock.unlock();
+            }
+        } finally {
+            compactLock.readLock().unlock();
+        }
+        maybeCompact();
+    }
+
+    /**
+     * Returns the location for the given key with its lock held, creating it if needed.
+     */
+    private Location lockLocation(String storeKey) {
+        while (true) {
+            Location loc = locations.get(storeKey);
+            if (loc == null) {
+                Location created = new Location();
+                loc = locations.putIfAbsent(storeKey, created);
+                if (loc == null) {
+                    loc = created;
+                }
+            }
+            loc.lock.lock();
+            if (!loc.deleted) {
+                return loc;
+            }
+            // removed by deleteData() while we waited; try again with a new one
+            loc.lock.unlock();
+        }
+    }
+
+    private void deleteLocation(String storeKey, Location loc) {
+        for (List<String> values : loc.keys.values()) {
+            liveValues.addAndGet(-values.size());
+        }
+        loc.keys.clear();
+        loc.deleted = true;
+        locations.remove(storeKey, loc);
+    }
+
+    private void apply(Location loc, byte op, String encodedKey, String value) {
+        List<String> values = loc.keys.get(encodedKey);
+        switch (op) {
+        case OP_SET:
+            if (values != null) {
+                liveValues.addAndGet(-values.size());
+            }
+            values = new ArrayList<String>(1);
+            values.add(value);
+            loc.keys.put(encodedKey, values);
+            liveValues.incrementAndGet();
+            break;
+        case OP_ADD:
+            if (values == null) {
+                values = new ArrayList<String>(1);
+                loc.keys.put(encodedKey, values);
+            }
+            values.add(value);
+            liveValues.incrementAndGet();
+            break;
+        case OP_REMOVE:
+            if (values != null && values.remove(value)) {
+                liveValues.decrementAndGet();
+                if (values.isEmpty()) {
+                    loc.keys.remove(encodedKey);
+                }
+            }
+            break;
+        }
+    }
+
+    private boolean isExpired(String encodedKey, String value, long now) {
+        EphemeralKeyValuePair kvp = decodeOrNull(encodedKey, value);
+        if (kvp instanceof ExpirableEphemeralKeyValuePair) {
+            Long expiration = ((ExpirableEphemeralKeyValuePair) kvp).getExpiration();
+            return expiration != null && expiration < now;
+        }
+        return false;
+    }
+
+    private EphemeralKeyValuePair decodeOrNull(String encodedKey, String value) {
+        try {
+            return decode(encodedKey, value);
+        } catch (ServiceException e) {
+            ZimbraLog.ephemeral.debug("unable to decode value '%s' of key '%s'", value, encodedKey, e);
+            return null;
+        }
+    }
+
+    private static String getStoreKey(EphemeralLocation target) {
+        return Joiner.on("|").join(target.getLocation());
+    }
+
+    /*
+     * Each log record is the length and CRC32 of its payload followed by the payload: the operation, then the
+     * location, key and value as length-prefixed UTF-8.
+     */
+    private static ByteBuffer encodeRecord(byte op, String storeKey, String encodedKey, String value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                64 + storeKey.length() + encodedKey.length() + value.length());
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeByte(op);
+            writeString(out, storeKey);
+            writeString(out, encodedKey);
+            writeString(out, value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // can't happen writing to memory
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 8, buf.limit() - 8);
+        buf.putInt(0, buf.limit() - 8);
+        buf.putInt(4, (int) crc.getValue());
+        return buf;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] utf8 = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            throw new IOException("invalid string length " + len);
+        }
+        byte[] utf8 = new byte[len];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Appends a record to the log, and with {@code ephemeral_file_store_sync} waits until it is on disk.  Called with
+     * the compaction lock held shared, so the log isn't swapped meanwhile.
+     * <p>
+     * Replay stops at the first incomplete record, so a record that fails halfway is cut off again before anything
+     * else is appended.  If even that fails the log is left alone: later records would be lost at replay anyway, so
+     * every further append fails until the store is reopened.
+     */
+    private void append(byte op, String storeKey, String encodedKey, String value) throws ServiceException {
+        ByteBuffer buf = encodeRecord(op, storeKey, encodedKey, value);
+        long seq;
+        try {
+            synchronized (this) {
+                writeRecord(buf);
+                seq = ++appended;
+            }
+            if (LC.ephemeral_file_store_sync.booleanValue()) {
+                sync(seq);
+            }
+        } catch (IOException e) {
+            throw ServiceException.FAILURE("unable to write to ephemeral log in " + dir, e);
+        }
+        logRecords.incrementAndGet();
+    }
+
+    /**
+     * Writes one encoded record at the end of the log, or rolls the log back to its previous length.  Called with
+     * this store locked.
+     */
+    private void writeRecord(ByteBuffer buf) throws IOException {
+        if (logDamage != null) {
+            throw new IOException("ephemeral log holds an incomplete record", logDamage);
+        }
+        long start = log.position();
+        try {
+            while (buf.hasRemaining()) {
+                log.write(buf);
+            }
+        } catch (IOException e) {
+            try {
+                log.truncate(start);
+            } catch (IOException truncateFailure) {
+                e.addSuppressed(truncateFailure);
+                logDamage = e;
+                ZimbraLog.ephemeral.error("unable to roll back incomplete record at offset %d of ephemeral log in %s",
+                        start, dir, e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Forces the log to disk unless record {@code seq} already is.  One force covers every record written before it
+     * started, so threads appending together wait for the same force instead of each issuing one.
+     */
+    private void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= seq) {
+                return;
+            }
+            long target;
+            FileChannel channel;
+            synchronized (this) {
+                target = appended;
+                channel = log;
+            }
+            channel.force(false);
+            synced = target;
+        }
+    }
+
+    /**
+     * Loads the log into memory, and returns the length of the part of it that holds complete records.
+     */
+    private long replay(File file) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        long validLength = 0;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte[] payload;
+                int checksum;
+                try {
+                    int len = in.readInt();
+                    if (len <= 0 || len > MAX_RECORD_LENGTH) {
+                        break;
+                    }
+                    checksum = in.readInt();
+                    payload = new byte[len];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                DataInputStream rec = new DataInputStream(new ByteArrayInputStream(payload));
+                byte op = rec.readByte();
+                String storeKey = readString(rec);
+                String encodedKey = readString(rec);
+                String value = readString(rec);
+                if (op == OP_DELETE_LOCATION) {
+                    Location loc = locations.get(storeKey);
+                    if (loc != null) {
+                        deleteLocation(storeKey, loc);
+                    }
+                } else {
+                    Location loc = locations.get(storeKey);
+                    if (loc == null) {
+                        loc = new Location();
+                        locations.put(storeKey, loc);
+                    }
+                    apply(loc, op, encodedKey, value);
+                    if (loc.keys.isEmpty()) {
+                        locations.remove(storeKey);
+                    }
+                }
+                logRecords.incrementAndGet();
+                validLength += 8 + payload.length;
+            }
+        }
+        return validLength;
+    }
+
+    private void maybeCompact() {
+        int records = logRecords.get();
+        if (records < LC.ephemeral_file_store_compact_min_records.intValue() || records < 2 * liveValues.get()) {
+            return;
+        }
+        if (!compacting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            ZimbraLog.ephemeral.warn("unable to compact ephemeral log in %s", dir, e);
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * Replaces the log with one holding only the values that are live now.
+     * <p>
+     * Changes are only held off while the live values are copied in memory and, at the end, while the changes
+     * appended to the log in the meantime are copied to the new file and it is renamed over the log.  The values are
+     * written out and forced to disk without the lock.
+     */
+    @VisibleForTesting
+    void compact() throws IOException {
+        Map<String, Map<String, List<String>>> snapshot = new HashMap<String, Map<String, List<String>>>();
+        long mark;
+        int before;
+        compactLock.writeLock().lock();
+        try {
+            for (Map.Entry<String, Location> entry : locations.entrySet()) {
+                Location loc = entry.getValue();
+                // readers prune expired values under the location lock without taking the compaction lock
+                loc.lock.lock();
+                try {
+                    Map<String, List<String>> keys = new HashMap<String, List<String>>(loc.keys.size() * 2);
+                    for (Map.Entry<String, List<String>> key : loc.keys.entrySet()) {
+                        keys.put(key.getKey(), new ArrayList<String>(key.getValue()));
+                    }
+                    snapshot.put(entry.getKey(), keys);
+                } finally {
+                    loc.lock.unlock();
+                }
+            }
+            synchronized (this) {
+                if (logDamage != null) {
+                    throw new IOException("ephemeral log holds an incomplete record", logDamage);
+                }
+                mark = log.position();
+            }
+            before = logRecords.get();
+        } finally {
+            compactLock.writeLock().unlock();
+        }
+
+        long now = System.currentTimeMillis();
+        int written = 0;
+        File compactFile = new File(dir, COMPACT_FILE);
+        try (FileChannel out = new FileOutputStream(compactFile).getChannel()) {
+            for (Map.Entry<String, Map<String, List<String>>> entry : snapshot.entrySet()) {
+                written += writeLiveValues(out, entry.getKey(), entry.getValue(), now);
+            }
+            out.force(true);
+
+            int after;
+            compactLock.writeLock().lock();
+            try {
+                synchronized (this) {
+                    if (logDamage != null) {
+                        throw new IOException("ephemeral log holds an incomplete record", logDamage);
+                    }
+                    // the changes made while the snapshot was written
+                    File file = new File(dir, LOG_FILE);
+                    try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        long end = log.position();
+                        for (long pos = mark; pos < end; ) {
+                            pos += in.transferTo(pos, end - pos, out);
+                        }
+                    }
+                    out.force(true);
+                    log.close();
+                    try {
+                        Files.move(compactFile.toPath(), file.toPath(),
+                                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } finally {
+                        log = new FileOutputStream(file, true).getChannel();
+                    }
+                    after = written + logRecords.get() - before;
+                    logRecords.set(after);
+                }
+                syncDirectory();
+            } finally {
+                compactLock.writeLock().unlock();
+            }
+            ZimbraLog.ephemeral.info("compacted ephemeral log in %s from %d to %d records", dir, before, after);
+        }
+        pruneExpired(now);
+    }
+
+    private int writeLiveValues(FileChannel out, String storeKey, Map<String, List<String>> keys, long now)
+            throws IOException {
+        int written = 0;
+        for (Map.Entry<String, List<String>> key : keys.entrySet()) {
+            for (String value : key.getValue()) {
+                if (isExpired(key.getKey(), value, now)) {
+                    continue;
+                }
+                ByteBuffer buf = encodeRecord(OP_ADD, storeKey, key.getKey(), value);
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Drops values that had expired when the log was compacted from memory, along with the locations left empty.
+     * They are no longer in the log, so nothing is appended.
+     */
+    private void pruneExpired(long now) {
+        for (Iterator<Map.Entry<String, Location>> iter = locations.entrySet().iterator(); iter.hasNext(); ) {
+            Location loc = iter.next().getValue();
+            loc.lock.lock();
+            try {
+                for (Iterator<Map.Entry<String, List<String>>> keys = loc.keys.entrySet().iterator(); keys.hasNext(); ) {
+                    Map.Entry<String, List<String>> key = keys.next();
+                    for (Iterator<String> values = key.getValue().iterator(); values.hasNext(); ) {
+                        if (isExpired(key.getKey(), values.next(), now)) {
+                            values.remove();
+                            liveValues.decrementAndGet();
+                        }
+                    }
+                    if (key.getValue().isEmpty()) {
+                        keys.remove();
+                    }
+                }
+                if (loc.keys.isEmpty() && !loc.deleted) {
+                    loc.deleted = true;
+                    iter.remove();
+                }
+            } finally {
+                loc.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Makes the rename of the compacted log durable.  Not every platform can open a directory; there the rename is
+     * left to the file system.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            ZimbraLog.ephemeral.debug("unable to sync directory %s", dir, e);
+        }
+    }
+
+    @VisibleForTesting
+    int getLogRecordCount() {
+        return logRecords.get();
+    }
+
+    @VisibleForTesting
+    synchronized void close() {
+        try {
+            log.close();
+        } catch (IOException e) {
+            ZimbraLog.ephemeral.warn("unable to close ephemeral log in %s", dir, e);
+        }
+        try {
+            // closing the channel releases the lock
+            dirLock.channel().close();
+        } catch (IOException e) {
+            ZimbraLog.ephemeral.warn("unable to unlock ephemeral store in %s", dir, e);
+        }
+    }
+
+    /** open stores by canonical directory, with the number of factories using each */
+    private static final Map<File, FileEphemeralStore> openStores = new HashMap<File, FileEphemeralStore>();
+    private static final Map<File, Integer> openCounts = new HashMap<File, Integer>();
+
+    static File getDirectory(String url) throws ServiceException {
+        if (url == null || !url.startsWith("file:") || url.length() <= "file:".length()) {
+            throw ServiceException.INVALID_REQUEST(String.format("'%s' is not a valid file ephemeral store URL", url), null);
+        }
+        String path = url.substring("file:".length());
+        // accept file:///opt/... as well as file:/opt/...
+        while (path.startsWith("//")) {
+            path = path.substring(1);
+        }
+        try {
+            return new File(path).getCanonicalFile();
+        } catch (IOException e) {
+            throw ServiceException.INVALID_REQUEST(String.format("'%s' is not a valid file ephemeral store URL", url), e);
+        }
+    }
+
+    /**
+     * Refuses the backend once more than one mailbox server is provisioned, since each would only see its own data.
+     */
+    static void checkSingleServer() throws ServiceException {
+        List<Server> servers = Provisioning.getInstance().getAllServers(Provisioning.SERVICE_MAILBOX);
+        if (servers.size() > 1) {
+            throw ServiceException.FAILURE(String.format(
+                    "the file ephemeral backend supports a single mailbox server, but %d are provisioned",
+                    servers.size()), null);
+        }
+    }
+
+    private static FileEphemeralStore open(File dir) throws ServiceException {
+        synchronized (openStores) {
+            FileEphemeralStore store = openStores.get(dir);
+            if (store == null) {
+                try {
+                    store = new FileEphemeralStore(dir);
+                } catch (IOException e) {
+                    throw ServiceException.FAILURE("unable to open ephemeral store in " + dir, e);
+                }
+                openStores.put(dir, store);
+                openCounts.put(dir, 0);
+            }
+            openCounts.put(dir, openCounts.get(dir) + 1);
+            return store;
+        }
+    }
+
+    private static void release(FileEphemeralStore store) {
+        synchronized (openStores) {
+            Integer count = openCounts.get(store.dir);
+            if (count == null || openStores.get(store.dir) != store) {
+                return;
+            }
+            if (count > 1) {
+                openCounts.put(store.dir, count - 1);
+            } else {
+                openCounts.remove(store.dir);
+                openStores.remove(store.dir);
+                store.close();
+            }
+        }
+    }
+
+    public static class Factory extends EphemeralStore.Factory {
+
+        private FileEphemeralStore store;
+
+        @Override
+        public synchronized EphemeralStore getStore() {
+            // opened here rather than in startup(), which is called before the backend type is set
+            if (store == null) {
+                try {
+                    checkSingleServer();
+                    store = open(getDirectory(getURL()));
+                } catch (ServiceException e) {
+                    ZimbraLog.ephemeral.error("unable to open file ephemeral store", e);
+                    throw new IllegalStateException("unable to open file ephemeral store", e);
+                }
+            }
+            return store;
+        }
+
+        @Override
+        public void startup() {}
+
+        @Override
+        public synchronized void shutdown() {
+            if (store != null) {
+                release(store);
+                store = null;
+            }
+        }
+
+        @Override
+        public void test(String url) throws ServiceException {
+            checkSingleServer();
+            File dir = getDirectory(url);
+            File existing = dir;
+            while (existing != null && !existing.exists()) {
+                existing = existing.getParentFile();
+            }
+            if (existing == null || !existing.isDirectory() || !existing.canWrite()) {
+                throw ServiceException.FAILURE(String.format("directory %s is not writable", dir), null);
+            }
+        }
+    }
+}
@@ -260,6 +260,111 @@ public class FreeBusy implements Iterable<FreeBusy.Interval> {
             
         }
 
+        /**
+         * Builds the list from a batch of intervals with a single sweep, rather than one addInterval() call per
+         * interval, each of which walks and re-combines the list.  The resulting intervals and statuses are the
+         * same as adding the intervals one at a time.
+         */
+        static IntervalList build(long start, long end, List<Interval> toAdd) {
+            IntervalList list = new IntervalList(start, end);
+            String baseStatus = list.mHead.mStatus;
+
+            // Clip to our window, and collect the start/end transitions of each interval.
+            List<Interval> clipped = new ArrayList<Interval>(toAdd.size());
+            long[] bounds = new long[toAdd.size() * 2 + 2];
+            int numBounds = 0;
+            bounds[numBounds++] = start;
+            bounds[numBounds++] = end;
+            for (Interval ival : toAdd) {
+                ival.mStart = Math.max(ival.mStart, start);
+                ival.mEnd = Math.min(ival.mEnd, end);
+                if (ival.mStart < ival.mEnd) {
+                    clipped.add(ival);
+                    bounds[numBounds++] = ival.mStart;
+                    bounds[numBounds++] = ival.mEnd;
+                }
+            }
+            if (clipped.isEmpty()) {
+                return list;
+            }
+            Arrays.sort(bounds, 0, numBounds);
+
+            Interval[] byStart = clipped.toArray(new Interval[clipped.size()]);
+            Interval[] byEnd = byStart.clone();
+            Arrays.sort(byStart, new Comparator<Interval>() {
+                @Override
+                public int compare(Interval a, Interval b) {
+                    return Long.compare(a.mStart, b.mStart);
+                }
+            });
+            Arrays.sort(byEnd, new Comparator<Interval>() {
+                @Override
+                public int compare(Interval a, Interval b) {
+                    return Long.compare(a.mEnd, b.mEnd);
+                }
+            });
+
+            // Sweep the elementary segments between transitions, tracking how many intervals of each status cover
+            // the segment.  Adjacent segments of the same status are joined.
+            Map<String, Integer> active = new LinkedHashMap<String, Integer>();
+            List<Interval> result = new ArrayList<Interval>();
+            int nextStart = 0, nextEnd = 0;
+            for (int i = 0; i < numBounds - 1; i++) {
+                long segStart = bounds[i];
+                long segEnd = bounds[i + 1];
+                if (segStart == segEnd) {
+                    continue;
+                }
+                for (; nextEnd < byEnd.length && byEnd[nextEnd].mEnd <= segStart; nextEnd++) {
+                    String status = byEnd[nextEnd].mStatus;
+                    int count = active.get(status) - 1;
+                    if (count == 0) {
+                        active.remove(status);
+                    } else {
+                        active.put(status, count);
+                    }
+                }
+                for (; nextStart < byStart.length && byStart[nextStart].mStart <= segStart; nextStart++) {
+                    String status = byStart[nextStart].mStatus;
+                    Integer count = active.get(status);
+                    active.put(status, count == null ? 1 : count + 1);
+                }
+                String status = baseStatus;
+                for (String other : active.keySet()) {
+                    status = chooseBusier(status, other);
+                }
+                Interval last = result.isEmpty() ? null : result.get(result.size() - 1);
+                if (last != null && last.mStatus.equals(status)) {
+                    last.mEnd = segEnd;
+                } else {
+                    result.add(new Interval(segStart, segEnd, status));
+                }
+            }
+
+            // Attach each interval's instances to every joined interval it overlaps.
+            long[] resultStarts = new long[result.size()];
+            for (int i = 0; i < resultStarts.length; i++) {
+                resultStarts[i] = result.get(i).mStart;
+            }
+            for (Interval ival : clipped) {
+                int pos = Arrays.binarySearch(resultStarts, ival.mStart);
+                if (pos < 0) {
+                    pos = -pos - 2;
+                }
+                for (; pos < resultStarts.length && resultStarts[pos] < ival.mEnd; pos++) {
+                    result.get(pos).addInstances(ival.getInstances());
+                }
+            }
+
+            list.mHead = result.get(0);
+            Interval cur = list.mHead;
+            for (int i = 1; i < result.size(); i++) {
+                cur.insertAfter(result.get(i));
+                cur = result.get(i);
+            }
+            return list;
+        }
+
         public String toString() {
             StringBuilder toRet = new StringBuilder("\n");
             for (Interval cur = mHead; cur != null; cur = cur.getNext()) {
@@ -0,0 +1,451 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.fb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.BaseItemInfo;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.fb.FreeBusy.FBInstance;
+import com.zimbra.cs.fb.FreeBusy.Interval;
+import com.zimbra.cs.index.SortBy;
+import com.zimbra.cs.mailbox.Appointment;
+import com.zimbra.cs.mailbox.CalendarItem;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailServiceException;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.mailbox.calendar.cache.CalSummaryCache;
+import com.zimbra.cs.mailbox.calendar.cache.CalSummaryCache.CalendarDataResult;
+import com.zimbra.cs.mailbox.calendar.cache.CalendarCacheManager;
+import com.zimbra.cs.mailbox.calendar.cache.CalendarItemData;
+import com.zimbra.cs.session.PendingLocalModifications;
+import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.session.PendingModifications.ModificationKey;
+
+/**
+ * Per-account index of the busy appointment instances that local free/busy lookups are computed from.
+ * <p>
+ * Without it, every lookup walks the calendar summary of each calendar folder and expands every instance of every
+ * appointment, which adds up when a room finder asks for hundreds of resources at once.  The index keeps the
+ * instances that count towards free/busy (neither TRANSPARENT nor FREE), sorted by start time, so that a lookup only
+ * visits the instances overlapping the requested range.  It covers the whole days requested so far, and is extended
+ * when a lookup reaches past them, up to {@code freebusy_index_past_days} / {@code _future_days} around now.  Changed
+ * and deleted appointments are reloaded one at a time on the next lookup, from the change notifications; folder
+ * flags and ACLs are still checked on every lookup.
+ * <p>
+ * The indexes of all mailboxes share a budget of {@code freebusy_index_max_bytes}, weighed by their number of
+ * instances, and the least recently used are dropped beyond it.
+ * <p>
+ * Lookups are made with the mailbox lock held (see {@link Mailbox#getFreeBusy}), which also orders the reloads.
+ */
+public final class FreeBusyIndex {
+
+    // how long an index is used before it is rebuilt around the current time
+    private static final long REFRESH_INTERVAL = Constants.MILLIS_PER_DAY;
+
+    // rough heap usage of an index, for weighing it against freebusy_index_max_bytes
+    private static final int ACCOUNT_OVERHEAD = 1024;
+    private static final int INSTANCE_SIZE = 96;
+
+    private static volatile Cache<String, AccountIndex> indexes = newCache();
+
+    private FreeBusyIndex() {
+    }
+
+    private static Cache<String, AccountIndex> newCache() {
+        return CacheBuilder.newBuilder()
+                .maximumWeight(LC.freebusy_index_max_bytes.longValue())
+                .weigher(new Weigher<String, AccountIndex>() {
+                    @Override
+                    public int weigh(String accountId, AccountIndex index) {
+                        return index.weight;
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Computes free/busy from the index, building it first if needed.
+     *
+     * @return null if the index is disabled or doesn't cover the request, in which case the caller computes
+     *         free/busy from the calendar summaries
+     */
+    static FreeBusy getFreeBusy(Account authAcct, boolean asAdmin, boolean accountAceAllowed, Mailbox mbox,
+            String name, long start, long end, int folder, int exApptId) throws ServiceException {
+        if (!LC.freebusy_index_enabled.booleanValue() || folder != FreeBusyQuery.CALENDAR_FOLDER_ALL ||
+                start >= end) {
+            return null;
+        }
+        // same folders as Mailbox.getAllCalendarsSummaryForRange() as the owner
+        List<Folder> calendars = new ArrayList<Folder>();
+        for (Folder f : mbox.getFolderList(null, SortBy.NONE)) {
+            if (!f.inTrash() && !f.inSpam() && f.getDefaultView() == MailItem.Type.APPOINTMENT) {
+                calendars.add(f);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        if (start < now - LC.freebusy_index_past_days.longValue() * Constants.MILLIS_PER_DAY ||
+                end > now + LC.freebusy_index_future_days.longValue() * Constants.MILLIS_PER_DAY) {
+            return null;
+        }
+        Cache<String, AccountIndex> cache = indexes;
+        AccountIndex index = cache.getIfPresent(mbox.getAccountId());
+        if (index == null || now - index.builtAt >= REFRESH_INTERVAL) {
+            index = new AccountIndex(now);
+            // published before loading, so that changes made while loading mark it dirty
+            cache.put(mbox.getAccountId(), index);
+        }
+        int weight = index.weight;
+        Snapshot snapshot = index.getSnapshot(mbox, calendars, start, end);
+        if (index.weight != weight) {
+            // re-inserted so that the cache weighs it again; not if it was evicted or replaced meanwhile
+            cache.asMap().replace(mbox.getAccountId(), index, index);
+        }
+
+        Set<Integer> allowedFolders = new HashSet<Integer>();
+        int numAllowedFolders = 0;
+        for (Folder f : calendars) {
+            if (LocalFreeBusyProvider.isExcludedFromFreeBusy(f))
+                continue;
+            // Free/busy must be allowed by folder or at account-level.
+            boolean folderFBAllowed = CalendarItem.allowFreeBusyAccess(f, authAcct, asAdmin);
+            if (folderFBAllowed)
+                ++numAllowedFolders;
+            if (folderFBAllowed || accountAceAllowed)
+                allowedFolders.add(f.getId());
+        }
+        List<Interval> intervals = snapshot.getIntervals(start, end, allowedFolders, exApptId);
+        return LocalFreeBusyProvider.newFreeBusy(name, start, end, intervals,
+                !accountAceAllowed && numAllowedFolders == 0);
+    }
+
+    /**
+     * Marks the appointments created, changed or deleted by a committed transaction for reloading.
+     */
+    public static void notifyCommittedChanges(PendingLocalModifications mods) {
+        if (indexes.size() == 0) {
+            return;
+        }
+        if (mods.created != null) {
+            for (BaseItemInfo item : mods.created.values()) {
+                if (item instanceof Appointment) {
+                    Appointment appt = (Appointment) item;
+                    markDirty(appt.getMailbox().getAccountId(), appt.getId());
+                }
+            }
+        }
+        if (mods.modified != null) {
+            for (Change change : mods.modified.values()) {
+                if (change.what instanceof Appointment) {
+                    Appointment appt = (Appointment) change.what;
+                    markDirty(appt.getMailbox().getAccountId(), appt.getId());
+                }
+            }
+        }
+        if (mods.deleted != null) {
+            for (Map.Entry<ModificationKey, Change> entry : mods.deleted.entrySet()) {
+                if (entry.getValue().what == MailItem.Type.APPOINTMENT) {
+                    markDirty(entry.getKey().getAccountId(), entry.getKey().getItemId());
+                }
+            }
+        }
+    }
+
+    private static void markDirty(String accountId, int apptId) {
+        if (accountId == null) {
+            return;
+        }
+        AccountIndex index = indexes.getIfPresent(accountId);
+        if (index != null) {
+            index.dirty.add(apptId);
+        }
+    }
+
+    public static void purgeMailbox(Mailbox mbox) {
+        indexes.invalidate(mbox.getAccountId());
+    }
+
+    /**
+     * Drops all indexes, and picks up a changed {@code freebusy_index_max_bytes}.
+     */
+    public static void clear() {
+        Cache<String, AccountIndex> previous = indexes;
+        indexes = newCache();
+        previous.invalidateAll();
+    }
+
+    @VisibleForTesting
+    static long size() {
+        return indexes.size();
+    }
+
+    @VisibleForTesting
+    static int getNumInstances(String accountId) {
+        AccountIndex index = indexes.getIfPresent(accountId);
+        return index == null ? 0 : index.getNumInstances();
+    }
+
+    /** Busy instances of one appointment, and the folder it was in when they were loaded. */
+    private static final class ItemInstances {
+        final int folderId;
+        final FBInstance[] instances;
+
+        ItemInstances(int folderId, List<FBInstance> instances) {
+            this.folderId = folderId;
+            this.instances = instances.toArray(new FBInstance[instances.size()]);
+        }
+
+        ItemInstances(ItemInstances loaded, List<FBInstance> more) {
+            this.folderId = loaded.folderId;
+            this.instances = Arrays.copyOf(loaded.instances, loaded.instances.length + more.size());
+            for (int i = 0; i < more.size(); i++) {
+                instances[loaded.instances.length + i] = more.get(i);
+            }
+        }
+    }
+
+    private static final class AccountIndex {
+        final long builtAt;
+        final Set<Integer> dirty = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        volatile int weight = ACCOUNT_OVERHEAD;
+        // whole days covered so far; empty until the first lookup
+        private long windowStart;
+        private long windowEnd;
+        private final Set<Integer> loadedFolders = new HashSet<Integer>();
+        private final Map<Integer, ItemInstances> items = new HashMap<Integer, ItemInstances>();
+        private Snapshot snapshot;
+
+        AccountIndex(long now) {
+            builtAt = now;
+        }
+
+        synchronized Snapshot getSnapshot(Mailbox mbox, List<Folder> calendars, long start, long end)
+        throws ServiceException {
+            long from = start - start % Constants.MILLIS_PER_DAY;
+            long to = end + (Constants.MILLIS_PER_DAY - end % Constants.MILLIS_PER_DAY) % Constants.MILLIS_PER_DAY;
+            if (windowStart == windowEnd) {
+                windowStart = from;
+                windowEnd = to;
+            }
+            // Only the days not covered yet are loaded for the calendars already in the index.
+            if (from < windowStart) {
+                for (int folderId : loadedFolders) {
+                    loadFolder(mbox, folderId, from, windowStart);
+                }
+                windowStart = from;
+                snapshot = null;
+            }
+            if (to > windowEnd) {
+                for (int folderId : loadedFolders) {
+                    loadFolder(mbox, folderId, windowEnd, to);
+                }
+                windowEnd = to;
+                snapshot = null;
+            }
+            // Calendars not seen before (new, moved out of the trash, or changed to the appointment view) are
+            // loaded from their summaries.  Their appointments don't otherwise show up as changed.
+            for (Folder f : calendars) {
+                if (!loadedFolders.contains(f.getId())) {
+                    loadFolder(mbox, f.getId(), windowStart, windowEnd);
+                    loadedFolders.add(f.getId());
+                    snapshot = null;
+                }
+            }
+            if (!dirty.isEmpty()) {
+                OperationContext octxt = new OperationContext(mbox);
+                for (Iterator<Integer> iter = dirty.iterator(); iter.hasNext(); ) {
+                    int apptId = iter.next();
+                    // removed before reloading, so a change committed meanwhile marks it dirty again
+                    iter.remove();
+                    reloadItem(mbox, octxt, apptId);
+                }
+                snapshot = null;
+            }
+            if (snapshot == null) {
+                snapshot = new Snapshot(items.values());
+                weight = ACCOUNT_OVERHEAD + snapshot.instances.length * INSTANCE_SIZE;
+            }
+            return snapshot;
+        }
+
+        synchronized int getNumInstances() {
+            return snapshot == null ? 0 : snapshot.instances.length;
+        }
+
+        /**
+         * Loads the busy instances of the calendar from {@code rangeStart} to {@code rangeEnd}.  When the range
+         * extends the window, the instances overlapping the window were loaded before and are skipped.
+         */
+        private void loadFolder(Mailbox mbox, int folderId, long rangeStart, long rangeEnd)
+        throws ServiceException {
+            CalendarDataResult result = CalendarCacheManager.getInstance().getSummaryCache().getCalendarSummary(
+                    null, mbox.getAccountId(), folderId, MailItem.Type.APPOINTMENT, rangeStart, rangeEnd, true);
+            if (result == null || result.data == null) {
+                return;
+            }
+            boolean extending = rangeStart < windowStart || rangeEnd > windowEnd;
+            List<FBInstance> instances = new ArrayList<FBInstance>();
+            for (Iterator<CalendarItemData> iter = result.data.calendarItemIterator(); iter.hasNext(); ) {
+                CalendarItemData appt = iter.next();
+                instances.clear();
+                LocalFreeBusyProvider.getBusyInstances(appt, rangeEnd, instances);
+                if (!extending) {
+                    put(appt.getCalItemId(), folderId, instances);
+                    continue;
+                }
+                for (Iterator<FBInstance> instIter = instances.iterator(); instIter.hasNext(); ) {
+                    FBInstance inst = instIter.next();
+                    if (inst.getStartTime() < windowEnd && inst.getEndTime() > windowStart) {
+                        instIter.remove();
+                    }
+                }
+                ItemInstances loaded = items.get(appt.getCalItemId());
+                if (loaded == null) {
+                    put(appt.getCalItemId(), folderId, instances);
+                } else if (!instances.isEmpty()) {
+                    items.put(appt.getCalItemId(), new ItemInstances(loaded, instances));
+                }
+            }
+        }
+
+        private void reloadItem(Mailbox mbox, OperationContext octxt, int apptId) throws ServiceException {
+            CalendarItem calItem;
+            try {
+                calItem = mbox.getCalendarItemById(octxt, apptId);
+            } catch (MailServiceException.NoSuchItemException e) {
+                items.remove(apptId);
+                return;
+            }
+            CalendarItemData appt = null;
+            if (calItem instanceof Appointment) {
+                appt = CalSummaryCache.reloadCalendarItemOverRange(calItem, windowStart, windowEnd);
+            }
+            if (appt == null) {
+                items.remove(apptId);
+                return;
+            }
+            List<FBInstance> instances = new ArrayList<FBInstance>();
+            LocalFreeBusyProvider.getBusyInstances(appt, windowEnd, instances);
+            put(apptId, calItem.getFolderId(), instances);
+            ZimbraLog.fb.debug("free/busy index reloaded appointment %d with %d busy instances",
+                    apptId, instances.size());
+        }
+
+        private void put(int apptId, int folderId, List<FBInstance> instances) {
+            if (instances.isEmpty()) {
+                items.remove(apptId);
+            } else {
+                items.put(apptId, new ItemInstances(folderId, instances));
+            }
+        }
+    }
+
+    /**
+     * Immutable view of an {@link AccountIndex}: all busy instances sorted by start time, with the running maximum
+     * of their end times so that the first instance overlapping a range can be found by binary search.
+     */
+    private static final class Snapshot {
+        private final FBInstance[] instances;
+        private final int[] folderIds;
+        private final long[] starts;
+        private final long[] maxEnds;
+
+        Snapshot(Iterable<ItemInstances> items) {
+            final List<FBInstance> all = new ArrayList<FBInstance>();
+            List<Integer> allFolders = new ArrayList<Integer>();
+            for (ItemInstances item : items) {
+                for (FBInstance inst : item.instances) {
+                    all.add(inst);
+                    allFolders.add(item.folderId);
+                }
+            }
+            int size = all.size();
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(all.get(a).getStartTime(), all.get(b).getStartTime());
+                }
+            });
+            instances = new FBInstance[size];
+            folderIds = new int[size];
+            starts = new long[size];
+            maxEnds = new long[size];
+            long maxEnd = Long.MIN_VALUE;
+            for (int i = 0; i < size; i++) {
+                instances[i] = all.get(order[i]);
+                folderIds[i] = allFolders.get(order[i]);
+                starts[i] = instances[i].getStartTime();
+                maxEnd = Math.max(maxEnd, instances[i].getEndTime());
+                maxEnds[i] = maxEnd;
+            }
+        }
+
+        List<Interval> getIntervals(long start, long end, Set<Integer> allowedFolders, int exApptId) {
+            List<Interval> intervals = new ArrayList<Interval>();
+            // Instances before the first one whose running maximum end is past the range start all end before it.
+            int from = firstGreater(maxEnds, start);
+            int to = firstGreater(starts, end - 1);
+            for (int i = from; i < to; i++) {
+                FBInstance inst = instances[i];
+                if (inst.getEndTime() > start && inst.getApptId() != exApptId &&
+                        allowedFolders.contains(folderIds[i])) {
+                    intervals.add(new Interval(inst.getStartTime(), inst.getEndTime(), inst.getFreeBusy(), inst));
+                }
+            }
+            return intervals;
+        }
+
+        /** Returns the index of the first element of the sorted array greater than {@code value}. */
+        private static int firstGreater(long[] sorted, long value) {
+            int low = 0, high = sorted.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sorted[mid] <= value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -64,7 +64,13 @@ public class LocalFreeBusyProvider {
 
         int exApptId = exAppt == null ? -1 : exAppt.getId();
 
-        IntervalList intervals = new IntervalList(start, end);
+        FreeBusy indexed = FreeBusyIndex.getFreeBusy(
+                authAcct, asAdmin, accountAceAllowed, mbox, name, start, end, folder, exApptId);
+        if (indexed != null)
+            return indexed;
+
+        List<Interval> intervals = new ArrayList<Interval>();
+        List<FBInstance> instances = new ArrayList<FBInstance>();
 
         List<CalendarDataResult> calDataResultList;
         if (folder == FreeBusyQuery.CALENDAR_FOLDER_ALL) {
@@ -76,10 +82,8 @@ public class LocalFreeBusyProvider {
         for (CalendarDataResult result : calDataResultList) {
             int folderId = result.data.getFolderId();
             Folder f = mbox.getFolderById(null, folderId);
-            if ((f.getFlagBitmask() & Flag.BITMASK_EXCLUDE_FREEBUSY) != 0) {
-                ZimbraLog.fb.debug("Calendar '%s' id=%s ignored - has EXCLUDE_FREEBUSY flag set", f.getName(), folderId);
+            if (isExcludedFromFreeBusy(f))
                 continue;
-            }
             // Free/busy must be allowed by folder or at account-level.
             boolean folderFBAllowed = CalendarItem.allowFreeBusyAccess(f, authAcct, asAdmin);
             if (folderFBAllowed)
@@ -91,60 +95,81 @@ public class LocalFreeBusyProvider {
             }
             for (Iterator<CalendarItemData> iter = result.data.calendarItemIterator(); iter.hasNext(); ) {
                 CalendarItemData appt = iter.next();
-                int apptId = appt.getCalItemId();
-                if (apptId == exApptId)
-                    continue;
-                FullInstanceData defaultInstance = appt.getDefaultData();
-                if (defaultInstance == null)
+                if (appt.getCalItemId() == exApptId)
                     continue;
-                boolean isTransparent = false;
-                String transp = defaultInstance.getTransparency();
-                isTransparent = IcalXmlStrMap.TRANSP_TRANSPARENT.equals(transp);
-                long defaultDuration = 0;
-                if (defaultInstance.getDuration() != null)
-                    defaultDuration = defaultInstance.getDuration().longValue();
-                String defaultFreeBusy = defaultInstance.getFreeBusyActual();
-                for (Iterator<InstanceData> instIter = appt.instanceIterator(); instIter.hasNext(); ) {
-                    InstanceData instance = instIter.next();
-                    long instStart = instance.getDtStart() != null ? instance.getDtStart().longValue() : 0;
-                    // Skip instances that are outside the time range but were returned due to alarm being in range.
-                    if (instStart >= end)
-                        continue;
-                    long dur = defaultDuration;
-                    if (instance.getDuration() != null)
-                        dur = instance.getDuration().longValue();
-                    if (dur <= 0)  // Only consider instances with non-zero, positive duration.
-                        continue;
-                    long instEnd = instStart + dur;
-
-                    long recurIdDt = 0;
-                    // Skip if instance is TRANSPARENT to free/busy searches.
-                    if (instance instanceof FullInstanceData) {
-                        FullInstanceData fullInst = (FullInstanceData) instance;
-                        String transpInst = fullInst.getTransparency();
-                        recurIdDt = fullInst.getRecurrenceId();
-                        if (IcalXmlStrMap.TRANSP_TRANSPARENT.equals(transpInst))
-                            continue;
-                    } else if (isTransparent) {
-                        continue;
-                    }
-
-                    String freeBusy = instance.getFreeBusyActual();
-                    if (freeBusy == null)
-                        freeBusy = defaultFreeBusy;
-                    if (!IcalXmlStrMap.FBTYPE_FREE.equals(freeBusy)) {
-                        FBInstance fbInst = new FBInstance(freeBusy, instStart, instEnd, apptId, recurIdDt);
-                        Interval ival = new Interval(instStart, instEnd, freeBusy, fbInst);
-                        intervals.addInterval(ival);
-                    }
+                instances.clear();
+                getBusyInstances(appt, end, instances);
+                for (FBInstance fbInst : instances) {
+                    intervals.add(new Interval(fbInst.getStartTime(), fbInst.getEndTime(), fbInst.getFreeBusy(), fbInst));
                 }
             }
         }
-        if (!accountAceAllowed && numAllowedFolders == 0 && !LC.freebusy_disable_nodata_status.booleanValue()) {
+        return newFreeBusy(name, start, end, intervals, !accountAceAllowed && numAllowedFolders == 0);
+    }
+
+    static boolean isExcludedFromFreeBusy(Folder f) {
+        if ((f.getFlagBitmask() & Flag.BITMASK_EXCLUDE_FREEBUSY) != 0) {
+            ZimbraLog.fb.debug("Calendar '%s' id=%s ignored - has EXCLUDE_FREEBUSY flag set", f.getName(), f.getId());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the instances of the appointment that count towards free/busy, i.e. those starting before
+     * <tt>end</tt> with a positive duration that are neither TRANSPARENT nor FREE.
+     */
+    static void getBusyInstances(CalendarItemData appt, long end, List<FBInstance> instances) {
+        int apptId = appt.getCalItemId();
+        FullInstanceData defaultInstance = appt.getDefaultData();
+        if (defaultInstance == null)
+            return;
+        boolean isTransparent = false;
+        String transp = defaultInstance.getTransparency();
+        isTransparent = IcalXmlStrMap.TRANSP_TRANSPARENT.equals(transp);
+        long defaultDuration = 0;
+        if (defaultInstance.getDuration() != null)
+            defaultDuration = defaultInstance.getDuration().longValue();
+        String defaultFreeBusy = defaultInstance.getFreeBusyActual();
+        for (Iterator<InstanceData> instIter = appt.instanceIterator(); instIter.hasNext(); ) {
+            InstanceData instance = instIter.next();
+            long instStart = instance.getDtStart() != null ? instance.getDtStart().longValue() : 0;
+            // Skip instances that are outside the time range but were returned due to alarm being in range.
+            if (instStart >= end)
+                continue;
+            long dur = defaultDuration;
+            if (instance.getDuration() != null)
+                dur = instance.getDuration().longValue();
+            if (dur <= 0)  // Only consider instances with non-zero, positive duration.
+                continue;
+            long instEnd = instStart + dur;
+
+            long recurIdDt = 0;
+            // Skip if instance is TRANSPARENT to free/busy searches.
+            if (instance instanceof FullInstanceData) {
+                FullInstanceData fullInst = (FullInstanceData) instance;
+                String transpInst = fullInst.getTransparency();
+                recurIdDt = fullInst.getRecurrenceId();
+                if (IcalXmlStrMap.TRANSP_TRANSPARENT.equals(transpInst))
+                    continue;
+            } else if (isTransparent) {
+                continue;
+            }
+
+            String freeBusy = instance.getFreeBusyActual();
+            if (freeBusy == null)
+                freeBusy = defaultFreeBusy;
+            if (!IcalXmlStrMap.FBTYPE_FREE.equals(freeBusy))
+                instances.add(new FBInstance(freeBusy, instStart, instEnd, apptId, recurIdDt));
+        }
+    }
+
+    static FreeBusy newFreeBusy(String name, long start, long end, List<Interval> intervals, boolean noAccess) {
+        if (noAccess && !LC.freebusy_disable_nodata_status.booleanValue()) {
             Interval nodata = new Interval(start, end, IcalXmlStrMap.FBTYPE_NODATA);
-            intervals.addInterval(nodata);
+            intervals.add(nodata);
         }
-        return new FreeBusy(name, intervals, start, end);
+        return new FreeBusy(name, IntervalList.build(start, end, intervals), start, end);
     }
 
     public static void main(String[] args) {
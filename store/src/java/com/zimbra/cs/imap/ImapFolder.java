@@ -16,6 +16,9 @@
  */
 package com.zimbra.cs.imap;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -59,7 +62,7 @@ import com.zimbra.cs.session.PendingModifications.Change;
  */
 public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Serializable {
     // Update serialVersionUID when changing any instance members. Otherwise serialization won't work correctly.
-    private static final long serialVersionUID = 3845968507901145794L;
+    private static final long serialVersionUID = -2270618715898711361L;
     public static final byte SELECT_READONLY  = 0x01;
     public static final byte SELECT_CONDSTORE = 0x02;
 
@@ -68,13 +71,15 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     private transient ImapListener session;
     private transient ImapPath path;
     private transient SessionData sessionData;
-    private transient Map<Integer, ImapMessage> messageIds;
+    /** canonical instances of the distinct tag sets in the folder, so that messages with the same tags share one */
+    private transient Map<List<String>, String[]> tagSets;
 
     private final ItemIdentifier folderIdentifier;
     private final int uidValidity;
     private String query;
     private Set<MailItem.Type> typeConstraint = ImapHandler.ITEM_TYPES;
-    private final List<ImapMessage> sequence = new ArrayList<ImapMessage>();
+    /** serialized in the compact form written by {@link #writeObject} */
+    private transient ImapMessageSequence sequence = new ImapMessageSequence();
     private final ImapFlagCache tags;   // operationally could be "transient", but that makes deserialization replay depend on magic
 
     // below this point are session-specific attributes of the folder SELECT state
@@ -325,7 +330,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
 
     /** Retrieves the index of the ImapMessage with the given IMAP UID in the
      *  folder's {@link #sequence} message list.  This retrieval is done via
-     *  binary search rather than direct lookup.
+     *  binary search over the sequence's UID column rather than direct lookup.
      * @return index of the search key, if it is contained in the list;
      *         otherwise, <tt>(-(<i>insertion point</i>) - 1)</tt>.  The
      *         <i>insertion point</i> is defined as the point at which the
@@ -334,22 +339,9 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
      *         elements in the list are less than the specified key.  Note
      *         that this guarantees that the return value will be &gt;= 0 if
      *         and only if the key is found.
-     * @see Collections#binarySearch(List, Object) */
+     * @see ImapMessageSequence#uidSearch(int) */
     private int uidSearch(int uid) {
-        int low = 0;
-        int high = getSize() - 1;
-        while (low <= high) {
-            int mid = (low + high) >> 1;
-            int targetUid = sequence.get(mid).imapUid;
-            if (targetUid < uid) {
-                low = mid + 1;
-            } else if (targetUid > uid) {
-                high = mid - 1;
-            } else {
-                return mid;  // key found
-            }
-        }
-        return -(low + 1);  // key not found
+        return sequence.uidSearch(uid);
     }
 
     /** Returns the ImapMessage with the given Zimbra item ID from the
@@ -370,17 +362,9 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
             }
         }
 
-        // if item id and IMAP uid differ, the message goes in the "mMessageIds" map
-        if (messageIds == null) {
-            // lookup miss means we need to generate the item-id-to-imap-message mapping
-            messageIds = new HashMap<Integer, ImapMessage>();
-            for (ImapMessage i4msg : sequence) {
-                if (i4msg != null && i4msg.msgId != i4msg.imapUid) {
-                    messageIds.put(i4msg.msgId, i4msg);
-                }
-            }
-        }
-        return checkRemoved(messageIds.get(Integer.valueOf(id)));
+        // if item id and IMAP uid differ, the sequence's renumbered-id index has the UID
+        int uid = sequence.getRenumberedUid(id);
+        return uid > 0 ? getByImapId(uid) : null;
     }
 
     /** Returns the ImapMessage with the given IMAP UID from the folder's
@@ -416,8 +400,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
 
     /** Adds the message to the folder.  Messages <b>must</b> be added in
      *  increasing IMAP UID order.  Added messages are appended to the end of
-     *  the folder's {@link #sequence} message list and inserted into the
-     *  {@link #mMessageIds} hash (if the latter hash has been instantiated).
+     *  the folder's {@link #sequence} message list.
      * @return true if message cached successfully without modification false if a renumber was required. */
     protected synchronized boolean cache(ImapMessage i4msg, boolean recent) {
         // provide the information missing from the DB search
@@ -462,8 +445,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
                 break;
             } else if (prev.isAdded()) {
                 shifted.addFirst(prev);
-                //add to beginning so iteration below starts with lowest UID
-                //this is necessary to ensure that messageIds map holds the highest UID for a given msgId
+                //add to beginning so iteration below renumbers in sequence order
                 idx--;
             } else {
                 ZimbraLog.imap.warn("message added out of order occurs before message which is already visible to client. Must renumber %s", i4msg);
@@ -486,6 +468,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     }
 
     protected void updateTagCache(ImapMessage i4msg) {
+        i4msg.tags = internTags(i4msg.tags);
         if (!ArrayUtil.isEmpty(i4msg.tags)) {
             for (String tag : i4msg.tags) {
                 if (tags.getByZimbraName(tag) == null) {
@@ -504,24 +487,146 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         }
     }
 
-    private void setIndex(ImapMessage i4msg, int position) {
-        i4msg.sequence = position;
-        if (messageIds != null) {
-            if (i4msg.msgId != i4msg.imapUid) {
-                messageIds.put(Integer.valueOf(i4msg.msgId), i4msg);
-            } else {
-                messageIds.remove(Integer.valueOf(i4msg.msgId));
+    /** Returns the folder's shared instance of the given tag set, or {@code null} if it is empty.  Callers must
+     *  not modify the returned array. */
+    private String[] internTags(String[] msgTags) {
+        if (ArrayUtil.isEmpty(msgTags)) {
+            return null;
+        }
+        if (tagSets == null) {
+            tagSets = new HashMap<List<String>, String[]>();
+        }
+        List<String> key = Arrays.asList(msgTags);
+        String[] canonical = tagSets.get(key);
+        if (canonical == null) {
+            tagSets.put(key, canonical = msgTags);
+        }
+        return canonical;
+    }
+
+    /** Writes {@link #sequence} column by column rather than as one serialized object per message.  UIDs are
+     *  delta-encoded and item IDs are stored relative to their UIDs, both as variable-length ints, and tag sets
+     *  are written once and referenced by index.  This keeps large folders small and fast to page out. */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        int size = sequence.size();
+        out.writeInt(size);
+
+        Map<List<String>, Integer> tagIndex = new HashMap<List<String>, Integer>();
+        List<String[]> tagList = new ArrayList<String[]>();
+        for (ImapMessage i4msg : sequence) {
+            if (!ArrayUtil.isEmpty(i4msg.tags) && !tagIndex.containsKey(Arrays.asList(i4msg.tags))) {
+                tagIndex.put(Arrays.asList(i4msg.tags), tagList.size() + 1);
+                tagList.add(i4msg.tags);
+            }
+        }
+        writeVarInt(out, tagList.size());
+        for (String[] msgTags : tagList) {
+            writeVarInt(out, msgTags.length);
+            for (String tag : msgTags) {
+                out.writeUTF(tag);
+            }
+        }
+
+        int prevUid = 0;
+        for (ImapMessage i4msg : sequence) {
+            writeVarInt(out, zigzag(i4msg.imapUid - prevUid));
+            prevUid = i4msg.imapUid;
+        }
+        for (ImapMessage i4msg : sequence) {
+            writeVarInt(out, zigzag(i4msg.msgId - i4msg.imapUid));
+        }
+        for (ImapMessage i4msg : sequence) {
+            writeVarInt(out, i4msg.flags);
+        }
+        for (ImapMessage i4msg : sequence) {
+            writeVarInt(out, i4msg.sflags & 0xFFFF);
+        }
+        for (ImapMessage i4msg : sequence) {
+            writeVarInt(out, ArrayUtil.isEmpty(i4msg.tags) ? 0 : tagIndex.get(Arrays.asList(i4msg.tags)));
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("invalid message count " + size);
+        }
+
+        String[][] tagList = new String[readVarInt(in) + 1][];
+        for (int i = 1; i < tagList.length; i++) {
+            tagList[i] = new String[readVarInt(in)];
+            for (int j = 0; j < tagList[i].length; j++) {
+                tagList[i][j] = in.readUTF();
+            }
+        }
+
+        int[] uids = new int[size];
+        int prevUid = 0;
+        for (int i = 0; i < size; i++) {
+            uids[i] = prevUid += unzigzag(readVarInt(in));
+        }
+        int[] ids = new int[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = uids[i] + unzigzag(readVarInt(in));
+        }
+        int[] flags = new int[size];
+        for (int i = 0; i < size; i++) {
+            flags[i] = readVarInt(in);
+        }
+        sequence = new ImapMessageSequence(size);
+        for (int i = 0; i < size; i++) {
+            ImapMessage i4msg = new ImapMessage(ids[i], MailItem.Type.MESSAGE, uids[i], flags[i], null);
+            i4msg.sflags = (short) readVarInt(in);
+            i4msg.sequence = i + 1;
+            sequence.add(i4msg);
+        }
+        for (ImapMessage i4msg : sequence) {
+            int index = readVarInt(in);
+            if (index >= tagList.length) {
+                throw new IOException("invalid tag set index " + index);
             }
+            i4msg.tags = internTags(tagList[index]);
         }
     }
 
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void writeVarInt(ObjectOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(ObjectInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed variable-length int");
+    }
+
+    private void setIndex(ImapMessage i4msg, int position) {
+        i4msg.sequence = position;
+    }
+
     /** Cleans up all references to an ImapMessage from all the folder's data
      *  structures other than {@link #sequence}.  The {@link #sequence}
      *  cleanup must be done separately. */
     private void uncache(ImapMessage i4msg) {
-        if (messageIds != null) {
-            messageIds.remove(i4msg.msgId);
-        }
         SessionData sdata = sessionData;
         if (sdata != null) {
             sdata.dirtyMessages.remove(Integer.valueOf(i4msg.imapUid));
@@ -570,7 +675,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
                 if (newName != null) {
                     tags.add(newName);
                 }
-                i4msg.tags = tags.isEmpty() ? null : tags.toArray(new String[tags.size()]);
+                i4msg.tags = internTags(tags.toArray(new String[tags.size()]));
             }
         }
     }
@@ -1086,9 +1191,8 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
             ImapMessage i4msg = lit.next();
             if (i4msg.isExpunged()) {
                 ZimbraLog.imap.debug("  ** removing: %s", i4msg);
-                // uncache() removes pointers to the message from mMessageIds;
-                //   if the message appears again in sequence, it *must* be later and the
-                //   subsequent call to setIndex() will correctly update the mMessageIds mapping
+                // removing the message from the sequence also drops it from the renumbered-id index;
+                //   if the message appears again in sequence, it *must* be later and is indexed under its new UID
                 uncache(i4msg);
                 lit.remove();
                 // note that we can't send expunge notifications for messages the client doesn't know about yet...
@@ -3884,9 +3884,25 @@ public abstract class ImapHandler {
         } finally {
             mbox.unlock();
         }
+        boolean needItem = !fullMessage.isEmpty() || (parts != null && !parts.isEmpty()) ||
+                (attributes & ~FETCH_FROM_CACHE) != 0;
+        boolean needMime = (parts != null && !parts.isEmpty()) || (attributes & FETCH_FROM_MIME) != 0;
+        List<ImapMessage> i4list = new ArrayList<ImapMessage>(i4set);
+        ImapMessagePrefetcher prefetcher = null;
+        if (needItem) {
+            try {
+                String folderOwner = i4folder.getFolder().getFolderItemIdentifier().accountId;
+                prefetcher = new ImapMessagePrefetcher(mbox, getContextOrNull(),
+                        (folderOwner != null) ? folderOwner : mbox.getAccountId(), i4list, needMime);
+            } catch (ServiceException e) {
+                // each message is looked up on its own below, which reports the failure
+                ZimbraLog.imap.debug("not prefetching for %s", command, e);
+            }
+        }
         ReentrantLock lock = null;
         try {
-            for (ImapMessage i4msg : i4set) {
+            for (int index = 0; index < i4list.size(); index++) {
+                ImapMessage i4msg = i4list.get(index);
                 PrintStream result = new PrintStream(output, false, Charsets.UTF_8.name());
                 try {
                     result.print("* " + i4msg.sequence + " FETCH (");
@@ -3900,15 +3916,18 @@ public abstract class ImapHandler {
                     boolean empty = true;
                     ZimbraMailItem item = null;
                     MimeMessage mm;
-                    if (!fullMessage.isEmpty() || (parts != null && !parts.isEmpty()) || (attributes & ~FETCH_FROM_CACHE) != 0) {
+                    if (needItem) {
                         if (lock == null && LC.imap_throttle_fetch.booleanValue()) {
                             lock = commandThrottle.lock(credentials.getAccountId());
                         }
                         try {
-                            String folderOwner = i4folder.getFolder().getFolderItemIdentifier().accountId;
-                            ItemIdentifier iid = ItemIdentifier.fromAccountIdAndItemId(
-                                    (folderOwner != null) ? folderOwner : mbox.getAccountId(), i4msg.msgId);
-                            item = mbox.getItemById(getContext(), iid, i4msg.getType().toCommon());
+                            item = prefetcher == null ? null : prefetcher.getItem(index);
+                            if (item == null) {
+                                String folderOwner = i4folder.getFolder().getFolderItemIdentifier().accountId;
+                                ItemIdentifier iid = ItemIdentifier.fromAccountIdAndItemId(
+                                        (folderOwner != null) ? folderOwner : mbox.getAccountId(), i4msg.msgId);
+                                item = mbox.getItemById(getContext(), iid, i4msg.getType().toCommon());
+                            }
                         } catch (NoSuchItemException nsie) {
                             // just in case we're out of sync, force this message back into sync
                             i4folder.markMessageExpunged(i4msg);
@@ -3943,8 +3962,9 @@ public abstract class ImapHandler {
                         }
                     }
 
-                    if ((parts != null && !parts.isEmpty()) || (attributes & FETCH_FROM_MIME) != 0) {
-                        mm = ImapMessage.getMimeMessage(item);
+                    if (needMime) {
+                        mm = prefetcher == null ? ImapMessage.getMimeMessage(item) :
+                                prefetcher.getMimeMessage(index, item);
                         if ((attributes & FETCH_BODY) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("BODY ");
@@ -4024,6 +4044,9 @@ public abstract class ImapHandler {
                 }
             }
         } finally {
+            if (prefetcher != null) {
+                prefetcher.close();
+            }
             if (lock != null) {
                 lock.unlock();
             }
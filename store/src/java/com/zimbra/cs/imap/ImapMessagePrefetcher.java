@@ -0,0 +1,222 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.imap;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeMessage;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.ItemIdentifier;
+import com.zimbra.common.mailbox.MailboxStore;
+import com.zimbra.common.mailbox.OpContext;
+import com.zimbra.common.mailbox.ZimbraMailItem;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.OperationContext;
+
+/**
+ * Read-ahead for a FETCH over many messages.
+ * <p>
+ * Items are looked up {@code imap_fetch_prefetch_batch_size} at a time, which resolves cache misses with batched
+ * {@code IN (...)} queries instead of one query per message.  Local mailboxes are read with
+ * {@link Mailbox#getItemsByIdForRead}, under the mailbox read lock; others with
+ * {@link MailboxStore#getItemsById(OpContext, java.util.Collection)}.  When the response needs the parsed MIME structure,
+ * the next {@code imap_fetch_prefetch_depth} local messages are opened and parsed on a shared pool while the
+ * handler is writing out earlier responses.
+ * <p>
+ * Lookups that fail here are simply not prefetched; the caller falls back to fetching that message on its own,
+ * which preserves the existing handling of messages that disappear mid-FETCH.
+ */
+final class ImapMessagePrefetcher {
+
+    private static final ExecutorService PARSER = newParser();
+
+    private final MailboxStore mbox;
+    private final OpContext octxt;
+    private final String accountId;
+    private final List<ImapMessage> messages;
+    private final boolean parseAhead;
+    private final int batchSize;
+    private final int depth;
+    private final Map<Integer, ZimbraMailItem> items = Maps.newHashMap();
+    private final Deque<Pending> parsing = new ArrayDeque<Pending>();
+    /** index of the first message whose item has not been looked up yet */
+    private int loadedTo = 0;
+    /** index of the first message that has not been considered for parse-ahead yet */
+    private int parsedTo = 0;
+
+    private static final class Pending {
+        final int index;
+        final Future<MimeMessage> future;
+
+        Pending(int index, Future<MimeMessage> future) {
+            this.index = index;
+            this.future = future;
+        }
+    }
+
+    private static ExecutorService newParser() {
+        int threads = LC.imap_fetch_prefetch_threads.intValue();
+        if (threads <= 0) {
+            return null;
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("ImapPrefetch-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @param messages the messages in the order the FETCH responses will be written
+     * @param needMime whether the responses need {@link ImapMessage#getMimeMessage(ZimbraMailItem)}
+     */
+    ImapMessagePrefetcher(MailboxStore mbox, OpContext octxt, String accountId, List<ImapMessage> messages,
+            boolean needMime) {
+        this.mbox = mbox;
+        this.octxt = octxt;
+        this.accountId = accountId;
+        this.messages = messages;
+        this.batchSize = Math.max(1, LC.imap_fetch_prefetch_batch_size.intValue());
+        this.depth = Math.max(0, LC.imap_fetch_prefetch_depth.intValue());
+        this.parseAhead = needMime && PARSER != null && depth > 0;
+    }
+
+    /**
+     * Returns the prefetched item for the message at {@code index}, or {@code null} if it has to be looked up by
+     * the caller.  Messages must be requested in increasing order.
+     */
+    ZimbraMailItem getItem(int index) {
+        if (index >= loadedTo) {
+            load(index);
+        }
+        ZimbraMailItem item = items.remove(messages.get(index).msgId);
+        if (parseAhead) {
+            parseAhead(index + 1);
+        }
+        return item;
+    }
+
+    private void load(int from) {
+        int to = Math.min(messages.size(), from + batchSize);
+        List<ItemIdentifier> iids = Lists.newArrayListWithCapacity(to - from);
+        for (int i = from; i < to; i++) {
+            ImapMessage i4msg = messages.get(i);
+            if (!i4msg.isExpunged()) {
+                iids.add(ItemIdentifier.fromAccountIdAndItemId(accountId, i4msg.msgId));
+            }
+        }
+        loadedTo = to;
+        if (iids.isEmpty() || octxt == null) {
+            return;
+        }
+        try {
+            List<? extends ZimbraMailItem> found;
+            if (mbox instanceof Mailbox) {
+                int[] ids = new int[iids.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = iids.get(i).id;
+                }
+                found = Arrays.asList(((Mailbox) mbox).getItemsByIdForRead(
+                        OperationContext.asOperationContext(octxt), ids, MailItem.Type.UNKNOWN));
+            } else {
+                found = mbox.getItemsById(octxt, iids);
+            }
+            for (ZimbraMailItem item : found) {
+                if (item != null) {
+                    items.put(item.getIdInMailbox(), item);
+                }
+            }
+        } catch (ServiceException e) {
+            // most likely one of the messages has been deleted; look them up one at a time instead
+            ZimbraLog.imap.debug("unable to prefetch %d items; falling back to individual lookups", iids.size(), e);
+        }
+    }
+
+    private void parseAhead(int from) {
+        int to = Math.min(Math.min(messages.size(), loadedTo), from + depth);
+        for (int i = Math.max(from, parsedTo); i < to; i++) {
+            final ZimbraMailItem item = items.get(messages.get(i).msgId);
+            // remote items share a SOAP connection with the handler, so only local messages are parsed ahead
+            if (item instanceof Message) {
+                parsing.add(new Pending(i, PARSER.submit(new Callable<MimeMessage>() {
+                    @Override
+                    public MimeMessage call() throws ServiceException {
+                        return ImapMessage.getMimeMessage(item);
+                    }
+                })));
+            }
+            parsedTo = i + 1;
+        }
+    }
+
+    /**
+     * Returns the parsed MIME structure of {@code item}, the message at {@code index}, waiting for the read-ahead
+     * if one was started.
+     */
+    MimeMessage getMimeMessage(int index, ZimbraMailItem item) throws ServiceException {
+        while (!parsing.isEmpty() && parsing.peek().index <= index) {
+            Pending pending = parsing.poll();
+            if (pending.index < index) {
+                // the handler skipped that message
+                pending.future.cancel(false);
+                continue;
+            }
+            try {
+                return Uninterruptibles.getUninterruptibly(pending.future);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ServiceException) {
+                    throw (ServiceException) e.getCause();
+                }
+                ZimbraLog.imap.debug("read-ahead of message %d failed; reading it again", messages.get(index).msgId, e.getCause());
+                break;
+            }
+        }
+        return ImapMessage.getMimeMessage(item);
+    }
+
+    /**
+     * Abandons any read-ahead still outstanding.
+     */
+    void close() {
+        for (Pending pending : parsing) {
+            pending.future.cancel(false);
+        }
+        parsing.clear();
+        items.clear();
+    }
+}
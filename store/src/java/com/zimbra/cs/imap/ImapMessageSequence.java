@@ -0,0 +1,170 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2026 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * The message list of an {@link ImapFolder}, kept in UID order.  Alongside the messages themselves it keeps the
+ * IMAP UIDs in a primitive column, so that UID lookups are a binary search over an {@code int[]} instead of a
+ * walk over message objects, and a sorted {@code long[]} of the (item ID, UID) pairs of the messages whose item
+ * ID differs from their UID, which replaces the boxed item-ID-to-message hash.
+ * <p>
+ * A message's UID must not change while it is in the sequence.  Flags stay on the {@link ImapMessage} because
+ * handlers and notifications update them through the message references they hold.
+ */
+final class ImapMessageSequence extends AbstractList<ImapMessage> implements RandomAccess {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private ImapMessage[] messages;
+    private int[] uids;
+    private int size;
+
+    /** {@code (msgId << 32) | imapUid} for every message whose item ID is not its UID, in ascending order */
+    private long[] renumbered = new long[0];
+    private int renumberedCount;
+
+    ImapMessageSequence() {
+        this(INITIAL_CAPACITY);
+    }
+
+    ImapMessageSequence(int capacity) {
+        capacity = Math.max(capacity, 1);
+        messages = new ImapMessage[capacity];
+        uids = new int[capacity];
+    }
+
+    @Override
+    public ImapMessage get(int index) {
+        checkIndex(index);
+        return messages[index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void add(int index, ImapMessage i4msg) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        }
+        if (size == messages.length) {
+            int capacity = size + (size >> 1) + 1;
+            messages = Arrays.copyOf(messages, capacity);
+            uids = Arrays.copyOf(uids, capacity);
+        }
+        System.arraycopy(messages, index, messages, index + 1, size - index);
+        System.arraycopy(uids, index, uids, index + 1, size - index);
+        messages[index] = i4msg;
+        uids[index] = i4msg.imapUid;
+        size++;
+        modCount++;
+        indexId(i4msg);
+    }
+
+    @Override
+    public ImapMessage set(int index, ImapMessage i4msg) {
+        checkIndex(index);
+        ImapMessage old = messages[index];
+        unindexId(old);
+        messages[index] = i4msg;
+        uids[index] = i4msg.imapUid;
+        indexId(i4msg);
+        return old;
+    }
+
+    @Override
+    public ImapMessage remove(int index) {
+        checkIndex(index);
+        ImapMessage old = messages[index];
+        System.arraycopy(messages, index + 1, messages, index, size - index - 1);
+        System.arraycopy(uids, index + 1, uids, index, size - index - 1);
+        messages[--size] = null;
+        modCount++;
+        unindexId(old);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(messages, 0, size, null);
+        size = 0;
+        renumberedCount = 0;
+        modCount++;
+    }
+
+    /** Binary search for the given IMAP UID.
+     * @return the index of the message with that UID, or {@code -(insertion point) - 1} if there is none
+     * @see Arrays#binarySearch(int[], int, int, int) */
+    int uidSearch(int uid) {
+        return Arrays.binarySearch(uids, 0, size, uid);
+    }
+
+    /** Returns the UID of the message with the given item ID whose UID differs from that ID, or 0 if there is
+     *  none.  If several such messages share the item ID, the highest UID wins. */
+    int getRenumberedUid(int msgId) {
+        int pos = Arrays.binarySearch(renumbered, 0, renumberedCount, ((long) msgId << 32) | 0xFFFFFFFFL);
+        pos = (pos >= 0 ? pos : -pos - 1) - 1;
+        if (pos < 0 || (int) (renumbered[pos] >> 32) != msgId) {
+            return 0;
+        }
+        return (int) renumbered[pos];
+    }
+
+    private void indexId(ImapMessage i4msg) {
+        if (i4msg == null || i4msg.msgId == i4msg.imapUid) {
+            return;
+        }
+        long key = idKey(i4msg);
+        int pos = Arrays.binarySearch(renumbered, 0, renumberedCount, key);
+        if (pos >= 0) {
+            return;
+        }
+        pos = -pos - 1;
+        if (renumberedCount == renumbered.length) {
+            renumbered = Arrays.copyOf(renumbered, renumberedCount + (renumberedCount >> 1) + 4);
+        }
+        System.arraycopy(renumbered, pos, renumbered, pos + 1, renumberedCount - pos);
+        renumbered[pos] = key;
+        renumberedCount++;
+    }
+
+    private void unindexId(ImapMessage i4msg) {
+        if (i4msg == null || i4msg.msgId == i4msg.imapUid) {
+            return;
+        }
+        int pos = Arrays.binarySearch(renumbered, 0, renumberedCount, idKey(i4msg));
+        if (pos >= 0) {
+            System.arraycopy(renumbered, pos + 1, renumbered, pos, renumberedCount - pos - 1);
+            renumberedCount--;
+        }
+    }
+
+    private static long idKey(ImapMessage i4msg) {
+        return ((long) i4msg.msgId << 32) | (i4msg.imapUid & 0xFFFFFFFFL);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        }
+    }
+}
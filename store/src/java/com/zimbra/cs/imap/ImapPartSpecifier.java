@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
 import java.util.List;
 
@@ -30,6 +31,9 @@ import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimePart;
 
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
+
 import com.zimbra.common.mailbox.ZimbraMailItem;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
@@ -38,6 +42,8 @@ import com.zimbra.common.util.StartOutOfBoundsException;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.server.NioOutputStream;
+import com.zimbra.cs.store.BlobInputStream;
 
 class ImapPartSpecifier {
     static class BinaryDecodingException extends Exception {
@@ -171,8 +177,22 @@ class ImapPartSpecifier {
                 ps.write('}');   /* } added to fix vim buggy brace matching code */
                 if (os != null) {
                     os.write(ImapHandler.LINE_SEPARATOR_BYTES);
-                    long written = ByteUtil.copy(is, false, os, false);
-                    assert written == length;
+                    final ByteBuffer mapped = os instanceof NioOutputStream ? BlobInputStream.mapLargeBlob(is) : null;
+                    if (mapped != null) {
+                        assert mapped.remaining() == length;
+                        // MINA sends the buffer asynchronously and holds on to it until the write is done
+                        ((NioOutputStream) os).write(mapped, new IoFutureListener<WriteFuture>() {
+                            @Override
+                            public void operationComplete(WriteFuture future) {
+                                if (future.isWritten()) {
+                                    BlobInputStream.recordSent(mapped);
+                                }
+                            }
+                        });
+                    } else {
+                        long written = ByteUtil.copy(is, false, os, false);
+                        assert written == length;
+                    }
                 }
             }
         } finally {
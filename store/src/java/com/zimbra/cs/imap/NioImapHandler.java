@@ -111,6 +111,7 @@ final class NioImapHandler extends ImapHandler implements NioHandler {
         }
 
         long start = ZimbraPerf.STOPWATCH_IMAP.start();
+        long startNanos = System.nanoTime();
 
         try {
             if (!checkAccountStatus()) {
@@ -139,8 +140,8 @@ final class NioImapHandler extends ImapHandler implements NioHandler {
         } finally {
             long elapsed = ZimbraPerf.STOPWATCH_IMAP.stop(start);
             if (lastCommand != null) {
-                ZimbraPerf.IMAP_TRACKER.addStat(lastCommand.toUpperCase(), start);
-                ZimbraPerf.IMAPD_TRACKER.addStat(lastCommand.toUpperCase(), start);
+                ZimbraPerf.IMAP_TRACKER.addStatNanos(lastCommand.toUpperCase(), startNanos);
+                ZimbraPerf.IMAPD_TRACKER.addStatNanos(lastCommand.toUpperCase(), startNanos);
                 ZimbraLog.imap.info("%s elapsed=%d", lastCommand.toUpperCase(), elapsed);
             } else {
                 ZimbraLog.imap.info("(unknown) elapsed=%d", elapsed);
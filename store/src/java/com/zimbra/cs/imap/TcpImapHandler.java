@@ -104,6 +104,7 @@ final class TcpImapHandler extends ProtocolHandler {
             }
 
             long start = ZimbraPerf.STOPWATCH_IMAP.start();
+            long startNanos = System.nanoTime();
             // check account status before executing command
             if (!delegate.checkAccountStatus()) {
                 return false;
@@ -119,8 +120,8 @@ final class TcpImapHandler extends ProtocolHandler {
             long elapsed = ZimbraPerf.STOPWATCH_IMAP.stop(start);
             if (delegate.lastCommand != null) {
                 ZimbraLog.imap.info("%s elapsed=%d", delegate.lastCommand.toUpperCase(), elapsed);
-                ZimbraPerf.IMAP_TRACKER.addStat(delegate.lastCommand.toUpperCase(), start);
-                ZimbraPerf.IMAPD_TRACKER.addStat(delegate.lastCommand.toUpperCase(), start);
+                ZimbraPerf.IMAP_TRACKER.addStatNanos(delegate.lastCommand.toUpperCase(), startNanos);
+                ZimbraPerf.IMAPD_TRACKER.addStatNanos(delegate.lastCommand.toUpperCase(), startNanos);
             } else {
                 ZimbraLog.imap.info("(unknown) elapsed=%d", elapsed);
             }
@@ -43,11 +43,17 @@ import org.apache.lucene.index.SerialMergeScheduler;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldComparator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
 import org.apache.lucene.store.NoSuchDirectoryException;
 import org.apache.lucene.util.Version;
 
@@ -56,6 +62,7 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
 import com.googlecode.concurrentlinkedhashmap.EvictionListener;
@@ -939,7 +946,7 @@ public final class LuceneIndex extends IndexStore {
     /**
      * Custom {@link IndexSearcher} that supports a reference counter.
      */
-    private static final class IndexSearcherImpl implements ZimbraIndexSearcher {
+    private static final class IndexSearcherImpl implements ResumableIndexSearcher {
         private final AtomicInteger count = new AtomicInteger(1);
         private final IndexSearcher luceneSearcher;
         private final ZimbraIndexReader luceneReader;
@@ -1001,6 +1008,102 @@ public final class LuceneIndex extends IndexStore {
             TermsFilter luceneFilter = (filter == null) ? null : new TermsFilter(filter.getTerms());
             return ZimbraTopFieldDocs.create(luceneSearcher.search(query, luceneFilter, n, sort));
         }
+
+        @Override
+        public ZimbraTopDocs searchAfter(ZimbraScoreDoc after, Query query, ZimbraTermsFilter filter, int n,
+                Sort sort) throws IOException {
+            if (!(after.getDocumentID() instanceof ZimbraLuceneDocumentID)) {
+                throw new IllegalArgumentException("Expected a ZimbraLuceneDocumentID");
+            }
+            int afterDoc = ((ZimbraLuceneDocumentID) after.getDocumentID()).getLuceneDocID();
+            TermsFilter luceneFilter = (filter == null) ? null : new TermsFilter(filter.getTerms());
+            if (sort == null) {
+                return ZimbraTopDocs.create(luceneSearcher.searchAfter(
+                        new ScoreDoc(afterDoc, after.getScore()), query, luceneFilter, n));
+            }
+            // Lucene 3.5 can only resume relevance ordered searches, so skip everything up to the cursor ourselves
+            // and only keep a queue of n hits, rather than collecting every hit before the cursor again.
+            TopFieldCollector top = TopFieldCollector.create(sort, n, true, false, false, false);
+            SearchAfterCollector collector = new SearchAfterCollector(top, sort, after.getSortValues(), afterDoc);
+            luceneSearcher.search(query, luceneFilter, collector);
+            TopDocs docs = top.topDocs();
+            List<SortField> sortFields = Lists.newArrayList(sort.getSort());
+            return ZimbraTopFieldDocs.create(collector.totalHits,
+                    ZimbraScoreDoc.listFromLuceneScoreDocs(docs.scoreDocs), sortFields);
+        }
+    }
+
+    /**
+     * Only passes on hits which sort after the cursor hit, comparing the sort values the cursor was returned with and
+     * breaking ties by document ID, as {@link TopFieldCollector} does.
+     */
+    private static final class SearchAfterCollector extends Collector {
+        private final Collector delegate;
+        private final FieldComparator<?>[] comparators;
+        private final int[] reverseMul;
+        private final Object[] afterValues;
+        private final int afterDoc;
+        private int docBase;
+        int totalHits = 0;
+
+        SearchAfterCollector(Collector delegate, Sort sort, Object[] afterValues, int afterDoc) throws IOException {
+            SortField[] fields = sort.getSort();
+            if (afterValues == null || afterValues.length != fields.length) {
+                throw new IllegalArgumentException("search cursor has no values for " + sort);
+            }
+            this.delegate = delegate;
+            this.afterValues = afterValues;
+            this.afterDoc = afterDoc;
+            comparators = new FieldComparator<?>[fields.length];
+            reverseMul = new int[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                comparators[i] = fields[i].getComparator(1, i);
+                reverseMul[i] = fields[i].getReverse() ? -1 : 1;
+            }
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private boolean isAfter(int doc) throws IOException {
+            for (int i = 0; i < comparators.length; i++) {
+                FieldComparator comparator = comparators[i];
+                comparator.copy(0, doc);
+                int c = reverseMul[i] * comparator.compareValues(comparator.value(0), afterValues[i]);
+                if (c != 0) {
+                    return c > 0;
+                }
+            }
+            return docBase + doc > afterDoc;
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) throws IOException {
+            delegate.setScorer(scorer);
+            for (FieldComparator<?> comparator : comparators) {
+                comparator.setScorer(scorer);
+            }
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            totalHits++;
+            if (isAfter(doc)) {
+                delegate.collect(doc);
+            }
+        }
+
+        @Override
+        public void setNextReader(IndexReader reader, int base) throws IOException {
+            delegate.setNextReader(reader, base);
+            for (FieldComparator<?> comparator : comparators) {
+                comparator.setNextReader(reader, base);
+            }
+            docBase = base;
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+            return delegate.acceptsDocsOutOfOrder();
+        }
     }
 
     public static final class ZimbraLuceneIndexReader implements ZimbraIndexReader {
@@ -18,11 +18,13 @@
 package com.zimbra.cs.index;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.Term;
@@ -35,6 +37,11 @@ import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
 
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Lists;
@@ -48,6 +55,7 @@ import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.util.IOUtil;
+import com.zimbra.soap.ZimbraSoapContext;
 
 /**
  * {@link QueryOperation} which queries Lucene.
@@ -85,9 +93,26 @@ public final class LuceneQueryOperation extends QueryOperation {
     private final List<QueryInfo> queryInfo = Lists.newArrayList();
     private boolean hasSpamTrashSetting = false;
 
-    private ZimbraTopDocs hits;
-    private int topDocsLen = 0; // number of hits fetched
+    private List<ZimbraScoreDoc> hits; // hits fetched so far, in sort order
+    private int totalHits = 0;
     private int topDocsChunkSize = 2000; // how many hits to fetch per step in Lucene
+    private ZimbraTermsFilter filter;
+    private CursorKey cursorKey;
+
+    /**
+     * Hits already fetched by recent searches, so that paging through a large result set resumes collection after
+     * the last hit fetched instead of re-running the search from the top for every page.
+     */
+    private static final Cache<CursorKey, Cursor> CURSOR_CACHE = CacheBuilder.newBuilder()
+        .maximumWeight(LC.zimbra_index_search_cursor_cache_max_hits.intValue())
+        .weigher(new Weigher<CursorKey, Cursor>() {
+            @Override
+            public int weigh(CursorKey key, Cursor value) {
+                return value.hits.size();
+            }
+        })
+        .expireAfterAccess(LC.zimbra_index_search_cursor_cache_ttl.intValue(), TimeUnit.SECONDS)
+        .build();
     private ZimbraIndexSearcher searcher;
     private Sort sort;
 
@@ -290,8 +315,7 @@ public final class LuceneQueryOperation extends QueryOperation {
     private void fetchFirstResults(int initialChunkSize) {
         if (!haveRunSearch) {
             assert(curHitNo == 0);
-            topDocsLen = 3 * initialChunkSize;
-            runSearch();
+            runSearch(3 * initialChunkSize);
         }
     }
 
@@ -308,26 +332,26 @@ public final class LuceneQueryOperation extends QueryOperation {
 
         long start = System.currentTimeMillis();
         LuceneResultsChunk result = new LuceneResultsChunk();
-        int luceneLen = hits != null ? hits.getTotalHits() : 0;
+        int luceneLen = hits != null ? totalHits : 0;
         while ((result.size() < max) && (curHitNo < luceneLen)) {
-            if (topDocsLen <= curHitNo) {
-                topDocsLen += topDocsChunkSize;
+            if (hits.size() <= curHitNo) {
+                int chunkSize = Math.min(topDocsChunkSize, luceneLen - hits.size());
                 topDocsChunkSize *= 4;
                 if (topDocsChunkSize > 1000000) {
                     topDocsChunkSize = 1000000;
                 }
-                if (topDocsLen > luceneLen) {
-                    topDocsLen = luceneLen;
+                runSearch(chunkSize);
+                if (hits == null || hits.size() <= curHitNo) { // search failed or the index shrank under us
+                    return result;
                 }
-                runSearch();
             }
 
             Document doc;
             try {
-                doc = searcher.doc(hits.getScoreDoc(curHitNo).getDocumentID());
+                doc = searcher.doc(hits.get(curHitNo).getDocumentID());
             } catch (Exception e) {
                 ZimbraLog.search.error("Failed to retrieve Lucene document: %s",
-                        hits.getScoreDoc(curHitNo).getDocumentID().toString(), e);
+                        hits.get(curHitNo).getDocumentID().toString(), e);
                 return result;
             }
             curHitNo++;
@@ -374,9 +398,12 @@ public final class LuceneQueryOperation extends QueryOperation {
     }
 
     /**
-     * Execute the actual search via Lucene
+     * Execute the actual search via Lucene: the first call runs the query, or picks up the hits a previous search for
+     * the same query left in the cursor cache, and subsequent calls fetch up to {@code n} more hits after the last
+     * hit fetched so far.
      */
-    private void runSearch() {
+    private void runSearch(int n) {
+        boolean first = !haveRunSearch;
         haveRunSearch = true;
 
         if (searcher == null) { // this can happen if the Searcher couldn't be opened, e.g. index does not exist
@@ -385,23 +412,61 @@ public final class LuceneQueryOperation extends QueryOperation {
         }
 
         try {
-            if (luceneQuery instanceof BooleanQuery) {
-                fixMustNotOnly((BooleanQuery) luceneQuery);
-            }
-            luceneQuery = expandLazyMultiPhraseQuery(luceneQuery);
-            if (luceneQuery == null) { // optimized away
+            if (first) {
+                if (luceneQuery instanceof BooleanQuery) {
+                    fixMustNotOnly((BooleanQuery) luceneQuery);
+                }
+                luceneQuery = expandLazyMultiPhraseQuery(luceneQuery);
+                if (luceneQuery == null) { // optimized away
+                    hits = null;
+                    return;
+                }
+                filter = (filterTerms != null) ? new ZimbraTermsFilter(filterTerms) : null;
                 hits = null;
-                return;
+                cursorKey = null;
+                // DB-first plans filter on a different set of ids for every chunk, so there is nothing to resume
+                if (filter == null && LC.zimbra_index_search_cursor_cache_max_hits.intValue() > 0) {
+                    cursorKey = new CursorKey(context.getMailbox(), context.getParams().getRequestContext(),
+                            luceneQuery, sort);
+                    Cursor cursor = CURSOR_CACHE.getIfPresent(cursorKey);
+                    if (cursor != null && cursor.isValid(searcher)) {
+                        hits = new ArrayList<ZimbraScoreDoc>(cursor.hits);
+                        totalHits = cursor.totalHits;
+                        ZimbraLog.search.debug("LuceneSearch query=%s,resumed=%d,total=%d",
+                                luceneQuery, hits.size(), totalHits);
+                        if (hits.size() >= Math.min(n, totalHits)) {
+                            return;
+                        }
+                        n -= hits.size();
+                    }
+                }
             }
-            ZimbraTermsFilter filter = (filterTerms != null) ? new ZimbraTermsFilter(filterTerms) : null;
+
             long start = System.currentTimeMillis();
-            if (sort == null) {
-                hits = searcher.search(luceneQuery, filter, topDocsLen);
-            } else {
-                hits = searcher.search(luceneQuery, filter, topDocsLen, sort);
+            ZimbraTopDocs docs = null;
+            if (hits != null && !hits.isEmpty()) {
+                if (searcher instanceof ResumableIndexSearcher) {
+                    docs = ((ResumableIndexSearcher) searcher).searchAfter(
+                            hits.get(hits.size() - 1), luceneQuery, filter, n, sort);
+                    hits.addAll(docs.getScoreDocs());
+                } else {
+                    n += hits.size();
+                }
             }
+            if (docs == null) {
+                if (sort == null) {
+                    docs = searcher.search(luceneQuery, filter, n);
+                } else {
+                    docs = searcher.search(luceneQuery, filter, n, sort);
+                }
+                hits = new ArrayList<ZimbraScoreDoc>(docs.getScoreDocs());
+            }
+            totalHits = docs.getTotalHits();
             ZimbraLog.search.debug("LuceneSearch query=%s,n=%d,total=%d,elapsed=%d",
-                    luceneQuery, topDocsLen, hits.getTotalHits(), System.currentTimeMillis() - start);
+                    luceneQuery, n, totalHits, System.currentTimeMillis() - start);
+            if (cursorKey != null) {
+                CURSOR_CACHE.put(cursorKey, new Cursor(searcher, hits, totalHits));
+            }
         } catch (IOException e) {
             ZimbraLog.search.error("Failed to search query=%s", luceneQuery, e);
             IOUtil.closeQuietly(searcher);
@@ -512,7 +577,7 @@ public final class LuceneQueryOperation extends QueryOperation {
      * @return number of hits in this search
      */
     private long getTotalHitCount() {
-        return hits != null ? hits.getTotalHits() : 0;
+        return hits != null ? totalHits : 0;
     }
 
     @Override
@@ -804,6 +869,66 @@ public final class LuceneQueryOperation extends QueryOperation {
         }
     }
 
+    /**
+     * Identifies a search whose hits may be resumed: the same query and sort, issued in the same SOAP session (or,
+     * without one, by the same authenticated account) against the same mailbox, which must not have changed since.
+     * Cursors are therefore never shared between sessions or users paging through the same mailbox.
+     */
+    private static final class CursorKey {
+        private final String accountId;
+        private final String requester;
+        private final int changeId;
+        private final Query query;
+        private final Sort sort;
+
+        CursorKey(Mailbox mbox, ZimbraSoapContext zsc, Query query, Sort sort) {
+            accountId = mbox.getAccountId();
+            if (zsc == null) {
+                requester = null;
+            } else {
+                requester = zsc.getSessionId() != null ? zsc.getSessionId() : zsc.getAuthtokenAccountId();
+            }
+            changeId = mbox.getLastChangeID();
+            this.query = query;
+            this.sort = sort;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CursorKey)) {
+                return false;
+            }
+            CursorKey other = (CursorKey) obj;
+            return accountId.equals(other.accountId) && Objects.equal(requester, other.requester) &&
+                    changeId == other.changeId && query.equals(other.query) && Objects.equal(sort, other.sort);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(accountId, requester, changeId, query, sort);
+        }
+    }
+
+    /**
+     * Hits fetched by a search. Lucene document IDs are only meaningful to the reader they came from, so the cursor
+     * is only valid while the index reader hasn't been reopened, and doesn't keep a closed reader alive.
+     */
+    private static final class Cursor {
+        private final WeakReference<ZimbraIndexReader> reader;
+        private final List<ZimbraScoreDoc> hits;
+        private final int totalHits;
+
+        Cursor(ZimbraIndexSearcher searcher, List<ZimbraScoreDoc> hits, int totalHits) {
+            reader = new WeakReference<ZimbraIndexReader>(searcher.getIndexReader());
+            this.hits = ImmutableList.copyOf(hits);
+            this.totalHits = totalHits;
+        }
+
+        boolean isValid(ZimbraIndexSearcher searcher) {
+            return reader.get() == searcher.getIndexReader();
+        }
+    }
+
     /**
      * We use this data structure to track a "chunk" of Lucene hits which the {@link DBQueryOperation} will use to check
      * against the DB.
@@ -0,0 +1,38 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2026 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.IOException;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+
+/**
+ * A {@link ZimbraIndexSearcher} that can resume a search after a hit it returned earlier.  Searchers that don't
+ * implement this are paged by re-running the search asking for more hits.
+ */
+public interface ResumableIndexSearcher extends ZimbraIndexSearcher {
+
+    /**
+     * Finds the top n hits for query, applying filter if non-null, which come after {@code after} - the last hit
+     * returned by a previous search with the same query, filter and sort (null for unsorted, relevance order).
+     * Collection resumes from {@code after} rather than re-collecting every hit before it.
+     * The total hit count is that of the whole query, not just of the hits after {@code after}.
+     */
+    public ZimbraTopDocs searchAfter(ZimbraScoreDoc after, Query query, ZimbraTermsFilter filter, int n, Sort sort)
+            throws IOException;
+}
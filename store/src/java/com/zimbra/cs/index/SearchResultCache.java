@@ -0,0 +1,601 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.IOUtil;
+
+/**
+ * Results of recent searches, so that clients re-issuing the same search (e.g. listing the inbox, or refreshing a
+ * saved search) don't run it again until something it depends on has changed.
+ * <p>
+ * A result is only reused while the mailbox's last change ID is unchanged, or for searches every hit of which must
+ * be in specific folders, while the change ID highwater marks of those folders are unchanged. Only the first hits of
+ * a search (up to the offset and limit requested) are kept, as arrays of item IDs and sort values; the items are
+ * loaded from the mailbox again when the hits are read.
+ * <p>
+ * Searches that depend on anything other than the mailbox's own data (remote folders, Lucene document fields,
+ * IMAP or modseq fetch modes, the dumpster, cursors, or sorts re-sorted after the fact) are never cached.
+ */
+public final class SearchResultCache {
+
+    private static final Cache<Key, Entry> CACHE = CacheBuilder.newBuilder()
+        .maximumWeight(LC.zimbra_index_search_result_cache_max_bytes.longValue())
+        .weigher(new Weigher<Key, Entry>() {
+            @Override
+            public int weigh(Key key, Entry value) {
+                return key.getWeight() + value.getWeight();
+            }
+        })
+        .expireAfterAccess(LC.zimbra_index_search_result_cache_ttl.intValue(), TimeUnit.SECONDS)
+        .build();
+
+    private SearchResultCache() {
+    }
+
+    /**
+     * Returns the key identifying the results of the query, or null if they must not be cached. The key also records
+     * the state of the mailbox it depends on, so it must be obtained before the query is run.
+     */
+    public static Key getKey(Mailbox mbox, ZimbraQuery query, OperationContext octxt) throws ServiceException {
+        if (!LC.zimbra_index_search_result_cache_enabled.booleanValue() ||
+                LC.zimbra_index_search_result_cache_max_bytes.longValue() <= 0) {
+            return null;
+        }
+        SearchParams params = query.getParams();
+        if (params.isQuick() || params.inDumpster() || params.getCursor() != null) {
+            return null;
+        }
+        switch (params.getFetchMode()) {
+            case NORMAL:
+            case IDS:
+                break;
+            default: // hits would have to carry the IMAP data, modseq or parent ID fetched with them
+                return null;
+        }
+        switch (params.getSortBy()) {
+            case TASK_DUE_ASC:
+            case TASK_DUE_DESC:
+            case TASK_STATUS_ASC:
+            case TASK_STATUS_DESC:
+            case TASK_PERCENT_COMPLETE_ASC:
+            case TASK_PERCENT_COMPLETE_DESC:
+            case READ_ASC:
+            case READ_DESC:
+            case NAME_LOCALIZED_ASC:
+            case NAME_LOCALIZED_DESC:
+                return null;
+            default:
+                break;
+        }
+        if ((long) params.getOffset() + params.getLimit() >= LC.zimbra_index_search_result_cache_max_hits.intValue()) {
+            return null;
+        }
+
+        // The folders' highwater marks cover every change to the items in them, but not to conversations spanning
+        // other folders or to the permissions a delegate has on the rest of the mailbox.
+        int[] folderIds = null;
+        if ((octxt == null || !octxt.isDelegatedRequest(mbox)) &&
+                !params.getTypes().contains(MailItem.Type.CONVERSATION)) {
+            Set<Folder> folders = query.getRequiredFolders();
+            if (folders != null) {
+                folderIds = new int[folders.size()];
+                int i = 0;
+                for (Folder folder : folders) {
+                    if ((folder.getAttributes() & Folder.FOLDER_DONT_TRACK_COUNTS) != 0) {
+                        folderIds = null;
+                        break;
+                    }
+                    folderIds[i++] = folder.getId();
+                }
+            }
+        }
+        // The parsed form resolves folder paths and relative dates, but isn't meant to tell every query apart.
+        String queryString = CharMatcher.whitespace().trimAndCollapseFrom(Strings.nullToEmpty(params.getQueryString()), ' ');
+        return new Key(mbox, queryString + '\n' + query.toString(), params, octxt, folderIds);
+    }
+
+    /**
+     * Returns the cached results for the search, or null if there are none that are still valid and cover the
+     * requested offset and limit. Should the caller read past the hits cached, the query is run for the rest.
+     */
+    public static ZimbraQueryResults get(Mailbox mbox, Key key, ZimbraQuery query) {
+        SearchParams params = query.getParams();
+        Entry entry = CACHE.getIfPresent(key);
+        if (entry != null && entry.stamp != key.stamp) {
+            CACHE.asMap().remove(key, entry);
+            entry = null;
+        }
+        if (entry == null || !entry.covers(params.getOffset() + params.getLimit() + 1)) {
+            ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE.increment(0);
+            return null;
+        }
+        ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE.increment(100);
+        ZimbraLog.search.debug("Using %d cached hits for %s", entry.size(), query);
+        return new CachedQueryResults(mbox, entry, query);
+    }
+
+    /**
+     * Wraps the results of a search so that the hits read through them are cached when they are closed.
+     */
+    public static ZimbraQueryResults record(Key key, ZimbraQueryResults results, SearchParams params) {
+        return new RecordingQueryResults(key, results, params.getOffset() + params.getLimit() + 1);
+    }
+
+    /**
+     * Returns the estimated heap footprint of the cached results, in bytes.
+     */
+    public static long getWeightedSize() {
+        long size = 0;
+        for (Map.Entry<Key, Entry> entry : CACHE.asMap().entrySet()) {
+            size += entry.getKey().getWeight() + entry.getValue().getWeight();
+        }
+        return size;
+    }
+
+    /**
+     * Discards the cached results of the mailbox, e.g. when it's deleted.
+     */
+    public static void invalidate(int mailboxId) {
+        Iterator<Key> keys = CACHE.asMap().keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().mailboxId == mailboxId) {
+                keys.remove();
+            }
+        }
+    }
+
+    public static void clear() {
+        CACHE.invalidateAll();
+    }
+
+    private static int getStamp(Mailbox mbox, int[] folderIds) throws ServiceException {
+        if (folderIds == null) {
+            return mbox.getLastChangeID();
+        }
+        int stamp = 0;
+        for (int id : folderIds) {
+            Folder folder = mbox.getFolderById(null, id);
+            stamp = Math.max(stamp, Math.max(folder.getImapMODSEQ(), folder.getModifiedSequence()));
+        }
+        return stamp;
+    }
+
+    /**
+     * Identifies a search by everything that decides which hits it returns and in what order.
+     */
+    public static final class Key {
+        private final int mailboxId;
+        private final String authId;
+        private final boolean admin;
+        private final String query;
+        private final String defaultField;
+        private final Set<MailItem.Type> types;
+        private final SortBy sort;
+        private final SearchParams.Fetch fetch;
+        private final boolean includeTagDeleted;
+        private final boolean includeTagMuted;
+        private final Set<TaskHit.Status> taskStatuses;
+        private final long calItemExpandStart;
+        private final long calItemExpandEnd;
+        private final TimeZone timezone;
+        private final Locale locale;
+        private final int stamp; // state of the mailbox (or folders) the search depends on, not part of the identity
+
+        Key(Mailbox mbox, String query, SearchParams params, OperationContext octxt, int[] folderIds)
+                throws ServiceException {
+            mailboxId = mbox.getId();
+            Account authuser = octxt == null ? null : octxt.getAuthenticatedUser();
+            authId = authuser == null ? null : authuser.getId();
+            admin = octxt != null && octxt.isUsingAdminPrivileges();
+            this.query = query;
+            defaultField = params.getDefaultField();
+            types = params.getTypes().isEmpty() ?
+                    EnumSet.noneOf(MailItem.Type.class) : EnumSet.copyOf(params.getTypes());
+            sort = params.getSortBy();
+            fetch = params.getFetchMode();
+            includeTagDeleted = params.getIncludeTagDeleted();
+            includeTagMuted = params.getIncludeTagMuted();
+            taskStatuses = params.getAllowableTaskStatuses();
+            calItemExpandStart = params.getCalItemExpandStart();
+            calItemExpandEnd = params.getCalItemExpandEnd();
+            timezone = params.getTimeZone();
+            locale = params.getLocale();
+            stamp = getStamp(mbox, folderIds);
+        }
+
+        int getWeight() {
+            return 128 + query.length() * 2;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return mailboxId == other.mailboxId && Objects.equal(authId, other.authId) && admin == other.admin &&
+                    query.equals(other.query) && Objects.equal(defaultField, other.defaultField) &&
+                    types.equals(other.types) && sort == other.sort &&
+                    fetch == other.fetch && includeTagDeleted == other.includeTagDeleted &&
+                    includeTagMuted == other.includeTagMuted && Objects.equal(taskStatuses, other.taskStatuses) &&
+                    calItemExpandStart == other.calItemExpandStart && calItemExpandEnd == other.calItemExpandEnd &&
+                    Objects.equal(timezone, other.timezone) && Objects.equal(locale, other.locale);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(mailboxId, authId, query, types, sort, fetch, calItemExpandStart, locale);
+        }
+    }
+
+    /**
+     * The first hits of a search, in order. Conversation hits also keep the IDs of the messages that matched.
+     */
+    private static final class Entry {
+        private final int stamp;
+        private final SortBy sortBy;
+        private final List<QueryInfo> info;
+        private final int[] ids;
+        private final byte[] types;
+        private final Object[] sortValues;
+        private final int[][] convMsgIds;
+        private final boolean complete; // there are no more hits than these
+
+        Entry(int stamp, SortBy sortBy, List<QueryInfo> info, int[] ids, byte[] types, Object[] sortValues,
+                int[][] convMsgIds, boolean complete) {
+            this.stamp = stamp;
+            this.sortBy = sortBy;
+            this.info = info;
+            this.ids = ids;
+            this.types = types;
+            this.sortValues = sortValues;
+            this.convMsgIds = convMsgIds;
+            this.complete = complete;
+        }
+
+        int size() {
+            return ids.length;
+        }
+
+        boolean covers(int numHits) {
+            return complete || ids.length >= numHits;
+        }
+
+        int getWeight() {
+            int weight = 64 + ids.length * (4 + 1 + 8 + 8);
+            for (Object value : sortValues) {
+                if (value instanceof String) {
+                    weight += 40 + ((String) value).length() * 2;
+                } else if (value != null) {
+                    weight += 16;
+                }
+            }
+            if (convMsgIds != null) {
+                for (int[] msgIds : convMsgIds) {
+                    weight += msgIds == null ? 0 : 16 + msgIds.length * 4;
+                }
+            }
+            return weight;
+        }
+    }
+
+    /**
+     * Passes the hits of a search through, remembering the ones read from the top. When closed, they are cached if
+     * enough of them were read to answer the same search again.
+     */
+    private static final class RecordingQueryResults implements ZimbraQueryResults {
+        private final Key key;
+        private final ZimbraQueryResults results;
+        private final int maxHits;
+        private final List<ZimbraHit> hits = new ArrayList<ZimbraHit>();
+        private int position = 0;
+        private boolean exhausted = false;
+        private boolean recording = true;
+
+        RecordingQueryResults(Key key, ZimbraQueryResults results, int maxHits) {
+            this.key = key;
+            this.results = results;
+            this.maxHits = maxHits;
+        }
+
+        private ZimbraHit record(ZimbraHit hit) {
+            if (recording && position == hits.size()) {
+                if (hit == null) {
+                    exhausted = true;
+                } else if (hits.size() < maxHits) {
+                    hits.add(hit);
+                }
+            }
+            return hit;
+        }
+
+        @Override
+        public void resetIterator() throws ServiceException {
+            results.resetIterator();
+            position = 0;
+        }
+
+        @Override
+        public ZimbraHit getNext() throws ServiceException {
+            ZimbraHit hit = record(results.getNext());
+            if (hit != null) {
+                position++;
+            }
+            return hit;
+        }
+
+        @Override
+        public ZimbraHit peekNext() throws ServiceException {
+            return record(results.peekNext());
+        }
+
+        @Override
+        public ZimbraHit skipToHit(int hitNo) throws ServiceException {
+            if (recording && hitNo < maxHits) {
+                // walk there instead, so that the hits skipped over are recorded
+                resetIterator();
+                ZimbraHit hit = null;
+                while (position <= hitNo) {
+                    hit = getNext();
+                    if (hit == null) {
+                        break;
+                    }
+                }
+                return hit;
+            }
+            recording = false;
+            return results.skipToHit(hitNo);
+        }
+
+        @Override
+        public boolean hasNext() throws ServiceException {
+            return peekNext() != null;
+        }
+
+        @Override
+        public SortBy getSortBy() {
+            return results.getSortBy();
+        }
+
+        @Override
+        public List<QueryInfo> getResultInfo() {
+            return results.getResultInfo();
+        }
+
+        @Override
+        public long getCursorOffset() {
+            return results.getCursorOffset();
+        }
+
+        @Override
+        public boolean isPreSorted() {
+            return results.isPreSorted();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (recording && (exhausted || hits.size() >= maxHits)) {
+                    Entry entry = toEntry();
+                    if (entry != null) {
+                        CACHE.put(key, entry);
+                    }
+                }
+            } catch (ServiceException e) {
+                ZimbraLog.search.debug("Failed to cache results of %s", key.query, e);
+            } finally {
+                results.close();
+            }
+        }
+
+        private Entry toEntry() throws ServiceException {
+            int size = hits.size();
+            int[] ids = new int[size];
+            byte[] types = new byte[size];
+            Object[] sortValues = new Object[size];
+            int[][] convMsgIds = null;
+            for (int i = 0; i < size; i++) {
+                ZimbraHit hit = hits.get(i);
+                MailItem.Type type;
+                if (hit instanceof ConversationHit) {
+                    type = MailItem.Type.CONVERSATION;
+                    Collection<MessageHit> msgHits = ((ConversationHit) hit).getMessageHits();
+                    int[] msgIds = new int[msgHits.size()];
+                    int j = 0;
+                    for (MessageHit msgHit : msgHits) {
+                        msgIds[j++] = msgHit.getItemId();
+                    }
+                    if (convMsgIds == null) {
+                        convMsgIds = new int[size][];
+                    }
+                    convMsgIds[i] = msgIds;
+                } else if (hit instanceof MessageHit) {
+                    List<MessagePartHit> parts = ((MessageHit) hit).getMatchedMimePartNames();
+                    if (parts != null && !parts.isEmpty()) {
+                        return null; // the matched parts come from Lucene documents
+                    }
+                    type = MailItem.Type.MESSAGE;
+                } else if (hit instanceof ContactHit) {
+                    type = MailItem.Type.CONTACT;
+                } else if (hit instanceof NoteHit) {
+                    type = MailItem.Type.NOTE;
+                } else if (hit instanceof TaskHit) {
+                    type = MailItem.Type.TASK;
+                } else if (hit instanceof CalendarItemHit) {
+                    type = MailItem.Type.APPOINTMENT;
+                } else if (hit instanceof DocumentHit) {
+                    type = MailItem.Type.DOCUMENT;
+                } else { // remote hits, message parts
+                    return null;
+                }
+                ids[i] = hit.getItemId();
+                types[i] = type.toByte();
+                sortValues[i] = hit.sortValue;
+            }
+            List<QueryInfo> info = results.getResultInfo();
+            return new Entry(key.stamp, results.getSortBy(),
+                    info == null || info.isEmpty() ? Collections.<QueryInfo>emptyList() : new ArrayList<QueryInfo>(info),
+                    ids, types, sortValues, convMsgIds, exhausted);
+        }
+    }
+
+    /**
+     * Hits rebuilt from a cache entry. The items are loaded lazily, like hits of a search that didn't prefetch them.
+     * Callers may read on past the number of hits they asked for, so the query is run again if they go beyond the
+     * hits cached.
+     */
+    private static final class CachedQueryResults extends ZimbraQueryResultsImpl {
+        private final Mailbox mailbox;
+        private final Entry entry;
+        private final ZimbraQuery query;
+        private ZimbraQueryResults rest;
+        private int restPosition;
+        private int next = 0;
+
+        CachedQueryResults(Mailbox mbox, Entry entry, ZimbraQuery query) {
+            super(query.getParams().getTypes(), entry.sortBy, query.getParams().getFetchMode());
+            this.mailbox = mbox;
+            this.entry = entry;
+            this.query = query;
+        }
+
+        private ZimbraHit getHit(int i) {
+            int id = entry.ids[i];
+            Object sortValue = entry.sortValues[i];
+            switch (MailItem.Type.of(entry.types[i])) {
+                case CONVERSATION:
+                    ConversationHit hit = getConversationHit(mailbox, id, sortValue);
+                    for (int msgId : entry.convMsgIds[i]) {
+                        hit.addMessageHit(getMessageHit(mailbox, msgId, null, null, sortValue));
+                    }
+                    return hit;
+                case MESSAGE:
+                    return getMessageHit(mailbox, id, null, null, sortValue);
+                case CONTACT:
+                    return getContactHit(mailbox, id, null, sortValue);
+                case NOTE:
+                    return getNoteHit(mailbox, id, null, sortValue);
+                case TASK:
+                    return getTaskHit(mailbox, id, null, sortValue);
+                case APPOINTMENT:
+                    return getAppointmentHit(mailbox, id, null, sortValue);
+                case DOCUMENT:
+                    return getDocumentHit(mailbox, id, null, null, sortValue);
+                default:
+                    throw new IllegalStateException(MailItem.Type.of(entry.types[i]).name());
+            }
+        }
+
+        /**
+         * Returns the results of running the query again, positioned at the next hit.
+         */
+        private ZimbraQueryResults getRest() throws ServiceException {
+            if (rest == null) {
+                ZimbraLog.search.debug("Running %s again past %d cached hits", query, entry.size());
+                rest = query.execute();
+                restPosition = 0;
+            }
+            if (restPosition != next) {
+                if (next > 0) {
+                    rest.skipToHit(next - 1);
+                } else {
+                    rest.resetIterator();
+                }
+                restPosition = next;
+            }
+            return rest;
+        }
+
+        @Override
+        public void resetIterator() {
+            next = 0;
+        }
+
+        @Override
+        public ZimbraHit getNext() throws ServiceException {
+            ZimbraHit hit = peekNext();
+            if (hit != null) {
+                if (next >= entry.size()) {
+                    rest.getNext();
+                    restPosition++;
+                }
+                next++;
+            }
+            return hit;
+        }
+
+        @Override
+        public ZimbraHit peekNext() throws ServiceException {
+            if (next < entry.size()) {
+                return getHit(next);
+            } else if (entry.complete) {
+                return null;
+            } else {
+                return getRest().peekNext();
+            }
+        }
+
+        @Override
+        public ZimbraHit skipToHit(int hitNo) throws ServiceException {
+            next = hitNo;
+            return getNext();
+        }
+
+        @Override
+        public List<QueryInfo> getResultInfo() {
+            return entry.info;
+        }
+
+        @Override
+        public long getCursorOffset() {
+            return -1;
+        }
+
+        @Override
+        public void close() {
+            IOUtil.closeQuietly(rest);
+        }
+    }
+}
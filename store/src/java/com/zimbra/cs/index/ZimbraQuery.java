@@ -18,6 +18,7 @@
 package com.zimbra.cs.index;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -748,6 +749,37 @@ public final class ZimbraQuery {
         return false;
     }
 
+    /**
+     * Returns the local folders every hit of this query must be in, or null if the query isn't restricted to specific
+     * folders, e.g. Inbox for "in:inbox is:unread", but null for "in:inbox or in:sent" and "under:inbox".
+     */
+    public Set<Folder> getRequiredFolders() {
+        List<ParseTree.Node> nodes;
+        if (parseTree instanceof ParseTree.OperatorNode) {
+            ParseTree.OperatorNode opnode = (ParseTree.OperatorNode) parseTree;
+            if (opnode.conjunction != ParseTree.Conjunction.AND || !opnode.bool) {
+                return null;
+            }
+            nodes = opnode.getNodes();
+        } else {
+            nodes = Collections.singletonList(parseTree);
+        }
+        Set<Folder> folders = new HashSet<Folder>();
+        for (ParseTree.Node node : nodes) {
+            if (node instanceof ParseTree.ThingNode && node.bool) {
+                Query query = ((ParseTree.ThingNode) node).getQuery();
+                if (query instanceof InQuery && query.getModifier() != Modifier.MINUS) {
+                    InQuery in = (InQuery) query;
+                    Folder folder = in.getFolder();
+                    if (folder != null && !(folder instanceof Mountpoint) && !in.isIncludeSubfolders()) {
+                        folders.add(folder);
+                    }
+                }
+            }
+        }
+        return folders.isEmpty() ? null : folders;
+    }
+
     public SearchParams getParams() {
         return params;
     }
@@ -18,6 +18,7 @@ package com.zimbra.cs.index;
 
 import java.util.List;
 
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.ScoreDoc;
 
 import com.google.common.base.MoreObjects;
@@ -29,10 +30,16 @@ import com.google.common.collect.Lists;
 public final class ZimbraScoreDoc {
     private final ZimbraIndexDocumentID documentID;
     private final float score;
+    private final Object[] sortValues;
 
     private ZimbraScoreDoc(ZimbraIndexDocumentID documentID, float score) {
+        this(documentID, score, null);
+    }
+
+    private ZimbraScoreDoc(ZimbraIndexDocumentID documentID, float score, Object[] sortValues) {
         this.documentID = documentID;
         this.score = score;
+        this.sortValues = sortValues;
     }
 
     public static ZimbraScoreDoc create(ZimbraIndexDocumentID documentID, float score) {
@@ -50,7 +57,8 @@ public final class ZimbraScoreDoc {
      * Create equivalent ZimbraScoreDoc object to a Lucene ScoreDoc object
      */
     public static ZimbraScoreDoc create(ScoreDoc luceneScoreDoc) {
-        return new ZimbraScoreDoc(new ZimbraLuceneDocumentID(luceneScoreDoc.doc), luceneScoreDoc.score);
+        Object[] sortValues = luceneScoreDoc instanceof FieldDoc ? ((FieldDoc) luceneScoreDoc).fields : null;
+        return new ZimbraScoreDoc(new ZimbraLuceneDocumentID(luceneScoreDoc.doc), luceneScoreDoc.score, sortValues);
     }
 
     /**
@@ -67,6 +75,13 @@ public final class ZimbraScoreDoc {
         return score;
     }
 
+    /**
+     * Returns the values of the sort fields for this document, or null if the search wasn't sorted by field
+     */
+    public Object[] getSortValues() {
+        return sortValues;
+    }
+
     public static List<ZimbraScoreDoc> listFromLuceneScoreDocs(ScoreDoc[] luceneScoreDocs) {
         if (luceneScoreDocs == null) {
             return Lists.newArrayListWithCapacity(0);
@@ -0,0 +1,314 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.index.elasticsearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mime.MimeConstants;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Accumulates index operations into ElasticSearch {@code _bulk} requests.
+ * <p>
+ * A request is sent once it holds {@code zimbra_index_elasticsearch_bulk_max_actions} actions,
+ * {@code zimbra_index_elasticsearch_bulk_max_kb} of payload, or its oldest action is older than
+ * {@code zimbra_index_elasticsearch_bulk_max_delay_ms}; the age limit is enforced by a timer, so a partial request
+ * is sent even if no further action is added.  Requests are sent from a shared pool so the caller can keep
+ * preparing documents; at most {@code zimbra_index_elasticsearch_bulk_concurrency} requests are in flight across the
+ * server, and callers block once that limit is reached.
+ * <p>
+ * {@link #close()} sends whatever is buffered and waits for every request issued by this instance.  It throws
+ * {@link IOException} if any request could not be delivered, so that the caller can leave the items for a later
+ * attempt.  Documents rejected by ElasticSearch itself are logged and not retried.  Every document is indexed under
+ * an ID chosen by the caller, so a retried request replaces the documents that were accepted the first time instead
+ * of duplicating them.
+ * <p>
+ * Each {@link com.zimbra.cs.index.Indexer} owns one; the monitor guards the buffer and is only held to take the
+ * buffered actions out of it, never while waiting for an in-flight slot or for a response, so that the timer and
+ * other callers don't queue up behind a caller that is blocked by back-pressure.
+ */
+public final class ElasticSearchBulkProcessor implements Closeable {
+
+    private static final Semaphore IN_FLIGHT =
+            new Semaphore(Math.max(1, LC.zimbra_index_elasticsearch_bulk_concurrency.intValue()));
+    private static final ExecutorService SENDER = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("ElasticSearchBulk-%d").setDaemon(true).build());
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("ElasticSearchBulkTimer").setDaemon(true).build());
+    // how soon the timer tries again when every in-flight slot is taken
+    private static final long BUSY_RETRY_MILLIS = 50L;
+
+    private final String bulkUrl;
+    private final int maxActions;
+    private final int maxChars;
+    private final long maxDelayMillis;
+    private final List<Future<Void>> pending = Lists.newArrayList();  // guarded by this
+    private StringBuilder buffer = new StringBuilder();
+    private int actions = 0;
+    private long firstActionTime = 0L;
+    private ScheduledFuture<?> timer;
+
+    public ElasticSearchBulkProcessor(String indexUrl) {
+        this(indexUrl, LC.zimbra_index_elasticsearch_bulk_max_actions.intValue(),
+                LC.zimbra_index_elasticsearch_bulk_max_kb.intValue() * 1024,
+                LC.zimbra_index_elasticsearch_bulk_max_delay_ms.longValue());
+    }
+
+    ElasticSearchBulkProcessor(String indexUrl, int maxActions, int maxChars, long maxDelayMillis) {
+        this.bulkUrl = String.format("%s_bulk", indexUrl);
+        this.maxActions = Math.max(1, maxActions);
+        this.maxChars = Math.max(1, maxChars);
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Queues {@code source} to be added to the index under {@code type}, replacing any document with the same ID.
+     */
+    public void index(String type, String id, JSONObject source) throws IOException {
+        try {
+            JSONObject meta = new JSONObject().put("index", new JSONObject().put("_type", type).put("_id", id));
+            add(meta, source);
+        } catch (JSONException e) {
+            throw new IOException("Problem creating bulk index action", e);
+        }
+    }
+
+    private void add(JSONObject meta, JSONObject source) {
+        FutureTask<Void> batch;
+        synchronized (this) {
+            if (actions == 0) {
+                firstActionTime = System.currentTimeMillis();
+                scheduleFlush(maxDelayMillis);
+            }
+            buffer.append(meta.toString()).append('\n').append(source.toString()).append('\n');
+            actions++;
+            if (actions < maxActions && buffer.length() < maxChars &&
+                    System.currentTimeMillis() - firstActionTime < maxDelayMillis) {
+                return;
+            }
+            batch = takeBuffered();
+        }
+        IN_FLIGHT.acquireUninterruptibly();
+        execute(batch);
+    }
+
+    private void scheduleFlush(long delayMillis) {
+        timer = TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flushIfDue();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called by the timer; sends the buffered actions if the oldest has waited long enough, otherwise re-arms for
+     * the remainder of its delay.  The timer is shared by every instance, so it never waits for an in-flight slot:
+     * if none is free, it tries again shortly and leaves the wait to the next {@link #add} or {@link #flush}.
+     */
+    private void flushIfDue() {
+        FutureTask<Void> batch;
+        synchronized (this) {
+            if (actions == 0) {
+                return;
+            }
+            long age = System.currentTimeMillis() - firstActionTime;
+            if (age < maxDelayMillis) {
+                cancelTimer();
+                scheduleFlush(Math.max(1L, maxDelayMillis - age));
+                return;
+            } else if (!IN_FLIGHT.tryAcquire()) {
+                cancelTimer();
+                scheduleFlush(BUSY_RETRY_MILLIS);
+                return;
+            }
+            batch = takeBuffered();
+        }
+        execute(batch);
+    }
+
+    /**
+     * Number of actions buffered but not yet sent.
+     */
+    public synchronized int getBufferedActions() {
+        return actions;
+    }
+
+    /**
+     * Sends the buffered actions, if any, without waiting for the response.  Blocks while the server-wide limit of
+     * in-flight requests is reached.
+     */
+    public void flush() {
+        FutureTask<Void> batch;
+        synchronized (this) {
+            cancelTimer();
+            if (actions == 0) {
+                return;
+            }
+            batch = takeBuffered();
+        }
+        IN_FLIGHT.acquireUninterruptibly();
+        execute(batch);
+    }
+
+    private void cancelTimer() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+    }
+
+    /**
+     * Empties the buffer into a request that {@link #flushAndWait} waits for from now on, though it is only sent
+     * by {@link #execute}.  Caller must hold the monitor.
+     */
+    private FutureTask<Void> takeBuffered() {
+        cancelTimer();
+        final String body = buffer.toString();
+        final int count = actions;
+        buffer = new StringBuilder();
+        actions = 0;
+        FutureTask<Void> batch = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try {
+                    send(body, count);
+                } finally {
+                    IN_FLIGHT.release();
+                }
+                return null;
+            }
+        });
+        pending.add(batch);
+        return batch;
+    }
+
+    /**
+     * Hands a request taken by {@link #takeBuffered} to the sender pool.  Caller must hold an {@link #IN_FLIGHT}
+     * permit, which is released once the request completes, and must not hold the monitor.
+     */
+    private static void execute(FutureTask<Void> batch) {
+        try {
+            SENDER.execute(batch);
+        } catch (RuntimeException e) {
+            IN_FLIGHT.release();
+            batch.cancel(false);
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the buffered actions and waits until every request issued so far has completed.
+     *
+     * @throws IOException if any request failed; all requests are waited for regardless
+     */
+    public void flushAndWait() throws IOException {
+        flush();
+        List<Future<Void>> issued;
+        synchronized (this) {
+            issued = Lists.newArrayList(pending);
+            pending.clear();
+        }
+        IOException failure = null;
+        for (Future<Void> future : issued) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = (e.getCause() instanceof IOException) ?
+                            (IOException) e.getCause() : new IOException("Problem sending bulk request", e.getCause());
+                }
+            } catch (CancellationException e) {
+                if (failure == null) {
+                    failure = new IOException("Bulk request to " + bulkUrl + " was not sent", e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushAndWait();
+    }
+
+    private void send(String body, int count) throws IOException {
+        PostMethod method = new PostMethod(ElasticSearchConnector.actualUrl(bulkUrl));
+        method.setRequestEntity(new StringRequestEntity(body,
+                MimeConstants.CT_APPLICATION_JSON, MimeConstants.P_CHARSET_UTF8));
+        ElasticSearchConnector connector = new ElasticSearchConnector();
+        int statusCode = connector.executeMethod(method);
+        if (statusCode != HttpStatus.SC_OK) {
+            throw new IOException(String.format("Problem sending bulk request of %d actions to %s httpstatus=%d",
+                    count, bulkUrl, statusCode));
+        }
+        if (!connector.getBooleanAtJsonPath(new String[] {"errors"}, false)) {
+            ZimbraLog.index.debug("Sent bulk request of %d actions to %s", count, bulkUrl);
+            return;
+        }
+        JSONArray items = connector.getArrayAtJsonPath(new String[] {"items"});
+        int rejected = 0;
+        boolean retryable = false;
+        for (int i = 0; items != null && i < items.length(); i++) {
+            JSONObject item = items.optJSONObject(i);
+            // each item is keyed by its action type, e.g. {"index":{"status":400,"error":"..."}}
+            JSONArray actionNames = (item == null) ? null : item.names();
+            JSONObject result = (actionNames == null) ? null : item.optJSONObject(actionNames.optString(0));
+            if (result == null || !result.has("error")) {
+                continue;
+            }
+            rejected++;
+            int status = result.optInt("status", 0);
+            if (status == HttpStatus.SC_SERVICE_UNAVAILABLE || status == 429 /* Too Many Requests */) {
+                retryable = true;
+            }
+            ZimbraLog.index.error("Problem indexing document in bulk request to %s status=%d error=%s",
+                    bulkUrl, status, result.opt("error"));
+        }
+        if (retryable) {
+            throw new IOException(String.format("ElasticSearch rejected %d of %d bulk actions sent to %s",
+                    rejected, count, bulkUrl));
+        }
+    }
+}
@@ -59,6 +59,7 @@ public class ElasticSearchConnector {
         try {
             HttpClient client = ZimbraHttpConnectionManager.getInternalHttpConnMgr().newHttpClient();
             statusCode = client.executeMethod(method);
+            body = method.getResponseBodyAsString();
         } catch (ConnectException ce) {
             throw new ZimbraElasticSearchDownException(ce);
         } catch (NoHttpResponseException nhre) {
@@ -68,8 +69,10 @@ public class ElasticSearchConnector {
             // In the longer term we need to track failures related to particular items at a higher level and discard
             // them after retrying a number of times.
             throw new ZimbraElasticSearchNoResponseException(nhre);
+        } finally {
+            // hand the connection back to the pool so that it is kept alive for the next request
+            method.releaseConnection();
         }
-        body = method.getResponseBodyAsString();
         ZimbraLog.elasticsearch.trace("ElasticSearch request:%s %s - statusCode=%d%s\nRESPONSE BODY=%s",
                 method.getName(), method.getURI(), statusCode, reqBody, body);
         return statusCode;
@@ -27,12 +27,16 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.NameValuePair;
 import org.apache.commons.httpclient.methods.DeleteMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.PutMethod;
 import org.apache.commons.httpclient.methods.StringRequestEntity;
@@ -62,8 +66,10 @@ import org.json.JSONObject;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimeConstants;
+import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.index.BrowseTerm;
 import com.zimbra.cs.index.IndexDocument;
@@ -96,6 +102,11 @@ import com.zimbra.cs.mailbox.Mailbox;
 public final class ElasticSearchIndex extends IndexStore {
 
     private final static String indexType = "zimbra";
+    /** Lucene's default limit on clauses in a single query is 1024 */
+    private final static int MAX_IDS_PER_DELETE = 500;
+    /** Keys of indexes written to since they were last refreshed, mapped to the sequence number of the last write */
+    private final static ConcurrentMap<String, Long> needsRefresh = Maps.newConcurrentMap();
+    private final static AtomicLong writeSequence = new AtomicLong();
     private final Mailbox mailbox;
     private final String key;
     private final String indexUrl;
@@ -111,7 +122,9 @@ public final class ElasticSearchIndex extends IndexStore {
         if (haveMappingInfo) {
             return;
         }
-        if (!refreshIndexIfNecessary()) {
+        if (indexExists()) {
+            haveMappingInfo = true;
+        } else {
             try {
                 ElasticSearchConnector connector = new ElasticSearchConnector();
                 JSONObject mappingInfo = createMappingInfo();
@@ -121,7 +134,7 @@ public final class ElasticSearchIndex extends IndexStore {
                 int statusCode = connector.executeMethod(putMethod);
                 if (statusCode == HttpStatus.SC_OK) {
                     haveMappingInfo = true;
-                    refreshIndexIfNecessary(); // Sometimes searches don't seem to honor mapping info.  Try to force it
+                    refreshIndex(); // Sometimes searches don't seem to honor mapping info.  Try to force it
                 } else {
                     ZimbraLog.index.error("Problem Setting mapping information for index with key=%s httpstatus=%d",
                             key, statusCode);
@@ -136,11 +149,41 @@ public final class ElasticSearchIndex extends IndexStore {
         }
     }
 
+    private boolean indexExists() {
+        HeadMethod method = new HeadMethod(ElasticSearchConnector.actualUrl(indexUrl));
+        try {
+            ElasticSearchConnector connector = new ElasticSearchConnector();
+            return connector.executeMethod(method) == HttpStatus.SC_OK;
+        } catch (HttpException e) {
+            ZimbraLog.index.error("Problem checking for index %s", indexUrl, e);
+        } catch (IOException e) {
+            ZimbraLog.index.error("Problem checking for index %s", indexUrl, e);
+        }
+        return false;
+    }
+
+    /**
+     * Records that documents have been added or deleted, so that the next read makes them visible first.
+     */
+    private void markWritten() {
+        needsRefresh.put(key, writeSequence.incrementAndGet());
+    }
+
     /**
-     * By default, ElasticSearch refreshes every second (configurable?).  Can force it using this.
-     * TODO: Perhaps only do this if we've written something in the last second?
+     * By default, ElasticSearch refreshes every second.  Writes never force a refresh; instead, reads force one
+     * if anything has been written since the last forced refresh, so that searches see preceding changes.
+     * <p>
+     * The index stays marked until a refresh succeeds, and a write recorded while the refresh was running keeps it
+     * marked for the next read.
      */
-    private boolean refreshIndexIfNecessary() {
+    private void refreshIndexIfNecessary() {
+        Long written = needsRefresh.get(key);
+        if (written != null && refreshIndex()) {
+            needsRefresh.remove(key, written);
+        }
+    }
+
+    private boolean refreshIndex() {
         String url = String.format("%s_refresh", indexUrl);
         GetMethod method = new GetMethod(ElasticSearchConnector.actualUrl(url));
         try {
@@ -348,6 +391,7 @@ public final class ElasticSearchIndex extends IndexStore {
             ZimbraLog.index.error("Problem Deleting index with key=" + key, e);
         }
         haveMappingInfo = false;
+        needsRefresh.remove(key);
     }
 
     /**
@@ -440,10 +484,33 @@ public final class ElasticSearchIndex extends IndexStore {
         }
     }
 
+    /**
+     * Sends added documents to ElasticSearch in {@code _bulk} requests.  Documents are only guaranteed to have been
+     * accepted once {@link #close()} returns without throwing.
+     * <p>
+     * Each document's ID is derived from its item ID and its position in the item's document list, so that a
+     * request retried after a partial failure overwrites, rather than duplicates, the documents already accepted.
+     */
     private final class ElasticSearchIndexer implements Indexer {
+        private final ElasticSearchBulkProcessor bulk = new ElasticSearchBulkProcessor(indexUrl);
+        /** Items being re-indexed; their old documents are deleted together before their new ones are queued */
+        private final List<Integer> reindexedIds = Lists.newArrayList();
+        private final List<Pair<String, JSONObject>> reindexedDocs = Lists.newArrayList();
+        private boolean written = false;
 
         @Override
-        public void close() {
+        public void close() throws IOException {
+            try {
+                try {
+                    flushReindexed();
+                } finally {
+                    bulk.close();
+                }
+            } finally {
+                if (written) {
+                    markWritten();
+                }
+            }
         }
 
         @Override
@@ -550,8 +617,10 @@ public final class ElasticSearchIndex extends IndexStore {
         /**
          * Adds the list of documents to the index.
          * <p>
-         * If the index status is stale, delete the stale documents first, then add new documents. If the index status
-         * is deferred, we are sure that this item is not already in the index, and so we can skip the check-update step.
+         * If the index status is stale, the stale documents must be deleted before the new documents are added.  Such
+         * items are collected, and their old documents removed with a single delete-by-query per batch by
+         * {@link #flushReindexed()}, rather than waiting for ElasticSearch once per item.  If the index status is
+         * deferred, we are sure that this item is not already in the index, and so we can skip the check-update step.
          */
         @Override
         public void addDocument(Folder folder, MailItem item, List<IndexDocument> docs) throws IOException {
@@ -560,14 +629,13 @@ public final class ElasticSearchIndex extends IndexStore {
             }
             initializeIndex();
 
-            // handle the partial re-index case here by simply deleting all the documents matching the index_id
-            // so that we can simply add the documents to the index later!!
+            // handle the partial re-index case here by deleting all the documents matching the index_id
+            // before the new documents are added
+            boolean reindex = false;
             switch (item.getIndexStatus()) {
                 case STALE:
                 case DONE: // for partial re-index
-                    List<Integer> ids = Lists.newArrayListWithCapacity(1);
-                    ids.add(new Integer(item.getId()));
-                    deleteDocument(ids);
+                    reindex = true;
                     break;
                 case DEFERRED:
                     break;
@@ -575,10 +643,8 @@ public final class ElasticSearchIndex extends IndexStore {
                     assert false : item.getIndexId();
             }
 
-            for (IndexDocument doc : docs) {
-                // Note: using automatic ID generation
-                String url = String.format("%s%s/", indexUrl, indexType);
-                PostMethod method = new PostMethod(ElasticSearchConnector.actualUrl(url));
+            for (int i = 0; i < docs.size(); i++) {
+                IndexDocument doc = docs.get(i);
                 JSONObject jsonObj = new JSONObject();
                 // doc can be shared by multiple threads if multiple mailboxes are referenced in a single email
                 synchronized (doc) {
@@ -588,48 +654,83 @@ public final class ElasticSearchIndex extends IndexStore {
                         addFieldToDocument(jsonObj, field);
                     }
                 }
-                try {
-                    method.setRequestEntity(new StringRequestEntity(jsonObj.toString(),
-                            MimeConstants.CT_APPLICATION_JSON, MimeConstants.P_CHARSET_UTF8));
-                    ElasticSearchConnector connector = new ElasticSearchConnector();
-                    int statusCode = connector.executeMethod(method);
-                    if (statusCode != HttpStatus.SC_CREATED) {
-                        ZimbraLog.index.error("Problem indexing document with id=%d httpstatus=%d",
-                                item.getId(), statusCode);
-                    }
-                } catch (HttpException e) {
-                    ZimbraLog.index.error("Problem indexing document with id=%d", item.getId());
-                } catch (IOException e) {
-                    ZimbraLog.index.error("Problem indexing document with id=%d", item.getId());
+                String id = String.format("%d_%d", item.getId(), i);
+                if (reindex) {
+                    reindexedDocs.add(new Pair<String, JSONObject>(id, jsonObj));
+                } else {
+                    bulk.index(indexType, id, jsonObj);
+                }
+                written = true;
+            }
+            if (reindex) {
+                reindexedIds.add(item.getId());
+                if (reindexedDocs.size() >= MAX_IDS_PER_DELETE) {
+                    flushReindexed();
                 }
             }
         }
 
+        /**
+         * Deletes the old documents of the collected re-indexed items, then queues their new documents.  Buffered
+         * adds are sent first so that the delete can't overtake an earlier add of the same item.
+         */
+        private void flushReindexed() throws IOException {
+            if (reindexedIds.isEmpty()) {
+                return;
+            }
+            try {
+                bulk.flushAndWait();
+                deleteByQuery(reindexedIds);
+                for (Pair<String, JSONObject> doc : reindexedDocs) {
+                    bulk.index(indexType, doc.getFirst(), doc.getSecond());
+                }
+            } finally {
+                reindexedIds.clear();
+                reindexedDocs.clear();
+            }
+        }
+
         /**
          * Delete all documents associated with each mailbox blob ID in the provided list.
+         * <p>
+         * Delete-by-query is not available through {@code _bulk}, so the IDs are combined into as few queries as
+         * possible.  Any documents still buffered are sent first so that a delete can't overtake an earlier add.
          */
         @Override
-        public void deleteDocument(List<Integer> ids) {
-            refreshIndexIfNecessary();
+        public void deleteDocument(List<Integer> ids) throws IOException {
+            if (ids.isEmpty()) {
+                return;
+            }
+            try {
+                flushReindexed();
+                bulk.flushAndWait();
+                deleteByQuery(ids);
+            } finally {
+                markWritten();
+            }
+        }
+
+        private void deleteByQuery(List<Integer> ids) {
             String url = String.format("%s%s/_query", indexUrl, indexType);
-            for (Integer id : ids) {
+            for (List<Integer> batch : Lists.partition(ids, MAX_IDS_PER_DELETE)) {
                 DeleteMethod method = new DeleteMethod(ElasticSearchConnector.actualUrl(url));
                 NameValuePair[] querys = new NameValuePair[1];
-                String query = String.format("%s:%s", LuceneFields.L_MAILBOX_BLOB_ID, id.toString());
+                String query = String.format("%s:(%s)", LuceneFields.L_MAILBOX_BLOB_ID, Joiner.on(" OR ").join(batch));
                 querys[0] = new NameValuePair("q", query);
                 method.setQueryString(querys);
                 try {
                     ElasticSearchConnector connector = new ElasticSearchConnector();
                     int statusCode = connector.executeMethod(method);
                     if (statusCode == HttpStatus.SC_OK) {
-                        ZimbraLog.index.debug("Deleted documents with id=%d", id);
+                        ZimbraLog.index.debug("Deleted documents with ids=%s", batch);
                     } else {
-                        ZimbraLog.index.error("Problem deleting documents with id=%d httpstatus=%d", id, statusCode);
+                        ZimbraLog.index.error("Problem deleting documents with ids=%s httpstatus=%d",
+                                batch, statusCode);
                     }
                 } catch (HttpException e) {
-                    ZimbraLog.index.error("Problem deleting documents with id=%d", id);
+                    ZimbraLog.index.error("Problem deleting documents with ids=%s", batch);
                 } catch (IOException e) {
-                    ZimbraLog.index.error("Problem deleting documents with id=%d", id);
+                    ZimbraLog.index.error("Problem deleting documents with ids=%s", batch);
                 }
             }
         }
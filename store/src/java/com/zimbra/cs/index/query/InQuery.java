@@ -270,6 +270,10 @@ public final class InQuery extends Query {
         return folder;
     }
 
+    public boolean isIncludeSubfolders() {
+        return includeSubfolders;
+    }
+
     @Override
     public void dump(StringBuilder out) {
         out.append(includeSubfolders ? "UNDER:" : "IN:");
@@ -17,6 +17,7 @@
 package com.zimbra.cs.ldap.unboundid;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import com.unboundid.ldap.protocol.LDAPResponse;
 import com.unboundid.ldap.sdk.CompareRequest;
@@ -62,23 +63,23 @@ abstract class UBIDLdapOperation {
     static final SetPassword SET_PASSWORD = new SetPassword();
     static final GenericOp GENERIC_OP = new GenericOp();
 
-    protected void stat(long startTime) {
-        stat(startTime, getOp());
+    protected void stat(long startNanos) {
+        stat(startNanos, getOp());
     }
 
-    protected void searchStat(long startTime, String statString) {
+    protected void searchStat(long startNanos, String statString) {
         if (STATS_ENABLED) {
-            ZimbraPerf.LDAP_TRACKER.addStat(statString, startTime);
+            ZimbraPerf.LDAP_TRACKER.addStatNanos(statString, startNanos);
         }
     }
 
-    protected void stat(long startTime, LdapOp op) {
-        stat(startTime, op.name());
+    protected void stat(long startNanos, LdapOp op) {
+        stat(startNanos, op.name());
     }
 
-    private void stat(long startTime, String op) {
+    private void stat(long startNanos, String op) {
         if (STATS_ENABLED) {
-            ZimbraPerf.LDAP_TRACKER.addStat(op, startTime);
+            ZimbraPerf.LDAP_TRACKER.addStatNanos(op, startNanos);
         }
     }
 
@@ -88,33 +89,33 @@ abstract class UBIDLdapOperation {
         return debugLogger.isDebugEnabled();
     }
 
-    protected void debug(UBIDLdapContext ctx, long startTime) {
-        debug(ctx, startTime, null);
+    protected void debug(UBIDLdapContext ctx, long startNanos) {
+        debug(ctx, startNanos, null);
     }
 
-    protected void debug(UBIDLdapContext ctx, long startTime, String extraInfo) {
-        debug(ctx, startTime, ctx.getConn(), extraInfo);
+    protected void debug(UBIDLdapContext ctx, long startNanos, String extraInfo) {
+        debug(ctx, startNanos, ctx.getConn(), extraInfo);
     }
 
     // for ops not returning a LDAPResponse
-    protected void debug(UBIDLdapContext ctx, long startTime,
+    protected void debug(UBIDLdapContext ctx, long startNanos,
             LDAPConnection conn, String extraInfo) {
         debugLogger.debug(
                 "%s - millis=[%d], usage=[%s], conn=[%s]%s",
                 getOp().name(),
-                System.currentTimeMillis() - startTime,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos),
                 ctx.getUsage().name(),
                 conn == null ? "" : conn.getConnectionID(),
                 extraInfo == null ? "" : ", " + extraInfo);
     }
 
     // for ops returning a LDAPResponse
-    protected void debug(UBIDLdapContext ctx, long startTime, LDAPResponse resp,
+    protected void debug(UBIDLdapContext ctx, long startNanos, LDAPResponse resp,
             String extraInfo) {
         debugLogger.debug(
                 "%s - millis=[%d], resp=[%s], usage=[%s], conn=[%s]%s",
                 getOp().name(),
-                System.currentTimeMillis() - startTime,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos),
                 getRespText(resp),
                 ctx.getUsage().name(),
                 ctx.getConn().getConnectionID(),
@@ -122,12 +123,12 @@ abstract class UBIDLdapOperation {
     }
 
     // only for GenericOp
-    protected void debug(LdapOp op, LdapUsage usage, long startTime, LDAPResponse resp,
+    protected void debug(LdapOp op, LdapUsage usage, long startNanos, LDAPResponse resp,
             String extraInfo) {
         debugLogger.debug(
                 "%s - millis=[%d], resp=[%s], usage=[%s]%s",
                 op.name(),
-                System.currentTimeMillis() - startTime,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos),
                 getRespText(resp),
                 usage.name(),
                 extraInfo == null ? "" : ", " + extraInfo);
@@ -184,14 +185,14 @@ abstract class UBIDLdapOperation {
         LDAPConnection execute(UBIDLdapContext ctx, LDAPConnectionPool pool)
         throws LDAPException {
             LDAPConnection connection = null;
-            long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             try {
                 connection = pool.getConnection();
-                stat(startTime);
+                stat(startNanos);
                 return connection;
             } finally {
                 if (debugEnabled()) {
-                    debug(ctx, startTime, connection,
+                    debug(ctx, startNanos, connection,
                             String.format("connPool=[%s(%d)]",
                             getConnectionPoolLogName(pool),
                             pool.hashCode()));
@@ -212,22 +213,22 @@ abstract class UBIDLdapOperation {
 
         LDAPResult execute(UBIDLdapContext ctx, Entry entry) throws LDAPException {
             LDAPResult result = null;
-            long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             try {
                 result = ctx.getConn().add(entry);
-                stat(startTime);
+                stat(startNanos);
                 return result;
             } catch (LDAPException e) {
                 if (ResultCode.SERVER_DOWN == e.getResultCode()) {
                     result = ctx.getConnectionPool().add(entry);
-                    stat(startTime);
+                    stat(startNanos);
                     return result;
                 } else {
                     throw e;
                 }
             } finally {
                 if (debugEnabled()) {
-                    debug(ctx, startTime, result,
+                    debug(ctx, startNanos, result,
                             String.format("entry=[%s]", entry.toString()));
                 }
             }
@@ -247,22 +248,22 @@ abstract class UBIDLdapOperation {
 
         LDAPResult execute(UBIDLdapContext ctx, String dn) throws LDAPException {
             LDAPResult result = null;
-            long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             try {
                 result = ctx.getConn().delete(dn);
-                stat(startTime);
+                stat(startNanos);
                 return result;
             } catch (LDAPException e) {
                 if (ResultCode.SERVER_DOWN == e.getResultCode()) {
                     result = ctx.getConnectionPool().delete(dn);
-                    stat(startTime);
+                    stat(startNanos);
                     return result;
                 } else {
                     throw e;
                 }
             } finally {
                 if (debugEnabled()) {
-                    debug(ctx, startTime, result,
+                    debug(ctx, startNanos, result,
                             String.format("dn=[%s]", dn));
                 }
             }
@@ -282,15 +283,15 @@ abstract class UBIDLdapOperation {
         SearchResult execute(UBIDLdapContext ctx, SearchRequest searchRequest, ZLdapFilter zFilter)
         throws LDAPException {
             SearchResult result = null;
-            long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             try {
                 result = ctx.getConn().search(searchRequest);
-                searchStat(startTime, zFilter.getStatString());
+                searchStat(startNanos, zFilter.getStatString());
                 return result;
             } catch (LDAPException e) {
                 if (ResultCode.SERVER_DOWN == e.getResultCode()) {
                     result = ctx.getConnectionPool().search(searchRequest);
-                    searchStat(startTime, zFilter.getStatString());
+                    searchStat(startNanos, zFilter.getStatString());
                     return result;
                 } else {
                     throw e;
@@ -319,7 +320,7 @@ abstract class UBIDLdapOperation {
                                     searchRequest.getBaseDN(),
                                     searchRequest.getFilter().toString());
 
-                    debug(ctx,  startTime, result, extraInfo);
+                    debug(ctx,  startNanos, result, extraInfo);
                 }
             }
         }
@@ -338,15 +339,15 @@ abstract class UBIDLdapOperation {
         CompareResult execute(UBIDLdapContext ctx, CompareRequest compareRequest)
         throws LDAPException {
             CompareResult result = null;
-            long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             try {
                 result = ctx.getConn().compare(compareRequest);
-                stat(startTime);
+                stat(startNanos);
                 return result;
             } catch (LDAPException e) {
                 if (ResultCode.SERVER_DOWN == e.getResultCode()) {
                     result = ctx.getConnectionPool().compare(compareRequest);
-                    stat(startTime);
+                    stat(startNanos);
                     return result;
                 } else {
                     throw e;
@@ -373,7 +374,7 @@ abstract class UBIDLdapOperation {
                                     compareRequest.getDN(), compareRequest.getAttributeName(),
                                     compareRequest.getAssertionValue());
 
-                    debug(ctx,  startTime, result, extraInfo);
+                    debug(ctx,  startNanos, result, extraInfo);
                 }
             }
         }
@@ -392,24 +393,24 @@ abstract class UBIDLdapOperation {
 
         SearchResultEntry execute(UBIDLdapContext ctx, String dn, String[] attrs)
         throws LDAPException {
-            long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             try {
                 SearchResultEntry entry = (attrs == null) ? ctx.getConn().getEntry(dn) :
                     ctx.getConn().getEntry(dn, attrs);
-                stat(startTime);
+                stat(startNanos);
                 return entry;
             } catch (LDAPException e) {
                 if (ResultCode.SERVER_DOWN == e.getResultCode()) {
                     SearchResultEntry entry = (attrs == null) ? ctx.getConnectionPool().getEntry(dn) :
                             ctx.getConnectionPool().getEntry(dn, attrs);
-                    stat(startTime);
+                    stat(startNanos);
                     return entry;
                 } else {
                     throw e;
                 }
             } finally {
                 if (debugEnabled()) {
-                    debug(ctx,  startTime,
+                    debug(ctx,  startNanos,
                             String.format("dn=[%s]", dn));
                 }
             }
@@ -428,22 +429,22 @@ abstract class UBIDLdapOperation {
         }
 
         Schema execute(UBIDLdapContext ctx) throws LDAPException {
-            long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             try {
                 Schema schema = ctx.getConn().getSchema();
-                stat(startTime);
+                stat(startNanos);
                 return schema;
             } catch (LDAPException e) {
                 if (ResultCode.SERVER_DOWN == e.getResultCode()) {
                     Schema schema = ctx.getConnectionPool().getSchema();
-                    stat(startTime);
+                    stat(startNanos);
                     return schema;
                 } else {
                     throw e;
                 }
             } finally {
                 if (debugEnabled()) {
-                    debug(ctx, startTime);
+                    debug(ctx, startNanos);
                 }
             }
         }
@@ -463,22 +464,22 @@ abstract class UBIDLdapOperation {
         LDAPResult execute(UBIDLdapContext ctx, String dn, List<Modification> modList)
         throws LDAPException {
             LDAPResult result = null;
-            long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             try {
                 result = ctx.getConn().modify(dn, modList);
-                stat(startTime);
+                stat(startNanos);
                 return result;
             } catch (LDAPException e) {
                 if (ResultCode.SERVER_DOWN == e.getResultCode()) {
                     result = ctx.getConnectionPool().modify(dn, modList);
-                    stat(startTime);
+                    stat(startNanos);
                     return result;
                 } else {
                     throw e;
                 }
             } finally {
                 if (debugEnabled()) {
-                    debug(ctx, startTime, result,
+                    debug(ctx, startNanos, result,
                             String.format("dn=[%s], mod=[%s]", dn, getModListText(modList)));
                 }
             }
@@ -499,14 +500,14 @@ abstract class UBIDLdapOperation {
         LDAPResult execute(UBIDLdapContext ctx, ModifyRequest modReq)
         throws LDAPException {
             LDAPResult result = null;
-            long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             try {
                 result = ctx.getConn().modify(modReq);
-                stat(startTime);
+                stat(startNanos);
                 return result;
             } finally {
                 if (debugEnabled()) {
-                    debug(ctx, startTime, result,
+                    debug(ctx, startNanos, result,
                             String.format("dn=[%s], mod=[%s] control=[%s]",
                             modReq.getDN(),
                             getModListText(modReq.getModifications()),
@@ -531,22 +532,22 @@ abstract class UBIDLdapOperation {
                 boolean deleteOldRDN, String newSuperiorDN)
         throws LDAPException {
             LDAPResult result = null;
-            long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             try {
                 result = ctx.getConn().modifyDN(dn, newRDN, deleteOldRDN, newSuperiorDN);
-                stat(startTime);
+                stat(startNanos);
                 return result;
             } catch (LDAPException e) {
                 if (ResultCode.SERVER_DOWN == e.getResultCode()) {
                     result = ctx.getConnectionPool().modifyDN(dn, newRDN, deleteOldRDN, newSuperiorDN);
-                    stat(startTime);
+                    stat(startNanos);
                     return result;
                 } else {
                     throw e;
                 }
             } finally {
                 if (debugEnabled()) {
-                    debug(ctx, startTime, result,
+                    debug(ctx, startNanos, result,
                             String.format("dn=[%s] newRDN=[%s] newSuperiorDN=[%s]",
                             dn, newRDN, newSuperiorDN));
                 }
@@ -563,23 +564,23 @@ abstract class UBIDLdapOperation {
 
         LDAPResult execute(UBIDLdapContext ctx, String dn, String newPassword) throws LDAPException {
             LDAPResult result = null;
-            long startTime = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             ExtendedRequest req = new PasswordModifyExtendedRequest(dn, null, newPassword);
             try {
                 result = ctx.getConn().processExtendedOperation(req);
-                stat(startTime);
+                stat(startNanos);
                 return result;
             } catch (LDAPException e) {
                 if (ResultCode.SERVER_DOWN == e.getResultCode()) {
                     result = ctx.getConnectionPool().processExtendedOperation(req);
-                    stat(startTime);
+                    stat(startNanos);
                     return result;
                 } else {
                     throw e;
                 }
             } finally {
                 if (debugEnabled()) {
-                    debug(ctx, startTime, result,
+                    debug(ctx, startNanos, result,
                             String.format("dn=[%s]", dn));
                 }
             }
@@ -607,16 +608,16 @@ abstract class UBIDLdapOperation {
         }
 
         long begin() {
-            return System.currentTimeMillis();
+            return System.nanoTime();
         }
 
-        void end(LdapOp op, LdapUsage usage, long startTime, boolean needsStat,
+        void end(LdapOp op, LdapUsage usage, long startNanos, boolean needsStat,
                 LDAPResponse resp, String extraInfo) {
             if (needsStat) {
-                stat(startTime, op);
+                stat(startNanos, op);
             }
             if (debugEnabled()) {
-                debug(op, usage, startTime, resp, extraInfo);
+                debug(op, usage, startNanos, resp, extraInfo);
             }
         }
     }
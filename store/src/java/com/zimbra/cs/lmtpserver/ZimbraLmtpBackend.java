@@ -27,7 +27,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -41,6 +46,8 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.common.lmtp.LmtpClient;
 import com.zimbra.common.lmtp.LmtpProtocolException;
@@ -76,6 +83,7 @@ import com.zimbra.cs.mailbox.QuotaWarning;
 import com.zimbra.cs.mime.ParsedMessage;
 import com.zimbra.cs.mime.ParsedMessageOptions;
 import com.zimbra.cs.service.util.ItemId;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.MailboxBlob;
@@ -87,6 +95,8 @@ public class ZimbraLmtpBackend implements LmtpBackend {
     private static List<LmtpCallback> callbacks = new CopyOnWriteArrayList<LmtpCallback>();
     private static Map<String, Set<Integer>> receivedMessageIDs;
     private static final LoadingCache<Integer, ReentrantLock> mailboxDeliveryLocks = createMailboxDeliveryLocks();
+    /** Delivers a message to several recipients at once, or {@code null} to deliver to one at a time. */
+    private static final ExecutorService DELIVERY_EXECUTOR = createDeliveryExecutor();
 
     private final LmtpConfig config;
 
@@ -125,6 +135,21 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         return cache;
     }
 
+    private static ExecutorService createDeliveryExecutor() {
+        int threads = LC.zimbra_lmtp_delivery_threads.intValue();
+        if (threads <= 1) {
+            return null;
+        }
+        // when all threads are busy the LMTP thread delivers to the next recipient itself, which bounds the
+        // number of queued deliveries without ever rejecting one
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads),
+                new ThreadFactoryBuilder().setNameFormat("LmtpDelivery-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     @Override public LmtpReply getAddressStatus(LmtpAddress address) {
         String addr = address.getEmailAddress();
 
@@ -421,7 +446,6 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         throws ServiceException, IOException {
 
         List<LmtpAddress> recipients = env.getLocalRecipients();
-        String envSender = env.getSender().getEmailAddress();
 
         boolean shared = recipients.size() > 1;
         List<Integer> targetMailboxIds = new ArrayList<Integer>(recipients.size());
@@ -433,14 +457,17 @@ public class ZimbraLmtpBackend implements LmtpBackend {
             // attempting delivery to any recipient.  Therefore, parse error
             // will result in non-delivery to all recipients.
 
-            // ParsedMessage for users with attachments indexing
-            ParsedMessage pmAttachIndex = null;
-            // ParsedMessage for users without attachments indexing
-            ParsedMessage pmNoAttachIndex = null;
+            // One ParsedMessage for each combination of attachment indexing and
+            // default charset, so that recipients sharing one can be delivered
+            // to concurrently.  In practice there are one or two of them.
+            Map<String, ParsedMessage> parsedMessages = new HashMap<String, ParsedMessage>();
+            // first ParsedMessage created, used to cache the message after delivery
+            ParsedMessage mimeSource = null;
 
             // message id for logging
             String msgId = null;
 
+            long start = ZimbraPerf.STOPWATCH_LMTP_PREPARE.start();
             for (LmtpAddress recipient : recipients) {
                 String rcptEmail = recipient.getEmailAddress();
 
@@ -470,28 +497,25 @@ public class ZimbraLmtpBackend implements LmtpBackend {
                 }
 
                 if (account != null && mbox != null) {
-                    ParsedMessageOptions pmo;
-                    if (mm != null) {
-                        pmo = new ParsedMessageOptions().setContent(mm).setDigest(blob.getDigest()).setSize(blob.getRawSize());
-                    } else {
-                        pmo = new ParsedMessageOptions(blob, data);
-                    }
-
-                    ParsedMessage pm;
-                    if (attachmentsIndexingEnabled) {
-                        if (pmAttachIndex == null) {
-                            pmo.setAttachmentIndexing(true);
-                            ZimbraLog.lmtp.debug("Creating ParsedMessage from %s with attachment indexing enabled", data == null ? "file" : "memory");
-                            pmAttachIndex = new ParsedMessage(pmo);
+                    String pmKey = attachmentsIndexingEnabled + ":" + account.getPrefMailDefaultCharset();
+                    ParsedMessage pm = parsedMessages.get(pmKey);
+                    if (pm == null) {
+                        ParsedMessageOptions pmo;
+                        if (mm != null) {
+                            pmo = new ParsedMessageOptions().setContent(mm).setDigest(blob.getDigest()).setSize(blob.getRawSize());
+                        } else {
+                            pmo = new ParsedMessageOptions(blob, data);
                         }
-                        pm = pmAttachIndex;
-                    } else {
-                        if (pmNoAttachIndex == null) {
-                            pmo.setAttachmentIndexing(false);
-                            ZimbraLog.lmtp.debug("Creating ParsedMessage from %s with attachment indexing disabled", data == null ? "file" : "memory");
-                            pmNoAttachIndex = new ParsedMessage(pmo);
+                        pmo.setAttachmentIndexing(attachmentsIndexingEnabled);
+                        ZimbraLog.lmtp.debug("Creating ParsedMessage from %s with attachment indexing %s",
+                                data == null ? "file" : "memory", attachmentsIndexingEnabled ? "enabled" : "disabled");
+                        pm = new ParsedMessage(pmo);
+                        // set up front so that the mailboxes sharing this copy never reset its cached values
+                        pm.setDefaultCharset(account.getPrefMailDefaultCharset());
+                        parsedMessages.put(pmKey, pm);
+                        if (mimeSource == null) {
+                            mimeSource = pm;
                         }
-                        pm = pmNoAttachIndex;
                     }
 
                     msgId = pm.getMessageID();
@@ -520,6 +544,7 @@ public class ZimbraLmtpBackend implements LmtpBackend {
                     }
                 }
             }
+            ZimbraPerf.STOPWATCH_LMTP_PREPARE.stop(start);
 
             ZimbraLog.removeAccountFromContext();
             if (ZimbraLog.lmtp.isInfoEnabled()) {
@@ -534,181 +559,38 @@ public class ZimbraLmtpBackend implements LmtpBackend {
             sharedDeliveryCtxt.setIncomingBlob(blob);
 
             // We now know which addresses are valid and which ParsedMessage
-            // version each recipient needs.  Deliver!
-            for (LmtpAddress recipient : recipients) {
-                String rcptEmail = recipient.getEmailAddress();
-                LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
-                RecipientDetail rd = rcptMap.get(recipient);
-                if (rd == null) {
-                    // Account or mailbox not found.
-                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: account or mailbox not found",
-                            envSender, rcptEmail);
-                    recipient.setDeliveryStatus(LmtpReply.PERMANENT_FAILURE);
-                    continue;
-                }
-                if (rd.account != null) {
-                    ZimbraLog.addAccountNameToContext(rd.account.getName());
-                }
-                if (rd.mbox != null) {
-                    ZimbraLog.addMboxToContext(rd.mbox.getId());
-                }
-
-                boolean success = false;
+            // version each recipient needs.  Deliver!  Until one mailbox has
+            // stored the blob (and logged it for redo), deliver on this thread;
+            // the remaining recipients only link to it and can go in parallel.
+            boolean parallel = DELIVERY_EXECUTOR != null &&
+                    targetMailboxIds.size() >= LC.zimbra_lmtp_parallel_delivery_min_recipients.intValue();
+            if (parallel) {
+                // the recipients share the parsed messages, so finish their lazy analysis before fanning out
                 try {
-                    switch (rd.action) {
-                    case discard:
-                        ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
-                                envSender, rcptEmail);
-                        if (rd.account.getPrefMailForwardingAddress() != null) {
-                            // mail forwarding is set up
-                            for (LmtpCallback callback : callbacks) {
-                                ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, rd.pm);
-                            }
-                        }
-                        reply = LmtpReply.DELIVERY_OK;
-                        break;
-                    case deliver:
-                        Account account = rd.account;
-                        Mailbox mbox = rd.mbox;
-                        ParsedMessage pm = rd.pm;
-                        List<ItemId> addedMessageIds = null;
-                        ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
-                        boolean acquiredLock;
-                        try {
-                            // Wait for the lock, up to the timeout
-                            acquiredLock = lock.tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
-                        } catch (InterruptedException e) {
-                            acquiredLock = false;
-                        }
-                        if (!acquiredLock) {
-                            ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
-                                    envSender, rcptEmail);
-                            reply = LmtpReply.TEMPORARY_FAILURE;
-                            break;
-                        }
-                        try {
-                            if (dedupe(pm, mbox)) {
-                                // message was already delivered to this mailbox
-                                ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
-                            } else if (mbox.dedupeForSelfMsg(pm)) {
-                                ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
-                                        pm.getMessageID());
-
-                            } else if (recipient.getSkipFilters()) {
-                                msgId = pm.getMessageID();
-                                int folderId = Mailbox.ID_FOLDER_INBOX;
-                                if (recipient.getFolder() != null) {
-                                    try {
-                                        Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
-                                        folderId = folder.getId();
-                                    } catch (ServiceException se) {
-                                        if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
-                                            Folder folder = mbox.createFolder(null, recipient.getFolder(),
-                                                    new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
-                                            folderId = folder.getId();
-                                        } else {
-                                            throw se;
-                                        }
-                                    }
-                                }
-                                int flags = Flag.BITMASK_UNREAD;
-                                if (recipient.getFlags() != null) {
-                                    flags = Flag.toBitmask(recipient.getFlags());
-                                }
-                                DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
-                                dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
-                                Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                            } else if (!DebugConfig.disableIncomingFilter) {
-                                // Get msgid first, to avoid having to reopen and reparse the blob
-                                // file if Mailbox.addMessageInternal() closes it.
-                                pm.getMessageID();
-                                addedMessageIds = RuleManager.applyRulesToIncomingMessage(
-                                        null, mbox, pm, (int) blob.getRawSize(), rcptEmail, env, sharedDeliveryCtxt,
-                                        Mailbox.ID_FOLDER_INBOX, false, true);
-                            } else {
-                                pm.getMessageID();
-                                DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
-                                dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
-                                Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                            }
-                            success = true;
-                            if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                                addToDedupeCache(pm, mbox);
-                            }
-                        } finally {
-                            lock.unlock();
-                        }
-
-                        if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                            // Execute callbacks
-                            for (LmtpCallback callback : callbacks) {
-                                for (ItemId id : addedMessageIds) {
-                                    if (id.belongsTo(mbox)) {
-                                        // Message was added to the local mailbox, as opposed to a mountpoint.
-                                        ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                        try {
-                                            Message msg = mbox.getMessageById(null, id.getId());
-                                            callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
-                                        } catch (OutOfMemoryError oome) {
-                                            Zimbra.halt("LMTP callback failed", oome);
-                                        } catch (Throwable t) {
-                                            ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        reply = LmtpReply.DELIVERY_OK;
-                        break;
-                    case defer:
-                        // Delivery to mailbox skipped.  Let MTA retry again later.
-                        // This case happens for shared delivery to a mailbox in
-                        // backup mode.
-                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
-                                envSender, rcptEmail);
-                        reply = LmtpReply.TEMPORARY_FAILURE;
-                        break;
+                    for (ParsedMessage pm : parsedMessages.values()) {
+                        pm.analyzeForSharing();
                     }
-                } catch (DeliveryServiceException e) {
-                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: sieve filter rule", envSender, rcptEmail);
-                    reply = LmtpReply.PERMANENT_MESSAGE_REFUSED;
                 } catch (ServiceException e) {
-                    if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED)) {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
-                        if (config.isPermanentFailureWhenOverQuota()) {
-                            reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
-                        } else {
-                            reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
-                        }
-                    } else if (e.isReceiversFault()) {
-                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.TEMPORARY_FAILURE;
+                    ZimbraLog.lmtp.warn("unable to analyze message up front; delivering to one recipient at a time", e);
+                    parallel = false;
+                }
+            }
+            List<Future<?>> pending = new ArrayList<Future<?>>();
+            try {
+                for (final LmtpAddress recipient : recipients) {
+                    final RecipientDetail rd = rcptMap.get(recipient);
+                    if (parallel && !sharedDeliveryCtxt.isFirst()) {
+                        pending.add(submitDelivery(recipient, rd, blob, env, sharedDeliveryCtxt));
                     } else {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.PERMANENT_FAILURE;
-                    }
-                } catch (Exception e) {
-                    reply = LmtpReply.TEMPORARY_FAILURE;
-                    ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                } finally {
-                    if (rd.action == DeliveryAction.deliver && !success) {
-                        // Message was not delivered.  Remove it from the dedupe
-                        // cache so we don't dedupe it on LMTP retry.
-                        removeFromDedupeCache(msgId, rd.mbox);
-                    }
-                    recipient.setDeliveryStatus(reply);
-                    if (shared && rd != null && rd.esd) {
-                        rd.mbox.endSharedDelivery();
-                        rd.esd = false;
+                        deliverToRecipient(recipient, rd, blob, env, sharedDeliveryCtxt);
                     }
                 }
+            } finally {
+                // wait even if interrupted, the recipients' statuses and shared delivery counts are still being updated
+                awaitAll(pending, "local delivery");
             }
 
             // If this message is being streamed from disk, cache it
-            ParsedMessage mimeSource = pmAttachIndex != null ? pmAttachIndex : pmNoAttachIndex;
             MailboxBlob mblob = sharedDeliveryCtxt.getMailboxBlob();
             if (mblob != null && mimeSource != null) {
                 if (bis == null) {
@@ -739,39 +621,305 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         }
     }
 
-    private void deliverMessageToRemoteMailboxes(Blob blob, byte[] data, LmtpEnvelope env) {
-        Multimap<String, LmtpAddress> serverToRecipientsMap = env.getRemoteServerToRecipientsMap();
-        for (String server : serverToRecipientsMap.keySet()) {
-            LmtpClient lmtpClient = null;
-            InputStream in = null;
-            Collection<LmtpAddress> serverRecipients = serverToRecipientsMap.get(server);
+    /**
+     * Delivers to one local recipient on a {@link #DELIVERY_EXECUTOR} thread.  Falls back to the calling thread when
+     * the executor is saturated.
+     */
+    private Future<?> submitDelivery(final LmtpAddress recipient, final RecipientDetail rd, final Blob blob,
+            final LmtpEnvelope env, final DeliveryContext sharedDeliveryCtxt) {
+        return DELIVERY_EXECUTOR.submit(withLogContext(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deliverToRecipient(recipient, rd, blob, env, sharedDeliveryCtxt);
+                } finally {
+                    ZimbraLog.removeAccountFromContext();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Wraps a task so that it logs under the submitting thread's logging context when a {@link #DELIVERY_EXECUTOR}
+     * thread runs it.  When the executor is saturated the submitting thread runs the task itself, and its context is
+     * left alone.
+     */
+    private static Runnable withLogContext(final Runnable task) {
+        final Thread caller = Thread.currentThread();
+        final Map<String, String> logContext = ZimbraLog.getContextMap();
+        return new Runnable() {
+            @Override
+            public void run() {
+                boolean handedOff = Thread.currentThread() != caller;
+                if (handedOff) {
+                    ZimbraLog.clearContext();
+                    for (Map.Entry<String, String> entry : logContext.entrySet()) {
+                        ZimbraLog.addToContext(entry.getKey(), entry.getValue());
+                    }
+                }
+                try {
+                    task.run();
+                } finally {
+                    if (handedOff) {
+                        ZimbraLog.clearContext();
+                    }
+                }
+            }
+        };
+    }
+
+    private static void awaitAll(List<Future<?>> futures, String what) {
+        for (Future<?> future : futures) {
             try {
-                Server serverObj = Provisioning.getInstance().getServerByName(server);
-                lmtpClient = new LmtpClient(server, new Integer(serverObj.getAttr(Provisioning.A_zimbraLmtpBindPort)));
-                in = data == null ? blob.getInputStream() : new ByteArrayInputStream(data);
-                boolean success = lmtpClient.sendMessage(in,
-                                                         getRecipientsEmailAddress(serverRecipients),
-                                                         env.getSender().getEmailAddress(),
-                                                         blob.getFile().getName(),
-                                                         blob.getRawSize());
-                if (success) {
-                    setDeliveryStatuses(serverRecipients, LmtpReply.DELIVERY_OK);
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof OutOfMemoryError) {
+                    Zimbra.halt("LMTP " + what + " failed", e.getCause());
+                }
+                ZimbraLog.lmtp.warn("unexpected exception in %s", what, e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Delivers the message to one local recipient and sets its delivery status.  May run on any thread: the state
+     * shared by the recipients of a message is the {@link ParsedMessage}, which is fully analyzed before delivery
+     * fans out, and the {@link DeliveryContext} and the dedupe cache, which are safe for concurrent use, while each
+     * mailbox is guarded by its delivery lock.
+     */
+    private void deliverToRecipient(LmtpAddress recipient, RecipientDetail rd, Blob blob, LmtpEnvelope env,
+            DeliveryContext sharedDeliveryCtxt) {
+        String envSender = env.getSender().getEmailAddress();
+        String rcptEmail = recipient.getEmailAddress();
+        LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
+        if (rd == null) {
+            // Account or mailbox not found.
+            ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: account or mailbox not found",
+                    envSender, rcptEmail);
+            recipient.setDeliveryStatus(LmtpReply.PERMANENT_FAILURE);
+            return;
+        }
+        if (rd.account != null) {
+            ZimbraLog.addAccountNameToContext(rd.account.getName());
+        }
+        if (rd.mbox != null) {
+            ZimbraLog.addMboxToContext(rd.mbox.getId());
+        }
+
+        long start = ZimbraPerf.STOPWATCH_LMTP_LOCAL_DLV.start();
+        boolean success = false;
+        String msgId = rd.pm == null ? null : rd.pm.getMessageID();
+        try {
+            switch (rd.action) {
+            case discard:
+                ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
+                        envSender, rcptEmail);
+                if (rd.account.getPrefMailForwardingAddress() != null) {
+                    // mail forwarding is set up
+                    for (LmtpCallback callback : callbacks) {
+                        ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                        callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, rd.pm);
+                    }
+                }
+                reply = LmtpReply.DELIVERY_OK;
+                break;
+            case deliver:
+                Account account = rd.account;
+                Mailbox mbox = rd.mbox;
+                ParsedMessage pm = rd.pm;
+                List<ItemId> addedMessageIds = null;
+                ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
+                boolean acquiredLock;
+                try {
+                    // Wait for the lock, up to the timeout
+                    acquiredLock = lock.tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    acquiredLock = false;
+                }
+                if (!acquiredLock) {
+                    ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
+                            envSender, rcptEmail);
+                    reply = LmtpReply.TEMPORARY_FAILURE;
+                    break;
+                }
+                try {
+                    if (dedupe(pm, mbox)) {
+                        // message was already delivered to this mailbox
+                        ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
+                    } else if (mbox.dedupeForSelfMsg(pm)) {
+                        ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
+                                pm.getMessageID());
+
+                    } else if (recipient.getSkipFilters()) {
+                        int folderId = Mailbox.ID_FOLDER_INBOX;
+                        if (recipient.getFolder() != null) {
+                            try {
+                                Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
+                                folderId = folder.getId();
+                            } catch (ServiceException se) {
+                                if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
+                                    Folder folder = mbox.createFolder(null, recipient.getFolder(),
+                                            new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
+                                    folderId = folder.getId();
+                                } else {
+                                    throw se;
+                                }
+                            }
+                        }
+                        int flags = Flag.BITMASK_UNREAD;
+                        if (recipient.getFlags() != null) {
+                            flags = Flag.toBitmask(recipient.getFlags());
+                        }
+                        DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
+                        dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
+                        Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
+                        addedMessageIds = Lists.newArrayList(new ItemId(msg));
+                    } else if (!DebugConfig.disableIncomingFilter) {
+                        // Get msgid first, to avoid having to reopen and reparse the blob
+                        // file if Mailbox.addMessageInternal() closes it.
+                        pm.getMessageID();
+                        addedMessageIds = RuleManager.applyRulesToIncomingMessage(
+                                null, mbox, pm, (int) blob.getRawSize(), rcptEmail, env, sharedDeliveryCtxt,
+                                Mailbox.ID_FOLDER_INBOX, false, true);
+                    } else {
+                        pm.getMessageID();
+                        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+                        dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
+                        Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
+                        addedMessageIds = Lists.newArrayList(new ItemId(msg));
+                    }
+                    success = true;
+                    if (addedMessageIds != null && addedMessageIds.size() > 0) {
+                        addToDedupeCache(pm, mbox);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                if (addedMessageIds != null && addedMessageIds.size() > 0) {
+                    // Execute callbacks
+                    for (LmtpCallback callback : callbacks) {
+                        for (ItemId id : addedMessageIds) {
+                            if (id.belongsTo(mbox)) {
+                                // Message was added to the local mailbox, as opposed to a mountpoint.
+                                ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                                try {
+                                    Message msg = mbox.getMessageById(null, id.getId());
+                                    callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
+                                } catch (OutOfMemoryError oome) {
+                                    Zimbra.halt("LMTP callback failed", oome);
+                                } catch (Throwable t) {
+                                    ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
+                                }
+                            }
+                        }
+                    }
+                }
+                reply = LmtpReply.DELIVERY_OK;
+                break;
+            case defer:
+                // Delivery to mailbox skipped.  Let MTA retry again later.
+                // This case happens for shared delivery to a mailbox in
+                // backup mode.
+                ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
+                        envSender, rcptEmail);
+                reply = LmtpReply.TEMPORARY_FAILURE;
+                break;
+            }
+        } catch (DeliveryServiceException e) {
+            ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: sieve filter rule", envSender, rcptEmail);
+            reply = LmtpReply.PERMANENT_MESSAGE_REFUSED;
+        } catch (ServiceException e) {
+            if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED)) {
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
+                if (config.isPermanentFailureWhenOverQuota()) {
+                    reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
                 } else {
-                    ZimbraLog.lmtp.warn("Unsuccessful remote mail delivery - LMTP response: %s", lmtpClient.getResponse());
-                    setDeliveryStatuses(serverRecipients, LmtpReply.TEMPORARY_FAILURE);
+                    reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
                 }
-            } catch (LmtpProtocolException e) {
-                ZimbraLog.lmtp.warn("Unsuccessful remote mail delivery - LMTP response: %s", e.getMessage());
-                setDeliveryStatuses(serverRecipients, LmtpReply.TEMPORARY_FAILURE);
-            } catch (Exception e) {
-                ZimbraLog.lmtp.warn("Exception delivering remote mail", e);
+            } else if (e.isReceiversFault()) {
+                ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+                reply = LmtpReply.TEMPORARY_FAILURE;
+            } else {
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
+                reply = LmtpReply.PERMANENT_FAILURE;
+            }
+        } catch (Exception e) {
+            reply = LmtpReply.TEMPORARY_FAILURE;
+            ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+        } finally {
+            if (rd.action == DeliveryAction.deliver && !success) {
+                // Message was not delivered.  Remove it from the dedupe
+                // cache so we don't dedupe it on LMTP retry.
+                removeFromDedupeCache(msgId, rd.mbox);
+            }
+            recipient.setDeliveryStatus(reply);
+            if (rd.esd) {
+                rd.mbox.endSharedDelivery();
+                rd.esd = false;
+            }
+            ZimbraPerf.STOPWATCH_LMTP_LOCAL_DLV.stop(start);
+        }
+    }
+
+    private void deliverMessageToRemoteMailboxes(final Blob blob, final byte[] data, final LmtpEnvelope env) {
+        Multimap<String, LmtpAddress> serverToRecipientsMap = env.getRemoteServerToRecipientsMap();
+        if (DELIVERY_EXECUTOR == null || serverToRecipientsMap.keySet().size() < 2) {
+            for (String server : serverToRecipientsMap.keySet()) {
+                deliverMessageToRemoteServer(server, serverToRecipientsMap.get(server), blob, data, env);
+            }
+            return;
+        }
+
+        // each server gets its own connection and its own stream over the blob
+        List<Future<?>> pending = new ArrayList<Future<?>>(serverToRecipientsMap.keySet().size());
+        try {
+            for (final String server : serverToRecipientsMap.keySet()) {
+                final Collection<LmtpAddress> serverRecipients = serverToRecipientsMap.get(server);
+                pending.add(DELIVERY_EXECUTOR.submit(withLogContext(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliverMessageToRemoteServer(server, serverRecipients, blob, data, env);
+                    }
+                })));
+            }
+        } finally {
+            awaitAll(pending, "remote delivery");
+        }
+    }
+
+    private void deliverMessageToRemoteServer(String server, Collection<LmtpAddress> serverRecipients, Blob blob,
+            byte[] data, LmtpEnvelope env) {
+        long start = ZimbraPerf.STOPWATCH_LMTP_REMOTE_DLV.start();
+        LmtpClient lmtpClient = null;
+        InputStream in = null;
+        try {
+            Server serverObj = Provisioning.getInstance().getServerByName(server);
+            lmtpClient = new LmtpClient(server, new Integer(serverObj.getAttr(Provisioning.A_zimbraLmtpBindPort)));
+            in = data == null ? blob.getInputStream() : new ByteArrayInputStream(data);
+            boolean success = lmtpClient.sendMessage(in,
+                                                     getRecipientsEmailAddress(serverRecipients),
+                                                     env.getSender().getEmailAddress(),
+                                                     blob.getFile().getName(),
+                                                     blob.getRawSize());
+            if (success) {
+                setDeliveryStatuses(serverRecipients, LmtpReply.DELIVERY_OK);
+            } else {
+                ZimbraLog.lmtp.warn("Unsuccessful remote mail delivery - LMTP response: %s", lmtpClient.getResponse());
                 setDeliveryStatuses(serverRecipients, LmtpReply.TEMPORARY_FAILURE);
-            } finally {
-                ByteUtil.closeStream(in);
-                if (lmtpClient != null) {
-                    lmtpClient.close();
-                }
             }
+        } catch (LmtpProtocolException e) {
+            ZimbraLog.lmtp.warn("Unsuccessful remote mail delivery - LMTP response: %s", e.getMessage());
+            setDeliveryStatuses(serverRecipients, LmtpReply.TEMPORARY_FAILURE);
+        } catch (Exception e) {
+            ZimbraLog.lmtp.warn("Exception delivering remote mail", e);
+            setDeliveryStatuses(serverRecipients, LmtpReply.TEMPORARY_FAILURE);
+        } finally {
+            ByteUtil.closeStream(in);
+            if (lmtpClient != null) {
+                lmtpClient.close();
+            }
+            ZimbraPerf.STOPWATCH_LMTP_REMOTE_DLV.stop(start);
         }
     }
 
@@ -1328,6 +1328,26 @@ public abstract class CalendarItem extends MailItem {
         return mInvites.size();
     }
 
+    /** A parsed {@link Invite}: its own fields, organizer and attendee list, recurrence rules and
+     *  the strings behind them, for a typical meeting with a handful of attendees. */
+    private static final int INVITE_CACHE_WEIGHT = 2048;
+
+    /** A {@code ReplyInfo} entry: attendee, recurrence id and sequence/timestamp fields. */
+    private static final int REPLY_CACHE_WEIGHT = 256;
+
+    /** Parsed invites dominate a calendar item's footprint. */
+    @Override
+    int estimateCacheWeight() {
+        int weight = super.estimateCacheWeight();
+        if (mInvites != null) {
+            weight += INVITE_CACHE_WEIGHT * mInvites.size();
+        }
+        if (mReplyList != null && mReplyList.mReplies != null) {
+            weight += REPLY_CACHE_WEIGHT * mReplyList.mReplies.size();
+        }
+        return weight;
+    }
+
     public Invite getInvite(int index) {
         return mInvites.get(index);
     }
@@ -309,6 +309,23 @@ public class Contact extends MailItem {
         return result;
     }
 
+    /** A cached {@link Attachment} descriptor: the object plus its content type, filename and field
+     *  name strings.  The attachment content itself is not held by the cached item. */
+    private static final int ATTACHMENT_CACHE_WEIGHT = 128;
+
+    @Override
+    int estimateCacheWeight() {
+        int weight = super.estimateCacheWeight();
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            weight += ItemCacheBudget.MAP_ENTRY_OVERHEAD + ItemCacheBudget.stringWeight(field.getKey())
+                    + ItemCacheBudget.stringWeight(field.getValue());
+        }
+        if (attachments != null) {
+            weight += ATTACHMENT_CACHE_WEIGHT * attachments.size();
+        }
+        return weight;
+    }
+
     /**
      * Returns a list of all the contact's attachments.
      * <p>
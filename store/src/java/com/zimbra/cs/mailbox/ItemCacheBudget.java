@@ -0,0 +1,275 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.stats.StatsDumperDataSource;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Server-wide memory budget for the per-mailbox {@link MailItem} caches.
+ * <p>
+ * Each mailbox keeps a byte-weighted LRU of its items, capped by its own per-mailbox limit.
+ * This class tracks every live cache, and when their combined weight exceeds the global budget
+ * it asks the mailboxes holding more than their fair share to shrink back to that share.  A
+ * cache may only be changed under its mailbox's lock, so each mailbox trims itself, coldest items
+ * first, the next time it trims its cache at the end of a transaction.  Caches are referenced
+ * weakly, so a mailbox that is unloaded and collected simply drops out of the accounting.
+ * <p>
+ * It also keeps hit, miss and eviction counts per item type, dumped to {@code item_cache.csv}.
+ */
+public final class ItemCacheBudget implements StatsDumperDataSource {
+
+    // The weights below are rough object layout estimates for a 64-bit JVM with compressed oops
+    // (12 byte object headers, 4 byte references, 8 byte alignment).  They only need to rank
+    // items against each other and keep the total in the right range, not be exact.
+
+    /** Fixed cost of a cached item: the {@code MailItem} (~80 bytes of fields), its
+     *  {@code UnderlyingData} (~130 bytes of fields and the tag array), and the cache's node,
+     *  boxed key and hash table slot (~110 bytes). */
+    static final int ITEM_OVERHEAD = 320;
+
+    /** Fixed cost of a {@code String}: its own header and fields (24 bytes) plus the header of its
+     *  {@code char[]} (16 bytes). */
+    static final int STRING_OVERHEAD = 40;
+
+    /** Each character of a {@code String} takes one UTF-16 code unit in its {@code char[]}. */
+    static final int BYTES_PER_CHAR = 2;
+
+    /** A {@code HashMap} entry (32 bytes) plus its share of the table at the default load factor
+     *  (~16 bytes). */
+    static final int MAP_ENTRY_OVERHEAD = 48;
+
+    /** Trims at most this often, so that the end of every transaction doesn't walk all caches. */
+    private static final long ENFORCE_INTERVAL_MILLIS = 1000L;
+
+    private static final ItemCacheBudget INSTANCE = new ItemCacheBudget(getConfiguredBudget());
+
+    /** A cache whose weight is accounted against the budget. */
+    interface Trimmable {
+        /** Current weight of the cache, in bytes. */
+        long weightedSize();
+
+        /** Asks the cache to evict its least recently used entries until it weighs at most
+         *  {@code bytes}.  Called without the owner's lock, so the cache only records the request and
+         *  its owner acts on it the next time it holds the lock. */
+        void requestTrim(long bytes);
+    }
+
+    private static final class TypeStats {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder evictions = new LongAdder();
+    }
+
+    private final long budget;
+    private final Set<WeakReference<Trimmable>> caches =
+            Collections.newSetFromMap(new ConcurrentHashMap<WeakReference<Trimmable>, Boolean>());
+    private final ReferenceQueue<Trimmable> collected = new ReferenceQueue<Trimmable>();
+    private final AtomicLong nextEnforce = new AtomicLong();
+    private final LongAdder trimmed = new LongAdder();
+    private final Map<MailItem.Type, TypeStats> typeStats =
+            new EnumMap<MailItem.Type, TypeStats>(MailItem.Type.class);
+
+    ItemCacheBudget(long budget) {
+        this.budget = budget;
+        for (MailItem.Type type : MailItem.Type.values()) {
+            typeStats.put(type, new TypeStats());
+        }
+    }
+
+    public static ItemCacheBudget getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the global budget from {@code zimbra_mailbox_item_cache_max_bytes}, or a tenth of
+     * the maximum heap size if that key is not set to a positive value.
+     */
+    private static long getConfiguredBudget() {
+        long configured = LC.zimbra_mailbox_item_cache_max_bytes.longValue();
+        return configured > 0 ? configured : Runtime.getRuntime().maxMemory() / 10;
+    }
+
+    /** Returns the rough heap cost of a string, in bytes. */
+    static int stringWeight(String s) {
+        return s == null ? 0 : STRING_OVERHEAD + BYTES_PER_CHAR * s.length();
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    void register(Trimmable cache) {
+        expungeCollected();
+        caches.add(new WeakReference<Trimmable>(cache, collected));
+    }
+
+    private void expungeCollected() {
+        Object ref;
+        while ((ref = collected.poll()) != null) {
+            caches.remove(ref);
+        }
+    }
+
+    private List<Trimmable> liveCaches() {
+        expungeCollected();
+        List<Trimmable> live = new ArrayList<Trimmable>(caches.size());
+        for (WeakReference<Trimmable> ref : caches) {
+            Trimmable cache = ref.get();
+            if (cache != null) {
+                live.add(cache);
+            }
+        }
+        return live;
+    }
+
+    /** Returns the number of item caches currently accounted against the budget. */
+    public int getCacheCount() {
+        return liveCaches().size();
+    }
+
+    /** Returns the combined weight of all live item caches, in bytes. */
+    public long getWeightedSize() {
+        long total = 0;
+        for (Trimmable cache : liveCaches()) {
+            total += cache.weightedSize();
+        }
+        return total;
+    }
+
+    /** Returns the number of items evicted so far to keep the caches within the global budget. */
+    public long getTrimmedCount() {
+        return trimmed.sum();
+    }
+
+    /** Brings the caches back within the budget if due; cheap enough to call after every
+     *  transaction. */
+    void maybeEnforce() {
+        long now = System.currentTimeMillis();
+        long next = nextEnforce.get();
+        if (now >= next && nextEnforce.compareAndSet(next, now + ENFORCE_INTERVAL_MILLIS)) {
+            enforce();
+        }
+    }
+
+    /**
+     * Asks every cache above its fair share of the budget, largest first, to trim itself to that
+     * share, until the combined weight would be back within the budget.
+     *
+     * @return the combined weight once the requested trims are done
+     */
+    long enforce() {
+        List<Trimmable> live = liveCaches();
+        if (live.isEmpty()) {
+            return 0;
+        }
+        final Map<Trimmable, Long> weights = new HashMap<Trimmable, Long>();
+        long total = 0;
+        for (Trimmable cache : live) {
+            long weight = cache.weightedSize();
+            weights.put(cache, weight);
+            total += weight;
+        }
+        if (total <= budget) {
+            return total;
+        }
+        long share = budget / live.size();
+        Collections.sort(live, new Comparator<Trimmable>() {
+            @Override
+            public int compare(Trimmable a, Trimmable b) {
+                return Long.compare(weights.get(b), weights.get(a));
+            }
+        });
+        ZimbraLog.cache.debug("item caches weigh %d bytes over budget of %d; trimming to %d bytes per mailbox",
+                total, budget, share);
+        for (Trimmable cache : live) {
+            long before = weights.get(cache);
+            if (total <= budget || before <= share) {
+                break;
+            }
+            cache.requestTrim(share);
+            total -= before - share;
+        }
+        return total;
+    }
+
+    void recordHit(MailItem.Type type) {
+        typeStats.get(type).hits.increment();
+    }
+
+    void recordMiss(MailItem.Type type) {
+        typeStats.get(type).misses.increment();
+    }
+
+    void recordEviction(MailItem.Type type, boolean overBudget) {
+        typeStats.get(type).evictions.increment();
+        if (overBudget) {
+            trimmed.increment();
+        }
+    }
+
+    @Override
+    public String getFilename() {
+        return "item_cache.csv";
+    }
+
+    @Override
+    public String getHeader() {
+        return "type,hits,misses,evictions,hit_rate";
+    }
+
+    /** Returns one line per item type that saw any cache activity since the last call. */
+    @Override
+    public Collection<String> getDataLines() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<MailItem.Type, TypeStats> entry : typeStats.entrySet()) {
+            TypeStats stats = entry.getValue();
+            long hits = stats.hits.sumThenReset();
+            long misses = stats.misses.sumThenReset();
+            long evictions = stats.evictions.sumThenReset();
+            if (hits + misses + evictions == 0) {
+                continue;
+            }
+            double hitRate = hits + misses == 0 ? 0.0 : hits * 100.0 / (hits + misses);
+            lines.add(String.format("%s,%d,%d,%d,%.1f", entry.getKey(), hits, misses, evictions,
+                    hitRate));
+        }
+        return lines;
+    }
+
+    @Override
+    public boolean hasTimestampColumn() {
+        return true;
+    }
+}
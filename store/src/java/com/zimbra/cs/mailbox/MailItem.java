@@ -1023,6 +1023,28 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         return size;
     }
 
+    /** Returns a rough estimate of the heap, in bytes, retained by this item
+     *  while it sits in its mailbox's item cache.  Subclasses that keep large
+     *  decoded state beyond the {@link UnderlyingData} add their share. */
+    int estimateCacheWeight() {
+        UnderlyingData data = mData;
+        int weight = ItemCacheBudget.ITEM_OVERHEAD;
+        weight += ItemCacheBudget.stringWeight(data.subject) + ItemCacheBudget.stringWeight(data.name);
+        weight += ItemCacheBudget.stringWeight(data.locator) + ItemCacheBudget.stringWeight(data.blobDigest);
+        weight += ItemCacheBudget.stringWeight(data.prevFolders) + ItemCacheBudget.stringWeight(data.uuid);
+        weight += ItemCacheBudget.stringWeight(data.metadata);
+        for (String tag : data.tags) {
+            weight += ItemCacheBudget.stringWeight(tag);
+        }
+        if (mExtendedData != null) {
+            for (Pair<String, String> section : mExtendedData) {
+                weight += ItemCacheBudget.stringWeight(section.getFirst())
+                        + ItemCacheBudget.stringWeight(section.getSecond());
+            }
+        }
+        return weight;
+    }
+
     public String getSubject() {
         return Strings.nullToEmpty(mData.getSubject());
     }
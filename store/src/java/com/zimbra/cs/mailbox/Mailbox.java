@@ -21,7 +21,6 @@ import java.io.InputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -40,8 +39,10 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
@@ -57,6 +58,8 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
 import com.zimbra.client.ZFolder;
 import com.zimbra.client.ZMailbox;
 import com.zimbra.client.ZMailbox.Options;
@@ -537,9 +540,13 @@ public class Mailbox implements MailboxStore {
 
     }
 
+    /**
+     * Folders of the mailbox by ID and by UUID.  The maps are concurrent because
+     * {@link Mailbox#getCachedItemOptimistically} reads them without holding the mailbox lock.
+     */
     private static class FolderCache {
-        private final Map<Integer, Folder> mapById;
-        private final Map<String, Folder> mapByUuid;
+        private final ConcurrentMap<Integer, Folder> mapById;
+        private final ConcurrentMap<String, Folder> mapByUuid;
 
         public FolderCache() {
             mapById = new ConcurrentHashMap<Integer, Folder>();
@@ -597,18 +604,103 @@ public class Mailbox implements MailboxStore {
         }
     }
 
-    private static class ItemCache {
-        private final Map<Integer /* id */, MailItem> mapById;
+    /**
+     * LRU cache of the mailbox's items other than folders and tags, weighted by the estimated heap
+     * footprint of each item ({@link MailItem#estimateCacheWeight()}).  The cache is bounded in bytes
+     * per mailbox, and all mailboxes' caches together are kept within the {@link ItemCacheBudget}.
+     */
+    private static class ItemCache implements ItemCacheBudget.Trimmable {
+        private final ConcurrentLinkedHashMap<Integer /* id */, MailItem> mapById;
         private final Map<String /* uuid */, Integer /* id */> uuid2id;
         private final Mailbox mbox;
         private boolean isAlwaysOn = false;
-
-        public ItemCache(Mailbox mbox) {
-            mapById = new ConcurrentLinkedHashMap.Builder<Integer, MailItem>().maximumWeightedCapacity(
-                            MAX_ITEM_CACHE_WITH_LISTENERS).build();
+        /** Weight the {@link ItemCacheBudget} has asked this cache to shrink to, or -1 if none. */
+        private final AtomicLong requestedTrim = new AtomicLong(-1);
+
+        public ItemCache(Mailbox mbox, long maxBytes) {
+            mapById = new ConcurrentLinkedHashMap.Builder<Integer, MailItem>()
+                            .maximumWeightedCapacity(maxBytes)
+                            .weigher(new Weigher<MailItem>() {
+                                @Override
+                                public int weightOf(MailItem item) {
+                                    return Math.max(1, item.estimateCacheWeight());
+                                }
+                            })
+                            .listener(new EvictionListener<Integer, MailItem>() {
+                                @Override
+                                public void onEviction(Integer id, MailItem item) {
+                                    unmapUuid(item);
+                                    ItemCacheBudget.getInstance().recordEviction(item.getType(), false);
+                                }
+                            }).build();
             uuid2id = new ConcurrentHashMap<String, Integer>(MAX_ITEM_CACHE_WITH_LISTENERS);
             this.mbox = mbox;
             this.isAlwaysOn = Zimbra.isAlwaysOn();
+            if (!isAlwaysOn) {
+                ItemCacheBudget.getInstance().register(this);
+            }
+        }
+
+        private void unmapUuid(MailItem item) {
+            String uuid = item.getUuid();
+            if (uuid != null) {
+                uuid2id.remove(uuid, item.getId());
+            }
+        }
+
+        long capacity() {
+            return mapById.capacity();
+        }
+
+        void setCapacity(long maxBytes) {
+            mapById.setCapacity(maxBytes);
+        }
+
+        @Override
+        public long weightedSize() {
+            return isAlwaysOn ? 0 : mapById.weightedSize();
+        }
+
+        /** Returns up to {@code limit} of the least recently used items, coldest first. */
+        public List<MailItem> coldest(int limit) {
+            if (isAlwaysOn || limit <= 0) {
+                return Collections.emptyList();
+            }
+            List<MailItem> items = new ArrayList<MailItem>(limit);
+            for (Integer id : mapById.ascendingKeySetWithLimit(limit)) {
+                MailItem item = mapById.getQuietly(id);
+                if (item != null) {
+                    items.add(item);
+                }
+            }
+            return items;
+        }
+
+        /** Records that the {@link ItemCacheBudget} wants this cache to weigh at most {@code bytes}.
+         *  The budget does not hold the mailbox lock, so the trim itself is left to
+         *  {@link Mailbox#trimItemCache()}, which picks it up via {@link #takeRequestedTrim()}. */
+        @Override
+        public void requestTrim(long bytes) {
+            long current;
+            do {
+                current = requestedTrim.get();
+                if (current >= 0 && current <= bytes) {
+                    return;
+                }
+            } while (!requestedTrim.compareAndSet(current, bytes));
+        }
+
+        /** Returns and clears the weight requested by the {@link ItemCacheBudget}, or -1 if none. */
+        long takeRequestedTrim() {
+            return requestedTrim.getAndSet(-1);
+        }
+
+        /** Re-weighs a cached item after it was modified, so that the cache's weight tracks what the
+         *  item holds now rather than what it held when it was cached.  No-op if it isn't cached. */
+        void reweigh(MailItem item) {
+            if (!isAlwaysOn) {
+                mapById.replace(item.getId(), item);
+            }
         }
 
         public void put(MailItem item) {
@@ -674,10 +766,7 @@ public class Mailbox implements MailboxStore {
             } else {
                 MailItem removed = mapById.remove(id);
                 if (removed != null) {
-                    String uuid = removed.getUuid();
-                    if (uuid != null) {
-                        uuid2id.remove(uuid);
-                    }
+                    unmapUuid(removed);
                 }
                 return removed;
             }
@@ -734,6 +823,9 @@ public class Mailbox implements MailboxStore {
     private static final int MAX_ITEM_CACHE_WITH_LISTENERS = LC.zimbra_mailbox_active_cache.intValue();
     private static final int MAX_ITEM_CACHE_WITHOUT_LISTENERS = LC.zimbra_mailbox_inactive_cache.intValue();
     private static final int MAX_ITEM_CACHE_FOR_GALSYNC_MAILBOX = LC.zimbra_mailbox_galsync_cache.intValue();
+    private static final long MAX_ITEM_CACHE_BYTES_WITH_LISTENERS = LC.zimbra_mailbox_active_cache_bytes.longValue();
+    private static final long MAX_ITEM_CACHE_BYTES_WITHOUT_LISTENERS = LC.zimbra_mailbox_inactive_cache_bytes.longValue();
+    private static final long MAX_ITEM_CACHE_BYTES_FOR_GALSYNC_MAILBOX = LC.zimbra_mailbox_galsync_cache_bytes.longValue();
     private static final int MAX_MSGID_CACHE = 10;
 
     private final int mId;
@@ -741,9 +833,11 @@ public class Mailbox implements MailboxStore {
     private final ThreadLocal<MailboxChange> threadChange = new ThreadLocal<MailboxChange>();
     private final List<Session> mListeners = new CopyOnWriteArrayList<Session>();
 
-    private FolderCache mFolderCache;
-    private Map<Object, Tag> mTagCache;
-    private SoftReference<ItemCache> mItemCache = new SoftReference<ItemCache>(null);
+    // volatile and concurrent: both caches are also read without the mailbox lock by getCachedItemOptimistically()
+    private volatile FolderCache mFolderCache;
+    private volatile ConcurrentMap<Object, Tag> mTagCache;
+    // hard reference: heap pressure is handled by ItemCacheBudget rather than by the GC dropping whole caches
+    private volatile ItemCache mItemCache;
     private final Map<String, Integer> mConvHashes = new ConcurrentLinkedHashMap.Builder<String, Integer>()
                     .maximumWeightedCapacity(MAX_MSGID_CACHE).build();
     private final Map<String, Integer> mSentMessageIDs = new ConcurrentLinkedHashMap.Builder<String, Integer>()
@@ -1829,11 +1923,11 @@ public class Mailbox implements MailboxStore {
             recorder.setChangeId(getOperationChangeID());
         }
 
-        // keep a hard reference to the item cache to avoid having it GCed during the op
-        ItemCache cache = mItemCache.get();
+        ItemCache cache = mItemCache;
         if (cache == null) {
-            cache = new ItemCache(this);
-            mItemCache = new SoftReference<ItemCache>(cache);
+            cache = new ItemCache(this, galSyncMailbox ? MAX_ITEM_CACHE_BYTES_FOR_GALSYNC_MAILBOX
+                            : MAX_ITEM_CACHE_BYTES_WITH_LISTENERS);
+            mItemCache = cache;
             ZimbraLog.cache.debug("created a new MailItem cache for mailbox " + getId());
         }
         currentChange().itemCache = cache;
@@ -1999,7 +2093,10 @@ public class Mailbox implements MailboxStore {
         if (currentChange().isActive()) {
             currentChange().itemCache.clear();
         } else {
-            mItemCache.clear();
+            ItemCache cache = mItemCache;
+            if (cache != null) {
+                cache.clear();
+            }
         }
         try {
             if (Zimbra.isAlwaysOn()) {
@@ -2801,7 +2898,7 @@ public class Mailbox implements MailboxStore {
         }
         assert (currentChange().depth == 0);
 
-        ItemCache cache = mItemCache.get();
+        ItemCache cache = mItemCache;
         FolderCache folders = mFolderCache == null || Collections.disjoint(pms.changedTypes, FOLDER_TYPES) ? mFolderCache
                         : snapshotFolders();
 
@@ -2889,6 +2986,12 @@ public class Mailbox implements MailboxStore {
 
     public MailItem getItemById(OperationContext octxt, int id, MailItem.Type type, boolean fromDumpster)
                     throws ServiceException {
+        if (!fromDumpster && lock.isOptimisticReadEnabled() && !isTransactionActive() && hasFullAccess(octxt)) {
+            MailItem item = getCachedItemOptimistically(id, type);
+            if (item != null) {
+                return item;
+            }
+        }
         boolean success = false;
         try {
             // tag/folder caches are populated in beginTransaction...
@@ -3087,10 +3190,26 @@ public class Mailbox implements MailboxStore {
 
     public MailItem[] getItemById(OperationContext octxt, int[] ids, MailItem.Type type, boolean fromDumpster)
             throws ServiceException {
+        return getItemById(octxt, ids, type, fromDumpster, true);
+    }
+
+    /**
+     * Returns <tt>MailItem</tt>s with the specified ids, looked up under the mailbox read lock like
+     * {@link #getItemById(OperationContext, int, MailItem.Type)}.  Only for callers that just read the returned items,
+     * such as IMAP FETCH.
+     * @throws NoSuchItemException any item does not exist
+     */
+    public MailItem[] getItemsByIdForRead(OperationContext octxt, int[] ids, MailItem.Type type)
+            throws ServiceException {
+        return getItemById(octxt, ids, type, false, false);
+    }
+
+    private MailItem[] getItemById(OperationContext octxt, int[] ids, MailItem.Type type, boolean fromDumpster,
+            boolean write) throws ServiceException {
         boolean success = false;
         try {
             // tag/folder caches are populated in beginTransaction...
-            beginTransaction("getItemById[]", octxt);
+            beginTransaction("getItemById[]", octxt, null, null, write);
             MailItem[] items = getItemById(ids, type, fromDumpster);
             // make sure all those items are visible...
             for (int i = 0; i < items.length; i++) {
@@ -3225,6 +3344,63 @@ public class Mailbox implements MailboxStore {
         return items;
     }
 
+    /**
+     * Retrieves an item from the Mailbox's caches without taking the mailbox lock.  The lookup is validated against
+     * the lock's write stamp, so null is returned if a writer got in the way, if the caches are being reloaded or if
+     * the item is simply not cached.  Callers must then fall back to a regular read transaction.
+     * <p>
+     * Writers may be mutating the caches while this runs, so it only ever reads the concurrent maps behind
+     * {@link #mFolderCache}, {@link #mTagCache} and {@link #mItemCache}; a stale or missing entry is caught by the
+     * stamp validation, a corrupted map walk cannot happen.
+     */
+    private MailItem getCachedItemOptimistically(int id, MailItem.Type type) throws ServiceException {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp == 0L || !open || requiresWriteLock() || maintenance != null) {
+            return null;
+        }
+        FolderCache folders = mFolderCache;
+        ConcurrentMap<Object, Tag> tags = mTagCache;
+        ItemCache items = mItemCache;
+        MailItem item = null;
+        switch (type) {
+            case FLAG:
+            case TAG:
+                item = id < 0 ? Flag.of(this, id) : (tags == null ? null : tags.get(id));
+                break;
+            case MOUNTPOINT:
+            case SEARCHFOLDER:
+            case FOLDER:
+                item = folders == null ? null : folders.get(id);
+                break;
+            case UNKNOWN:
+                if (id < 0) {
+                    item = Flag.of(this, id);
+                }
+                if (item == null && tags != null) {
+                    item = tags.get(id);
+                }
+                if (item == null && folders != null) {
+                    item = folders.get(id);
+                }
+                if (item == null && items != null) {
+                    item = items.get(id);
+                }
+                break;
+            default:
+                item = items == null ? null : items.get(id);
+                break;
+        }
+        if (item != null && !MailItem.isAcceptableType(type, MailItem.Type.of(item.mData.type))) {
+            item = null;
+        }
+        if (item == null || !lock.validate(stamp)) {
+            ZimbraPerf.COUNTER_MBOX_LOCK_OPTIMISTIC_READ.increment(0);
+            return null;
+        }
+        ZimbraPerf.COUNTER_MBOX_LOCK_OPTIMISTIC_READ.increment(100);
+        return item;
+    }
+
     /** retrieve an item from the Mailbox's caches; return null if no item found */
     MailItem getCachedItem(Integer key) throws ServiceException {
         MailItem item = null;
@@ -9943,6 +10119,15 @@ public class Mailbox implements MailboxStore {
                 }
             }
 
+            // modified items may have grown or shrunk since they were cached
+            if (dirty != null && dirty.modified != null && change.itemCache != null) {
+                for (Change chg : dirty.modified.values()) {
+                    if (chg.what instanceof MailItem) {
+                        change.itemCache.reweigh((MailItem) chg.what);
+                    }
+                }
+            }
+
             if (change.deletes != null && change.deletes.blobs != null) {
                 // remove cached messages
                 for (String digest : change.deletes.blobDigests) {
@@ -10031,40 +10216,59 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    /**
+     * Trims this mailbox's item cache back under its per-mailbox limits, and under whatever smaller
+     * share the {@link ItemCacheBudget} has asked for.  The budget never touches a cache without its
+     * mailbox's lock, so an over-budget mailbox that stays idle is only trimmed on its next
+     * transaction.
+     */
     private void trimItemCache() {
         try {
+            ItemCacheBudget.getInstance().maybeEnforce();
+
             int sizeTarget = mListeners.isEmpty() ? MAX_ITEM_CACHE_WITHOUT_LISTENERS : MAX_ITEM_CACHE_WITH_LISTENERS;
+            long byteTarget = mListeners.isEmpty() ? MAX_ITEM_CACHE_BYTES_WITHOUT_LISTENERS
+                            : MAX_ITEM_CACHE_BYTES_WITH_LISTENERS;
             if (galSyncMailbox) {
                 sizeTarget = MAX_ITEM_CACHE_FOR_GALSYNC_MAILBOX;
+                byteTarget = MAX_ITEM_CACHE_BYTES_FOR_GALSYNC_MAILBOX;
             }
 
             ItemCache cache = currentChange().itemCache;
             if (cache == null) {
                 return;
             }
+            // the GAL sync flag may be set after the cache was created with the regular limit
+            if (cache.capacity() < byteTarget) {
+                cache.setCapacity(byteTarget);
+            }
+            long requested = cache.takeRequestedTrim();
+            boolean overBudget = requested >= 0 && requested < byteTarget;
+            if (overBudget) {
+                byteTarget = requested;
+            }
 
-            int excess = cache.size() - sizeTarget;
-            if (excess <= 0) {
+            int size = cache.size();
+            long weight = cache.weightedSize();
+            int excess = size - sizeTarget;
+            long byteExcess = weight - byteTarget;
+            if (excess <= 0 && byteExcess <= 0) {
                 return;
             }
+            // enough of the coldest items to cover the byte excess at the cache's average item weight
+            int count = Math.max(excess, byteExcess <= 0 ? 0 : (int) Math.min(size, byteExcess * size / weight + 1));
 
             // cache the overflow to avoid the Iterator's ConcurrentModificationException
-            MailItem[] overflow = new MailItem[excess];
-            int i = 0;
-            for (MailItem item : cache.values()) {
-                overflow[i++] = item;
-                if (i >= excess) {
-                    break;
-                }
-            }
+            List<MailItem> overflow = cache.coldest(count);
             // trim the excess; note that "uncache" can cascade and take out child items
-            while (--i >= 0) {
-                if (cache.size() <= sizeTarget) {
+            for (MailItem item : overflow) {
+                if (cache.size() <= sizeTarget && cache.weightedSize() <= byteTarget) {
                     return;
                 }
 
                 try {
-                    uncache(overflow[i]);
+                    uncache(item);
+                    ItemCacheBudget.getInstance().recordEviction(item.getType(), overBudget);
                 } catch (ServiceException e) {
                 }
             }
@@ -10081,6 +10285,11 @@ public class Mailbox implements MailboxStore {
         // The global item cache counter always gets updated
         if (!isCachedType(type)) {
             ZimbraPerf.COUNTER_MBOX_ITEM_CACHE.increment(item == null ? 0 : 100);
+            if (item == null) {
+                ItemCacheBudget.getInstance().recordMiss(type);
+            } else {
+                ItemCacheBudget.getInstance().recordHit(item.getType());
+            }
         }
 
         // the per-access log only gets updated when cache or perf debug logging is on
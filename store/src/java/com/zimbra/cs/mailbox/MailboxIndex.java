@@ -65,6 +65,7 @@ import com.zimbra.cs.index.LuceneFields;
 import com.zimbra.cs.index.LuceneIndex;
 import com.zimbra.cs.index.ReSortingQueryResults;
 import com.zimbra.cs.index.SearchParams;
+import com.zimbra.cs.index.SearchResultCache;
 import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.index.ZimbraAnalyzer;
 import com.zimbra.cs.index.ZimbraIndexReader.TermFieldEnumeration;
@@ -130,6 +131,7 @@ public final class MailboxIndex {
 
     public static void shutdown() {
         IndexStore.getFactory().destroy();
+        SearchResultCache.clear();
     }
 
     public Analyzer getAnalyzer() {
@@ -163,6 +165,13 @@ public final class MailboxIndex {
         assert(octx != null);
 
         ZimbraQuery query = new ZimbraQuery(octx, proto, mailbox, params);
+        SearchResultCache.Key cacheKey = SearchResultCache.getKey(mailbox, query, octx);
+        if (cacheKey != null) {
+            ZimbraQueryResults cached = SearchResultCache.get(mailbox, cacheKey, query);
+            if (cached != null) {
+                return cached;
+            }
+        }
         Set<MailItem.Type> types = toIndexTypes(params.getTypes());
         // no need to index if the search doesn't involve Lucene
         if (!params.isQuick() && query.hasTextOperation() && getDeferredCount(types) > 0) {
@@ -172,8 +181,12 @@ public final class MailboxIndex {
             } catch (ServiceException e) {
                 ZimbraLog.index.error("Failed to index deferred items", e);
             }
+            if (getDeferredCount(types) > 0) { // the results would change as soon as the rest is indexed
+                cacheKey = null;
+            }
         }
-        return search(query);
+        ZimbraQueryResults results = search(query);
+        return cacheKey == null ? results : SearchResultCache.record(cacheKey, results, params);
     }
 
     public ZimbraQueryResults search(OperationContext octxt, String queryString, Set<MailItem.Type> types,
@@ -322,6 +335,7 @@ public final class MailboxIndex {
             cancelReIndex();
         }
         indexStore.deleteIndex();
+        SearchResultCache.invalidate(mailbox.getId());
     }
 
     /**
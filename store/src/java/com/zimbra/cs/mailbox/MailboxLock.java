@@ -19,6 +19,7 @@ package com.zimbra.cs.mailbox;
 import java.util.EmptyStackException;
 import java.util.Stack;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
 
 import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
 
@@ -28,6 +29,7 @@ import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.lock.DebugZLock;
+import com.zimbra.cs.mailbox.lock.MailboxLockStats;
 import com.zimbra.cs.mailbox.lock.ZLock;
 import com.zimbra.cs.util.Zimbra;
 import com.zimbra.cs.zookeeper.CuratorManager;
@@ -46,6 +48,13 @@ public final class MailboxLock {
     private InterProcessSemaphoreMutex dLock = null;
     private final Stack<Boolean> lockStack = new Stack<Boolean>();
     private Mailbox mbox;
+    private final MailboxLockStats stats;
+    /**
+     * Write stamp for optimistic readers, or null if optimistic reads are disabled.  It is write-locked for the
+     * duration of every outermost write hold and never read-locked, so it is always acquired without contention.
+     */
+    private final StampedLock versionLock;
+    private long writeStamp = 0L;
 
     public MailboxLock(String id, Mailbox mbox) {
         if (Zimbra.isAlwaysOn()) {
@@ -56,6 +65,73 @@ public final class MailboxLock {
             }
         }
         this.mbox = mbox;
+        this.stats = LC.zimbra_mailbox_lock_stats_enabled.booleanValue() ?
+                new MailboxLockStats(mbox.getId(), id) : null;
+        this.versionLock = LC.zimbra_mailbox_lock_optimistic_read.booleanValue() ? new StampedLock() : null;
+    }
+
+    public boolean isOptimisticReadEnabled() {
+        return versionLock != null;
+    }
+
+    /**
+     * Returns a stamp for an optimistic, lock-free read of mailbox state, or 0 if the write lock is currently held
+     * or optimistic reads are disabled.  The read must be checked with {@link #validate(long)} before its result
+     * is used; if validation fails the caller must fall back to {@link #lock(boolean)}.
+     */
+    public long tryOptimisticRead() {
+        return versionLock == null ? 0L : versionLock.tryOptimisticRead();
+    }
+
+    /**
+     * Returns true if the write lock has not been acquired since {@code stamp} was issued by
+     * {@link #tryOptimisticRead()}.
+     */
+    public boolean validate(long stamp) {
+        return stamp != 0L && versionLock != null && versionLock.validate(stamp);
+    }
+
+    private void acquireWriteStamp(boolean write) {
+        if (versionLock != null && write && zLock.getWriteHoldCount() == 1) {
+            writeStamp = versionLock.writeLock();
+        }
+    }
+
+    private void releaseWriteStamp() {
+        if (versionLock != null && zLock.getWriteHoldCount() == 1) {
+            versionLock.unlockWrite(writeStamp);
+            writeStamp = 0L;
+        }
+    }
+
+    /**
+     * Returns the contention statistics of this lock, or null if lock statistics are disabled.
+     */
+    public MailboxLockStats getStats() {
+        return stats;
+    }
+
+    private void recordAcquired(boolean write, long startNanos) {
+        if (stats == null) {
+            return;
+        }
+        boolean outermost;
+        if (write) {
+            outermost = zLock.getWriteHoldCount() == 1;
+        } else {
+            // a read hold nested in a write hold is accounted for by the write hold
+            outermost = zLock.getReadHoldCount() == 1 && !zLock.isWriteLockedByCurrentThread();
+        }
+        stats.acquired(write, startNanos, outermost);
+    }
+
+    private void recordReleased(boolean write) {
+        if (stats == null) {
+            return;
+        }
+        if (write ? zLock.getWriteHoldCount() == 0 : zLock.getReadHoldCount() == 0) {
+            stats.released(write);
+        }
     }
 
     private void acquireDistributedLock(boolean write) throws ServiceException {
@@ -158,6 +234,13 @@ public final class MailboxLock {
     }
 
     public void lock(boolean write) {
+        lock(write, stats == null ? 0 : System.nanoTime());
+    }
+
+    /**
+     * @param startNanos {@link System#nanoTime()} when the caller started to wait, for the lock statistics
+     */
+    private void lock(boolean write, long startNanos) {
         write = write || mbox.requiresWriteLock();
         ZimbraLog.mailbox.trace("LOCK %s", (write ? "WRITE" : "READ"));
         assert(neverReadBeforeWrite(write));
@@ -165,10 +248,12 @@ public final class MailboxLock {
             if (tryLock(write)) {
                 if (mbox.requiresWriteLock() && !isWriteLockedByCurrentThread()) {
                     //writer finished a purge while we waited
-                    promote();
+                    promote(startNanos);
                     return;
                 }
                 lockStack.push(write);
+                acquireWriteStamp(write);
+                recordAcquired(write, startNanos);
                 try {
                     acquireDistributedLock(write);
                 } catch (ServiceException e) {
@@ -180,10 +265,16 @@ public final class MailboxLock {
                 return;
             }
             int queueLength = zLock.getQueueLength();
+            if (stats != null) {
+                stats.contended(queueLength);
+            }
             if (queueLength >= LC.zimbra_mailbox_lock_max_waiting_threads.intValue()) {
                 // Too many threads are already waiting for the lock, can't let you queued. We don't want to log stack trace
                 // here because once requests back up, each new incoming request falls into here, which creates too much
                 // noise in the logs. Unless debug switch is enabled
+                if (stats != null) {
+                    stats.rejected();
+                }
                 LockFailedException e = new LockFailedException("too many waiters: " + queueLength);
                 if (DebugConfig.debugMailboxLock) {
                     e.logStackTrace();
@@ -194,10 +285,12 @@ public final class MailboxLock {
             if (tryLockWithTimeout(write)) {
                 if (mbox.requiresWriteLock() && !isWriteLockedByCurrentThread()) {
                     //writer finished a purge while we waited
-                    promote();
+                    promote(startNanos);
                     return;
                 }
                 lockStack.push(write);
+                acquireWriteStamp(write);
+                recordAcquired(write, startNanos);
                 try {
                     acquireDistributedLock(write);
                 } catch (ServiceException e) {
@@ -208,6 +301,9 @@ public final class MailboxLock {
                 }
                 return;
             }
+            if (stats != null) {
+                stats.timedOut();
+            }
             LockFailedException e = new LockFailedException("timeout");
             e.logStackTrace();
             throw e;
@@ -236,14 +332,20 @@ public final class MailboxLock {
         releaseDistributedLock(write);
         if (write) {
             assert(zLock.getWriteHoldCount() > 0);
+            releaseWriteStamp();
             zLock.writeLock().unlock();
         } else {
             zLock.readLock().unlock();
             assert(debugReleaseReadLock());
         }
+        recordReleased(write);
     }
 
-    private void promote() {
+    /**
+     * Trades the read holds of the current thread, including the one just acquired, for write holds.  The wait for
+     * the read lock and for the write lock are recorded as a single wait starting at {@code startNanos}.
+     */
+    private void promote(long startNanos) {
         assert(getHoldCount() == zLock.getReadHoldCount());
         int count = zLock.getReadHoldCount();
         for (int i = 0; i < count - 1; i++) {
@@ -251,7 +353,13 @@ public final class MailboxLock {
         }
         zLock.readLock().unlock();
         assert(debugReleaseReadLock());
-        for (int i = 0; i < count; i++) {
+        // ends the read hold of an enclosing lock() call; the read lock acquired by the caller was never recorded
+        recordReleased(false);
+        if (stats != null) {
+            stats.promoted();
+        }
+        lock(true, startNanos);
+        for (int i = 1; i < count; i++) {
             lock(true);
         }
     }
@@ -18,6 +18,7 @@ package com.zimbra.cs.mailbox;
 
 import java.lang.ref.SoftReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -25,11 +26,16 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Lock;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Striped;
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.localconfig.LC;
@@ -139,12 +145,12 @@ public class MailboxManager {
             listener.mailboxDeleted(accountId);
     }
 
-    private static MailboxManager sInstance;
+    private static volatile MailboxManager sInstance;
 
     /** Maps account IDs (<code>String</code>s) to mailbox IDs
      *  (<code>Integer</code>s).  <i>Every</i> mailbox in existence on the
      *  server appears in this mapping. */
-    private Map<String, Integer> mailboxIds;
+    private ConcurrentMap<String, Integer> mailboxIds;
 
     /**
      * Maps mailbox IDs ({@link Integer}s) to either
@@ -156,19 +162,35 @@ public class MailboxManager {
      * Mailboxes are faulted into memory as needed, but may drop from memory when the SoftReference expires due to
      * memory pressure combined with a lack of outstanding references to the {@link Mailbox}.  Only one {@link Mailbox}
      * per user is cached, and only that {@link Mailbox} can process user requests.
+     * <p>
+     * The map is lock-striped by mailbox ID; check-then-act sequences on one mailbox's entry synchronize on
+     * {@link MailboxMap#lockFor(int)} rather than on the whole manager.
      */
     private MailboxMap cache;
 
+    /** Loads in progress, keyed by mailbox ID, so that concurrent first accesses to a mailbox load it only once. */
+    private final ConcurrentMap<Integer, CompletableFuture<Mailbox>> loading =
+            new ConcurrentHashMap<Integer, CompletableFuture<Mailbox>>();
+
+    /** Mailboxes the current thread is loading, so that a lookup nested in a load doesn't wait on any load. */
+    private static final ThreadLocal<Set<Integer>> loadingOnThread = new ThreadLocal<Set<Integer>>() {
+        @Override
+        protected Set<Integer> initialValue() {
+            return new HashSet<Integer>();
+        }
+    };
+
+    /** Serializes mailbox creation per account ID without blocking creation of other accounts' mailboxes. */
+    private final Striped<Lock> createLocks = Striped.lock(64);
+
     public MailboxManager() throws ServiceException {
         DbConnection conn = null;
-        synchronized (this) {
-            try {
-                conn = DbPool.getConnection();
-                mailboxIds = DbMailbox.listMailboxes(conn, this);
-                cache = createCache();
-            } finally {
-                DbPool.quietClose(conn);
-            }
+        try {
+            conn = DbPool.getConnection();
+            mailboxIds = new ConcurrentHashMap<String, Integer>(DbMailbox.listMailboxes(conn, this));
+            cache = createCache();
+        } finally {
+            DbPool.quietClose(conn);
         }
     }
 
@@ -186,25 +208,32 @@ public class MailboxManager {
     protected MailboxManager(boolean extend) {
     }
 
-    public synchronized static MailboxManager getInstance() throws ServiceException {
-        if (sInstance == null) {
-            String className = LC.zimbra_class_mboxmanager.value();
-            if (className != null && !className.equals("")) {
-                try {
+    public static MailboxManager getInstance() throws ServiceException {
+        // every request goes through here, so don't take the class lock once the instance exists
+        MailboxManager instance = sInstance;
+        if (instance != null) {
+            return instance;
+        }
+        synchronized (MailboxManager.class) {
+            if (sInstance == null) {
+                String className = LC.zimbra_class_mboxmanager.value();
+                if (className != null && !className.equals("")) {
                     try {
-                        sInstance = (MailboxManager) Class.forName(className).newInstance();
-                    } catch (ClassNotFoundException cnfe) {
-                        // ignore and look in extensions
-                        sInstance = (MailboxManager) ExtensionUtil.findClass(className).newInstance();
+                        try {
+                            sInstance = (MailboxManager) Class.forName(className).newInstance();
+                        } catch (ClassNotFoundException cnfe) {
+                            // ignore and look in extensions
+                            sInstance = (MailboxManager) ExtensionUtil.findClass(className).newInstance();
+                        }
+                    } catch (Exception e) {
+                        ZimbraLog.account.error("could not instantiate MailboxManager interface of class '" + className + "'; defaulting to MailboxManager", e);
                     }
-                } catch (Exception e) {
-                    ZimbraLog.account.error("could not instantiate MailboxManager interface of class '" + className + "'; defaulting to MailboxManager", e);
                 }
+                if (sInstance == null)
+                    sInstance = new MailboxManager();
             }
-            if (sInstance == null)
-                sInstance = new MailboxManager();
+            return sInstance;
         }
-        return sInstance;
     }
 
     @VisibleForTesting
@@ -216,6 +245,7 @@ public class MailboxManager {
     public void clearCache() {
         cache.clear();
         mailboxIds.clear();
+        loading.clear();
     }
 
     public void startup() {
@@ -356,10 +386,7 @@ public class MailboxManager {
         if (accountId == null)
             throw new IllegalArgumentException();
 
-        Integer mailboxKey;
-        synchronized (this) {
-            mailboxKey = mailboxIds.get(accountId.toLowerCase());
-        }
+        Integer mailboxKey = mailboxIds.get(accountId.toLowerCase());
         if (mailboxKey != null) {
             if (DebugConfig.mockMultiserverInstall)
                 lookupAccountWithHostCheck(accountId, skipMailHostCheck);
@@ -370,9 +397,7 @@ public class MailboxManager {
 
         // auto-create the mailbox if this is the right host...
         Account account = lookupAccountWithHostCheck(accountId, skipMailHostCheck);
-        synchronized (this) {
-            mailboxKey = mailboxIds.get(accountId.toLowerCase());
-        }
+        mailboxKey = mailboxIds.get(accountId.toLowerCase());
         if (mailboxKey != null)
             return getMailboxById(mailboxKey, fetchMode, skipMailHostCheck);
         else
@@ -443,7 +468,7 @@ public class MailboxManager {
     throws ServiceException {
         // see bug 19088 - we do NOT want to call this while holding the mgr lock, because
         // we need the Mailbox instantiation code to run w/o the lock held.
-        assert(fetchMode == FetchMode.ONLY_IF_CACHED || !Thread.holdsLock(this));
+        assert(fetchMode == FetchMode.ONLY_IF_CACHED || cache == null || !cache.holdsAnyLock());
 
         if (mailboxId <= 0)
             throw MailServiceException.NO_SUCH_MBOX(mailboxId);
@@ -451,13 +476,11 @@ public class MailboxManager {
         long startTime = ZimbraPerf.STOPWATCH_MBOX_GET.start();
 
         Mailbox mbox = null;
-        synchronized (this) {
-            // check to see if the mailbox has already been cached
-            Object cached = retrieveFromCache(mailboxId, true);
-            if (cached instanceof Mailbox) {
-                ZimbraPerf.COUNTER_MBOX_CACHE.increment(100);
-                mbox = (Mailbox) cached;
-            }
+        // check to see if the mailbox has already been cached
+        Object cached = retrieveFromCache(mailboxId, true);
+        if (cached instanceof Mailbox) {
+            ZimbraPerf.COUNTER_MBOX_CACHE.increment(100);
+            mbox = (Mailbox) cached;
         }
 
         if (fetchMode == FetchMode.ONLY_IF_CACHED && (mbox == null || !mbox.isOpen())) {
@@ -467,48 +490,7 @@ public class MailboxManager {
 
         if (mbox == null) { // not found in cache
             ZimbraPerf.COUNTER_MBOX_CACHE.increment(0);
-            MailboxData data;
-            DbConnection conn = DbPool.getConnection();
-            try {
-                // fetch the Mailbox data from the database
-                data = DbMailbox.getMailboxStats(conn, mailboxId);
-                if (data == null) {
-                    throw MailServiceException.NO_SUCH_MBOX(mailboxId);
-                }
-            } finally {
-                conn.closeQuietly();
-            }
-
-            mbox = instantiateMailbox(data);
-            Account account = mbox.getAccount();
-            boolean isGalSyncAccount = AccountUtil.isGalSyncAccount(account);
-            mbox.setGalSyncMailbox(isGalSyncAccount);
-
-            if (!skipMailHostCheck) {
-                // The host check here makes sure that sessions that were
-                // already connected at the time of mailbox move are not
-                // allowed to continue working with this mailbox which is
-                // essentially a soft-deleted copy.  The WRONG_HOST
-                // exception forces the clients to reconnect to the new
-                // server.
-                if (!Provisioning.onLocalServer(account))
-                    throw ServiceException.WRONG_HOST(account.getMailHost(), null);
-            }
-
-            synchronized (this) {
-                // avoid the race condition by re-checking the cache and using that data (if any)
-                Object cached = retrieveFromCache(mailboxId, false);
-                if (cached instanceof Mailbox) {
-                    mbox = (Mailbox) cached;
-                } else {
-                    // cache the newly-created Mailbox object
-                    if (cached instanceof MailboxMaintenance) {
-                        ((MailboxMaintenance) cached).setMailbox(mbox);
-                    } else {
-                        cacheMailbox(mbox);
-                    }
-                }
-            }
+            mbox = loadMailbox(mailboxId, skipMailHostCheck);
         }
 
         // now, make sure the mailbox is opened -- we do this after releasing MailboxManager lock so that filesystem IO
@@ -527,9 +509,7 @@ public class MailboxManager {
             MailboxMaintenance maint = null;
             synchronized (mbox) {
                 maint = mbox.beginMaintenance();
-                synchronized (this) {
-                    cache.put(mailboxId, maint);
-                }
+                cache.put(mailboxId, maint);
             }
             if (oldMaint.isNestedAllowed()) {
                 maint.setNestedAllowed(true);
@@ -540,10 +520,111 @@ public class MailboxManager {
         return mbox;
     }
 
+    /**
+     * Loads a mailbox that was not found in the cache.  Concurrent callers for the same mailbox wait for a single
+     * load rather than each hitting the database, while loads and lookups of other mailboxes proceed in parallel.
+     * <p>
+     * A lookup made by a thread that is itself in the middle of a load is loaded inline, as it was before loads were
+     * shared, and never waits on another thread's load: two threads loading mailboxes that each look up the other's
+     * would otherwise wait on each other forever.  The first of the competing loads to be cached wins.
+     */
+    private Mailbox loadMailbox(int mailboxId, boolean skipMailHostCheck) throws ServiceException {
+        Set<Integer> loadingHere = loadingOnThread.get();
+        if (!loadingHere.isEmpty()) {
+            return fetchMailbox(mailboxId, skipMailHostCheck);
+        }
+        while (true) {
+            CompletableFuture<Mailbox> load = new CompletableFuture<Mailbox>();
+            CompletableFuture<Mailbox> inFlight = loading.putIfAbsent(mailboxId, load);
+            if (inFlight == null) {
+                loadingHere.add(mailboxId);
+                try {
+                    Mailbox mbox = fetchMailbox(mailboxId, skipMailHostCheck);
+                    load.complete(mbox);
+                    return mbox;
+                } catch (ServiceException | RuntimeException | Error e) {
+                    load.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    loadingHere.remove(mailboxId);
+                    loading.remove(mailboxId, load);
+                }
+            }
+
+            try {
+                return inFlight.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw ServiceException.INTERRUPTED("waiting for mailbox " + mailboxId + " to load");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof ServiceException) {
+                    // the loading thread's host check doesn't apply to a caller that skips it; load it ourselves
+                    if (skipMailHostCheck && ServiceException.WRONG_HOST.equals(((ServiceException) cause).getCode())) {
+                        continue;
+                    }
+                    throw (ServiceException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw ServiceException.FAILURE("loading mailbox " + mailboxId, cause);
+            }
+        }
+    }
+
+    /** Fetches the mailbox's data from the database, instantiates it and caches it. */
+    private Mailbox fetchMailbox(int mailboxId, boolean skipMailHostCheck) throws ServiceException {
+        MailboxData data;
+        DbConnection conn = DbPool.getConnection();
+        try {
+            // fetch the Mailbox data from the database
+            data = DbMailbox.getMailboxStats(conn, mailboxId);
+            if (data == null) {
+                throw MailServiceException.NO_SUCH_MBOX(mailboxId);
+            }
+        } finally {
+            conn.closeQuietly();
+        }
+
+        Mailbox mbox = instantiateMailbox(data);
+        Account account = mbox.getAccount();
+        boolean isGalSyncAccount = AccountUtil.isGalSyncAccount(account);
+        mbox.setGalSyncMailbox(isGalSyncAccount);
+
+        if (!skipMailHostCheck) {
+            // The host check here makes sure that sessions that were
+            // already connected at the time of mailbox move are not
+            // allowed to continue working with this mailbox which is
+            // essentially a soft-deleted copy.  The WRONG_HOST
+            // exception forces the clients to reconnect to the new
+            // server.
+            if (!Provisioning.onLocalServer(account))
+                throw ServiceException.WRONG_HOST(account.getMailHost(), null);
+        }
+
+        synchronized (cache.lockFor(mailboxId)) {
+            // avoid the race condition by re-checking the cache and using that data (if any)
+            Object cached = retrieveFromCache(mailboxId, false);
+            if (cached instanceof Mailbox) {
+                mbox = (Mailbox) cached;
+            } else {
+                // cache the newly-created Mailbox object
+                if (cached instanceof MailboxMaintenance) {
+                    ((MailboxMaintenance) cached).setMailbox(mbox);
+                } else {
+                    cacheMailbox(mbox);
+                }
+            }
+        }
+        return mbox;
+    }
+
     /** @return A list of *hard references* to all currently-loaded mailboxes which are not
      *     .   in MAINTENANCE mode.  Caller must be careful to not hang onto this list for
      *         very long or else mailboxes will not be purged. */
-    public synchronized List<Mailbox> getAllLoadedMailboxes() {
+    public List<Mailbox> getAllLoadedMailboxes() {
         List<Mailbox> mboxes = new ArrayList<Mailbox>(cache.size());
         for (Object o : cache.values()) {
             if (o instanceof Mailbox) {
@@ -561,7 +642,7 @@ public class MailboxManager {
     /**
      * Returns the number of hard references to currently-loaded mailboxes, either in MAINTENANCE mode or not.
      */
-    public synchronized int getCacheSize() {
+    public int getCacheSize() {
         int count = 0;
         for (Object o : cache.values()) {
             if (o instanceof Mailbox || o instanceof MailboxMaintenance) {
@@ -576,7 +657,7 @@ public class MailboxManager {
      * that one of the {@link Listener} APIs be called for this mailbox at some point in the future, if this mailbox is
      * ever accessed.
      */
-    public synchronized boolean isMailboxLoadedAndAvailable(int mailboxId) {
+    public boolean isMailboxLoadedAndAvailable(int mailboxId) {
         Object cached = cache.get(mailboxId);
         if (cached == null) {
             return false;
@@ -589,7 +670,7 @@ public class MailboxManager {
     }
 
     private Object retrieveFromCache(int mailboxId, boolean trackGC) throws MailServiceException {
-        synchronized (this) {
+        synchronized (cache.lockFor(mailboxId)) {
             Object cached = cache.get(mailboxId, trackGC);
             if (cached instanceof MailboxMaintenance) {
                 MailboxMaintenance maintenance = (MailboxMaintenance) cached;
@@ -620,7 +701,7 @@ public class MailboxManager {
         return new ExternalVirtualMailbox(data);
     }
 
-    protected synchronized void cacheAccount(String accountId, int mailboxId) {
+    protected void cacheAccount(String accountId, int mailboxId) {
         mailboxIds.put(accountId.toLowerCase(), Integer.valueOf(mailboxId));
     }
 
@@ -632,7 +713,7 @@ public class MailboxManager {
     public MailboxMaintenance beginMaintenance(String accountId, int mailboxId) throws ServiceException {
         Mailbox mbox = getMailboxByAccountId(accountId, false);
         if (mbox == null) {
-            synchronized (this) {
+            synchronized (cache.lockFor(mailboxId)) {
                 if (mailboxIds.get(accountId.toLowerCase()) == null) {
                     MailboxMaintenance maintenance = new MailboxMaintenance(accountId, mailboxId);
                     cache.put(mailboxId, maintenance);
@@ -646,9 +727,7 @@ public class MailboxManager {
         mbox.lock.lock();
         try {
             MailboxMaintenance maintenance = mbox.beginMaintenance();
-            synchronized (this) {
-                cache.put(mailboxId, maintenance);
-            }
+            cache.put(mailboxId, maintenance);
             return maintenance;
         } finally {
             mbox.lock.release();
@@ -661,7 +740,7 @@ public class MailboxManager {
 
         Mailbox availableMailbox = null;
 
-        synchronized (this) {
+        synchronized (cache.lockFor(maintenance.getMailboxId())) {
             Object obj = cache.get(maintenance.getMailboxId());
             if (obj != maintenance) {
                 ZimbraLog.mailbox.debug("maintenance ended with wrong object. passed %s; expected %s", maintenance, obj);
@@ -717,9 +796,7 @@ public class MailboxManager {
      * @return
      */
     public int getMailboxCount() {
-        synchronized (this) {
-            return mailboxIds.size();
-        }
+        return mailboxIds.size();
     }
 
 
@@ -729,13 +806,12 @@ public class MailboxManager {
      *  <code>zimbraMailHost</code> LDAP attribute points to this server. */
     public int[] getMailboxIds() {
         int i = 0;
-        synchronized (this) {
-            Collection<Integer> col = mailboxIds.values();
-            int[] mailboxIds = new int[col.size()];
-            for (int id : col)
-                mailboxIds[i++] = id;
-            return mailboxIds;
-        }
+        // snapshot first; the map may change while we copy it
+        Collection<Integer> col = new ArrayList<Integer>(mailboxIds.values());
+        int[] mailboxIds = new int[col.size()];
+        for (int id : col)
+            mailboxIds[i++] = id;
+        return mailboxIds;
     }
 
     public Set<Integer> getPurgePendingMailboxes(long time) throws ServiceException {
@@ -754,14 +830,8 @@ public class MailboxManager {
      *  the same as the set of accounts whose <code>zimbraMailHost</code> LDAP
      *  attribute points to this server.*/
     public String[] getAccountIds() {
-        int i = 0;
-        synchronized (this) {
-            Set<String> set = mailboxIds.keySet();
-            String[] accountIds = new String[set.size()];
-            for (String o : set)
-                accountIds[i++] = o;
-            return accountIds;
-        }
+        Set<String> set = mailboxIds.keySet();
+        return set.toArray(new String[set.size()]);
     }
 
 
@@ -771,10 +841,7 @@ public class MailboxManager {
      * @return
      */
     public int lookupMailboxId(String accountId) {
-        Integer v;
-        synchronized (this) {
-            v = mailboxIds.get(accountId);
-        }
+        Integer v = mailboxIds.get(accountId);
         return v != null ? v.intValue() : -1;
     }
 
@@ -789,16 +856,14 @@ public class MailboxManager {
      *        the database; a SQLException is encapsulated</ul> */
     public Map<String, Long> getMailboxSizes(List<NamedEntry> accounts) throws ServiceException {
         List<Integer> requested;
-        synchronized (this) {
-            if (accounts == null) {
-                requested = new ArrayList<Integer>(mailboxIds.values());
-            } else {
-                requested = new ArrayList<Integer>(accounts.size());
-                for (NamedEntry account : accounts) {
-                    Integer mailboxId = mailboxIds.get(account.getId());
-                    if (mailboxId != null)
-                        requested.add(mailboxId);
-                }
+        if (accounts == null) {
+            requested = new ArrayList<Integer>(mailboxIds.values());
+        } else {
+            requested = new ArrayList<Integer>(accounts.size());
+            for (NamedEntry account : accounts) {
+                Integer mailboxId = mailboxIds.get(account.getId());
+                if (mailboxId != null)
+                    requested.add(mailboxId);
             }
         }
 
@@ -846,7 +911,9 @@ public class MailboxManager {
                 return getMailboxById(mailboxKey);
 
             boolean isGalSyncAccount = AccountUtil.isGalSyncAccount(account);
-            synchronized (this) {
+            Lock createLock = createLocks.get(account.getId().toLowerCase());
+            createLock.lock();
+            try {
                 // check to make sure the mailbox doesn't already exist
                 mailboxKey = mailboxIds.get(account.getId().toLowerCase());
                 if (mailboxKey != null)
@@ -865,6 +932,8 @@ public class MailboxManager {
                 }
                 // didn't have the mailbox in the database; need to create one now
                 mbox = createMailboxInternal(octxt, account, isGalSyncAccount);
+            } finally {
+                createLock.unlock();
             }
         } while (mbox == null);
 
@@ -876,7 +945,7 @@ public class MailboxManager {
         return mbox;
     }
 
-    private synchronized Mailbox createMailboxInternal(OperationContext octxt, Account account, boolean isGalSyncAccount) throws ServiceException {
+    private Mailbox createMailboxInternal(OperationContext octxt, Account account, boolean isGalSyncAccount) throws ServiceException {
         CreateMailbox redoRecorder = new CreateMailbox(account.getId());
 
         Mailbox mbox = null;
@@ -917,9 +986,13 @@ public class MailboxManager {
                 mbox.initialize();
             }
 
-            // cache the accountID-to-mailboxID and mailboxID-to-Mailbox relationships
+            // cache the mailboxID-to-Mailbox and accountID-to-mailboxID relationships, in that order: lookups don't
+            // take the create lock, and one that found the account's mailbox ID before the Mailbox was cached would
+            // load it from the database, where this transaction hasn't committed it yet
+            synchronized (cache.lockFor(data.id)) {
+                cacheMailbox(mbox);
+            }
             cacheAccount(data.accountId, data.id);
-            cacheMailbox(mbox);
             redoRecorder.setMailboxId(mbox.getId());
 
             success = true;
@@ -950,7 +1023,7 @@ public class MailboxManager {
 
     protected void markMailboxDeleted(Mailbox mailbox) {
         String accountId = mailbox.getAccountId().toLowerCase();
-        synchronized (this) {
+        synchronized (cache.lockFor(mailbox.getId())) {
             maintenanceLocks.remove(accountId);
             mailboxIds.remove(accountId);
             cache.remove(mailbox.getId());
@@ -962,12 +1035,10 @@ public class MailboxManager {
         StringBuilder sb = new StringBuilder();
         sb.append("MAILBOX CACHE DUMPS\n");
         sb.append("----------------------------------------------------------------------\n");
-        synchronized (this) {
-            for (Map.Entry<String, Integer> entry : mailboxIds.entrySet())
-                sb.append("1) key=" + entry.getKey() + " (hash=" + entry.getKey().hashCode() + "); val=" + entry.getValue() + "\n");
-            for (Map.Entry<Integer, Object> entry : cache.entrySet())
-                sb.append("2) key=" + entry.getKey() + "; val=" + entry.getValue() + "(class= " + entry.getValue().getClass().getName() + ",hash=" + entry.getValue().hashCode() + ")");
-        }
+        for (Map.Entry<String, Integer> entry : mailboxIds.entrySet())
+            sb.append("1) key=" + entry.getKey() + " (hash=" + entry.getKey().hashCode() + "); val=" + entry.getValue() + "\n");
+        for (Map.Entry<Integer, Object> entry : cache.entrySet())
+            sb.append("2) key=" + entry.getKey() + "; val=" + entry.getValue() + "(class= " + entry.getValue().getClass().getName() + ",hash=" + entry.getValue().hashCode() + ")");
         sb.append("----------------------------------------------------------------------\n");
         ZimbraLog.mailbox.debug(sb.toString());
     }
@@ -1020,53 +1091,195 @@ public class MailboxManager {
         }
     }
 
+    /**
+     * The mailbox cache.  Entries are split into lock stripes by mailbox ID so that lookups of different mailboxes
+     * don't contend on a single monitor.  Each stripe keeps its share of the hard references in LRU order and demotes
+     * the eldest to {@link SoftReference}s.  The shares add up to exactly the configured hard size; since each stripe
+     * runs its own LRU, the mailboxes that stay hard are the most recent per stripe rather than overall.
+     * <p>
+     * Individual operations are thread-safe; check-then-act sequences on one mailbox's entry must synchronize on
+     * {@link #lockFor(int)}.  Operations spanning all entries return snapshots.  A stripe's monitor only guards map
+     * operations: no mailbox may be looked up or loaded while holding one, as two threads doing so for mailboxes in
+     * each other's stripes would deadlock.  {@link MailboxManager#getMailboxById} asserts this with
+     * {@link #holdsAnyLock()}.
+     */
     protected static class MailboxMap implements Map<Integer, Object> {
+        static final int STRIPES = 64;
+
         final int mHardSize;
-        final LinkedHashMap<Integer, Object> mHardMap;
-        final HashMap<Integer, Object> mSoftMap;
+        private final Stripe[] stripes;
+
+        /** One stripe of the map; all access is guarded by the stripe's own monitor. */
+        private static final class Stripe {
+            final int hardSize;
+            final LinkedHashMap<Integer, Object> hardMap;
+            final HashMap<Integer, Object> softMap = new HashMap<Integer, Object>();
+
+            @SuppressWarnings("serial") Stripe(int size) {
+                hardSize = size;
+                hardMap = new LinkedHashMap<Integer, Object>(Math.max(hardSize / 4, 4), (float) .75, true) {
+                    @Override protected boolean removeEldestEntry(Entry<Integer, Object> eldest) {
+                        if (size() <= hardSize)
+                            return false;
+
+                        Object obj = eldest.getValue();
+                        if (obj instanceof Mailbox)
+                            obj = new SoftReference<Mailbox>((Mailbox) obj);
+                        softMap.put(eldest.getKey(), obj);
+                        return true;
+                    }
+                };
+            }
+
+            synchronized Object get(Object key, boolean trackGC) {
+                Object obj = hardSize > 0 ? hardMap.get(key) : null;
+                if (obj == null) {
+                    obj = softMap.get(key);
+                    if (obj instanceof SoftReference) {
+                        obj = ((SoftReference<?>) obj).get();
+                        if (trackGC && obj == null)
+                            ZimbraLog.mailbox.debug("mailbox " + key + " has been GCed; reloading");
+                    }
+                }
+                return obj;
+            }
+
+            synchronized Object put(Integer key, Object value) {
+                Object removed;
+                if (hardSize > 0) {
+                    removed = hardMap.put(key, value);
+                    if (removed == null)
+                        removed = softMap.remove(key);
+                } else {
+                    if (value instanceof Mailbox)
+                        value = new SoftReference<Object>(value);
+                    removed = softMap.put(key, value);
+                }
+                if (removed instanceof SoftReference)
+                    removed = ((SoftReference<?>) removed).get();
+                return removed;
+            }
+
+            synchronized Object remove(Object key) {
+                Object removed = hardSize > 0 ? hardMap.remove(key) : null;
+                if (removed == null) {
+                    removed = softMap.remove(key);
+                    if (removed instanceof SoftReference)
+                        removed = ((SoftReference<?>) removed).get();
+                }
+                return removed;
+            }
+
+            synchronized boolean containsKey(Object key) {
+                return hardMap.containsKey(key) || softMap.containsKey(key);
+            }
+
+            synchronized boolean containsValue(Object value) {
+                return hardMap.containsValue(value) || softMap.containsValue(value);
+            }
+
+            synchronized void clear() {
+                hardMap.clear();
+                softMap.clear();
+            }
+
+            synchronized int size() {
+                return hardMap.size() + softMap.size();
+            }
 
-        @SuppressWarnings("serial") MailboxMap(int hardSize) {
+            synchronized void addEntriesTo(Collection<Entry<Integer, Object>> entries) {
+                if (hardSize > 0)
+                    entries.addAll(hardMap.entrySet());
+                entries.addAll(softMap.entrySet());
+            }
+
+            synchronized void addKeysTo(Collection<Integer> keys) {
+                if (hardSize > 0)
+                    keys.addAll(hardMap.keySet());
+                keys.addAll(softMap.keySet());
+            }
+
+            synchronized void addValuesTo(Collection<Object> values) {
+                if (hardSize > 0)
+                    values.addAll(hardMap.values());
+                for (Object o : softMap.values()) {
+                    if (o instanceof SoftReference)
+                        o = ((SoftReference<?>) o).get();
+                    values.add(o);
+                }
+            }
+
+            @Override public synchronized String toString() {
+                return "<" + hardMap.toString() + ", " + softMap.toString() + ">";
+            }
+        }
+
+        MailboxMap(int hardSize) {
             hardSize = Math.max(hardSize, 0);
             mHardSize = hardSize;
-            mSoftMap = new HashMap<Integer, Object>();
-            mHardMap = new LinkedHashMap<Integer, Object>(mHardSize / 4, (float) .75, true) {
-                @Override protected boolean removeEldestEntry(Entry<Integer, Object> eldest) {
-                    if (size() <= mHardSize)
-                        return false;
-
-                    Object obj = eldest.getValue();
-                    if (obj instanceof Mailbox)
-                        obj = new SoftReference<Mailbox>((Mailbox) obj);
-                    mSoftMap.put(eldest.getKey(), obj);
-                    return true;
-                }
-            };
+            // split the hard size exactly, giving the remainder to the first stripes one slot apiece
+            stripes = new Stripe[STRIPES];
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new Stripe(hardSize / STRIPES + (i < hardSize % STRIPES ? 1 : 0));
+            }
+        }
+
+        /** @return the number of hard references the map will hold across all its stripes */
+        @VisibleForTesting
+        int getHardCapacity() {
+            int capacity = 0;
+            for (Stripe stripe : stripes)
+                capacity += stripe.hardSize;
+            return capacity;
         }
 
         protected MailboxMap() {
             mHardSize = 0;
-            mHardMap = null;
-            mSoftMap = null;
+            stripes = null;
+        }
+
+        private Stripe stripeFor(Object key) {
+            return stripes[((key == null ? 0 : key.hashCode()) & 0x7fffffff) % STRIPES];
+        }
+
+        /** Returns the monitor guarding the entry for the given mailbox. */
+        Object lockFor(int mailboxId) {
+            return stripes == null ? this : stripeFor(mailboxId);
+        }
+
+        /** Returns true if the current thread holds the monitor of any stripe. */
+        boolean holdsAnyLock() {
+            if (stripes == null) {
+                return Thread.holdsLock(this);
+            }
+            for (Stripe stripe : stripes) {
+                if (Thread.holdsLock(stripe))
+                    return true;
+            }
+            return false;
         }
 
         @Override public void clear() {
-            mHardMap.clear();
-            mSoftMap.clear();
+            for (Stripe stripe : stripes)
+                stripe.clear();
         }
 
         @Override public boolean containsKey(Object key) {
-            return mHardMap.containsKey(key) || mSoftMap.containsKey(key);
+            return stripeFor(key).containsKey(key);
         }
 
         @Override public boolean containsValue(Object value) {
-            return mHardMap.containsValue(value) || mSoftMap.containsValue(value);
+            for (Stripe stripe : stripes) {
+                if (stripe.containsValue(value))
+                    return true;
+            }
+            return false;
         }
 
         @Override public Set<Entry<Integer, Object>> entrySet() {
             Set<Entry<Integer, Object>> entries = new HashSet<Entry<Integer, Object>>(size());
-            if (mHardSize > 0)
-                entries.addAll(mHardMap.entrySet());
-            entries.addAll(mSoftMap.entrySet());
+            for (Stripe stripe : stripes)
+                stripe.addEntriesTo(entries);
             return entries;
         }
 
@@ -1075,44 +1288,22 @@ public class MailboxManager {
         }
 
         public Object get(Object key, boolean trackGC) {
-            Object obj = mHardSize > 0 ? mHardMap.get(key) : null;
-            if (obj == null) {
-                obj = mSoftMap.get(key);
-                if (obj instanceof SoftReference) {
-                    obj = ((SoftReference<?>) obj).get();
-                    if (trackGC && obj == null)
-                        ZimbraLog.mailbox.debug("mailbox " + key + " has been GCed; reloading");
-                }
-            }
-            return obj;
+            return stripeFor(key).get(key, trackGC);
         }
 
         @Override public boolean isEmpty() {
-            return mHardMap.isEmpty() && mSoftMap.isEmpty();
+            return size() == 0;
         }
 
         @Override public Set<Integer> keySet() {
             Set<Integer> keys = new HashSet<Integer>(size());
-            if (mHardSize > 0)
-                keys.addAll(mHardMap.keySet());
-            keys.addAll(mSoftMap.keySet());
+            for (Stripe stripe : stripes)
+                stripe.addKeysTo(keys);
             return keys;
         }
 
         @Override public Object put(Integer key, Object value) {
-            Object removed;
-            if (mHardSize > 0) {
-                removed = mHardMap.put(key, value);
-                if (removed == null)
-                    removed = mSoftMap.remove(key);
-            } else {
-                if (value instanceof Mailbox)
-                    value = new SoftReference<Object>(value);
-                removed = mSoftMap.put(key, value);
-            }
-            if (removed instanceof SoftReference)
-                removed = ((SoftReference<?>) removed).get();
-            return removed;
+            return stripeFor(key).put(key, value);
         }
 
         @Override public void putAll(Map<? extends Integer, ? extends Object> t) {
@@ -1121,33 +1312,25 @@ public class MailboxManager {
         }
 
         @Override public Object remove(Object key) {
-            Object removed = mHardSize > 0 ? mHardMap.remove(key) : null;
-            if (removed == null) {
-                removed = mSoftMap.remove(key);
-                if (removed instanceof SoftReference)
-                    removed = ((SoftReference<?>) removed).get();
-            }
-            return removed;
+            return stripeFor(key).remove(key);
         }
 
         @Override public int size() {
-            return mHardMap.size() + mSoftMap.size();
+            int size = 0;
+            for (Stripe stripe : stripes)
+                size += stripe.size();
+            return size;
         }
 
         @Override public Collection<Object> values() {
             List<Object> values = new ArrayList<Object>(size());
-            if (mHardSize > 0)
-                values.addAll(mHardMap.values());
-            for (Object o : mSoftMap.values()) {
-                if (o instanceof SoftReference)
-                    o = ((SoftReference<?>) o).get();
-                values.add(o);
-            }
+            for (Stripe stripe : stripes)
+                stripe.addValuesTo(values);
             return values;
         }
 
         @Override public String toString() {
-            return "<" + mHardMap.toString() + ", " + mSoftMap.toString() + ">";
+            return Arrays.toString(stripes);
         }
     }
 }
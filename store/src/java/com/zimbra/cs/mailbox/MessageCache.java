@@ -18,14 +18,26 @@ package com.zimbra.cs.mailbox;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
@@ -42,25 +54,73 @@ import com.zimbra.cs.store.MailboxBlob;
 import com.zimbra.cs.store.StoreManager;
 import com.zimbra.cs.util.JMSession;
 
+/**
+ * Server-wide cache of parsed message structures, keyed by blob digest so that a message delivered to many
+ * mailboxes is parsed once.
+ * <p>
+ * The raw and the TNEF/uuencode-expanded form of a message share one entry, since the expanded form is built on, and
+ * keeps a reference to, the raw one: caching them separately would not free the raw form when only it is evicted.
+ * An entry is weighed by {@link #ENTRY_OVERHEAD} per parsed form plus the message bytes held in memory, and the
+ * total is bounded by {@code zimbra_message_cache_max_bytes} (by default {@code zimbraMessageCacheSize} times
+ * {@link #DEFAULT_ENTRY_WEIGHT}, so that the cache holds about as many messages as the old count limit allowed).
+ * Concurrent misses on the same entry wait for a single load instead of each reading and parsing the blob.
+ */
 public class MessageCache {
 
     private static final Log sLog = LogFactory.getLog(MessageCache.class);
 
+    /** For remote stores, we allow JavaMail to stream message content to
+     *  a memory buffer when the messages are sufficiently small.  (For
+     *  local stores, all cached messages are backed by disk.) */
+    private static final int MESSAGE_CACHE_DISK_STREAMING_THRESHOLD = 4096;
+
+    /** Approximate heap cost of a parsed message structure whose content is streamed from disk. */
+    static final int ENTRY_OVERHEAD = 4096;
+    /** Weight of a message held in memory at the streaming threshold, used to turn the
+     *  {@code zimbraMessageCacheSize} item count into a byte budget.  Messages streamed from disk weigh less. */
+    static final int DEFAULT_ENTRY_WEIGHT = ENTRY_OVERHEAD + MESSAGE_CACHE_DISK_STREAMING_THRESHOLD;
+
     private static final class CacheNode {
         CacheNode()  { }
         MimeMessage message;
         MimeMessage expanded;
-        Map<Integer, String> smimeAccessInfo = new HashMap<Integer, String>();
+        /** decryption outcome per mailbox; values may be {@code null} */
+        final Map<Integer, String> smimeAccessInfo = Collections.synchronizedMap(new HashMap<Integer, String>());
+        /** bytes of the raw message held in memory rather than streamed from disk */
+        long rawSize = 0;
+        /** bytes of message data held in memory, including an expanded copy */
         long size = 0;
     }
 
+    /**
+     * A {@link CacheNode} together with the sizes it had when it was put in the cache.  The node changes as it is
+     * expanded, so the weigher and the removal listener use this snapshot; a node whose size changes is re-inserted
+     * in a new entry.
+     */
+    private static final class CacheEntry {
+        final CacheNode node;
+        final long dataSize;
+        final int weight;
+
+        CacheEntry(CacheNode node) {
+            this.node = node;
+            synchronized (node) {
+                boolean expandedCopy = node.expanded != null && node.expanded != node.message;
+                dataSize = node.size;
+                weight = (int) Math.min(Integer.MAX_VALUE, ENTRY_OVERHEAD * (expandedCopy ? 2 : 1) + node.size);
+            }
+        }
+    }
+
     /** Cache mapping message digest to the corresponding message structure. */
-    private static Map<String, CacheNode> sCache = new LinkedHashMap<String, CacheNode>(150, (float) 0.75, true);
-    /** Maximum number of items in {@link #sCache}. */
+    private static volatile Cache<String, CacheEntry> sCache;
+    /** Maximum number of items implied by {@code zimbraMessageCacheSize}, used to derive the byte budget. */
     private static int sMaxCacheSize;
+    /** Byte budget the cache was built with. */
+    private static long sMaxBytes;
     /** Number of bytes of message data stored in the cache.  This value includes only
      * messages that are read into memory, not streamed from disk. */
-    private volatile static long sDataSize = 0;
+    private static final AtomicLong sDataSize = new AtomicLong();
 
     static {
         try {
@@ -70,26 +130,61 @@ public class MessageCache {
         }
     }
 
-    public static void loadSettings() throws ServiceException {
-        sMaxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
-        ZimbraLog.cache.info("setting message cache size to " + sMaxCacheSize);
+    public static synchronized void loadSettings() throws ServiceException {
+        int maxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
+        long maxBytes = LC.zimbra_message_cache_max_bytes.longValue();
+        if (maxBytes <= 0) {
+            maxBytes = (long) maxCacheSize * DEFAULT_ENTRY_WEIGHT;
+        }
+        if (sCache != null && maxCacheSize == sMaxCacheSize && maxBytes == sMaxBytes) {
+            return;
+        }
+        ZimbraLog.cache.info("setting message cache size to %d (%d bytes)", maxCacheSize, maxBytes);
+        Cache<String, CacheEntry> previous = sCache;
+        sMaxCacheSize = maxCacheSize;
+        sMaxBytes = maxBytes;
+        sCache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<String, CacheEntry>() {
+                    @Override
+                    public int weigh(String digest, CacheEntry entry) {
+                        return entry.weight;
+                    }
+                })
+                .removalListener(new RemovalListener<String, CacheEntry>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, CacheEntry> notification) {
+                        // every entry put in the cache, including a replaced or discarded one, is removed exactly
+                        // once, so the data size is adjusted here by what was added when the entry was put
+                        if (notification.getCause() != RemovalCause.REPLACED) {
+                            sLog.debug("Removed digest %s from the message cache: %s.",
+                                    notification.getKey(), notification.getCause());
+                        }
+                        sDataSize.addAndGet(-notification.getValue().dataSize);
+                    }
+                })
+                .build();
+        if (previous != null) {
+            previous.invalidateAll();
+        }
     }
 
     /** Returns the number of messages in the cache. */
     public static int getSize() {
-        synchronized (sCache) {
-            return sCache.size();
-        }
+        return (int) sCache.size();
     }
 
     public static boolean contains(String digest) {
-        synchronized (sCache) {
-            return sCache.containsKey(digest);
-        }
+        return sCache.getIfPresent(digest) != null;
     }
 
     public static long getDataSize() {
-        return sDataSize;
+        return sDataSize.get();
+    }
+
+    @VisibleForTesting
+    static synchronized long getMaxBytes() {
+        return sMaxBytes;
     }
 
     /** Uncaches any data associated with the given item.  This must be done
@@ -124,13 +219,8 @@ public class MessageCache {
      *  stale data. */
     public static void purge(String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.remove(digest);
-                if (node != null) {
-                    sLog.debug("Purged digest %s from the message cache.", digest);
-                    sDataSize -= node.size;
-                }
-            }
+            sCache.invalidate(digest);
+            sLog.debug("Purged digest %s from the message cache.", digest);
         }
     }
 
@@ -148,43 +238,23 @@ public class MessageCache {
      * @see #getItemContent()
      * @see com.zimbra.cs.mime.TnefConverter
      * @see com.zimbra.cs.mime.UUEncodeConverter */
-    static MimeMessage getMimeMessage(MailItem item, boolean expand) throws ServiceException {
-        String digest = item.getDigest();
-        CacheNode cnode = null;
-        boolean cacheHit = true;
-        boolean newNode = false;
-        InputStream in = null;
-        int mboxId = item.getMailboxId();
-        boolean isEncrypted = false;
-
-        synchronized (sCache) {
-            cnode = sCache.get(digest);
-            if (cnode == null) {
-                newNode = true;
-                cnode = new CacheNode();
+    static MimeMessage getMimeMessage(final MailItem item, boolean expand) throws ServiceException {
+        final String digest = item.getDigest();
+        final boolean[] loaded = new boolean[1];
+        CacheEntry entry = load(digest, new Callable<CacheEntry>() {
+            @Override
+            public CacheEntry call() throws ServiceException, IOException, MessagingException {
+                loaded[0] = true;
+                return loadRaw(item);
             }
-        }
-
-        try {
-            if (cnode.message == null) {
-                sLog.debug("Loading MimeMessage for item %d.", item.getId());
-                cacheHit = false;
-                try {
-                    in = fetchFromStore(item);
-                    cnode.message = new Mime.FixedMimeMessage(JMSession.getSession(), in);
-                    if (item.getSize() < MESSAGE_CACHE_DISK_STREAMING_THRESHOLD) {
-                        cnode.size = item.getSize();
-                        // Not the best place to increment the data size, but cacheItem()
-                        // won't get called if we're expanding a message for an existing
-                        // node.
-                        sDataSize += cnode.size;
-                    }
-                } finally {
-                    ByteUtil.closeStream(in);
-                }
-            }
-
-            if (expand) {
+        });
+        CacheNode cnode = entry.node;
+        MimeMessage result = cnode.message;
+        if (expand) {
+            int mboxId = item.getMailboxId();
+            boolean isEncrypted = false;
+            // expansion and decryption state is per digest, so only readers of the same message contend here
+            synchronized (cnode) {
                 sLog.debug("Expanding MimeMessage for item %d.", item.getId());
                 try {
                     MimeMessage decryptedMimeMessage = null;
@@ -201,50 +271,101 @@ public class MessageCache {
                                 cnode.smimeAccessInfo.remove(mboxId);
                             }
                             if (cnode.expanded == null || !cnode.smimeAccessInfo.containsKey(mboxId)) {
-                                cacheHit = false;
+                                loaded[0] = true;
                                 decryptedMimeMessage = doDecryption(item, cnode, mboxId);
                             }
                         }
                     }
                     //expand if the message has not yet been expanded or if the message is decrypted successfully
                     if (cnode.expanded == null || (decryptedMimeMessage != null && cnode.expanded != decryptedMimeMessage)) {
-                        cacheHit = false;
+                        loaded[0] = true;
                         expandMessage(item, cnode, decryptedMimeMessage);
                     }
                 } catch (Exception e) {
                     // if the conversion bombs for any reason, revert to the original
                     sLog.warn("MIME converter failed for message %d.  Reverting to original.", item.getId(), e);
                     cnode.expanded = cnode.message;
+                    cnode.size = cnode.rawSize;
+                }
+                if (isEncrypted && (!cnode.smimeAccessInfo.containsKey(mboxId)
+                    || cnode.smimeAccessInfo.get(mboxId) != null)) {
+                    result = cnode.message;
+                } else {
+                    result = cnode.expanded;
                 }
             }
-
-            if (newNode) {
-                cacheItem(digest, cnode);
-            }
-        } catch (IOException e) {
-            throw ServiceException.FAILURE("IOException while retrieving content for item " + item.getId(), e);
-        } catch (MessagingException e) {
-            throw ServiceException.FAILURE("MessagingException while creating MimeMessage for item " + item.getId(), e);
-        } finally {
-            ByteUtil.closeStream(in);
+            reweigh(digest, cnode);
         }
 
-        if (cacheHit) {
+        if (!loaded[0]) {
             sLog.debug("Cache hit for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
             ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(100);
         } else {
             sLog.debug("Cache miss for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
             ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(0);
         }
+        return result;
+    }
 
-        if (expand) {
-            if (isEncrypted && (!cnode.smimeAccessInfo.containsKey(mboxId)
-                || cnode.smimeAccessInfo.get(mboxId) != null)) {
-                return cnode.message;
+    /** Returns the cached node for {@code key}, loading it with {@code loader} if absent.  Only one thread runs the
+     *  loader for a given key; others wait for its result. */
+    private static CacheEntry load(String digest, Callable<CacheEntry> loader) throws ServiceException {
+        try {
+            return sCache.get(digest, loader);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceException) {
+                throw (ServiceException) cause;
+            } else if (cause instanceof IOException) {
+                throw ServiceException.FAILURE("IOException while retrieving content for digest " + digest, cause);
+            } else if (cause instanceof MessagingException) {
+                throw ServiceException.FAILURE("MessagingException while creating MimeMessage for digest " + digest, cause);
             }
-            return cnode.expanded;
-        } else {
-            return cnode.message;
+            throw ServiceException.FAILURE("error loading message for digest " + digest, cause);
+        }
+    }
+
+    /**
+     * Replaces the entry for {@code cnode} if its size has changed since it was put in the cache, so that it is
+     * weighed, and counted in {@link #getDataSize()}, with its current content.
+     */
+    private static void reweigh(String digest, CacheNode cnode) {
+        ConcurrentMap<String, CacheEntry> map = sCache.asMap();
+        while (true) {
+            CacheEntry current = map.get(digest);
+            if (current == null || current.node != cnode) {
+                return; // purged or evicted meanwhile
+            }
+            CacheEntry updated = new CacheEntry(cnode);
+            if (updated.weight == current.weight && updated.dataSize == current.dataSize) {
+                return;
+            }
+            if (map.replace(digest, current, updated)) {
+                sDataSize.addAndGet(updated.dataSize);
+                return;
+            }
+        }
+    }
+
+    private static CacheEntry loadRaw(MailItem item) throws ServiceException, IOException, MessagingException {
+        sLog.debug("Loading MimeMessage for item %d.", item.getId());
+        long start = ZimbraPerf.STOPWATCH_MSG_CACHE_LOAD.start();
+        InputStream in = null;
+        try {
+            in = fetchFromStore(item);
+            CacheNode cnode = new CacheNode();
+            cnode.message = new Mime.FixedMimeMessage(JMSession.getSession(), in);
+            if (item.getSize() < MESSAGE_CACHE_DISK_STREAMING_THRESHOLD) {
+                cnode.rawSize = item.getSize();
+                cnode.size = cnode.rawSize;
+            }
+            CacheEntry entry = new CacheEntry(cnode);
+            // a loaded entry is always either cached or discarded through the removal listener
+            sDataSize.addAndGet(entry.dataSize);
+            return entry;
+        } finally {
+            ByteUtil.closeStream(in);
+            ZimbraPerf.STOPWATCH_MSG_CACHE_LOAD.stop(start);
         }
     }
 
@@ -285,10 +406,8 @@ public class MessageCache {
             decodedMimeMessage != null ? decodedMimeMessage : mimeToExpand);
         expander.expand();
         cnode.expanded = expander.getExpanded();
-        if (cnode.expanded != cnode.message) {
-            sDataSize += cnode.size;
-            cnode.size *= 2;
-        }
+        // an expanded copy holds its own in-memory content; an unchanged message shares the raw one's
+        cnode.size = cnode.rawSize + ((cnode.expanded != cnode.message) ? cnode.rawSize : 0);
     }
 
     private static MimeMessage doDecryption(MailItem item, CacheNode cnode, int mboxId) {
@@ -329,11 +448,6 @@ public class MessageCache {
         return decryptedMimeMessage;
     }
 
-    /** For remote stores, we allow JavaMail to stream message content to
-     *  a memory buffer when the messages are sufficiently small.  (For
-     *  local stores, all cached messages are backed by disk.) */
-    private static final int MESSAGE_CACHE_DISK_STREAMING_THRESHOLD = 4096;
-
     static InputStream fetchFromStore(MailItem item) throws ServiceException, IOException {
         MailboxBlob mblob = item.getBlob();
         if (mblob == null)
@@ -357,44 +471,22 @@ public class MessageCache {
         CacheNode cnode = new CacheNode();
         cnode.message = original;
         cnode.expanded = expanded;
-        cacheItem(digest, cnode);
-    }
-
-    private static void cacheItem(String digest, CacheNode cnode) {
-        sLog.debug("Caching MimeMessage for digest %s.", digest);
-        synchronized (sCache) {
-            sCache.put(digest, cnode);
-            // Cache data size was incremented in getMimeMessage().
-
-            // trim the cache if needed
-            if (sCache.size() > sMaxCacheSize) {
-                Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-                while (sCache.size() > sMaxCacheSize && it.hasNext()) {
-                    Map.Entry<String, CacheNode> entry = it.next();
-                    sLog.debug("Pruning digest %s from the cache.", entry.getKey());
-                    it.remove();
-                    sDataSize -= entry.getValue().size;
-                }
-            }
-        }
+        CacheEntry entry = new CacheEntry(cnode);
+        sDataSize.addAndGet(entry.dataSize);
+        sCache.put(digest, entry);
     }
 
     public static void removeDecryptedMessages(int mboxId) {
         sLog.debug("Start removing decrypted messages for mboxId=%d", mboxId);
-        synchronized (sCache) {
-            Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, CacheNode> entry = it.next();
-                CacheNode cacheNode = entry.getValue();
-                try {
-                    if (Mime.isEncrypted(cacheNode.message.getContentType())
-                        && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
-                        cacheNode.smimeAccessInfo.remove(mboxId);
-                    }
-                } catch (MessagingException e) {
-                    sLog.warn("MessagingException while checking content type for cache node with digest = %s",
-                        entry.getKey(), e);
+        for (Map.Entry<String, CacheEntry> entry : sCache.asMap().entrySet()) {
+            CacheNode cacheNode = entry.getValue().node;
+            try {
+                if (Mime.isEncrypted(cacheNode.message.getContentType())) {
+                    cacheNode.smimeAccessInfo.remove(mboxId);
                 }
+            } catch (MessagingException e) {
+                sLog.warn("MessagingException while checking content type for cache node with digest = %s",
+                    entry.getKey(), e);
             }
         }
         sLog.debug("Removed decrypted messages for mboxId=%d", mboxId);
@@ -402,11 +494,9 @@ public class MessageCache {
 
     public static String getDecryptionError(int id, String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.get(digest);
-                if (node != null) {
-                    return node.smimeAccessInfo.get(id);
-                }
+            CacheEntry entry = sCache.getIfPresent(digest);
+            if (entry != null) {
+                return entry.node.smimeAccessInfo.get(id);
             }
         }
         return null;
@@ -125,7 +125,20 @@ public final class Metadata {
 
     private final Integer associatedItemId;
 
-    Map<Object, Object> map;
+    private Map<Object, Object> map;
+
+    // When built from an encoded string, the top-level entries are only located up front; each
+    // value is decoded the first time it is asked for, so callers reading a few keys never build
+    // the rest.  pendingKeys[i] is null once entry i has been decoded into map.
+    private String encoded;
+    private int[] extents;
+    private String[] pendingKeys;
+    private int pendingCount;
+    // whether toString() can return the encoded string as is; cleared on any change, and whenever a
+    // container nested in the map is handed out, since the caller may change it behind our back
+    private boolean unmodified;
+
+    private static final String ENCODED_LEGACY_VERSION = "i" + LEGACY_METADATA_VERSION + "e";
 
     public Metadata() {
         associatedItemId = null;
@@ -149,7 +162,7 @@ public final class Metadata {
         }
         try {
             try {
-                map = (Map) BEncoding.decode(encoded);
+                index(encoded);
                 return;
             } catch (BEncodingException be) {
                 // Bug 87718 in some instances, it appears that an encoded string is getting corrupted by being
@@ -159,7 +172,7 @@ public final class Metadata {
                 if (be.getCause() != null && be.getCause() instanceof NumberFormatException) {
                     String fixedUpEncoded = new String(encoded.getBytes(Charsets.ISO_8859_1), Charsets.UTF_8);
                     try {
-                        map = (Map) BEncoding.decode(fixedUpEncoded);
+                        index(fixedUpEncoded);
                         return;
                     } catch (Exception e) {
                     }
@@ -183,35 +196,129 @@ public final class Metadata {
         }
     }
 
-    public boolean containsKey(String key) {
-        return map.containsKey(key);
+    private void index(String encoded) throws BEncodingException {
+        int[] extents = BEncoding.indexDictionary(encoded);
+        int count = extents.length / 3;
+        String[] keys = new String[count];
+        int pending = 0;
+        boolean legacyVersion = false;
+        for (int i = 0; i < count; i++) {
+            String key = BEncoding.decode(encoded, extents[i * 3], extents[i * 3 + 1]).toString();
+            if (key.equals(FN_MD_VERSION)) {
+                legacyVersion = encoded.regionMatches(extents[i * 3 + 1], ENCODED_LEGACY_VERSION, 0,
+                        ENCODED_LEGACY_VERSION.length());
+                continue;
+            }
+            // as with a full decode, the last of any duplicate keys wins
+            for (int j = 0; j < i; j++) {
+                if (key.equals(keys[j])) {
+                    keys[j] = null;
+                    pending--;
+                }
+            }
+            keys[i] = key;
+            pending++;
+        }
+        this.map = new HashMap<Object, Object>();
+        this.encoded = encoded;
+        if (pending > 0) {
+            this.extents = extents;
+            this.pendingKeys = keys;
+        }
+        this.pendingCount = pending;
+        this.unmodified = legacyVersion;
     }
 
-    public int size() {
-        return map.size();
+    /** Returns the value for <tt>key</tt>, decoding it first if necessary. */
+    private synchronized Object lookup(String key) {
+        Object value = map.get(key);
+        if (value == null && pendingCount > 0 && key != null) {
+            for (int i = 0; i < pendingKeys.length; i++) {
+                if (key.equals(pendingKeys[i])) {
+                    return decodePending(i);
+                }
+            }
+        }
+        return value;
     }
 
-    public boolean isEmpty() {
-        return map.isEmpty();
+    private Object decodePending(int i) {
+        Object value;
+        try {
+            value = BEncoding.decode(encoded, extents[i * 3 + 1], extents[i * 3 + 2]);
+        } catch (BEncodingException e) {
+            // cannot happen; the whole string was checked when it was indexed
+            throw new IllegalStateException("error decoding indexed metadata", e);
+        }
+        map.put(pendingKeys[i], value);
+        pendingKeys[i] = null;
+        if (--pendingCount == 0) {
+            pendingKeys = null;
+            extents = null;
+        }
+        return value;
+    }
+
+    /** Returns the fully decoded map.  Must be called with the lock held. */
+    private Map<Object, Object> decodedMap() {
+        for (int i = 0; pendingCount > 0; i++) {
+            if (pendingKeys[i] != null) {
+                decodePending(i);
+            }
+        }
+        return map;
+    }
+
+    /** Returns the fully decoded map, which the caller is about to change.  Must be called with the lock held. */
+    private Map<Object, Object> mutableMap() {
+        Map<Object, Object> result = decodedMap();
+        unmodified = false;
+        encoded = null;
+        return result;
+    }
+
+    /**
+     * Returns the fully decoded map itself.  The caller may change it or the containers nested in it, so this
+     * instance no longer reuses its encoded form.
+     */
+    synchronized Map<Object, Object> map() {
+        return mutableMap();
+    }
+
+    public synchronized boolean containsKey(String key) {
+        return lookup(key) != null || map.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return decodedMap().size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return decodedMap().isEmpty();
     }
 
     public Metadata copy(Metadata source) {
         if (source != null) {
-            map.putAll(source.map);
+            Map<Object, Object> entries = source.map();
+            synchronized (this) {
+                mutableMap().putAll(entries);
+            }
         }
         return this;
     }
 
-    public Map<String, ?> asMap()  {
+    public synchronized Map<String, ?> asMap()  {
         Map<String, Object> result = new HashMap<String, Object>();
-        for (Map.Entry<Object, Object> entry : map.entrySet()) {
+        for (Map.Entry<Object, Object> entry : decodedMap().entrySet()) {
             Object key = entry.getKey();
             Object value = entry.getValue();
             if (key == null || value == null) {
                 continue;
             } else if (value instanceof Map) {
+                unmodified = false;
                 result.put(key.toString(), new Metadata((Map<?, ?>) value));
             } else if (value instanceof List) {
+                unmodified = false;
                 result.put(key.toString(), new MetadataList((List<?>) value));
             } else {
                 result.put(key.toString(), value);
@@ -220,49 +327,52 @@ public final class Metadata {
         return result;
     }
 
-    public Metadata remove(String key) {
-        map.remove(key);
+    public synchronized Metadata remove(String key) {
+        mutableMap().remove(key);
         return this;
     }
 
-    public Metadata put(String key, Object value) {
+    public synchronized Metadata put(String key, Object value) {
         if (key != null && value != null) {
-            map.put(key, value);
+            mutableMap().put(key, value);
         }
         return this;
     }
 
-    public Metadata put(String key, long value) {
+    public synchronized Metadata put(String key, long value) {
         if (key != null) {
-            map.put(key, Long.valueOf(value));
+            mutableMap().put(key, Long.valueOf(value));
         }
         return this;
     }
 
-    public Metadata put(String key, double value) {
+    public synchronized Metadata put(String key, double value) {
         if (key != null) {
-            map.put(key, new Double(value));
+            mutableMap().put(key, new Double(value));
         }
         return this;
     }
 
-    public Metadata put(String key, boolean value) {
+    public synchronized Metadata put(String key, boolean value) {
         if (key != null) {
-            map.put(key, new Boolean(value));
+            mutableMap().put(key, new Boolean(value));
         }
         return this;
     }
 
     public Metadata put(String key, Metadata value) {
         if (key != null && value != null) {
-            map.put(key, value.map);
+            Map<Object, Object> entries = value.map();
+            synchronized (this) {
+                mutableMap().put(key, entries);
+            }
         }
         return this;
     }
 
-    public Metadata put(String key, MetadataList value) {
+    public synchronized Metadata put(String key, MetadataList value) {
         if (key != null && value != null) {
-            map.put(key, value.list);
+            mutableMap().put(key, value.list);
         }
         return this;
     }
@@ -284,7 +394,7 @@ public final class Metadata {
     }
 
     public String get(String key, String defaultValue) {
-        Object value = map.get(key);
+        Object value = lookup(key);
         return value == null ? defaultValue : value.toString();
     }
 
@@ -317,12 +427,13 @@ public final class Metadata {
         return getList(key, false);
     }
 
-    public MetadataList getList(String key, boolean nullOK) throws ServiceException {
-        Object value = map.get(key);
+    public synchronized MetadataList getList(String key, boolean nullOK) throws ServiceException {
+        Object value = lookup(key);
         if (nullOK && value == null) {
             return null;
         }
         if (value instanceof List) {
+            unmodified = false;
             @SuppressWarnings("unchecked")
             List<Object> cast = (List<Object>) value;
             return new MetadataList(cast);
@@ -334,12 +445,13 @@ public final class Metadata {
         return getMap(key, false);
     }
 
-    public Metadata getMap(String key, boolean nullable) throws ServiceException {
-        Object value = map.get(key);
+    public synchronized Metadata getMap(String key, boolean nullable) throws ServiceException {
+        Object value = lookup(key);
         if (nullable && value == null) {
             return null;
         }
         if (value instanceof Map) {
+            unmodified = false;
             @SuppressWarnings("unchecked")
             Map<String, Object> cast = (Map<String, Object>) value;
             return new Metadata(cast);
@@ -348,16 +460,20 @@ public final class Metadata {
     }
 
     @Override
-    public String toString() {
-        put(FN_MD_VERSION, LEGACY_METADATA_VERSION);
+    public synchronized String toString() {
+        if (unmodified) {
+            return encoded;
+        }
+        Map<Object, Object> map = decodedMap();
+        map.put(FN_MD_VERSION, Long.valueOf(LEGACY_METADATA_VERSION));
         String result = BEncoding.encode(map);
         map.remove(FN_MD_VERSION);
         return result;
     }
 
-    public String prettyPrint() {
+    public synchronized String prettyPrint() {
         StringBuilder sb = new StringBuilder(2048);
-        prettyEncode(sb, map, 0);
+        prettyEncode(sb, decodedMap(), 0);
         sb.setLength(sb.length() - 1);  // Remove the last newline.
         return sb.toString();
     }
@@ -24,6 +24,7 @@ import java.util.Map;
 
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.fb.FreeBusyIndex;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.memcached.MemcachedConnector;
 import com.zimbra.cs.session.PendingLocalModifications;
@@ -58,6 +59,7 @@ public class CalendarCacheManager {
     public void notifyCommittedChanges(PendingLocalModifications mods, int changeId) {
         if (mSummaryCacheEnabled)
             mSummaryCache.notifyCommittedChanges(mods, changeId);
+        FreeBusyIndex.notifyCommittedChanges(mods);
         if (MemcachedConnector.isConnected()) {
             mCalListCache.notifyCommittedChanges(mods, changeId);
             mCtagCache.notifyCommittedChanges(mods, changeId);
@@ -66,6 +68,7 @@ public class CalendarCacheManager {
 
     public void purgeMailbox(Mailbox mbox) throws ServiceException {
         mSummaryCache.purgeMailbox(mbox);
+        FreeBusyIndex.purgeMailbox(mbox);
         if (MemcachedConnector.isConnected()) {
             mCalListCache.purgeMailbox(mbox);
             mCtagCache.purgeMailbox(mbox);
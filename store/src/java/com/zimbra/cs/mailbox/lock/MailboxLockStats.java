@@ -0,0 +1,203 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox.lock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zimbra.common.stats.Histogram;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Contention telemetry for a single mailbox lock: time spent waiting for the lock, time the lock
+ * was held in read and write mode, the depth of the wait queue seen by contended callers, and the
+ * number of read-to-write promotions.  All times are in microseconds.  Every value is also fed
+ * into the server-wide histograms in {@link ZimbraPerf}.
+ * <p>
+ * The getters report what was recorded since the last {@link #reset()}.  A reset only takes a
+ * snapshot to report against, so values recorded while it runs are not lost.
+ */
+public final class MailboxLockStats {
+
+    /** One hour, in microseconds. */
+    private static final long MAX_TRACKED_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final int PRECISION_BITS = 2;
+
+    private final int mailboxId;
+    private final String accountId;
+    private final Histogram waitTime = newTimeHistogram();
+    private final Histogram readHoldTime = newTimeHistogram();
+    private final Histogram writeHoldTime = newTimeHistogram();
+    private final Histogram queueDepth = new Histogram(1024, PRECISION_BITS);
+    private final AtomicLong promotions = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    // snapshots taken by the last reset(), null until the first one; guarded by this
+    private Histogram waitTimeBase;
+    private Histogram readHoldTimeBase;
+    private Histogram writeHoldTimeBase;
+    private Histogram queueDepthBase;
+    private long promotionsBase = 0;
+    private long timeoutsBase = 0;
+    private long rejectionsBase = 0;
+
+    /** Start of the outermost read hold of the current thread, 0 when not holding. */
+    private final ThreadLocal<long[]> readHoldStart = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    /** Start of the outermost write hold; only accessed by the thread owning the write lock. */
+    private long writeHoldStart = 0;
+
+    public MailboxLockStats(int mailboxId, String accountId) {
+        this.mailboxId = mailboxId;
+        this.accountId = accountId;
+    }
+
+    public static Histogram newTimeHistogram() {
+        return new Histogram(MAX_TRACKED_MICROS, PRECISION_BITS);
+    }
+
+    public int getMailboxId() {
+        return mailboxId;
+    }
+
+    public String getAccountId() {
+        return accountId;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * Called after the lock was acquired.
+     *
+     * @param startNanos {@link System#nanoTime()} when the caller started to wait
+     * @param outermost true if this acquisition moved the caller from not holding the lock in this
+     *  mode to holding it
+     */
+    public void acquired(boolean write, long startNanos, boolean outermost) {
+        long now = System.nanoTime();
+        long waited = micros(now - startNanos);
+        waitTime.record(waited);
+        ZimbraPerf.HISTOGRAM_MBOX_LOCK_WAIT.record(waited);
+        if (!outermost) {
+            return;
+        }
+        if (write) {
+            writeHoldStart = now;
+        } else {
+            readHoldStart.get()[0] = now;
+        }
+    }
+
+    /**
+     * Called after the outermost hold in the given mode was released.
+     */
+    public void released(boolean write) {
+        long now = System.nanoTime();
+        if (write) {
+            if (writeHoldStart != 0) {
+                long held = micros(now - writeHoldStart);
+                writeHoldStart = 0;
+                writeHoldTime.record(held);
+                ZimbraPerf.HISTOGRAM_MBOX_LOCK_WRITE_HOLD.record(held);
+            }
+        } else {
+            long[] start = readHoldStart.get();
+            if (start[0] != 0) {
+                long held = micros(now - start[0]);
+                start[0] = 0;
+                readHoldTime.record(held);
+                ZimbraPerf.HISTOGRAM_MBOX_LOCK_READ_HOLD.record(held);
+            }
+        }
+    }
+
+    /**
+     * Called when the lock could not be acquired immediately.
+     *
+     * @param queueLength number of threads already waiting for the lock
+     */
+    public void contended(int queueLength) {
+        queueDepth.record(queueLength);
+    }
+
+    public void promoted() {
+        promotions.incrementAndGet();
+        ZimbraPerf.COUNTER_MBOX_LOCK_PROMOTIONS.increment();
+    }
+
+    public void timedOut() {
+        timeouts.incrementAndGet();
+    }
+
+    /**
+     * Called when the caller was turned away because too many threads were already waiting.
+     */
+    public void rejected() {
+        rejections.incrementAndGet();
+    }
+
+    private static Histogram since(Histogram histogram, Histogram base) {
+        return base == null ? histogram.copy() : histogram.since(base);
+    }
+
+    public synchronized Histogram getWaitTime() {
+        return since(waitTime, waitTimeBase);
+    }
+
+    public synchronized Histogram getReadHoldTime() {
+        return since(readHoldTime, readHoldTimeBase);
+    }
+
+    public synchronized Histogram getWriteHoldTime() {
+        return since(writeHoldTime, writeHoldTimeBase);
+    }
+
+    public synchronized Histogram getQueueDepth() {
+        return since(queueDepth, queueDepthBase);
+    }
+
+    public synchronized long getPromotions() {
+        return promotions.get() - promotionsBase;
+    }
+
+    public synchronized long getTimeouts() {
+        return timeouts.get() - timeoutsBase;
+    }
+
+    public synchronized long getRejections() {
+        return rejections.get() - rejectionsBase;
+    }
+
+    public synchronized void reset() {
+        waitTimeBase = waitTime.copy();
+        readHoldTimeBase = readHoldTime.copy();
+        writeHoldTimeBase = writeHoldTime.copy();
+        queueDepthBase = queueDepth.copy();
+        promotionsBase = promotions.get();
+        timeoutsBase = timeouts.get();
+        rejectionsBase = rejections.get();
+    }
+}
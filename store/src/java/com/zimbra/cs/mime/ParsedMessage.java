@@ -50,6 +50,7 @@ import javax.mail.util.SharedByteArrayInputStream;
 import org.apache.lucene.document.Document;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
@@ -97,6 +98,10 @@ import com.zimbra.cs.util.JMSession;
  * registered instances of {@link MimeVisitor}.  Conversion modifies the in-
  * memory message without affecting the raw version.  Mutation modifies the
  * raw version and affects results returned by the <tt>getRawXXX</tt> methods.
+ * <p>
+ * The lazy parsing and analysis steps are synchronized, but the cached header
+ * values are not; call {@link #analyzeForSharing()} before handing an instance
+ * to concurrent deliveries to mailboxes using the same default charset.
  *
  * @since 2004. 6. 30.
  * @author jhahm
@@ -308,7 +313,11 @@ public final class ParsedMessage {
         return wasMutated;
     }
 
-    public ParsedMessage setDefaultCharset(String charset) {
+    public synchronized ParsedMessage setDefaultCharset(String charset) {
+        if (Objects.equal(charset, defaultCharset)) {
+            // nothing to reset; lets recipients with the same charset share an analyzed message concurrently
+            return this;
+        }
         defaultCharset = charset;
         if (mimeMessage instanceof ZMimeMessage) {
             ((ZMimeMessage) mimeMessage).setProperty("mail.mime.charset", charset);
@@ -327,7 +336,7 @@ public final class ParsedMessage {
      * @return the ParsedMessage itself
      * @throws ServiceException
      * @see #runMimeConverters() */
-    private ParsedMessage parse() {
+    private synchronized ParsedMessage parse() {
         if (parsed) {
             return this;
         }
@@ -376,7 +385,7 @@ public final class ParsedMessage {
      * Analyze and extract text from all the "body" (non-attachment) parts of the message.
      * This step is required to properly generate the message fragment.
      */
-    private void analyzeBodyParts() throws ServiceException {
+    private synchronized void analyzeBodyParts() throws ServiceException {
         if (analyzedBodyParts) {
             return;
         }
@@ -418,7 +427,7 @@ public final class ParsedMessage {
     /**
      * Analyze and extract text from all attachments parts of the message
      */
-    private void analyzeNonBodyParts() throws ServiceException {
+    private synchronized void analyzeNonBodyParts() throws ServiceException {
         if (analyzedNonBodyParts) {
             return;
         }
@@ -473,6 +482,19 @@ public final class ParsedMessage {
         analyzeNonBodyParts();
     }
 
+    /**
+     * Runs every lazy parsing and analysis step up front, so that afterwards the instance is only read and can be
+     * used by several threads at once.  Set the default charset first; changing it later discards some results.
+     */
+    public synchronized void analyzeForSharing() throws ServiceException {
+        analyzeFully();
+        normalizeSubject();
+        isInReplyTo();
+        getDateHeader();
+        getParsedSender();
+        getParsedRecipients();
+    }
+
     /**
      * Returns the {@link MimeMessage}.  Affected by both conversion and mutation.
      */
@@ -1342,7 +1364,7 @@ public final class ParsedMessage {
         return sb.toString();
     }
 
-    private void normalizeSubject() {
+    private synchronized void normalizeSubject() {
         if (normalizedSubject != null) {
             return;
         }
@@ -1375,7 +1397,7 @@ public final class ParsedMessage {
      * {@link Threader} is cached per mailbox as {@link ParsedMessage} is shared by multiple mailboxes in shared
      * delivery.
      */
-    public Threader getThreader(Mailbox mbox) throws ServiceException {
+    public synchronized Threader getThreader(Mailbox mbox) throws ServiceException {
         Threader threader = threaders.get(mbox);
         if (threader == null) {
             threader = new Threader(mbox, this);
@@ -70,6 +70,7 @@ abstract class Pop3Handler {
     private Pop3Mailbox mailbox;
     private String command;
     private long startTime;
+    private long startNanos;
     int state;
     private int errorCount = 0;
 
@@ -146,7 +147,7 @@ abstract class Pop3Handler {
             if (startTime > 0) {
                 long elapsed = ZimbraPerf.STOPWATCH_POP.stop(startTime);
                 if (command != null) {
-                    ZimbraPerf.POP_TRACKER.addStat(command.toUpperCase(), startTime);
+                    ZimbraPerf.POP_TRACKER.addStatNanos(command.toUpperCase(), startNanos);
                     ZimbraLog.pop.info("%s elapsed=%d", command.toUpperCase(), elapsed);
                 } else {
                     ZimbraLog.pop.info("(unknown) elapsed=%d", elapsed);
@@ -179,6 +180,7 @@ abstract class Pop3Handler {
 
     boolean processCommandInternal() throws Pop3CmdException, IOException, ServiceException {
         startTime = System.currentTimeMillis();
+        startNanos = System.nanoTime();
         command = currentCommandLine;
         String arg = null;
 
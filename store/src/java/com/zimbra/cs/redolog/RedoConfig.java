@@ -191,6 +191,12 @@ public class RedoConfig {
      * With a longer interval, there will be fewer fsyncs compared to the
      * number of logging calls.  This can improve throughput under heavy
      * load but increases the latency on individual logging calls.
+     * <p>
+     * {@link com.zimbra.cs.redolog.logger.FileLogWriter} no longer makes
+     * synchronous logging calls wait for this interval: the calls that arrive
+     * while an fsync is in progress are batched into the next fsync instead.
+     * The interval only bounds how long records of asynchronous commits, and
+     * their commit callbacks, wait for an fsync on a quiet server.
      * 
      * @return interval in milliseconds; default is 10ms
      */
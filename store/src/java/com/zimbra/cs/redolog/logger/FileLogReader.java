@@ -28,6 +28,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.redolog.RedoLogInput;
 import com.zimbra.cs.redolog.op.RedoableOp;
@@ -45,6 +46,7 @@ public class FileLogReader {
 
     private File mFile;
     private RandomAccessFile mRAF;
+    private ReadAheadFileInput mInput;  // ops are read through this; mRAF is for the header, searches and truncation
     private RedoLogInput mIN;
     private boolean mReadOnly;
     private long mFileSizeAtOpen;
@@ -65,10 +67,12 @@ public class FileLogReader {
     public synchronized void open() throws IOException {
         try {
             mRAF = new RandomAccessFile(mFile, mReadOnly ? "r" : "rw");
-            mIN = new RedoLogInput(mRAF, mFile.getPath());
             mHeader.read(mRAF);
             mHeaderRead = true;
             mFileSizeAtOpen = mRAF.length();
+            mInput = new ReadAheadFileInput(mRAF.getChannel(), LC.redolog_read_buffer_kb.intValue() * 1024);
+            mInput.seek(mRAF.getFilePointer());
+            mIN = new RedoLogInput(mInput, mFile.getPath());
         } catch (IOException e) {
             throw new IOException("Error opening " + mFile.getAbsolutePath(), e);
         }
@@ -95,12 +99,11 @@ public class FileLogReader {
         if (mRAF == null) {
           throw new IOException(mFile.getAbsolutePath() + " not open.");
         }
-        long pos = mRAF.getFilePointer();
+        long pos = mInput.getFilePointer();
         if (pos == mFileSizeAtOpen) {
             // EOF reached.
             return null;
         }
-
         boolean first = true;
         long currPos = pos;
         while (true) {
@@ -129,6 +132,7 @@ public class FileLogReader {
             mRAF.seek(currPos + 1);
             if (searchInRAF(RedoableOp.REDO_MAGIC.getBytes()))  {
                 currPos = mRAF.getFilePointer();
+                mInput.seek(currPos);
             } else {
                 String msg = String.format(
                         "Found %d junk bytes from offset 0x%08x to end of file, in redolog %s",
@@ -143,7 +147,7 @@ public class FileLogReader {
     }
 
     public synchronized long position() throws IOException {
-        return mRAF.getFilePointer();
+        return mInput.getFilePointer();
     }
 
     public synchronized long getLastOpStartOffset() throws IOException {
@@ -163,6 +167,8 @@ public class FileLogReader {
             hdr.setFileSize(size);
             hdr.write(mRAF);
             mRAF.seek(size);
+            mInput.invalidate();
+            mInput.seek(size);
         }
     }
 
@@ -25,7 +25,6 @@ package com.zimbra.cs.redolog.logger;
 
 import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.service.ServiceException;
-import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.redolog.CommitId;
@@ -35,22 +34,28 @@ import com.zimbra.cs.redolog.RedoLogManager;
 import com.zimbra.cs.redolog.RolloverManager;
 import com.zimbra.cs.redolog.op.CommitTxn;
 import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.Zimbra;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
 /**
- * @author jhahm
+ * Appends redo records to a file and makes synchronous records durable with group commit: the first thread that
+ * needs an fsync performs it for every record written so far, while the records written during that fsync wait for
+ * the next one.  Batches therefore grow with the load and the fsync latency, without any fixed sleep.  Records of
+ * asynchronous commits are fsynced, and their callbacks made, by a flush thread at most {@code fsyncIntervalMS} after
+ * they were written, if no synchronous record has done it sooner.
  *
- * TODO To change the template for this generated type comment go to
- * Window - Preferences - Java - Code Generation - Code and Comments
+ * @author jhahm
  */
 public class FileLogWriter implements LogWriter {
 
@@ -64,12 +69,15 @@ public class FileLogWriter implements LogWriter {
         }
     }
 
+    // commit notifications queued beyond this many make an asynchronous logger fsync
+    private static final int MAX_PENDING_NOTIFS = 100;
+
     protected RedoLogManager mRedoLogMgr;
 
-    // Synchronizes access to mRAF, mFileSize, mLogSeq, mFsyncSeq, mLogCount, and mFsyncCount.
+    // Synchronizes access to mRAF, mFD, mFileSize, mLogSeq and mLogCount.
     private final Object mLock = new Object();
 
-    // wait/notify between logger threads and fsync thread
+    // Synchronizes access to mFsyncSeq and mFsyncInProgress; threads waiting for an fsync wait on it.
     private final Object mFsyncCond = new Object();
 
     private FileHeader mHeader;
@@ -79,16 +87,18 @@ public class FileLogWriter implements LogWriter {
 
     private File mFile;
     private RandomAccessFile mRAF;
+    // fsyncs go through the descriptor: unlike FileChannel.force(), FileDescriptor.sync() can't be interrupted, and
+    // an interrupt in the channel would close the log under every other logger
+    private FileDescriptor mFD;
     private long mFileSize;
     private long mLastLogTime;
 
-    private long mFsyncIntervalMS;          // how many milliseconds fsync thread sleeps after each fync
     private boolean mFsyncDisabled;
 
-    private FsyncThread mFsyncer;   // fsync thread
-
-    private int mLogSeq;            // last item logged
-    private int mFsyncSeq;          // last item fsynced
+    // Sequence numbers keep increasing across close() and open(), so that a waiter never sees them go backwards.
+    private long mLogSeq;           // last item logged
+    private long mFsyncSeq;         // last item fsynced
+    private boolean mFsyncInProgress;
 
     // for gathering some stats; nonessential for functionality
     private int mLogCount;          // how many times log was called
@@ -96,6 +106,13 @@ public class FileLogWriter implements LogWriter {
 
     private CommitNotifyQueue mCommitNotifyQueue;
 
+    private final long mFsyncIntervalMS;
+    private FlushThread mFlusher;   // guarded by this
+
+    /**
+     * @param fsyncIntervalMS longest time records of asynchronous commits wait to be fsynced; synchronous records are
+     *        fsynced as soon as the previous fsync completes.  0 leaves them to the next synchronous record.
+     */
     public FileLogWriter(RedoLogManager redoLogMgr,
                          File logfile,
                          long fsyncIntervalMS) {
@@ -106,12 +123,12 @@ public class FileLogWriter implements LogWriter {
         mFileSize = mFile.length();
         mLastLogTime = mFile.lastModified();
 
-        mFsyncIntervalMS = fsyncIntervalMS;
         mFsyncDisabled = DebugConfig.disableRedoLogFsync;
 
         mFsyncCount = mLogCount = 0;
+        mFsyncIntervalMS = fsyncIntervalMS;
 
-        mCommitNotifyQueue = new CommitNotifyQueue(100);
+        mCommitNotifyQueue = new CommitNotifyQueue();
     }
 
     @Override public long getSequence() {
@@ -208,23 +225,25 @@ public class FileLogWriter implements LogWriter {
             mHeader.setOpen(true);
             mHeader.write(mRAF);
 
-            // go to the end of file, so we can append
-            long len = mRAF.length();
-            mRAF.seek(len);
-            mFileSize = len;
-
-            mLogSeq = mFsyncSeq = 0;
+            // records are appended at the end of file
+            mFD = mRAF.getFD();
+            mFileSize = mRAF.length();
         }
 
-        if (mFsyncIntervalMS > 0)
-            startFsyncThread();
+        if (mFsyncIntervalMS > 0 && mFlusher == null) {
+            mFlusher = new FlushThread(mFsyncIntervalMS);
+            mFlusher.start();
+        }
     }
 
     /* (non-Javadoc)
      * @see com.zimbra.cs.redolog.LogWriter#close()
      */
     @Override public synchronized void close() throws IOException {
-        stopFsyncThread();
+        if (mFlusher != null) {
+            mFlusher.stopThread();
+            mFlusher = null;
+        }
 
         synchronized (mLock) {
             if (mRAF != null) {
@@ -234,44 +253,54 @@ public class FileLogWriter implements LogWriter {
                 mHeader.setFileSize(mRAF.length());
                 mHeader.write(mRAF);
 
-                mRAF.getChannel().force(true);
+                mFD.sync();
+                // Everything logged is on disk now, which an fsync leader whose channel gets closed under it
+                // must be able to tell.
+                synchronized (mFsyncCond) {
+                    mFsyncSeq = Math.max(mFsyncSeq, mLogSeq);
+                }
                 mRAF.close();
                 mRAF = null;
+                mFD = null;
             } else
                 return;
         }
 
+        long seq;
+        synchronized (mFsyncCond) {
+            seq = mFsyncSeq;
+        }
+        mCommitNotifyQueue.flush(seq);
+        synchronized (mFsyncCond) {
+            mFsyncCond.notifyAll();
+        }
+
         // Write some stats, so we can see how many times we were able to avoid calling fsync.
         if (!mNoStat && mLogCount > 0 && ZimbraLog.redolog.isDebugEnabled())
             ZimbraLog.redolog.debug("Logged: " + mLogCount + " items, " + mFsyncCount + " fsyncs");
     }
 
     /**
-     * Log the supplied bytes.  Depending on the value of synchronous argument
-     * and the setting of fsync interval, this method can do one of 3 things:
+     * Log the supplied bytes.  Depending on the value of synchronous argument,
+     * this method can do one of 2 things:
      *
      * case 1: !synchronous
-     * action: write() only; no flush/fsync
+     * action: write() only; no fsync
      *
-     * case 2: synchronous && fsyncInterval > 0
-     * action: write(), then wait() until notified by fsync thread
-     * Current thread only calls write() on the RandomAccessFile, and blocks to
-     * wait for the next scheduled fsync.  Fsync thread periodically flushes
-     * the output stream and fsync's the file.  After each fsync, all waiting
-     * logger threads are notified to continue.  This method batches multiple
-     * log items before each fsync, and results in greater throughput than
+     * case 2: synchronous
+     * action: write(), then wait until an fsync covering the write completes
+     * If no fsync is in progress, the current thread becomes the leader and
+     * fsyncs everything written so far.  Otherwise it waits for the running
+     * fsync to finish, and then one of the waiting threads fsyncs everything
+     * written in the meantime on behalf of all of them.  This batches multiple
+     * log items per fsync under load, and results in greater throughput than
      * calling fsync after each log item because fsync to physical disk is
-     * a high-latency operation.
-     *
-     * case 3: synchronous && fsyncInterval <= 0
-     * action: write(), then fsync() in the current thread
-     * Fsync is required, but the sleep interval for fsync thread is 0.  We
-     * special case this condition to mean fsync should be done by the calling
-     * thread.
+     * a high-latency operation, while a lone writer doesn't wait at all.
      */
     @Override public void log(RedoableOp op, InputStream data, boolean synchronous) throws IOException {
-        int seq;
-        boolean sameMboxAsLastOp = false;
+        long start = System.nanoTime();
+        long seq;
+        boolean notifsPending = false;
 
         synchronized (mLock) {
             if (mRAF == null)
@@ -284,14 +313,15 @@ public class FileLogWriter implements LogWriter {
             	mFirstOpTstamp = tstamp;
                 mHeader.setFirstOpTstamp(mFirstOpTstamp);
                 mHeader.setLastOpTstamp(mLastOpTstamp);
-                long pos = mRAF.getFilePointer();
                 mHeader.write(mRAF);
-                mRAF.seek(pos);
             }
 
             mLogSeq++;
             mLogCount++;
             seq = mLogSeq;
+            // Write through the RandomAccessFile rather than the channel: an interrupt during a channel write
+            // would close the log under every other logger.
+            mRAF.seek(mFileSize);
             int numRead;
             byte[] buf = new byte[1024];
             while ((numRead = data.read(buf)) >= 0) {
@@ -308,56 +338,36 @@ public class FileLogWriter implements LogWriter {
                 if (cb != null) {
                     long redoSeq = mRedoLogMgr.getRolloverManager().getCurrentSequence();
                     CommitId cid = new CommitId(redoSeq, (CommitTxn) op);
-                    Notif notif = new Notif(cb, cid);
+                    Notif notif = new Notif(cb, cid, seq);
                     // We queue it instead making the callback right away.
                     // Call it only after the commit record has been fsynced.
-                    mCommitNotifyQueue.push(notif);
+                    notifsPending = mCommitNotifyQueue.push(notif) >= MAX_PENDING_NOTIFS;
                 }
             }
 
             mLastLogTime = System.currentTimeMillis();
-
-            sameMboxAsLastOp = mLastOpMboxId == op.getMailboxId();
-            mLastOpMboxId = op.getMailboxId();
         }
 
-        // cases 1 above
-        if (!synchronous)
-            return;
-
-        if (mFsyncIntervalMS > 0) {
-            if (!sameMboxAsLastOp) {
-                // case 2
-                try {
-                    // wait for fsync thread to write this entry to disk
-                    synchronized (mFsyncCond) {
-                        mFsyncCond.wait(10000);
-                    }
-                } catch (InterruptedException e) {
-                    ZimbraLog.redolog.info("Thread interrupted during fsync");
-                }
-                synchronized (mLock) {
-                    // timed out, so fsync in this thread
-                    if (seq > mFsyncSeq)
-                        fsync();
-                }
-            } else {
-                // If this op is on same mailbox as last op, let's assume there's a thread issuing
-                // many updates on a single mailbox in a loop, such as when importing a large ics file.
-                // We don't want to pause for mFsyncIntervalMS between every op (because all writes
-                // to a single mailbox are synchronized), so fsync inline and return immediately.
-                fsync();
+        // case 1 above
+        if (!synchronous) {
+            if (notifsPending) {
+                // don't let callbacks of asynchronous commits pile up
+                fsync(seq);
             }
-        } else {
-            // case 3
-            fsync();
+            return;
         }
-    }
 
-    private int mLastOpMboxId;
+        // case 2
+        fsync(seq);
+        ZimbraPerf.HISTOGRAM_REDO_COMMIT.record((System.nanoTime() - start) / 1000);
+    }
 
     @Override public void flush() throws IOException {
-        fsync();
+        long seq;
+        synchronized (mLock) {
+            seq = mLogSeq;
+        }
+        fsync(seq);
     }
 
     private boolean mNoStat;
@@ -425,140 +435,132 @@ public class FileLogWriter implements LogWriter {
         return rolloverFile;
     }
 
-    public synchronized void enableFsync() throws IOException {
-        startFsyncThread();
-        fsync();
-    }
-
-    public synchronized void disableFsync() throws IOException {
-        fsync();
-        stopFsyncThread();
-    }
-
-    private synchronized void startFsyncThread() {
-        if (mFsyncer == null && mFsyncIntervalMS > 0) {
-            mFsyncer = new FsyncThread(mFsyncIntervalMS);
-            mFsyncer.start();
-        }
-    }
-
-    private synchronized void stopFsyncThread() {
-        if (mFsyncer != null) {
-            mFsyncer.stopThread();
-            mFsyncer = null;
+    /**
+     * Returns once the item with the given sequence number is on disk, fsyncing it as the leader of a group commit
+     * if no other thread is doing so already.
+     */
+    private void fsync(long seq) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                long synced;
+                synchronized (mFsyncCond) {
+                    while (mFsyncSeq < seq && mFsyncInProgress) {
+                        try {
+                            mFsyncCond.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (mFsyncSeq >= seq) {
+                        return;
+                    }
+                    mFsyncInProgress = true;
+                    synced = mFsyncSeq;
+                }
+                syncAsLeader(synced);
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
-    // do fsync if there are items logged since last fsync
-    private void fsync() throws IOException {
-        boolean fsyncNeeded = false;
-        int seq = 0;
-        synchronized (mLock) {
-            if (mFsyncSeq < mLogSeq) {
-                if (mRAF == null)
-                    throw new IOException("Redolog file closed");
-                fsyncNeeded = true;
-                seq = mLogSeq;
-                if (!mFsyncDisabled)
-                    mFsyncCount++;
-            }
-        }
-        if (fsyncNeeded) {
-            if (!mFsyncDisabled) {
-                synchronized (mLock) {
-                    if (mRAF != null)
-                        mRAF.getChannel().force(false);
-                    else
+    // fsync everything logged so far, then wake up the threads waiting for it
+    private void syncAsLeader(long synced) throws IOException {
+        long target = synced;
+        boolean success = false;
+        try {
+            FileDescriptor fd;
+            synchronized (mLock) {
+                target = mLogSeq;
+                fd = mFD;
+                if (target > synced) {
+                    if (fd == null)
                         throw new IOException("Redolog file closed");
-                    mCommitNotifyQueue.flush(false);
+                    if (!mFsyncDisabled)
+                        mFsyncCount++;
                 }
             }
-            synchronized (mLock) {
-                mFsyncSeq = seq;
+            if (target > synced) {
+                if (!mFsyncDisabled) {
+                    try {
+                        // Writes keep going while we're in here.  They are not guaranteed to be covered by this
+                        // fsync, which is why it only vouches for the items up to target.
+                        fd.sync();
+                    } catch (IOException e) {
+                        // close() forces the file before closing it and then releases the waiters
+                        synchronized (mFsyncCond) {
+                            if (mFsyncSeq < target)
+                                throw e;
+                        }
+                    }
+                }
+                mCommitNotifyQueue.flush(target);
+                ZimbraPerf.HISTOGRAM_REDO_FSYNC_BATCH.record(target - synced);
             }
-            if (mFsyncIntervalMS > 0) {
-                synchronized (mFsyncCond) {
-                    mFsyncCond.notifyAll();
+            success = true;
+        } finally {
+            synchronized (mFsyncCond) {
+                if (success) {
+                    mFsyncSeq = Math.max(mFsyncSeq, target);
                 }
+                mFsyncInProgress = false;
+                mFsyncCond.notifyAll();
             }
         }
     }
 
 
-    // Thread that calls fsync() periodically.  Threads that call log()
-    // will write the log entry and wait for this thread to signal them
-    // after sync to disk has occurred.  This way, there are fewer fsyncs
-    // than there are calls to log(), resulting in improved throughput.
-    private class FsyncThread extends Thread {
-        private long mSleepMS;
-        private Object mFsyncLock;  // synchronizes access to mRunning
-        private boolean mRunning;
-
+    // Periodically fsyncs whatever was logged since the last fsync, so that records of asynchronous commits, and their
+    // callbacks, don't wait indefinitely for the next synchronous record on a quiet server.
+    private class FlushThread extends Thread {
         private static final long MIN_SLEEP_MILLIS = 1;
-        private static final long MAX_SLEEP_MILLIS = 1000;  // never sleep longer than 1 seconds
-
-        public FsyncThread(long fsyncIntervalMS) {
-            super("FileLogWriter.FsyncThread-"+System.currentTimeMillis());
-            // Sanity check the sleep interval.
-            if (fsyncIntervalMS < MIN_SLEEP_MILLIS) {
-                ZimbraLog.redolog.warn("Invalid fsync thread sleep interval %dms; using %dms instead",
-                        fsyncIntervalMS, MIN_SLEEP_MILLIS);
-                mSleepMS = MIN_SLEEP_MILLIS;
-            } else if (fsyncIntervalMS > MAX_SLEEP_MILLIS) {
-                ZimbraLog.redolog.warn("Fsync thread sleep interval %ms is too long; using %dms instead",
-                        fsyncIntervalMS, MAX_SLEEP_MILLIS);
-                mSleepMS = MAX_SLEEP_MILLIS;
-            } else {
-                mSleepMS = fsyncIntervalMS;
-            }
-            mFsyncLock = new Object();
-            mRunning = true;
+        private static final long MAX_SLEEP_MILLIS = 1000;  // never sleep longer than 1 second
+
+        private final long mSleepMS;
+        private volatile boolean mRunning = true;
+
+        FlushThread(long fsyncIntervalMS) {
+            super("FileLogWriter.FlushThread-" + System.currentTimeMillis());
+            setDaemon(true);
+            mSleepMS = Math.min(Math.max(fsyncIntervalMS, MIN_SLEEP_MILLIS), MAX_SLEEP_MILLIS);
         }
 
         @Override public void run() {
-            boolean running = true;
-        	ZimbraLog.redolog.info("Starting fsync thread with interval %d", mSleepMS);
-            while (running) {
-                // Sleep between fsyncs.
+            ZimbraLog.redolog.info("Starting flush thread with interval %d", mSleepMS);
+            while (mRunning) {
                 try {
-                	ZimbraLog.redolog.trace("Sleeping for %s", mSleepMS);
                     Thread.sleep(mSleepMS);
-                	ZimbraLog.redolog.trace("Slept for %s running? %s", mSleepMS, mRunning);
                 } catch (InterruptedException e) {
-                    ZimbraLog.redolog.warn("Sync thread interrupted", e);
+                    ZimbraLog.redolog.warn("Flush thread interrupted", e);
+                }
+                long seq;
+                synchronized (mLock) {
+                    if (mRAF == null)
+                        continue;
+                    seq = mLogSeq;
                 }
-
                 try {
-                    fsync();    // do the sync
+                    fsync(seq);
                 } catch (IOException e) {
-                    String message = "Error while fsyncing " + mFile.getAbsolutePath() + "; Aborting.";
-                    Zimbra.halt(message, e);
-                }
-
-                synchronized (mFsyncLock) {
-                    running = mRunning;
+                    if (mRunning)
+                        Zimbra.halt("Error while fsyncing " + mFile.getAbsolutePath() + "; Aborting.", e);
                 }
             }
-            ZimbraLog.redolog.info("fsync thread exiting");
+            ZimbraLog.redolog.info("flush thread exiting");
         }
 
-        // Stop the fsync thread.  Wait until the thread really stops.
-        public void stopThread() {
-            synchronized (mFsyncLock) {
-                mRunning = false;
-            }
+        // Stop the flush thread and wait until it really stops.  It isn't interrupted, as it may be making commit
+        // callbacks.
+        void stopThread() {
+            mRunning = false;
             try {
-            	while (isAlive()) {
-            		if (ZimbraLog.redolog.isTraceEnabled()) {
-            			ZimbraLog.redolog.trace("waiting for %s to finish. running? %s", getName(), mRunning);
-            		} else {
-            			ZimbraLog.redolog.info("waiting for %s to finish.", getName());
-            		}
-            		join(Constants.MILLIS_PER_MINUTE);
-            	}
-            	ZimbraLog.redolog.info("%s finished", getName());
+                join();
             } catch (InterruptedException e) {
-                ZimbraLog.redolog.warn("InterruptedException while stopping FsyncThread", e);
+                ZimbraLog.redolog.warn("InterruptedException while stopping flush thread", e);
+                Thread.currentThread().interrupt();
             }
         }
     }
@@ -569,53 +571,38 @@ public class FileLogWriter implements LogWriter {
     private static class Notif {
         private RedoCommitCallback mCallback;
         private CommitId mCommitId;
+        private long mSeq;
 
-        public Notif(RedoCommitCallback callback, CommitId cid) {
+        public Notif(RedoCommitCallback callback, CommitId cid, long seq) {
             mCallback = callback;
             mCommitId = cid;
+            mSeq = seq;
         }
         public RedoCommitCallback getCallback() { return mCallback; }
         public CommitId getCommitId() { return mCommitId; }
+        public long getSeq() { return mSeq; }
     }
 
-    private class CommitNotifyQueue {
-        private Notif[] mQueue = new Notif[100];
-        private int mHead;  // points to first entry
-        private int mTail;  // points to just after last entry (first empty slot)
-        private boolean mFull;
-
-        public CommitNotifyQueue(int size) {
-            mQueue = new Notif[size];
-            mHead = mTail = 0;
-            mFull = false;
-        }
+    private static final class CommitNotifyQueue {
+        private final ArrayDeque<Notif> mQueue = new ArrayDeque<Notif>();
 
-        public synchronized void push(Notif notif) throws IOException {
-            if (notif != null) {
-                if (mFull) flush(true);  // queue is full
-                assert(!mFull);
-                mQueue[mTail] = notif;
-                mTail++;
-                mTail %= mQueue.length;
-                mFull = mTail == mHead;
-            }
+        // returns the number of queued notifications
+        public synchronized int push(Notif notif) {
+            mQueue.addLast(notif);
+            return mQueue.size();
         }
 
-        private synchronized Notif pop() {
-            if (mHead == mTail && !mFull) return null;  // queue is empty
-            Notif n = mQueue[mHead];
-            mQueue[mHead] = null;  // help with GC
-            mHead++;
-            mHead %= mQueue.length;
-            mFull = false;
-            return n;
+        private synchronized Notif pop(long syncedSeq) {
+            Notif n = mQueue.peekFirst();
+            if (n == null || n.getSeq() > syncedSeq)
+                return null;
+            return mQueue.pollFirst();
         }
 
-        public synchronized void flush(boolean fsync) throws IOException {
-            if (fsync)
-                fsync();
+        // Makes the callbacks of all commits up to syncedSeq, in the order they were logged.
+        public synchronized void flush(long syncedSeq) {
             Notif notif;
-            while ((notif = pop()) != null) {
+            while ((notif = pop(syncedSeq)) != null) {
                 RedoCommitCallback cb = notif.getCallback();
                 assert(cb != null);
                 try {
@@ -0,0 +1,214 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.redolog.logger;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sequential {@link DataInput} over a redo log file that reads ahead in large
+ * chunks using positional {@link FileChannel} reads, so deserializing an op
+ * doesn't cost one system call per field the way reading straight from a
+ * <tt>RandomAccessFile</tt> does.  Positional reads leave the channel's own
+ * position alone, so the <tt>RandomAccessFile</tt> that owns the channel can
+ * still be used for the header, for junk searches and for truncation.
+ */
+public class ReadAheadFileInput implements DataInput {
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private long mBufferOffset;  // file offset of mBuffer[0]
+
+    public ReadAheadFileInput(FileChannel channel, int bufferSize) {
+        mChannel = channel;
+        mBuffer = ByteBuffer.allocate(Math.max(bufferSize, 8 * 1024));
+        mBuffer.limit(0);
+    }
+
+    public long getFilePointer() {
+        return mBufferOffset + mBuffer.position();
+    }
+
+    /**
+     * Moves to <tt>pos</tt>, keeping the buffered data if <tt>pos</tt> falls
+     * inside it.
+     */
+    public void seek(long pos) {
+        if (pos >= mBufferOffset && pos <= mBufferOffset + mBuffer.limit()) {
+            mBuffer.position((int) (pos - mBufferOffset));
+        } else {
+            mBufferOffset = pos;
+            mBuffer.limit(0);
+        }
+    }
+
+    /**
+     * Drops the buffered data so the next read goes to the file.  Must be
+     * called after the file is modified through another handle.
+     */
+    public void invalidate() {
+        mBufferOffset = getFilePointer();
+        mBuffer.limit(0);
+    }
+
+    /**
+     * Refills the buffer from the current position, returning false at end
+     * of file.
+     */
+    private boolean fill() throws IOException {
+        mBufferOffset = getFilePointer();
+        mBuffer.clear();
+        while (mBuffer.hasRemaining()) {
+            int n = mChannel.read(mBuffer, mBufferOffset + mBuffer.position());
+            if (n < 0)
+                break;
+        }
+        mBuffer.flip();
+        return mBuffer.hasRemaining();
+    }
+
+    private void require(int n) throws IOException {
+        if (mBuffer.remaining() >= n)
+            return;
+        // move the partial field to the front of the buffer and read the rest behind it
+        long pos = getFilePointer();
+        mBuffer.compact();
+        mBufferOffset = pos;
+        while (mBuffer.position() < n) {
+            int r = mChannel.read(mBuffer, mBufferOffset + mBuffer.position());
+            if (r < 0) {
+                mBuffer.flip();
+                throw new EOFException();
+            }
+        }
+        // keep reading ahead while we're at it
+        while (mBuffer.hasRemaining()) {
+            int r = mChannel.read(mBuffer, mBufferOffset + mBuffer.position());
+            if (r <= 0)
+                break;
+        }
+        mBuffer.flip();
+    }
+
+    @Override public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override public void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!mBuffer.hasRemaining() && !fill())
+                throw new EOFException();
+            int n = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Skips up to <tt>n</tt> bytes without reading them, stopping at the end
+     * of the file like <tt>RandomAccessFile.skipBytes()</tt> does.
+     */
+    @Override public int skipBytes(int n) throws IOException {
+        if (n <= 0)
+            return 0;
+        long pos = getFilePointer();
+        long newPos = Math.min(pos + n, mChannel.size());
+        if (newPos < pos)
+            return 0;
+        seek(newPos);
+        return (int) (newPos - pos);
+    }
+
+    @Override public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override public byte readByte() throws IOException {
+        require(1);
+        return mBuffer.get();
+    }
+
+    @Override public int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    @Override public short readShort() throws IOException {
+        require(2);
+        return mBuffer.getShort();
+    }
+
+    @Override public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    @Override public char readChar() throws IOException {
+        require(2);
+        return mBuffer.getChar();
+    }
+
+    @Override public int readInt() throws IOException {
+        require(4);
+        return mBuffer.getInt();
+    }
+
+    @Override public long readLong() throws IOException {
+        require(8);
+        return mBuffer.getLong();
+    }
+
+    @Override public float readFloat() throws IOException {
+        require(4);
+        return mBuffer.getFloat();
+    }
+
+    @Override public double readDouble() throws IOException {
+        require(8);
+        return mBuffer.getDouble();
+    }
+
+    /**
+     * Reads a line the way <tt>RandomAccessFile.readLine()</tt> does: each
+     * byte becomes one character, and a line ends at "\n", "\r" or "\r\n".
+     * Returns null at the end of the file.
+     */
+    @Override public String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            if (!mBuffer.hasRemaining() && !fill())
+                return line.length() > 0 ? line.toString() : null;
+            int c = mBuffer.get() & 0xff;
+            if (c == '\n')
+                return line.toString();
+            if (c == '\r') {
+                if ((mBuffer.hasRemaining() || fill()) && mBuffer.get(mBuffer.position()) == '\n')
+                    mBuffer.get();
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+    }
+
+    @Override public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
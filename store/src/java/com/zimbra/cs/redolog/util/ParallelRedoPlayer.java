@@ -17,18 +17,53 @@
 
 package com.zimbra.cs.redolog.util;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.redolog.RedoPlayer;
 import com.zimbra.cs.redolog.op.RedoableOp;
 import com.zimbra.cs.util.Zimbra;
 
+/**
+ * Replays redo ops on a work-stealing pool.  Each mailbox gets its own chain
+ * of ops that is played back in log order by whichever player thread picks it
+ * up, so a single busy mailbox ties up one thread rather than every mailbox
+ * that happens to hash to the same queue.  Ops that aren't tied to a mailbox
+ * (volume ops, checkpoints, etc.) act as barriers: they run on the calling
+ * thread once everything read before them has been played.
+ */
 public class ParallelRedoPlayer extends RedoPlayer {
 
-    private PlayerThread[] mPlayerThreads;
+    // ops a chain plays before giving its thread to another mailbox
+    private static final int CHAIN_BATCH_SIZE = 32;
+    private static final int MAX_LAGGING_MAILBOXES_LOGGED = 5;
+
+    private final ForkJoinPool mPool;
+    private final ConcurrentMap<Integer, MailboxChain> mChains = new ConcurrentHashMap<Integer, MailboxChain>();
+    // one permit per op that has been read but not yet played; bounds read-ahead and implements barriers
+    private final Semaphore mPending;
+    private final int mMaxPending;
+    private final AtomicLong mOpsPlayed = new AtomicLong();
+    private final long mStartTime = System.currentTimeMillis();
+    private TimerTask mProgressTask;
 
     public ParallelRedoPlayer(boolean writable, boolean unloggedReplay,
                               boolean ignoreReplayErrors, boolean skipDeleteOps,
@@ -36,13 +71,23 @@ public class ParallelRedoPlayer extends RedoPlayer {
         super(writable, unloggedReplay, ignoreReplayErrors, skipDeleteOps, handleMailboxConflict);
         ZimbraLog.redolog.debug("Starting ParallelRedoPlayer");
         numThreads = Math.max(numThreads, 1);
-        mPlayerThreads = new PlayerThread[numThreads];
-        for (int i = 0; i < numThreads; i++) {
-            String name = "RedoPlayer-" + Integer.toString(i);
-            PlayerThread player = new PlayerThread(queueCapacity);
-            mPlayerThreads[i] = player;
-            player.setName(name);
-            player.start();
+        mMaxPending = numThreads * Math.max(queueCapacity, 1);
+        mPending = new Semaphore(mMaxPending);
+        mPool = new ForkJoinPool(numThreads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("RedoPlayer-" + mCount.getAndIncrement());
+                return t;
+            }
+        }, null, true);
+
+        long interval = LC.redolog_replay_progress_interval_sec.longValue() * 1000;
+        if (interval > 0) {
+            mProgressTask = new ProgressTask();
+            Zimbra.sTimer.schedule(mProgressTask, interval, interval);
         }
     }
 
@@ -51,9 +96,19 @@ public class ParallelRedoPlayer extends RedoPlayer {
         try {
             super.shutdown();
         } finally {
-            for (int i = 0; i < mPlayerThreads.length; i++) {
-                mPlayerThreads[i].shutdown();
+            // Let the player threads finish what has been queued.  After an error they consume the rest of the
+            // chains without executing anything, so this doesn't wait for the backlog to be played.
+            awaitQueuedOps();
+            mPool.shutdown();
+            try {
+                mPool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {}
+            if (mProgressTask != null) {
+                mProgressTask.cancel();
             }
+            long elapsed = Math.max(System.currentTimeMillis() - mStartTime, 1);
+            ZimbraLog.redolog.info("Replayed %d ops for %d mailboxes in %d ms (%d ops/s)",
+                    mOpsPlayed.get(), mChains.size(), elapsed, mOpsPlayed.get() * 1000 / elapsed);
         }
         ZimbraLog.redolog.debug("ParallelRedoPlayer shutdown complete");
     }
@@ -61,28 +116,46 @@ public class ParallelRedoPlayer extends RedoPlayer {
     @Override protected void playOp(RedoableOp op) throws Exception {
         checkError();
         int mboxId = op.getMailboxId();
-        if (mboxId == RedoableOp.MAILBOX_ID_ALL || mboxId == RedoableOp.UNKNOWN_ID) {
-            // Multi-mailbox ops are executed by the main thread to prevent later ops
-            // that depend on this op's result aren't run out of order.
+        if (mboxId == RedoableOp.MAILBOX_ID_ALL) {
+            // Multi-mailbox ops (StoreIncomingBlob) are executed by the main thread so that later ops which
+            // depend on this op's result aren't run before it.  Nothing queued earlier depends on them.
             if (ZimbraLog.redolog.isDebugEnabled())
                 ZimbraLog.redolog.info("Executing: " + op.toString());
             op.redo();
+            mOpsPlayed.incrementAndGet();
+        } else if (mboxId == RedoableOp.UNKNOWN_ID) {
+            // Ops outside any mailbox may change state that queued ops rely on (volumes, for example), so
+            // they wait for everything read before them and run alone.
+            awaitQueuedOps();
+            checkError();
+            if (ZimbraLog.redolog.isDebugEnabled())
+                ZimbraLog.redolog.info("Executing after barrier: " + op.toString());
+            super.playOp(op);
+            mOpsPlayed.incrementAndGet();
         } else {
-            // Ops for the same mailbox must be played back in order.  To ensure that,
-            // all ops for the same mailbox are sent to the same player thread.  The
-            // ops are added to the thread's internal queue and played back in order.
-            // This assignment of ops to threads will result in uneven distribution.
-            int index = Math.abs(mboxId % mPlayerThreads.length);
-            PlayerThread player = mPlayerThreads[index];
-            RedoTask task = new RedoTask(op);
+            // Ops for the same mailbox must be played back in order, so they go on that mailbox's chain.
+            MailboxChain chain = mChains.get(mboxId);
+            if (chain == null) {
+                MailboxChain newChain = new MailboxChain(mboxId);
+                chain = mChains.putIfAbsent(mboxId, newChain);
+                if (chain == null)
+                    chain = newChain;
+            }
             if (ZimbraLog.redolog.isDebugEnabled())
                 ZimbraLog.redolog.info("Enqueuing: " + op.toString());
-            try {
-                player.enqueue(task);
-            } catch (InterruptedException e) {}
+            mPending.acquireUninterruptibly();
+            chain.add(op);
         }
     }
 
+    /**
+     * Blocks until every op handed to a mailbox chain has been played.
+     */
+    private void awaitQueuedOps() {
+        mPending.acquireUninterruptibly(mMaxPending);
+        mPending.release(mMaxPending);
+    }
+
     private Throwable mError = null;
     private final Object mErrorLock = new Object();
 
@@ -106,82 +179,139 @@ public class ParallelRedoPlayer extends RedoPlayer {
         }
     }
 
-    private static class RedoTask {
-        private RedoableOp mOp;
-        public RedoTask(RedoableOp op)  { mOp = op; }
-        public RedoableOp getOp()       { return mOp; }
-        public boolean isShutdownTask() { return false; }
+    private static class QueuedOp {
+        final RedoableOp op;
+        final long enqueued = System.currentTimeMillis();
+
+        QueuedOp(RedoableOp op) {
+            this.op = op;
+        }
     }
 
     /**
-     * Special task to tell the queue drain thread to go away.
+     * Ops of one mailbox waiting to be played.  At most one player thread
+     * drains a chain at a time; it plays a batch and then resubmits the chain
+     * behind the other mailboxes if more ops have arrived.
      */
-    private static class ShutdownTask extends RedoTask {
-        public ShutdownTask() { super(null); }
-        @Override
-        public boolean isShutdownTask() { return true; }
-    }
+    private class MailboxChain implements Runnable {
+        private final int mMailboxId;
+        private final Queue<QueuedOp> mOps = new ConcurrentLinkedQueue<QueuedOp>();
+        private final AtomicInteger mQueued = new AtomicInteger();
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
 
-    private class PlayerThread extends Thread {
-        private BlockingQueue<RedoTask> mQueue;
+        MailboxChain(int mboxId) {
+            mMailboxId = mboxId;
+        }
 
-        private PlayerThread(int queueCapacity) {
-            queueCapacity = Math.max(queueCapacity, 1);
-            mQueue = new LinkedBlockingQueue<RedoTask>(queueCapacity);
+        void add(RedoableOp op) {
+            mOps.add(new QueuedOp(op));
+            mQueued.incrementAndGet();
+            if (mScheduled.compareAndSet(false, true)) {
+                mPool.execute(this);
+            }
         }
 
-        public void enqueue(RedoTask task) throws InterruptedException {
-            mQueue.put(task);
+        int getQueued() {
+            return mQueued.get();
         }
 
-        public void shutdown() {
-            if (hadError())
-                mQueue.clear();  // Ensure mQueue.put() below will not block.
-            ShutdownTask t = new ShutdownTask();
-            try {
-                mQueue.put(t);
-            } catch (InterruptedException e) {}
-            try {
-                join();
-            } catch (InterruptedException e) {}
+        /** Returns how long the oldest queued op has been waiting, or 0 if none is. */
+        long getLag(long now) {
+            QueuedOp head = mOps.peek();
+            return head == null ? 0 : now - head.enqueued;
         }
 
         @Override public void run() {
-            while (true) {
-                RedoTask task;
+            for (int i = 0; i < CHAIN_BATCH_SIZE; i++) {
+                QueuedOp queued = mOps.poll();
+                if (queued == null) {
+                    mScheduled.set(false);
+                    // an op may have been added after the poll but before the flag was cleared
+                    if (!mOps.isEmpty() && mScheduled.compareAndSet(false, true)) {
+                        mPool.execute(this);
+                    }
+                    return;
+                }
                 try {
-                    task = mQueue.take();
-                } catch (InterruptedException e) {
-                    break;
+                    play(queued.op);
+                } finally {
+                    mQueued.decrementAndGet();
+                    mPending.release();
                 }
-                if (task.isShutdownTask())
-                    break;
-
-                if (hadError()) {
-                    // If there was an error, keep consuming from the queue without executing anything.
-                    // This thread must consume all tasks until shutdown task is received.  If this
-                    // thread stopped consuming, the producer may not be able to enqueue the shutdown
-                    // task.
-                    continue;
+            }
+            mPool.execute(this);
+        }
+
+        private void play(RedoableOp op) {
+            if (hadError()) {
+                // If there was an error, keep consuming the chain without executing anything so that
+                // barriers and shutdown don't wait on ops that will never run.
+                return;
+            }
+            try {
+                if (ZimbraLog.redolog.isDebugEnabled()) {
+                    ZimbraLog.redolog.info("Executing: " + op.toString());
                 }
+                if (handleMailboxConflict) {
+                    redoOpWithMboxConflict(op);
+                } else {
+                    op.redo();
+                }
+                mOpsPlayed.incrementAndGet();
+            } catch (OutOfMemoryError oome) {
+                Zimbra.halt("Out of memory while executing redo op", oome);
+            } catch (Throwable e) {
+                ZimbraLog.redolog.error("Unable to execute redo op: " + op.toString(), e);
+                if (!ignoreReplayErrors())
+                    raiseError(e);
+            }
+        }
+    }
 
-                RedoableOp op = task.getOp();
-                try {
-                    if (ZimbraLog.redolog.isDebugEnabled()) {
-                        ZimbraLog.redolog.info("Executing: " + op.toString());
+    /**
+     * Periodically logs replay throughput and the mailboxes furthest behind.
+     */
+    private class ProgressTask extends TimerTask {
+        private long mLastCount = 0;
+        private long mLastTime = mStartTime;
+
+        @Override public void run() {
+            try {
+                long now = System.currentTimeMillis();
+                long count = mOpsPlayed.get();
+                long rate = (count - mLastCount) * 1000 / Math.max(now - mLastTime, 1);
+                mLastCount = count;
+                mLastTime = now;
+
+                // the queues keep changing while we look at them, so sort on a snapshot of their sizes
+                List<Pair<MailboxChain, Integer>> backlogged = new ArrayList<Pair<MailboxChain, Integer>>();
+                int queued = 0;
+                for (MailboxChain chain : mChains.values()) {
+                    int n = chain.getQueued();
+                    if (n > 0) {
+                        backlogged.add(new Pair<MailboxChain, Integer>(chain, n));
+                        queued += n;
                     }
-                    if (handleMailboxConflict) {
-                        redoOpWithMboxConflict(op);
-                    } else {
-                        op.redo();
+                }
+                Collections.sort(backlogged, new Comparator<Pair<MailboxChain, Integer>>() {
+                    @Override
+                    public int compare(Pair<MailboxChain, Integer> c1, Pair<MailboxChain, Integer> c2) {
+                        return Integer.compare(c2.getSecond(), c1.getSecond());
                     }
-                } catch (OutOfMemoryError oome) {
-                    Zimbra.halt("Out of memory while executing redo op", oome);
-                } catch (Throwable e) {
-                    ZimbraLog.redolog.error("Unable to execute redo op: " + op.toString(), e);
-                    if (!ignoreReplayErrors())
-                        raiseError(e);
+                });
+                StringBuilder lagging = new StringBuilder();
+                int logged = Math.min(backlogged.size(), MAX_LAGGING_MAILBOXES_LOGGED);
+                for (Pair<MailboxChain, Integer> entry : backlogged.subList(0, logged)) {
+                    if (lagging.length() > 0)
+                        lagging.append(", ");
+                    lagging.append(entry.getFirst().mMailboxId).append(" (").append(entry.getSecond()).append(" ops, ")
+                        .append(entry.getFirst().getLag(now)).append(" ms behind)");
                 }
+                ZimbraLog.redolog.info("Redo replay: %d ops played, %d ops/s, %d ops queued for %d mailboxes%s",
+                        count, rate, queued, backlogged.size(),
+                        lagging.length() > 0 ? "; most backlogged: " + lagging : "");
+            } catch (Throwable t) {
+                ZimbraLog.redolog.warn("unable to report redo replay progress", t);
             }
         }
     }
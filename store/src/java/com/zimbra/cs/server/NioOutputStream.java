@@ -19,8 +19,10 @@ package com.zimbra.cs.server;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.IoFutureListener;
 import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
 
@@ -48,7 +50,7 @@ public final class NioOutputStream extends OutputStream {
         // If the request is larger than the capacity, flush the buffer and write it directly.
         if (len > buf.capacity()) {
             flush();
-            writeToSession(IoBuffer.wrap(b, off, len));
+            writeToSession(IoBuffer.wrap(b, off, len), null);
         } else {
             if (len > buf.remaining()) { // If not enough space left, flush the buffer first.
                 flush();
@@ -62,7 +64,7 @@ public final class NioOutputStream extends OutputStream {
         // If the request is larger than the capacity, flush the buffer and write it directly.
         if (len > buf.capacity()) {
             flush();
-            writeToSession(IoBuffer.allocate(len).putString(s, Charsets.UTF_8.newEncoder()).flip());
+            writeToSession(IoBuffer.allocate(len).putString(s, Charsets.UTF_8.newEncoder()).flip(), null);
         } else {
             if (len > buf.remaining()) { // If not enough space left, flush the buffer first.
                 flush();
@@ -71,6 +73,16 @@ public final class NioOutputStream extends OutputStream {
         }
     }
 
+    /**
+     * Flushes any buffered data and hands <tt>content</tt> to the session as is,
+     * without copying it.  The buffer must not be modified or released until
+     * <tt>listener</tt> is notified that the write has completed or failed.
+     */
+    public synchronized void write(ByteBuffer content, IoFutureListener<WriteFuture> listener) throws IOException {
+        flush();
+        writeToSession(IoBuffer.wrap(content), listener);
+    }
+
     @Override
     public synchronized void write(int b) throws IOException {
         if (!buf.hasRemaining()) { // If not enough space left, flush the buffer first.
@@ -83,14 +95,17 @@ public final class NioOutputStream extends OutputStream {
     public synchronized void flush() throws IOException {
         if (buf.position() > 0) {
             buf.flip();
-            writeToSession(buf);
+            writeToSession(buf, null);
             buf = IoBuffer.allocate(buf.capacity());
         }
     }
 
-    private synchronized void writeToSession(Object output) throws IOException {
+    private synchronized void writeToSession(Object output, IoFutureListener<WriteFuture> listener) throws IOException {
         long writeBytes = session.getScheduledWriteBytes();
         WriteFuture future = session.write(output);
+        if (listener != null) {
+            future.addListener(listener);
+        }
         if (writeBytes > maxScheduledBytes) {
             ZimbraLog.nio.debug("IOSession has %d scheduled write bytes; waiting for buffer to catch up", writeBytes);
             long start = System.currentTimeMillis();
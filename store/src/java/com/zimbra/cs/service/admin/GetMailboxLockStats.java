@@ -0,0 +1,129 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.service.admin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+import com.google.common.collect.ImmutableMap;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.AdminConstants;
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.stats.Histogram;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.Server;
+import com.zimbra.cs.account.accesscontrol.AdminRight;
+import com.zimbra.cs.account.accesscontrol.Rights.Admin;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.lock.MailboxLockStats;
+import com.zimbra.soap.ZimbraSoapContext;
+import com.zimbra.soap.admin.message.GetMailboxLockStatsRequest;
+import com.zimbra.soap.admin.message.GetMailboxLockStatsResponse;
+import com.zimbra.soap.admin.type.MailboxLockStatsInfo;
+
+/**
+ * Lists the loaded mailboxes whose locks are the most contended.
+ */
+public class GetMailboxLockStats extends AdminDocumentHandler {
+
+    private static final int DEFAULT_LIMIT = 10;
+
+    private static final Map<String, ToLongFunction<MailboxLockStatsInfo>> SORT_KEYS =
+            ImmutableMap.<String, ToLongFunction<MailboxLockStatsInfo>>builder()
+            .put(AdminConstants.A_WAIT_TOTAL, MailboxLockStatsInfo::getWaitTotal)
+            .put(AdminConstants.A_WAIT_MAX, MailboxLockStatsInfo::getWaitMax)
+            .put(AdminConstants.A_WRITE_HOLD_P99, MailboxLockStatsInfo::getWriteHoldP99)
+            .put(AdminConstants.A_READ_HOLD_P99, MailboxLockStatsInfo::getReadHoldP99)
+            .put(AdminConstants.A_QUEUE_MAX, MailboxLockStatsInfo::getQueueMax)
+            .put(AdminConstants.A_CONTENDED, MailboxLockStatsInfo::getContended)
+            .build();
+
+    @Override
+    public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+        ZimbraSoapContext zsc = getZimbraSoapContext(context);
+        Server localServer = Provisioning.getInstance().getLocalServer();
+        checkRight(zsc, context, localServer, Admin.R_getServerStats);
+
+        GetMailboxLockStatsRequest req = zsc.elementToJaxb(request);
+        int limit = req.getLimit() == null ? DEFAULT_LIMIT : req.getLimit();
+        if (limit <= 0) {
+            throw ServiceException.INVALID_REQUEST("limit must be positive: " + limit, null);
+        }
+        Comparator<MailboxLockStatsInfo> comparator = getComparator(req.getSortBy());
+
+        List<MailboxLockStatsInfo> infos = new ArrayList<MailboxLockStatsInfo>();
+        boolean reset = Boolean.TRUE.equals(req.getReset());
+        for (Mailbox mbox : MailboxManager.getInstance().getAllLoadedMailboxes()) {
+            MailboxLockStats stats = mbox.lock.getStats();
+            if (stats == null) {
+                continue;
+            }
+            infos.add(toInfo(stats));
+            if (reset) {
+                stats.reset();
+            }
+        }
+        Collections.sort(infos, Collections.reverseOrder(comparator));
+
+        GetMailboxLockStatsResponse resp = new GetMailboxLockStatsResponse();
+        resp.setMailboxes(infos.subList(0, Math.min(limit, infos.size())));
+        return zsc.jaxbToElement(resp);
+    }
+
+    private static MailboxLockStatsInfo toInfo(MailboxLockStats stats) {
+        MailboxLockStatsInfo info = new MailboxLockStatsInfo(stats.getMailboxId(), stats.getAccountId());
+        Histogram wait = stats.getWaitTime();
+        info.setWaitCount(wait.getCount());
+        info.setWaitTotal(wait.getTotal());
+        info.setWaitP50(wait.getValueAtPercentile(50));
+        info.setWaitP99(wait.getValueAtPercentile(99));
+        info.setWaitMax(wait.getMax());
+        Histogram readHold = stats.getReadHoldTime();
+        info.setReadHoldCount(readHold.getCount());
+        info.setReadHoldP99(readHold.getValueAtPercentile(99));
+        info.setReadHoldMax(readHold.getMax());
+        Histogram writeHold = stats.getWriteHoldTime();
+        info.setWriteHoldCount(writeHold.getCount());
+        info.setWriteHoldP99(writeHold.getValueAtPercentile(99));
+        info.setWriteHoldMax(writeHold.getMax());
+        Histogram queueDepth = stats.getQueueDepth();
+        info.setContended(queueDepth.getCount());
+        info.setQueueMax(queueDepth.getMax());
+        info.setPromotions(stats.getPromotions());
+        info.setTimeouts(stats.getTimeouts());
+        info.setRejected(stats.getRejections());
+        return info;
+    }
+
+    private static Comparator<MailboxLockStatsInfo> getComparator(String sortBy) throws ServiceException {
+        ToLongFunction<MailboxLockStatsInfo> key = SORT_KEYS.get(sortBy == null ? AdminConstants.A_WAIT_TOTAL : sortBy);
+        if (key == null) {
+            throw ServiceException.INVALID_REQUEST("invalid sortBy: " + sortBy, null);
+        }
+        return Comparator.comparingLong(key);
+    }
+
+    @Override
+    public void docRights(List<AdminRight> relatedRights, List<String> notes) {
+        relatedRights.add(Admin.R_getServerStats);
+    }
+}
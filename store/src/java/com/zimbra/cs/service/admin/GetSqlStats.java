@@ -0,0 +1,89 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2018 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.service.admin;
+
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.Element;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.Server;
+import com.zimbra.cs.account.accesscontrol.AdminRight;
+import com.zimbra.cs.account.accesscontrol.Rights.Admin;
+import com.zimbra.cs.db.SqlStatementStats;
+import com.zimbra.soap.ZimbraSoapContext;
+import com.zimbra.soap.admin.message.GetSqlStatsRequest;
+import com.zimbra.soap.admin.message.GetSqlStatsResponse;
+import com.zimbra.soap.admin.type.SlowSqlQueryInfo;
+import com.zimbra.soap.admin.type.SqlStatementStatsInfo;
+
+/**
+ * Lists the SQL statements that took the most database time, and the latest slow queries.
+ */
+public class GetSqlStats extends AdminDocumentHandler {
+
+    private static final int DEFAULT_LIMIT = 25;
+
+    @Override
+    public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+        ZimbraSoapContext zsc = getZimbraSoapContext(context);
+        Server localServer = Provisioning.getInstance().getLocalServer();
+        checkRight(zsc, context, localServer, Admin.R_getServerStats);
+
+        GetSqlStatsRequest req = zsc.elementToJaxb(request);
+        int limit = req.getLimit() == null ? DEFAULT_LIMIT : req.getLimit();
+        if (limit <= 0) {
+            throw ServiceException.INVALID_REQUEST("limit must be positive: " + limit, null);
+        }
+
+        SqlStatementStats stats = SqlStatementStats.getInstance();
+        GetSqlStatsResponse resp = new GetSqlStatsResponse();
+        List<SqlStatementStats.StatementStats> statements = stats.getStatements();
+        for (SqlStatementStats.StatementStats stmt : statements.subList(0, Math.min(limit, statements.size()))) {
+            SqlStatementStatsInfo info = new SqlStatementStatsInfo(stmt.getFingerprint());
+            info.setCount(stmt.getCount());
+            info.setTotalTime(stmt.getTotalMicros());
+            info.setRows(stmt.getRows());
+            info.setP50(stmt.getPercentileMicros(50));
+            info.setP99(stmt.getPercentileMicros(99));
+            info.setMaxTime(stmt.getMaxMicros());
+            resp.addStatement(info);
+        }
+        for (SqlStatementStats.SlowQuery query : stats.getSlowQueries()) {
+            SlowSqlQueryInfo info = new SlowSqlQueryInfo(query.getSql());
+            info.setFingerprint(query.getFingerprint());
+            info.setTime(query.getTimestamp());
+            info.setElapsed(query.getElapsedMicros());
+            info.setBinds(query.getBindCount());
+            if (query.getMailboxId() > 0) {
+                info.setMailboxId(query.getMailboxId());
+            }
+            resp.addSlowQuery(info);
+        }
+        if (Boolean.TRUE.equals(req.getReset())) {
+            stats.reset();
+        }
+        return zsc.jaxbToElement(resp);
+    }
+
+    @Override
+    public void docRights(List<AdminRight> relatedRights, List<String> notes) {
+        relatedRights.add(Admin.R_getServerStats);
+    }
+}
@@ -29,6 +29,7 @@ import com.zimbra.common.soap.Element;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
+import com.zimbra.cs.mailbox.MessageCache;
 import com.zimbra.cs.mailclient.imap.ImapConnection;
 import com.zimbra.cs.service.AuthProvider;
 import com.zimbra.soap.ZimbraSoapContext;
@@ -59,6 +60,8 @@ public final class ReloadLocalConfig extends AdminDocumentHandler {
             throw AdminServiceException.FAILURE("Failed to reload LocalConfig", e);
         }
         ZimbraLog.misc.info("LocalConfig reloaded");
+        // pick up a changed zimbra_message_cache_max_bytes
+        MessageCache.loadSettings();
         reloadLCOnAllImapDaemons();
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
         return zsc.jaxbToElement(new ReloadLocalConfigResponse());
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PushbackInputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
@@ -40,9 +41,11 @@ import javax.mail.internet.MimePart;
 import javax.mail.internet.MimeUtility;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.server.HttpOutput;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
@@ -84,6 +87,7 @@ import com.zimbra.cs.service.formatter.FormatterFactory.FormatType;
 import com.zimbra.cs.service.mail.UploadScanner;
 import com.zimbra.cs.servlet.ETagHeaderFilter;
 import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.StoreManager;
 
 public final class NativeFormatter extends Formatter {
@@ -169,7 +173,16 @@ public final class NativeFormatter extends Formatter {
             if (size > 0)
                 context.resp.setContentLength((int)size);
             InputStream is = msg.getContentStream();
-            ByteUtil.copy(is, true, context.resp.getOutputStream(), false);
+            ServletOutputStream out = context.resp.getOutputStream();
+            ByteBuffer mapped = out instanceof HttpOutput ? BlobInputStream.mapLargeBlob(is) : null;
+            if (mapped != null) {
+                // Jetty writes the mapped blob to the connection without copying it through the heap
+                ByteUtil.closeStream(is);
+                ((HttpOutput) out).sendContent(mapped);
+                BlobInputStream.recordSent(mapped);
+            } else {
+                ByteUtil.copy(is, true, out, false);
+            }
         }
     }
 
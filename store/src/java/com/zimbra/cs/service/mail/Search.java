@@ -64,6 +64,7 @@ import com.zimbra.cs.mailbox.calendar.cache.CalendarItemData;
 import com.zimbra.cs.service.util.ItemId;
 import com.zimbra.cs.service.util.ItemIdFormatter;
 import com.zimbra.cs.util.AccountUtil;
+import com.zimbra.soap.SoapServlet;
 import com.zimbra.soap.ZimbraSoapContext;
 import com.zimbra.soap.mail.message.SearchRequest;
 
@@ -72,6 +73,11 @@ import com.zimbra.soap.mail.message.SearchRequest;
  */
 public class Search extends MailDocumentHandler  {
 
+    @Override
+    public boolean encodesResponseIncrementally() {
+        return true;
+    }
+
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
@@ -114,7 +120,8 @@ public class Search extends MailDocumentHandler  {
             // must use results.getSortBy() because the results might have ignored our sortBy
             // request and used something else...
             response.addAttribute(MailConstants.A_SORTBY, results.getSortBy().toString());
-            putHits(zsc, octxt, response, results, params, memberOfMap);
+            putHits(zsc, octxt, response, results, params, memberOfMap,
+                    context.containsKey(SoapServlet.ENCODE_RESPONSE_INCREMENTALLY));
         } catch (IOException e) {
         } 
         return response;
@@ -131,7 +138,7 @@ public class Search extends MailDocumentHandler  {
     }
 
     private void putHits(ZimbraSoapContext zsc, OperationContext octxt, Element el, ZimbraQueryResults results,
-            SearchParams params, Map<String,Set<String>> memberOfMap) throws ServiceException {
+            SearchParams params, Map<String,Set<String>> memberOfMap, boolean encodeHits) throws ServiceException {
 
         if (params.getInlineRule() == ExpandResults.HITS ||
             params.getInlineRule() == ExpandResults.FIRST_MSG ||
@@ -159,6 +166,7 @@ public class Search extends MailDocumentHandler  {
         SearchResponse resp = new SearchResponse(zsc, octxt, el, params, memberOfMap);
         resp.setIncludeMailbox(false);
         resp.setSortOrder(pager.getSortOrder());
+        resp.setEncodeHits(encodeHits);
         boolean expand;
         ExpandResults expandValue = params.getInlineRule();
         int hitNum = 0;
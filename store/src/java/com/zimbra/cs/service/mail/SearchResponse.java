@@ -82,6 +82,7 @@ final class SearchResponse {
     private final ExpandResults expand;
     private SortBy sortOrder = SortBy.NONE;;
     private boolean allRead = false;
+    private boolean encodeHits = false;
     private final Map<String,Set<String>> memberOfMap;
 
     protected SearchResponse(ZimbraSoapContext zsc, OperationContext octxt, Element el, SearchParams params) {
@@ -116,6 +117,16 @@ final class SearchResponse {
         sortOrder = value;
     }
 
+    /**
+     * Set whether each hit is encoded as soon as it is complete. The encoded hits can't be read back from
+     * {@link #toElement()}, so only enable this when the response goes straight to the SOAP servlet.
+     *
+     * @param value true to encode hits incrementally, otherwise false
+     */
+    void setEncodeHits(boolean value) {
+        encodeHits = value;
+    }
+
     /**
      * Append a paging flag to the response.
      *
@@ -197,6 +208,9 @@ final class SearchResponse {
             if (includeMailbox) {
                 el.addAttribute(MailConstants.A_ID, new ItemId(hit.getAcctIdStr(), hit.getItemId()).toString());
             }
+            if (encodeHits && el.getParent() == element) {
+                element.addEncodedElement(el.detach());
+            }
         }
     }
 
@@ -304,8 +304,7 @@ public class WaitSetRequest extends MailDocumentHandler {
                     }
                 }
                 AccountWithModifications info = new AccountWithModifications(signalledAccount, lastChangeId);
-                @SuppressWarnings("rawtypes")
-                PendingModifications accountMods = cb.pendingModifications.get(signalledAccount);
+                PendingModifications<?> accountMods = cb.pendingModifications.get(signalledAccount);
                 Map<Integer, PendingFolderModifications> folderMap =
                         PendingModifications.encodeIMAPFolderModifications(accountMods, folderInterests);
                 if (folderInterests!= null && !folderInterests.isEmpty() && !folderMap.isEmpty()) {
@@ -255,6 +255,7 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
         cancelExistingCB();
         HashMap<String, WaitSetAccount> toRet = mSessions;
         mSessions = new HashMap<String, WaitSetAccount>();
+        clearSignals();
         mCurrentSignalledSessions.clear();
         mSentSignalledSessions.clear();
         mSentSignalledAccounts.clear();
@@ -277,8 +278,10 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
      */
     synchronized protected void unsignalDataReady(WaitSetSession session) {
         if (mSessions.containsKey(session.getTargetAccountId())) { // ...false if waitset is shutting down...
+            unsignal(session.getTargetAccountId());
             mCurrentSignalledAccounts.remove(session.getTargetAccountId());
-            mCurrentSignalledSessions.remove(session.getTargetAccountId());
+            mCurrentSignalledSessions.remove(session);
+            currentPendingModifications.remove(session.getTargetAccountId());
         }
     }
 
@@ -286,28 +289,26 @@ public final class SomeAccountsWaitSet extends WaitSetBase implements MailboxMan
      * Called by the WaitSetSession when there is data to be signalled by this session
      * @param session
      */
-    synchronized protected void signalDataReady(WaitSetSession session) {
+    protected void signalDataReady(WaitSetSession session) {
         signalDataReady(session, null);
     }
 
     /**
-     * Called by the WaitSetSession when there is data to be signalled by this session
+     * Called by the WaitSetSession when there is data to be signalled by this session.  Does not block on the
+     * WaitSet unless a callback is waiting; repeated signals for an account between polls are merged.
      * @param session
      */
-    synchronized protected void signalDataReady(WaitSetSession session, PendingModifications pms) {
-        boolean trace = ZimbraLog.session.isTraceEnabled();
-        if (trace) ZimbraLog.session.trace("SomeAccountsWaitSet.signalDataReady 1");
-        String targetAccId = session.getTargetAccountId();
-        if (mSessions.containsKey(targetAccId)) { // ...false if waitset is shutting down...
-            if (trace) ZimbraLog.session.trace("SomeAccountsWaitSet.signalDataReady 2");
-            if (mCurrentSignalledAccounts.add(targetAccId)) {
-                mCurrentSignalledSessions.add(session);
-                if (trace) ZimbraLog.session.trace("SomeAccountsWaitSet.signalDataReady 3");
-                addMods(currentPendingModifications, targetAccId, pms);
-                trySendData();
-            }
-        }
-        if (trace) ZimbraLog.session.trace("SomeAccountsWaitSet.signalDataReady done");
+    protected void signalDataReady(WaitSetSession session, PendingModifications<?> pms) {
+        ZimbraLog.session.trace("SomeAccountsWaitSet.signalDataReady %s", session.getTargetAccountId());
+        signal(session, pms);
+    }
+
+    /**
+     * Called with the WaitSet locked when moving signals into the current set
+     */
+    @Override
+    protected boolean acceptSignal(String accountId) {
+        return mSessions.containsKey(accountId); // ...false if waitset is shutting down...
     }
 
     @Override
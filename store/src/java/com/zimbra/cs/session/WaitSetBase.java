@@ -21,12 +21,15 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.service.mail.WaitSetRequest;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.soap.admin.type.AccountsAttrib;
 import com.zimbra.soap.admin.type.WaitSetInfo;
 import com.zimbra.soap.type.IdAndType;
@@ -40,8 +43,16 @@ public abstract class WaitSetBase implements IWaitSet {
     protected final String mOwnerAccountId;
     protected final Set<MailItem.Type> defaultInterest;
 
-    protected long mLastAccessedTime = -1;
-    protected WaitSetCallback mCb = null;
+    protected volatile long mLastAccessedTime = -1;
+    protected volatile WaitSetCallback mCb = null;
+
+    /**
+     * Signals which have arrived since they were last moved into the current set, keyed by account id.  Signalling
+     * threads only touch this map and the per-account {@link Signal}, so a mailbox commit never waits for the
+     * WaitSet monitor unless there is a callback to hand the data to.
+     */
+    private final ConcurrentMap<String /*accountId*/, Signal> mIncomingSignals =
+            new ConcurrentHashMap<String, Signal>();
 
     /**
      * List of errors (right now, only mailbox deletion notifications) to be sent
@@ -52,12 +63,12 @@ public abstract class WaitSetBase implements IWaitSet {
     /** this is the signalled set data that is new (has never been sent) */
     protected HashSet<String /*accountId*/> mCurrentSignalledAccounts = Sets.newHashSet();
     protected HashSet<WaitSetSession> mCurrentSignalledSessions = Sets.newHashSet();
-    protected Map<String /*accountId*/, PendingModifications> currentPendingModifications = Maps.newHashMap();
+    protected Map<String /*accountId*/, PendingModifications<?>> currentPendingModifications = Maps.newHashMap();
 
     /** this is the signalled set data that we've already sent, it just hasn't been acked yet */
     protected HashSet<String /*accountId*/> mSentSignalledAccounts = Sets.newHashSet();
     protected HashSet<WaitSetSession /*accountId*/> mSentSignalledSessions = Sets.newHashSet();
-    protected Map<String /*accountId*/, PendingModifications> sentPendingModifications = Maps.newHashMap();
+    protected Map<String /*accountId*/, PendingModifications<?>> sentPendingModifications = Maps.newHashMap();
 
     abstract protected Map<String, WaitSetAccount> destroy();
     abstract protected int countSessions();
@@ -130,11 +141,165 @@ public abstract class WaitSetBase implements IWaitSet {
         this.defaultInterest = defaultInterest;
     }
 
+    /**
+     * Records that there is data for the session's account, merging it into any notification for the same account
+     * which has not been picked up yet.  Only takes the WaitSet monitor if a callback is waiting.
+     */
+    protected void signal(WaitSetSession session, PendingModifications<?> pms) {
+        long start = System.nanoTime();
+        String accountId = session.getTargetAccountId();
+        while (true) {
+            Signal sig = mIncomingSignals.get(accountId);
+            if (sig == null) {
+                sig = new Signal(session, pms, start, mCb != null);
+                if (mIncomingSignals.putIfAbsent(accountId, sig) == null) {
+                    // a callback set after this put will pick the signal up when it drains
+                    if (mCb != null) {
+                        trySendData();
+                    }
+                    break;
+                }
+            } else if (sig.merge(session, pms)) {
+                ZimbraPerf.COUNTER_WAITSET_COALESCED.increment();
+                break;
+            }
+            // lost a race with a drain or another signaller: try again
+        }
+        ZimbraPerf.HISTOGRAM_WAITSET_SIGNAL.record((System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * Drops any notification for the account which has not been picked up yet.
+     */
+    protected void unsignal(String accountId) {
+        Signal sig = mIncomingSignals.remove(accountId);
+        if (sig != null) {
+            sig.detach();
+        }
+    }
+
+    protected void clearSignals() {
+        for (String accountId : mIncomingSignals.keySet()) {
+            unsignal(accountId);
+        }
+    }
+
+    /**
+     * Called while draining to decide whether a signal for the account should still be delivered
+     */
+    protected boolean acceptSignal(String accountId) {
+        return true;
+    }
+
+    /**
+     * Moves the incoming signals into the current set.
+     *
+     * @return the arrival time of the oldest signal that came in while a callback was waiting, or -1
+     */
+    private long drainSignals() {
+        long oldestWaiting = -1;
+        for (String accountId : mIncomingSignals.keySet()) {
+            Signal sig = mIncomingSignals.remove(accountId);
+            if (sig == null || !sig.detach() || !acceptSignal(accountId)) {
+                continue;
+            }
+            mCurrentSignalledAccounts.add(accountId);
+            mCurrentSignalledSessions.add(sig.session);
+            if (sig.mods != null) {
+                currentPendingModifications.put(accountId,
+                        mergeMods(currentPendingModifications.get(accountId), sig.mods));
+            }
+            if (sig.callbackWaiting && (oldestWaiting == -1 || sig.arrivalNanos - oldestWaiting < 0)) {
+                oldestWaiting = sig.arrivalNanos;
+            }
+        }
+        return oldestWaiting;
+    }
+
+    /**
+     * Returns {@code next} if there is nothing to merge it with; otherwise a new PendingModifications holding both,
+     * since the instances passed to the sessions are shared and must not be changed.
+     */
+    static PendingModifications<?> mergeMods(PendingModifications<?> prev, PendingModifications<?> next) {
+        if (prev == null || prev == next) {
+            return next;
+        } else if (next == null) {
+            return prev;
+        }
+        PendingModifications<?> merged = prev instanceof PendingLocalModifications ?
+                new PendingLocalModifications() : new PendingRemoteModifications();
+        return append(append(merged, prev), next);
+    }
+
+    /**
+     * Adds {@code other} to {@code target}.  Both are for the same account, so they are of the same kind.
+     */
+    private static PendingModifications<?> append(PendingModifications<?> target, PendingModifications<?> other) {
+        if (target instanceof PendingLocalModifications) {
+            return ((PendingLocalModifications) target).add((PendingLocalModifications) other);
+        }
+        return ((PendingRemoteModifications) target).add((PendingRemoteModifications) other);
+    }
+
+    /**
+     * Notification waiting to be picked up for one account.  Merges happen under the Signal's own monitor.
+     */
+    private static final class Signal {
+        private final long arrivalNanos;
+        private final boolean callbackWaiting;
+        private WaitSetSession session;
+        private PendingModifications<?> mods;
+        private boolean modsCopied = false;
+        private boolean detached = false;
+
+        Signal(WaitSetSession session, PendingModifications<?> mods, long arrivalNanos, boolean callbackWaiting) {
+            this.session = session;
+            this.mods = mods;
+            this.arrivalNanos = arrivalNanos;
+            this.callbackWaiting = callbackWaiting;
+        }
+
+        /**
+         * @return FALSE if the signal has already been picked up, in which case the caller must signal anew
+         */
+        synchronized boolean merge(WaitSetSession newSession, PendingModifications<?> newMods) {
+            if (detached) {
+                return false;
+            }
+            session = newSession;
+            if (newMods == null || newMods == mods) {
+                return true;
+            }
+            if (mods == null) {
+                mods = newMods;
+            } else if (modsCopied) {
+                append(mods, newMods);
+            } else {
+                mods = mergeMods(mods, newMods);
+                modsCopied = true;
+            }
+            return true;
+        }
+
+        /**
+         * Prevents further merges.  The caller must already have removed the signal from the incoming map.
+         * @return FALSE if some other thread detached it first
+         */
+        synchronized boolean detach() {
+            if (detached) {
+                return false;
+            }
+            detached = true;
+            return true;
+        }
+    }
+
     protected synchronized void trySendData() {
         if (mCb == null) {
             ZimbraLog.session.trace("WaitSetBase.trySendData - no callback listening");
             return;
         }
+        long oldestWaiting = drainSignals();
 
         ZimbraLog.session.trace("WaitSetBase.trySendData 1 cb=%s", mCb);
         boolean cbIsCurrent = cbSeqIsCurrent();
@@ -173,7 +338,7 @@ public abstract class WaitSetBase implements IWaitSet {
                 HashSet<WaitSetSession> tempSessions = mCurrentSignalledSessions;
                 mCurrentSignalledSessions = mSentSignalledSessions;
                 mSentSignalledSessions = tempSessions;
-                Map<String, PendingModifications> tempNotifications = currentPendingModifications;
+                Map<String, PendingModifications<?>> tempNotifications = currentPendingModifications;
                 currentPendingModifications = sentPendingModifications;
                 sentPendingModifications = tempNotifications;
             } else {
@@ -196,6 +361,9 @@ public abstract class WaitSetBase implements IWaitSet {
             mCb.dataReady(this, toNextSeqNo(), false, mSentErrors, mSentSignalledSessions, mSentSignalledAccounts, sentPendingModifications);
             mCb = null;
             mLastAccessedTime = System.currentTimeMillis();
+            if (oldestWaiting != -1) {
+                ZimbraPerf.HISTOGRAM_WAITSET_DELIVERY.record((System.nanoTime() - oldestWaiting) / 1000);
+            }
         }
         ZimbraLog.session.trace("WaitSetBase.trySendData done");
     }
@@ -211,10 +379,12 @@ public abstract class WaitSetBase implements IWaitSet {
             }
         }
 
-        // signaled accounts
-        if (mCurrentSignalledAccounts.size() > 0) {
+        // signaled accounts, including those not yet picked up
+        Set<String> signalled = Sets.newHashSet(mCurrentSignalledAccounts);
+        signalled.addAll(mIncomingSignals.keySet());
+        if (signalled.size() > 0) {
             StringBuilder signaledStr = new StringBuilder();
-            for (String accountId : mCurrentSignalledAccounts) {
+            for (String accountId : signalled) {
                 if (signaledStr.length() > 0)
                     signaledStr.append(",");
                 signaledStr.append(accountId);
@@ -239,7 +409,7 @@ public abstract class WaitSetBase implements IWaitSet {
         fids.addAll(changedFolderIds);
     }
 
-    protected synchronized void addMods(Map<String, PendingModifications> mods, String acctId, PendingModifications mod) {
+    protected synchronized void addMods(Map<String, PendingModifications<?>> mods, String acctId, PendingModifications<?> mod) {
         mods.put(acctId, mod);
     }
 }
@@ -35,7 +35,7 @@ public class WaitSetCallback {
     public boolean canceled;
     public HashMap<String /* accountId */, WaitSetSession> signalledSessions;
     public Set<String> signalledAccounts;
-    public Map<String /*accountId*/, PendingModifications> pendingModifications;
+    public Map<String /*accountId*/, PendingModifications<?>> pendingModifications;
     public IWaitSet waitSet;
     public String seqNo;
     public IWaitSet ws;
@@ -44,7 +44,7 @@ public class WaitSetCallback {
     public CountDownLatch completedLatch;
 
     public void dataReady(IWaitSet wset, String seqNum, boolean setCanceled, List<WaitSetError> inErrors,
-            Set<WaitSetSession> signalledSessions, Set<String> signalledAccounts, Map<String /*accountId*/, PendingModifications> pms) {
+            Set<WaitSetSession> signalledSessions, Set<String> signalledAccounts, Map<String /*accountId*/, PendingModifications<?>> pms) {
         boolean trace = ZimbraLog.session.isTraceEnabled();
         synchronized(this) {
             if (inErrors != null && inErrors.size() > 0) {
@@ -17,13 +17,15 @@
 package com.zimbra.cs.session;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
 
+import com.google.common.util.concurrent.Striped;
 import com.zimbra.common.account.Key;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
@@ -64,9 +66,16 @@ public class WaitSetMgr {
         }
     };
 
-    private static final HashMap<String, WaitSetBase> sWaitSets = new HashMap<String, WaitSetBase>();
+    private static final ConcurrentMap<String, WaitSetBase> sWaitSets = new ConcurrentHashMap<String, WaitSetBase>();
 
-    private static final HashMap<String /*AccountId*/, List<String /*WaitSetId*/>> sWaitSetsByAccountId = new HashMap<String, List<String>>();
+    private static final ConcurrentMap<String /*AccountId*/, Set<String /*WaitSetId*/>> sWaitSetsByAccountId =
+            new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * Serializes creation and removal of the WaitSets of one owner account, so that the per-account limit holds
+     * without blocking lookups or other owners.  Must never be acquired while holding a WaitSet's monitor.
+     */
+    private static final Striped<Lock> sOwnerLocks = Striped.lock(64);
 
     private static final int WAITSET_SWEEP_DELAY = 1000 * 60; // once every minute
 
@@ -113,22 +122,27 @@ public class WaitSetMgr {
             ws = sws;
         }
 
-        synchronized(sWaitSets) {
+        Lock lock = sOwnerLocks.get(ownerAccountId);
+        lock.lock();
+        try {
             if (!allowMultiple) {
-                List<String> list = sWaitSetsByAccountId.get(ownerAccountId);
-                if (list != null) {
-                    if (list.size() >= MAX_WAITSETS_PER_NONADMIN_ACCOUNT) {
-                        // find the least-recently-used
-                        long oldestTime = Long.MAX_VALUE;
-                        String oldestId = null;
-                        for (String wsid : list) {
-                            WaitSetBase existingWs = lookupInternal(wsid);
-                            long time = existingWs.getLastAccessedTime();
-                            if (time < oldestTime) {
-                                oldestTime = time;
-                                oldestId = wsid;
-                            }
+                Set<String> ids = sWaitSetsByAccountId.get(ownerAccountId);
+                if (ids != null && ids.size() >= MAX_WAITSETS_PER_NONADMIN_ACCOUNT) {
+                    // find the least-recently-used
+                    long oldestTime = Long.MAX_VALUE;
+                    String oldestId = null;
+                    for (String wsid : ids) {
+                        WaitSetBase existingWs = sWaitSets.get(wsid);
+                        if (existingWs == null) {
+                            continue;
+                        }
+                        long time = existingWs.getLastAccessedTime();
+                        if (time < oldestTime) {
+                            oldestTime = time;
+                            oldestId = wsid;
                         }
+                    }
+                    if (oldestId != null) {
                         destroy(null, ownerAccountId, oldestId);
                     }
                 }
@@ -136,17 +150,40 @@ public class WaitSetMgr {
 
             // bookkeeping: update access time, add to static wait set maps
             ws.setLastAccessedTime(System.currentTimeMillis());
-            sWaitSets.put(id, ws);
-            List<String> list = sWaitSetsByAccountId.get(ownerAccountId);
-            if (list == null) {
-                list = new ArrayList<String>();
-                sWaitSetsByAccountId.put(ownerAccountId, list);
-            }
-            list.add(id);
+            register(ws);
+        } finally {
+            lock.unlock();
+        }
+        return new Pair<String, List<WaitSetError>>(id, errors);
+    }
+
+    /** Adds a WaitSet to both maps; the caller holds the owner's lock. */
+    private static void register(WaitSetBase ws) {
+        sWaitSets.put(ws.getWaitSetId(), ws);
+        Set<String> ids = sWaitSetsByAccountId.get(ws.getOwnerAccountId());
+        if (ids == null) {
+            ids = ConcurrentHashMap.newKeySet();
+            sWaitSetsByAccountId.put(ws.getOwnerAccountId(), ids);
+        }
+        ids.add(ws.getWaitSetId());
+    }
 
-            // return!
-            return new Pair<String, List<WaitSetError>>(id, errors);
+    /**
+     * Removes a WaitSet from both maps; the caller holds the owner's lock.  Returns FALSE if it was
+     * no longer registered.
+     */
+    private static boolean unregister(WaitSetBase ws) {
+        if (!sWaitSets.remove(ws.getWaitSetId(), ws)) {
+            return false;
         }
+        Set<String> ids = sWaitSetsByAccountId.get(ws.getOwnerAccountId());
+        if (ids != null) {
+            ids.remove(ws.getWaitSetId());
+            if (ids.isEmpty()) {
+                sWaitSetsByAccountId.remove(ws.getOwnerAccountId());
+            }
+        }
+        return true;
     }
 
 
@@ -159,39 +196,36 @@ public class WaitSetMgr {
      * @throws ServiceException
      */
     public static void destroy(ZimbraSoapContext zsc, String requestingAcctId, String id) throws ServiceException {
-        synchronized(sWaitSets) {
-            WaitSetBase ws = lookupInternal(id);
-            if (ws == null) {
-                throw MailServiceException.NO_SUCH_WAITSET(id);
-            }
-            assert(!Thread.holdsLock(ws));
-
-            // skip permission checking if zsc is null
-            if (zsc != null) {
-                if (id.startsWith(WaitSetMgr.ALL_ACCOUNTS_ID_PREFIX)) {
-                    checkRightForAllAccounts(zsc);
-                } else {
-                    checkRightForOwnerAccount(ws, requestingAcctId);
-                }
+        WaitSetBase ws = lookupInternal(id);
+        if (ws == null) {
+            throw MailServiceException.NO_SUCH_WAITSET(id);
+        }
+        assert(!Thread.holdsLock(ws));
+
+        // skip permission checking if zsc is null
+        if (zsc != null) {
+            if (id.startsWith(WaitSetMgr.ALL_ACCOUNTS_ID_PREFIX)) {
+                checkRightForAllAccounts(zsc);
+            } else {
+                checkRightForOwnerAccount(ws, requestingAcctId);
             }
+        }
 
-            //remove from the by-id map
-            List<String> list = sWaitSetsByAccountId.get(ws.getOwnerAccountId());
-            assert(list != null);
-            list.remove(id);
-            if (list.size() == 0) {
-                sWaitSetsByAccountId.remove(ws.getOwnerAccountId());
+        Lock lock = sOwnerLocks.get(ws.getOwnerAccountId());
+        lock.lock();
+        try {
+            if (!unregister(ws)) {
+                throw MailServiceException.NO_SUCH_WAITSET(id);
             }
+        } finally {
+            lock.unlock();
+        }
 
-            // remove the wait set
-            sWaitSets.remove(id);
-
-            Map<String, WaitSetAccount> toCleanup = ws.destroy();
-            if (toCleanup != null) {
-                assert(!Thread.holdsLock(ws));
-                for (WaitSetAccount wsa: toCleanup.values()) {
-                    wsa.cleanupSession();
-                }
+        Map<String, WaitSetAccount> toCleanup = ws.destroy();
+        if (toCleanup != null) {
+            assert(!Thread.holdsLock(ws));
+            for (WaitSetAccount wsa: toCleanup.values()) {
+                wsa.cleanupSession();
             }
         }
     }
@@ -218,31 +252,32 @@ public class WaitSetMgr {
      */
     public static IWaitSet lookupOrCreateForAllAccts(String ownerAccountId, String id,
             Set<MailItem.Type> defaultInterests, String lastKnownSeqNo) throws ServiceException {
-        synchronized(sWaitSets) {
-            if (!id.startsWith(ALL_ACCOUNTS_ID_PREFIX)) {
-                throw ServiceException.INVALID_REQUEST("Called WaitSetMgr.lookupOrCreate but wasn't an 'All-' waitset ID", null);
-            }
+        if (!id.startsWith(ALL_ACCOUNTS_ID_PREFIX)) {
+            throw ServiceException.INVALID_REQUEST("Called WaitSetMgr.lookupOrCreate but wasn't an 'All-' waitset ID", null);
+        }
 
-            IWaitSet toRet = lookup(id);
+        IWaitSet toRet = lookup(id);
+        if (toRet != null) {
+            return toRet;
+        }
+        Lock lock = sOwnerLocks.get(ownerAccountId);
+        lock.lock();
+        try {
+            toRet = lookup(id);
             if (toRet == null) {
                 // oops, it's gone!  Try to re-create it given the last known sequence number
                 AllAccountsWaitSet ws = AllAccountsWaitSet.createWithSeqNo(ownerAccountId, id, defaultInterests, lastKnownSeqNo);
                 toRet = ws;
                 ws.setLastAccessedTime(System.currentTimeMillis());
 
-                // add the set to the two hashmaps
-                sWaitSets.put(id, ws);
-                List<String> list = sWaitSetsByAccountId.get(ownerAccountId);
-                if (list == null) {
-                    list = new ArrayList<String>();
-                    sWaitSetsByAccountId.put(ownerAccountId, list);
-                }
-                list.add(id);
-
+                // add the set to the two maps
+                register(ws);
             }
-            assert(toRet instanceof AllAccountsWaitSet);
-            return toRet;
+        } finally {
+            lock.unlock();
         }
+        assert(toRet instanceof AllAccountsWaitSet);
+        return toRet;
     }
 
     public static void shutdown() {
@@ -255,25 +290,16 @@ public class WaitSetMgr {
     }
 
     public static List<IWaitSet> getAll() {
-        synchronized(sWaitSets) {
-            List<IWaitSet> toRet = new ArrayList<IWaitSet>(sWaitSets.size());
-            toRet.addAll(sWaitSets.values());
-            return toRet;
-        }
+        return new ArrayList<IWaitSet>(sWaitSets.values());
     }
 
 
     private static WaitSetBase lookupInternal(String id) {
-        synchronized(sWaitSets) {
-            WaitSetBase toRet = sWaitSets.get(id);
-            if (toRet != null) {
-                assert(!Thread.holdsLock(toRet));
-                synchronized(toRet) {
-                    toRet.setLastAccessedTime(System.currentTimeMillis());
-                }
-            }
-            return toRet;
+        WaitSetBase toRet = sWaitSets.get(id);
+        if (toRet != null) {
+            toRet.setLastAccessedTime(System.currentTimeMillis());
         }
+        return toRet;
     }
 
     /**
@@ -284,31 +310,24 @@ public class WaitSetMgr {
         int activeSessions = 0;
         int removed = 0;
         int withCallback = 0;
-        synchronized(sWaitSets) {
-            ZimbraLog.session.debug("active waitset timeout = %d ms", WAITSET_TIMEOUT);
-            long cutoffTime = System.currentTimeMillis() - WAITSET_TIMEOUT;
+        ZimbraLog.session.debug("active waitset timeout = %d ms", WAITSET_TIMEOUT);
+        long cutoffTime = System.currentTimeMillis() - WAITSET_TIMEOUT;
 
-            for (Iterator<WaitSetBase> iter = sWaitSets.values().iterator(); iter.hasNext();) {
-                WaitSetBase ws = iter.next();
-                assert(!Thread.holdsLock(ws)); // must never lock WS before sWaitSets or deadlock
+        for (WaitSetBase ws : sWaitSets.values()) {
+            assert(!Thread.holdsLock(ws)); // must never lock WS before the owner lock or deadlock
 
-                Map<String, WaitSetAccount> toCleanup = null;
+            Map<String, WaitSetAccount> toCleanup = null;
 
+            Lock lock = sOwnerLocks.get(ws.getOwnerAccountId());
+            lock.lock();
+            try {
                 synchronized(ws) {
                     // only timeout if no cb AND if not accessed for a timeout
                     if (ws.getCb() == null && ws.getLastAccessedTime() < cutoffTime) {
-                        //remove from the by-id map
-                        List<String> list = sWaitSetsByAccountId.get(ws.getOwnerAccountId());
-                        assert(list != null);
-                        list.remove(ws.getWaitSetId());
-                        if (list.size() == 0) {
-                            sWaitSetsByAccountId.remove(ws.getOwnerAccountId());
+                        if (unregister(ws)) {
+                            toCleanup = ws.destroy();
+                            removed++;
                         }
-
-                        // remove
-                        iter.remove();
-                        toCleanup = ws.destroy();
-                        removed++;
                     } else {
                         if (ws.getCb() != null) {
                             withCallback++;
@@ -317,13 +336,15 @@ public class WaitSetMgr {
                         activeSessions+=ws.countSessions();
                     }
                 }
+            } finally {
+                lock.unlock();
+            }
 
-                // cleanup w/o WaitSet lock held
-                if (toCleanup != null) {
-                    assert(!Thread.holdsLock(ws));
-                    for (WaitSetAccount wsa : toCleanup.values()) {
-                        wsa.cleanupSession();
-                    }
+            // cleanup w/o WaitSet lock held
+            if (toCleanup != null) {
+                assert(!Thread.holdsLock(ws));
+                for (WaitSetAccount wsa : toCleanup.values()) {
+                    wsa.cleanupSession();
                 }
             }
         }
@@ -338,13 +359,11 @@ public class WaitSetMgr {
     }
 
     public static boolean isMonitoringFolderForImap(String accountId, int folderId) {
-        synchronized(sWaitSets) {
-            for (IWaitSet ws : sWaitSets.values()) {
-                if (ws instanceof SomeAccountsWaitSet) {
-                    SomeAccountsWaitSet saWs = (SomeAccountsWaitSet) ws;
-                    if (saWs.isMonitoringFolder(accountId, folderId)) {
-                        return true;
-                    }
+        for (IWaitSet ws : sWaitSets.values()) {
+            if (ws instanceof SomeAccountsWaitSet) {
+                SomeAccountsWaitSet saWs = (SomeAccountsWaitSet) ws;
+                if (saWs.isMonitoringFolder(accountId, folderId)) {
+                    return true;
                 }
             }
         }
@@ -18,67 +18,98 @@ package com.zimbra.cs.stats;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
-import com.zimbra.common.stats.Counter;
+import com.zimbra.common.stats.Histogram;
+import com.zimbra.common.stats.PercentileCalculator;
 import com.zimbra.common.stats.StatsDumperDataSource;
 
 
 /**
- * ActivityTrackers get their own output file (e.g. soap.csv) and track a set of "commands" and their "total elapsed time" 
- * for each counter stat period, one on a line.
+ * ActivityTrackers get their own output file (e.g. soap.csv) and track a set of "commands" with their count,
+ * average and latency percentiles for each counter stat period, one on a line.  Each command has its own
+ * lock-free {@link Histogram} with microsecond resolution, so recording a sample neither locks nor allocates
+ * once the command has been seen.
+ * <p>
+ * The numbers of the last completed period are also available over JMX, see {@link ActivityTrackerMXBean}.
  */
 public class ActivityTracker
-implements StatsDumperDataSource {
+implements StatsDumperDataSource, ActivityTrackerMXBean {
+
+    /** One hour, in microseconds.  Anything slower is reported as the maximum. */
+    private static final long MAX_TRACKED_MICROS = TimeUnit.HOURS.toMicros(1);
+    /** Keeps percentiles within ~3% of the recorded values. */
+    private static final int PRECISION_BITS = 5;
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
 
     private String mFilename;
-    private ConcurrentHashMap<String, Counter> mCounterMap =
-        new ConcurrentHashMap<String, Counter>();
+    private ConcurrentHashMap<String, Histogram> mHistogramMap =
+        new ConcurrentHashMap<String, Histogram>();
+    private volatile Map<String, CommandStats> mLastPeriod = Collections.emptyMap();
     
     public ActivityTracker(String filename) {
         mFilename = filename;
     }
     
+    /**
+     * Records one execution of <tt>commandName</tt> that started at <tt>startTime</tt>, as returned by
+     * {@link System#currentTimeMillis()}.
+     */
     public void addStat(String commandName, long startTime) {
-        Counter counter = getCounter(commandName);
-        counter.increment(System.currentTimeMillis() - startTime);
+        getHistogram(commandName).record(TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * Records one execution of <tt>commandName</tt> that started at <tt>startNanos</tt>, as returned by
+     * {@link System#nanoTime()}.
+     */
+    public void addStatNanos(String commandName, long startNanos) {
+        getHistogram(commandName).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
     }
     
-    private Counter getCounter(String commandName) {
-        Counter counter = mCounterMap.get(commandName);
-        if (counter == null) {
-            counter = new Counter();
+    private Histogram getHistogram(String commandName) {
+        Histogram histogram = mHistogramMap.get(commandName);
+        if (histogram == null) {
+            histogram = new Histogram(MAX_TRACKED_MICROS, PRECISION_BITS);
             
-            Counter previousCounter = mCounterMap.putIfAbsent(commandName, counter);
-            if (previousCounter != null) {
-                // Another thread added the counter after the get() check.  Use it instead
+            Histogram previousHistogram = mHistogramMap.putIfAbsent(commandName, histogram);
+            if (previousHistogram != null) {
+                // Another thread added the histogram after the get() check.  Use it instead
                 // of the one we just instantiated.
-                counter = previousCounter;
+                histogram = previousHistogram;
             }
         }
-        return counter;
+        return histogram;
     }
     
     ////////////// StatsDumperDataSource implementation //////////////
     
     public Collection<String> getDataLines() {
-        if (mCounterMap == null || mCounterMap.size() == 0) {
+        if (mHistogramMap == null || mHistogramMap.size() == 0) {
             return null;
         }
-        List<String> dataLines = new ArrayList<String>(mCounterMap.size());
-        for (String command : mCounterMap.keySet()) {
-            Counter counter = mCounterMap.get(command);
-            if (counter.getCount() > 0) {
+        List<String> dataLines = new ArrayList<String>(mHistogramMap.size());
+        Map<String, CommandStats> period = new TreeMap<String, CommandStats>();
+        for (Map.Entry<String, Histogram> entry : mHistogramMap.entrySet()) {
+            Histogram histogram = entry.getValue();
+            if (histogram.getCount() > 0) {
                 // This code is not thread-safe, but should be good enough 99.9% of the time.
                 // We avoid synchronization at the risk of the numbers being slightly off
                 // during a race condition.
-                long count = counter.getCount();
-                long avg = (long) counter.getAverage();
-                counter.reset();
-                dataLines.add(String.format("%s,%d,%d", command, count, avg)); 
+                CommandStats stats = new CommandStats(histogram);
+                histogram.reset();
+                period.put(entry.getKey(), stats);
+                dataLines.add(String.format("%s,%d,%d,%d,%d,%d,%d,%d", entry.getKey(), stats.getCount(),
+                        stats.getAverageMillis(), stats.getP50Micros(), stats.getP90Micros(), stats.getP99Micros(),
+                        stats.getP999Micros(), stats.getMaxMicros()));
             }
         }
+        mLastPeriod = Collections.unmodifiableMap(period);
         return dataLines;
     }
 
@@ -87,10 +118,68 @@ implements StatsDumperDataSource {
     }
 
     public String getHeader() {
-        return "command,exec_count,exec_ms_avg";
+        StringBuilder header = new StringBuilder("command,exec_count,exec_ms_avg");
+        for (double p : PERCENTILES) {
+            header.append(",exec_us_").append(PercentileCalculator.percentileName(p));
+        }
+        return header.append(",exec_us_max").toString();
     }
 
     public boolean hasTimestampColumn() {
         return true;
     }
+
+    ////////////// ActivityTrackerMXBean implementation //////////////
+
+    @Override
+    public Map<String, CommandStats> getCommandStats() {
+        return mLastPeriod;
+    }
+
+    /**
+     * Latency summary of one command for one stat period.
+     */
+    public static final class CommandStats {
+        private final long count;
+        private final long totalMicros;
+        private final long[] percentiles = new long[PERCENTILES.length];
+        private final long max;
+
+        CommandStats(Histogram histogram) {
+            count = histogram.getCount();
+            totalMicros = histogram.getTotal();
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                percentiles[i] = histogram.getValueAtPercentile(PERCENTILES[i]);
+            }
+            max = histogram.getMax();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getAverageMillis() {
+            return count == 0 ? 0 : TimeUnit.MICROSECONDS.toMillis(totalMicros / count);
+        }
+
+        public long getP50Micros() {
+            return percentiles[0];
+        }
+
+        public long getP90Micros() {
+            return percentiles[1];
+        }
+
+        public long getP99Micros() {
+            return percentiles[2];
+        }
+
+        public long getP999Micros() {
+            return percentiles[3];
+        }
+
+        public long getMaxMicros() {
+            return max;
+        }
+    }
 }
@@ -124,6 +124,26 @@ public class JmxServerStats implements JmxServerStatsMBean {
         return (long) mMailboxCache.getRealtimeAverage();
     }
 
+    public long getMailboxLockPromotions() {
+        return ZimbraPerf.COUNTER_MBOX_LOCK_PROMOTIONS.getCount();
+    }
+
+    public long getMailboxLockWaitP99Micros() {
+        return ZimbraPerf.PERCENTILES_MBOX_LOCK_WAIT.getLastInterval().getValueAtPercentile(99);
+    }
+
+    public long getMailboxLockWaitMaxMicros() {
+        return ZimbraPerf.PERCENTILES_MBOX_LOCK_WAIT.getLastInterval().getMax();
+    }
+
+    public long getMailboxLockReadHoldP99Micros() {
+        return ZimbraPerf.PERCENTILES_MBOX_LOCK_READ_HOLD.getLastInterval().getValueAtPercentile(99);
+    }
+
+    public long getMailboxLockWriteHoldP99Micros() {
+        return ZimbraPerf.PERCENTILES_MBOX_LOCK_WRITE_HOLD.getLastInterval().getValueAtPercentile(99);
+    }
+
     public long getMessageAddMs() {
         return (long) mAddMessage.getRealtimeAverage();
     }
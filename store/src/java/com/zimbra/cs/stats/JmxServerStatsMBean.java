@@ -38,6 +38,11 @@ public interface JmxServerStatsMBean extends JmxStatsMBeanBase
     long getMailboxCacheSize();
     long getMailboxGetMs();
     long getMailboxGets();
+    long getMailboxLockPromotions();
+    long getMailboxLockWaitP99Micros();
+    long getMailboxLockWaitMaxMicros();
+    long getMailboxLockReadHoldP99Micros();
+    long getMailboxLockWriteHoldP99Micros();
     long getMessageAddMs();
     long getMessageCacheSize();
     long getMessageCacheHitRate();
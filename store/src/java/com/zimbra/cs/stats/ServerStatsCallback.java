@@ -24,6 +24,8 @@ import com.zimbra.common.stats.RealtimeStatsCallback;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.PermissionCache;
 import com.zimbra.cs.account.ldap.LdapProv;
+import com.zimbra.cs.index.SearchResultCache;
+import com.zimbra.cs.mailbox.ItemCacheBudget;
 import com.zimbra.cs.mailbox.MessageCache;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.FileDescriptorCache;
@@ -35,6 +37,11 @@ public class ServerStatsCallback implements RealtimeStatsCallback {
         Map<String, Object> data = new HashMap<String, Object>();
         data.put(ZimbraPerf.RTS_MBOX_CACHE_SIZE, ZimbraPerf.getMailboxCacheSize());
         data.put(ZimbraPerf.RTS_MSG_CACHE_SIZE, MessageCache.getSize());
+        data.put(ZimbraPerf.RTS_MSG_CACHE_BYTES, MessageCache.getDataSize());
+        ItemCacheBudget itemCaches = ItemCacheBudget.getInstance();
+        data.put(ZimbraPerf.RTS_ITEM_CACHE_BYTES, itemCaches.getWeightedSize());
+        data.put(ZimbraPerf.RTS_ITEM_CACHE_TRIMMED, itemCaches.getTrimmedCount());
+        data.put(ZimbraPerf.RTS_SEARCH_RESULT_CACHE_BYTES, SearchResultCache.getWeightedSize());
         
         FileDescriptorCache fdc = BlobInputStream.getFileDescriptorCache();
         data.put(ZimbraPerf.RTS_FD_CACHE_SIZE, fdc.getSize());
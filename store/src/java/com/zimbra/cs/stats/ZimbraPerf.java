@@ -40,6 +40,8 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Accumulator;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.stats.DeltaCalculator;
+import com.zimbra.common.stats.Histogram;
+import com.zimbra.common.stats.PercentileCalculator;
 import com.zimbra.common.stats.RealtimeStats;
 import com.zimbra.common.stats.RealtimeStatsCallback;
 import com.zimbra.common.stats.StatsDumper;
@@ -51,7 +53,10 @@ import com.zimbra.common.util.LogFactory;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.SqlStatementStats;
+import com.zimbra.cs.mailbox.ItemCacheBudget;
 import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.lock.MailboxLockStats;
 import com.zimbra.cs.util.MemoryStats;
 
 /**
@@ -64,6 +69,12 @@ public class ZimbraPerf {
     @Description("Number of database connections in use")
     public static final String RTS_DB_POOL_SIZE = "db_pool_size";
 
+    @Description("Number of open database connections idle in the pool")
+    public static final String RTS_DB_POOL_IDLE = "db_pool_idle";
+
+    @Description("Maximum number of database connections in use at once")
+    public static final String RTS_DB_POOL_MAX = "db_pool_max";
+
     @Description("InnoDB buffer pool hit rate")
     public static final String RTS_INNODB_BP_HIT_RATE = "innodb_bp_hit_rate";
 
@@ -112,6 +123,18 @@ public class ZimbraPerf {
     @Description("Number of message structures cached in memory")
     public static final String RTS_MSG_CACHE_SIZE = "msg_cache_size";
 
+    @Description("Bytes of message content held in memory by the message cache")
+    public static final String RTS_MSG_CACHE_BYTES = "msg_cache_bytes";
+
+    @Description("Estimated heap footprint of all mailbox item caches, in bytes")
+    public static final String RTS_ITEM_CACHE_BYTES = "item_cache_bytes";
+
+    @Description("Number of items evicted from mailbox item caches to stay within the server-wide budget")
+    public static final String RTS_ITEM_CACHE_TRIMMED = "item_cache_trimmed";
+
+    @Description("Estimated heap footprint of cached search results, in bytes")
+    public static final String RTS_SEARCH_RESULT_CACHE_BYTES = "search_result_cache_bytes";
+
     @Description("Number of open file descriptors that reference message content")
     public static final String RTS_FD_CACHE_SIZE = "fd_cache_size";
 
@@ -177,13 +200,18 @@ public class ZimbraPerf {
     public static final Counter COUNTER_LMTP_RCVD_RCPT = new Counter();
     public static final Counter COUNTER_LMTP_DLVD_MSGS = new Counter();
     public static final Counter COUNTER_LMTP_DLVD_BYTES = new Counter();
+    public static final StopWatch STOPWATCH_LMTP_PREPARE = new StopWatch();   // recipient lookup and parsing
+    public static final StopWatch STOPWATCH_LMTP_LOCAL_DLV = new StopWatch(); // per local recipient
+    public static final StopWatch STOPWATCH_LMTP_REMOTE_DLV = new StopWatch(); // per remote server
     public static final StopWatch STOPWATCH_DB_CONN = new StopWatch();
     public static final StopWatch STOPWATCH_LDAP_DC = new StopWatch();
     public static final StopWatch STOPWATCH_MBOX_ADD_MSG = new StopWatch();
     public static final StopWatch STOPWATCH_MBOX_GET = new StopWatch();         // Mailbox accessor response time
     public static final Counter COUNTER_MBOX_CACHE = new Counter();           // Mailbox cache hit rate
     public static final Counter COUNTER_MBOX_MSG_CACHE = new Counter();
+    public static final StopWatch STOPWATCH_MSG_CACHE_LOAD = new StopWatch(); // blob read and parse on a miss
     public static final Counter COUNTER_MBOX_ITEM_CACHE = new Counter();
+    public static final Counter COUNTER_SEARCH_RESULT_CACHE = new Counter();
     public static final StopWatch STOPWATCH_SOAP = new StopWatch();
     public static final StopWatch STOPWATCH_IMAP = new StopWatch();
     public static final StopWatch STOPWATCH_POP = new StopWatch();
@@ -197,7 +225,22 @@ public class ZimbraPerf {
     public static final Counter COUNTER_IDX_BYTES_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_SEEK_RATE = new Counter();
+    public static final Counter COUNTER_BLOB_ZERO_COPY_BYTES = new Counter();
     public static final StopWatch STOPWATCH_EWS = new StopWatch();
+    public static final Histogram HISTOGRAM_MBOX_LOCK_WAIT = MailboxLockStats.newTimeHistogram();
+    public static final Histogram HISTOGRAM_MBOX_LOCK_READ_HOLD = MailboxLockStats.newTimeHistogram();
+    public static final Histogram HISTOGRAM_MBOX_LOCK_WRITE_HOLD = MailboxLockStats.newTimeHistogram();
+    public static final Counter COUNTER_MBOX_LOCK_PROMOTIONS = new Counter();
+    public static final Counter COUNTER_MBOX_LOCK_OPTIMISTIC_READ = new Counter();
+    public static final Histogram HISTOGRAM_REDO_COMMIT = MailboxLockStats.newTimeHistogram(); // microseconds
+    public static final Histogram HISTOGRAM_REDO_FSYNC_BATCH = new Histogram(65536, 2);      // records per fsync
+    public static final Histogram HISTOGRAM_DB_CONN_WAIT = MailboxLockStats.newTimeHistogram(); // microseconds
+    public static final Histogram HISTOGRAM_WAITSET_SIGNAL = MailboxLockStats.newTimeHistogram(); // microseconds
+    public static final Histogram HISTOGRAM_WAITSET_DELIVERY = MailboxLockStats.newTimeHistogram(); // microseconds
+    public static final Counter COUNTER_WAITSET_COALESCED = new Counter();
+    public static final StopWatch STOPWATCH_DATASOURCE_IMPORT = new StopWatch();
+    public static final Histogram HISTOGRAM_DATASOURCE_QUEUE_DELAY = new Histogram(24 * 60 * 60 * 1000, 4); // ms
+    public static final Counter COUNTER_DATASOURCE_IMPORT_SKIPPED = new Counter();
 
     public static final ActivityTracker SOAP_TRACKER = new ActivityTracker("soap.csv");
     public static final ActivityTracker IMAP_TRACKER = new ActivityTracker("imap.csv");
@@ -214,12 +257,13 @@ public class ZimbraPerf {
     private static Map<String, String> descriptions = Maps.newTreeMap(String.CASE_INSENSITIVE_ORDER);
 
     private static String[] mboxRealtimeStatsNames = new String[] {
-            RTS_DB_POOL_SIZE, RTS_INNODB_BP_HIT_RATE,
+            RTS_DB_POOL_SIZE, RTS_DB_POOL_IDLE, RTS_DB_POOL_MAX, RTS_INNODB_BP_HIT_RATE,
             RTS_LMTP_CONN, RTS_LMTP_THREADS,
             RTS_POP_CONN, RTS_POP_THREADS, RTS_POP_SSL_CONN, RTS_POP_SSL_THREADS,
             RTS_IMAP_CONN, RTS_IMAP_THREADS, RTS_IMAP_SSL_CONN, RTS_IMAP_SSL_THREADS,
             RTS_HTTP_IDLE_THREADS, RTS_HTTP_THREADS, RTS_SOAP_SESSIONS,
-            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE,
+            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE, RTS_MSG_CACHE_BYTES,
+            RTS_ITEM_CACHE_BYTES, RTS_ITEM_CACHE_TRIMMED, RTS_SEARCH_RESULT_CACHE_BYTES,
             RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE,
             RTS_ACL_CACHE_HIT_RATE,
             RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE,
@@ -252,6 +296,24 @@ public class ZimbraPerf {
     @Description("Number of bytes of data delivered to mailboxes as a result of LMTP delivery")
     private static final String DC_LMTP_DLVD_BYTES = "lmtp_dlvd_bytes";
 
+    @Description("Number of messages whose local recipients were resolved and parsed for LMTP delivery")
+    private static final String DC_LMTP_PREPARE_COUNT = "lmtp_prepare_count";
+
+    @Description("Average latency (ms) of resolving and parsing the local recipients of an LMTP message")
+    private static final String DC_LMTP_PREPARE_MS_AVG = "lmtp_prepare_ms_avg";
+
+    @Description("Number of LMTP deliveries to a local recipient")
+    private static final String DC_LMTP_LOCAL_DLV_COUNT = "lmtp_local_dlv_count";
+
+    @Description("Average latency (ms) of an LMTP delivery to a local recipient, including filtering")
+    private static final String DC_LMTP_LOCAL_DLV_MS_AVG = "lmtp_local_dlv_ms_avg";
+
+    @Description("Number of LMTP transfers to a remote server")
+    private static final String DC_LMTP_REMOTE_DLV_COUNT = "lmtp_remote_dlv_count";
+
+    @Description("Average latency (ms) of an LMTP transfer to a remote server")
+    private static final String DC_LMTP_REMOTE_DLV_MS_AVG = "lmtp_remote_dlv_ms_avg";
+
     @Description("Number of times that the server got a database connection from the pool")
     private static final String DC_DB_CONN_COUNT = "db_conn_count";
 
@@ -282,9 +344,18 @@ public class ZimbraPerf {
     @Description("Message cache hit rate")
     private static final String DC_MBOX_MSG_CACHE = "mbox_msg_cache";
 
+    @Description("Number of messages read and parsed into the message cache")
+    private static final String DC_MSG_CACHE_LOAD_COUNT = "msg_cache_load_count";
+
+    @Description("Average latency (ms) of reading and parsing a message into the message cache")
+    private static final String DC_MSG_CACHE_LOAD_MS_AVG = "msg_cache_load_ms_avg";
+
     @Description("Item cache hit rate")
     private static final String DC_MBOX_ITEM_CACHE = "mbox_item_cache";
 
+    @Description("Search result cache hit rate")
+    private static final String DC_SEARCH_RESULT_CACHE = "search_result_cache";
+
     @Description("Number of SOAP requests received")
     private static final String DC_SOAP_COUNT = "soap_count";
 
@@ -309,6 +380,9 @@ public class ZimbraPerf {
     @Description("Percentage of file descriptor cache disk reads that required a seek")
     private static final String DC_BIS_SEEK_RATE = "bis_seek_rate";
 
+    @Description("Bytes of blob data sent from memory-mapped buffers instead of being copied through the heap")
+    private static final String DC_BIS_ZERO_COPY_BYTES = "bis_zero_copy_bytes";
+
     @Description("Average number of concurrent index writers")
     private static final String DC_IDX_WRT_AVG = "idx_wrt_avg";
 
@@ -339,6 +413,55 @@ public class ZimbraPerf {
     @Description("Number of calendars (folders) in the calendar summary cache LRU in Java heap")
     private static final String DC_CALCACHE_LRU_SIZE = "calcache_lru_size";
 
+    @Description("Number of mailbox read locks promoted to write locks")
+    private static final String DC_MBOX_LOCK_PROMOTIONS = "mbox_lock_promotions";
+
+    @Description("Percentage of optimistic (lock-free) item cache reads that did not need to fall back to the mailbox lock")
+    private static final String DC_MBOX_LOCK_OPTIMISTIC_READ = "mbox_lock_optimistic_read";
+
+    @Description("Number of waitset notifications merged into a notification already pending for the same account")
+    private static final String DC_WAITSET_COALESCED = "waitset_coalesced";
+
+    @Description("Number of data source imports run by the import scheduler")
+    private static final String DC_DATASOURCE_IMPORT_COUNT = "datasource_import_count";
+
+    @Description("Average time (ms) of a data source import run by the import scheduler")
+    private static final String DC_DATASOURCE_IMPORT_MS_AVG = "datasource_import_ms_avg";
+
+    @Description("Number of scheduled data source imports skipped because their remote host was failing")
+    private static final String DC_DATASOURCE_IMPORT_SKIPPED = "datasource_import_skipped";
+
+    // Prefixes of the _count, _p50, _p99 and _max columns for mailbox lock histograms (microseconds)
+    private static final String PC_MBOX_LOCK_WAIT_US = "mbox_lock_wait_us";
+    private static final String PC_MBOX_LOCK_READ_HOLD_US = "mbox_lock_read_hold_us";
+    private static final String PC_MBOX_LOCK_WRITE_HOLD_US = "mbox_lock_write_hold_us";
+
+    // kept for JmxServerStats, which reports the last interval written to mailboxd.csv
+    static final PercentileCalculator PERCENTILES_MBOX_LOCK_WAIT =
+            new PercentileCalculator(HISTOGRAM_MBOX_LOCK_WAIT, PC_MBOX_LOCK_WAIT_US, 50, 99);
+    static final PercentileCalculator PERCENTILES_MBOX_LOCK_READ_HOLD =
+            new PercentileCalculator(HISTOGRAM_MBOX_LOCK_READ_HOLD, PC_MBOX_LOCK_READ_HOLD_US, 50, 99);
+    static final PercentileCalculator PERCENTILES_MBOX_LOCK_WRITE_HOLD =
+            new PercentileCalculator(HISTOGRAM_MBOX_LOCK_WRITE_HOLD, PC_MBOX_LOCK_WRITE_HOLD_US, 50, 99);
+
+    // Prefixes of the _count, _p50, _p99 and _max columns for the latency of synchronous redo log writes
+    // (microseconds) and the number of redo records made durable by each fsync
+    private static final String PC_REDO_COMMIT_US = "redo_commit_us";
+    private static final String PC_REDO_FSYNC_BATCH = "redo_fsync_batch";
+
+    // Prefix of the _count, _p50, _p99 and _max columns for the time spent waiting for a free
+    // database connection (microseconds); compare with db_pool_size and db_pool_max
+    private static final String PC_DB_CONN_WAIT_US = "db_conn_wait_us";
+
+    // Prefixes of the _count, _p50, _p99 and _max columns for the time a mailbox commit spends signalling a
+    // waitset, and from the signal to handing the data to a waiting callback (microseconds)
+    private static final String PC_WAITSET_SIGNAL_US = "waitset_signal_us";
+    private static final String PC_WAITSET_DELIVERY_US = "waitset_delivery_us";
+
+    // Prefix of the _count, _p50, _p99 and _max columns for the time a data source import waits for a worker thread
+    // and a free connection to its remote host (milliseconds)
+    private static final String PC_DATASOURCE_QUEUE_DELAY_MS = "datasource_queue_delay_ms";
+
     private static CopyOnWriteArrayList<Accumulator> sAccumulators = null;
 
     private static final long CSV_DUMP_FREQUENCY = Constants.MILLIS_PER_MINUTE;
@@ -469,6 +592,12 @@ public class ZimbraPerf {
                             new DeltaCalculator(COUNTER_LMTP_RCVD_RCPT).setTotalName(DC_LMTP_RCVD_RCPT),
                             new DeltaCalculator(COUNTER_LMTP_DLVD_MSGS).setTotalName(DC_LMTP_DLVD_MSGS),
                             new DeltaCalculator(COUNTER_LMTP_DLVD_BYTES).setTotalName(DC_LMTP_DLVD_BYTES),
+                            new DeltaCalculator(STOPWATCH_LMTP_PREPARE).setCountName(DC_LMTP_PREPARE_COUNT)
+                                    .setAverageName(DC_LMTP_PREPARE_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_LMTP_LOCAL_DLV).setCountName(DC_LMTP_LOCAL_DLV_COUNT)
+                                    .setAverageName(DC_LMTP_LOCAL_DLV_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_LMTP_REMOTE_DLV).setCountName(DC_LMTP_REMOTE_DLV_COUNT)
+                                    .setAverageName(DC_LMTP_REMOTE_DLV_MS_AVG),
                             new DeltaCalculator(STOPWATCH_DB_CONN).setCountName(DC_DB_CONN_COUNT)
                                     .setAverageName(DC_DB_CONN_MS_AVG),
                             new DeltaCalculator(STOPWATCH_LDAP_DC).setCountName(DC_LDAP_DC_COUNT)
@@ -479,7 +608,11 @@ public class ZimbraPerf {
                                     .setAverageName(DC_MBOX_GET_MS_AVG),
                             new DeltaCalculator(COUNTER_MBOX_CACHE).setAverageName(DC_MBOX_CACHE),
                             new DeltaCalculator(COUNTER_MBOX_MSG_CACHE).setAverageName(DC_MBOX_MSG_CACHE),
+                            new DeltaCalculator(STOPWATCH_MSG_CACHE_LOAD).setCountName(DC_MSG_CACHE_LOAD_COUNT)
+                                    .setAverageName(DC_MSG_CACHE_LOAD_MS_AVG),
                             new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE).setAverageName(DC_MBOX_ITEM_CACHE),
+                            new DeltaCalculator(COUNTER_SEARCH_RESULT_CACHE)
+                                    .setAverageName(DC_SEARCH_RESULT_CACHE),
                             new DeltaCalculator(STOPWATCH_SOAP).setCountName(DC_SOAP_COUNT)
                                     .setAverageName(DC_SOAP_MS_AVG),
                             new DeltaCalculator(STOPWATCH_IMAP).setCountName(DC_IMAP_COUNT)
@@ -503,6 +636,26 @@ public class ZimbraPerf {
                             new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_READ).setTotalName(DC_BIS_READ),
                             new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_SEEK_RATE)
                                     .setAverageName(DC_BIS_SEEK_RATE),
+                            new DeltaCalculator(COUNTER_BLOB_ZERO_COPY_BYTES).setTotalName(DC_BIS_ZERO_COPY_BYTES),
+                            new DeltaCalculator(COUNTER_MBOX_LOCK_PROMOTIONS).setCountName(DC_MBOX_LOCK_PROMOTIONS),
+                            new DeltaCalculator(COUNTER_MBOX_LOCK_OPTIMISTIC_READ)
+                                    .setAverageName(DC_MBOX_LOCK_OPTIMISTIC_READ),
+                            PERCENTILES_MBOX_LOCK_WAIT,
+                            PERCENTILES_MBOX_LOCK_READ_HOLD,
+                            PERCENTILES_MBOX_LOCK_WRITE_HOLD,
+                            new PercentileCalculator(HISTOGRAM_REDO_COMMIT, PC_REDO_COMMIT_US, 50, 99),
+                            new PercentileCalculator(HISTOGRAM_REDO_FSYNC_BATCH, PC_REDO_FSYNC_BATCH, 50, 99),
+                            new PercentileCalculator(HISTOGRAM_DB_CONN_WAIT, PC_DB_CONN_WAIT_US, 50, 99),
+                            new DeltaCalculator(COUNTER_WAITSET_COALESCED).setCountName(DC_WAITSET_COALESCED),
+                            new PercentileCalculator(HISTOGRAM_WAITSET_SIGNAL, PC_WAITSET_SIGNAL_US, 50, 99),
+                            new PercentileCalculator(HISTOGRAM_WAITSET_DELIVERY, PC_WAITSET_DELIVERY_US, 50, 99),
+                            new DeltaCalculator(STOPWATCH_DATASOURCE_IMPORT)
+                                    .setCountName(DC_DATASOURCE_IMPORT_COUNT)
+                                    .setAverageName(DC_DATASOURCE_IMPORT_MS_AVG),
+                            new DeltaCalculator(COUNTER_DATASOURCE_IMPORT_SKIPPED)
+                                    .setCountName(DC_DATASOURCE_IMPORT_SKIPPED),
+                            new PercentileCalculator(HISTOGRAM_DATASOURCE_QUEUE_DELAY, PC_DATASOURCE_QUEUE_DELAY_MS,
+                                    50, 99),
                             realtimeStats
                     }
                 );
@@ -555,6 +708,8 @@ public class ZimbraPerf {
         } catch (Exception e) {
             ZimbraLog.perf.warn("Unable to register JMX interface.", e);
         }
+        registerTrackers(jmxServer, "ZimbraCollaborationSuite",
+                SOAP_TRACKER, IMAP_TRACKER, POP_TRACKER, LDAP_TRACKER, SYNC_TRACKER, SQL_TRACKER);
         StatsDumper.schedule(new Stats("mailboxd.csv", sAccumulators, jmxServerStats), CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(SOAP_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(IMAP_TRACKER, CSV_DUMP_FREQUENCY);
@@ -562,6 +717,8 @@ public class ZimbraPerf {
         StatsDumper.schedule(LDAP_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(SYNC_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(SQL_TRACKER, CSV_DUMP_FREQUENCY);
+        StatsDumper.schedule(SqlStatementStats.getInstance(), CSV_DUMP_FREQUENCY);
+        StatsDumper.schedule(ItemCacheBudget.getInstance(), CSV_DUMP_FREQUENCY);
         ThreadStats threadStats = new ThreadStats("threads.csv");
         StatsDumper.schedule(threadStats, CSV_DUMP_FREQUENCY);
     }
@@ -577,9 +734,21 @@ public class ZimbraPerf {
         }
         StatsDumper.schedule(new Stats("imapd_stats.csv", sAccumulators, jmxImapDaemonStats),
                 CSV_DUMP_FREQUENCY);
+        registerTrackers(jmxServer, "ZimbraImapDaemon", IMAPD_TRACKER);
         StatsDumper.schedule(IMAPD_TRACKER, CSV_DUMP_FREQUENCY);
     }
 
+    private static void registerTrackers(MBeanServer jmxServer, String domain, ActivityTracker... trackers) {
+        for (ActivityTracker tracker : trackers) {
+            String name = tracker.getFilename().replace(".csv", "");
+            try {
+                jmxServer.registerMBean(tracker, new ObjectName(domain + ":type=ActivityTracker,name=" + name));
+            } catch (Exception e) {
+                ZimbraLog.perf.warn("Unable to register JMX interface for %s.", tracker.getFilename(), e);
+            }
+        }
+    }
+
     /**
      * Returns the mailbox cache size.  The real value is reread once a minute so that cache
      * performance is not affected.
@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import javax.mail.internet.SharedInputStream;
 
@@ -28,6 +29,7 @@ import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimePart.InputStreamSource;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
+import com.zimbra.cs.stats.ZimbraPerf;
 
 public class BlobInputStream extends InputStream
 implements SharedInputStream, InputStreamSource {
@@ -231,6 +233,46 @@ implements SharedInputStream, InputStreamSource {
         mRoot.mFile = newFile;
     }
 
+    /**
+     * Returns the rest of this stream as a read-only memory-mapped buffer and
+     * moves the stream to its end.  Lets callers that can write a
+     * <tt>ByteBuffer</tt> to the network send large blobs without copying
+     * them through the heap.  The mapping is released by the garbage
+     * collector once nothing refers to the buffer any more, so asynchronous
+     * writers can keep using it for as long as they need to.
+     */
+    public ByteBuffer map() throws IOException {
+        ByteBuffer buf = getFileDescriptorCache().map(getRootFile().getPath(), mRawSize, mPos, mEnd - mPos);
+        mPos = mEnd;
+        return buf;
+    }
+
+    /**
+     * Maps the rest of <tt>is</tt> if it's a <tt>BlobInputStream</tt> with at least
+     * <tt>zimbra_blob_mmap_min_size_kb</tt> left to read.
+     * @return the mapped data, or <tt>null</tt> if the stream wasn't mapped and
+     * should be copied as usual
+     */
+    public static ByteBuffer mapLargeBlob(InputStream is) throws IOException {
+        long minSize = LC.zimbra_blob_mmap_min_size_kb.longValue() * 1024;
+        if (minSize <= 0 || !(is instanceof BlobInputStream)) {
+            return null;
+        }
+        BlobInputStream bis = (BlobInputStream) is;
+        if (bis.mEnd - bis.mPos < minSize) {
+            return null;
+        }
+        return bis.map();
+    }
+
+    /**
+     * Counts a buffer returned by {@link #map} that has been delivered in
+     * full in the <tt>bis_zero_copy_bytes</tt> stat.
+     */
+    public static void recordSent(ByteBuffer mapped) {
+        ZimbraPerf.COUNTER_BLOB_ZERO_COPY_BYTES.increment(mapped.capacity());
+    }
+
     ////////////// InputStream methods //////////////
 
     @Override
@@ -21,12 +21,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 
 import com.zimbra.common.service.ServiceException;
@@ -44,18 +49,24 @@ import com.zimbra.cs.account.Server;
  * uses a {@link FileCache} to access the uncompressed data.  Cache entries
  * that reference uncompressed blobs keep the file descriptor open until {@link #remove}
  * is called or the cache entry is aged out.
+ * <p>
+ * Lookups don't take a lock.  Each entry records when it was last used, and
+ * entries that haven't been used recently are evicted in batches once the
+ * cache grows past its maximum size.
  */
 public class FileDescriptorCache
 {
     private static final Log sLog = LogFactory.getLog(FileDescriptorCache.class);
 
-    // Create the file cache with default LinkedHashMap values, but sorted by last access time.
-    private final LinkedHashMap<String, SharedFile> mCache = new LinkedHashMap<String, SharedFile>(16, 0.75f, true);
+    private final ConcurrentMap<String, CacheEntry> mCache = new ConcurrentHashMap<String, CacheEntry>();
     // Create a concurrent list for the SharedFies for which the mapping has been removed but is still in use by some threads.
     private final List<SharedFileInfo> mInactiveCache = Collections.synchronizedList(new ArrayList<SharedFileInfo>());
-    private int mMaxSize = 1000;
+    private volatile int mMaxSize = 1000;
     private final FileCache<String> mUncompressedFileCache;
     private final Counter mHitRate = new Counter();
+    // logical clock used to order entries by last access
+    private final AtomicLong mAccessClock = new AtomicLong();
+    private final AtomicBoolean mPruning = new AtomicBoolean();
 
     private class SharedFileInfo {
         public String path;
@@ -67,11 +78,25 @@ public class FileDescriptorCache
         }
     }
 
+    private class CacheEntry {
+        final SharedFile file;
+        volatile long lastAccess;
+
+        CacheEntry(SharedFile file) {
+            this.file = file;
+            touch();
+        }
+
+        void touch() {
+            lastAccess = mAccessClock.incrementAndGet();
+        }
+    }
+
     public FileDescriptorCache(FileCache<String> uncompressedCache) {
         mUncompressedFileCache = uncompressedCache;
     }
 
-    public synchronized FileDescriptorCache setMaxSize(int maxSize) {
+    public FileDescriptorCache setMaxSize(int maxSize) {
         if (maxSize < 0)
             throw new IllegalArgumentException("maxSize value of " + maxSize + " is invalid (must be at least 0)");
 
@@ -97,12 +122,12 @@ public class FileDescriptorCache
      * Closes all file descriptors, clears the cache, and removes any files from
      * the uncompressed cache.
      */
-    public synchronized void shutdown() {
-        Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
+    public void shutdown() {
+        Iterator<Map.Entry<String, CacheEntry>> iEntries = mCache.entrySet().iterator();
         while (iEntries.hasNext()) {
-            Map.Entry<String, SharedFile> entry = iEntries.next();
+            Map.Entry<String, CacheEntry> entry = iEntries.next();
             String path = entry.getKey();
-            SharedFile file = entry.getValue();
+            SharedFile file = entry.getValue().file;
             iEntries.remove();
             try {
                 boolean success = close(file, path);
@@ -135,12 +160,29 @@ public class FileDescriptorCache
         return numRead;
     }
 
-    boolean contains(String path) {
-        synchronized (this) {
-            return mCache.containsKey(path);
+    /**
+     * Maps <tt>len</tt> bytes of the specified file, starting at <tt>fileOffset</tt>,
+     * read-only into memory.  Compressed blobs are mapped from their copy in the
+     * uncompressed file cache.
+     */
+    public ByteBuffer map(String path, long rawSize, long fileOffset, long len)
+    throws IOException {
+        sLog.debug("Mapping %s.  rawSize=%d, fileOffset=%d, len=%d.", path, rawSize, fileOffset, len);
+        SharedFile file = null;
+        try {
+            file = getSharedFile(path, rawSize);
+            return file.map(fileOffset, len);
+        } finally {
+            if (file != null) {
+               file.doneReading();
+            }
         }
     }
 
+    boolean contains(String path) {
+        return mCache.containsKey(path);
+    }
+
     /**
      * Returns the existing cache entry or creates a new one.  Implicitly
      * increments the number of readers for the <tt>SharedFile</tt>.
@@ -148,14 +190,13 @@ public class FileDescriptorCache
     private SharedFile getSharedFile(String path, long rawSize) throws IOException {
         SharedFile sharedFile = null;
 
-        synchronized (this) {
-            sharedFile = mCache.get(path);
-        }
-        if (sharedFile != null) {
+        CacheEntry entry = mCache.get(path);
+        if (entry != null) {
             sLog.debug("Found existing file descriptor for %s, rawSize=%d.", path, rawSize);
-            sharedFile.aboutToRead();
+            entry.touch();
+            entry.file.aboutToRead();
             mHitRate.increment(100);
-            return sharedFile;
+            return entry.file;
         }
 
         // Open a new file descriptor.
@@ -182,15 +223,14 @@ public class FileDescriptorCache
             sharedFile = new SharedFile(file);
         }
 
-        synchronized (this) {
-            if (mCache.containsKey(path)) {
-                sLog.debug("Another thread just opened the same file.  Closing our copy and returning the other one.");
-                sharedFile.close();
-                sharedFile = mCache.get(path);
-            } else {
-                sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
-                mCache.put(path, sharedFile);
-            }
+        CacheEntry existing = mCache.putIfAbsent(path, new CacheEntry(sharedFile));
+        if (existing != null) {
+            sLog.debug("Another thread just opened the same file.  Closing our copy and returning the other one.");
+            sharedFile.close();
+            sharedFile = existing.file;
+            existing.touch();
+        } else {
+            sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
         }
         sharedFile.aboutToRead();
         pruneIfNecessary();
@@ -203,16 +243,12 @@ public class FileDescriptorCache
      * descriptor is not in the cache.
      */
     public void remove(String path) throws IOException {
-        SharedFile file = null;
-
-        synchronized (this) {
-            file = mCache.remove(path);
-        }
+        CacheEntry entry = mCache.remove(path);
 
-        if (file != null) {
-            boolean success = close(file, path);
+        if (entry != null) {
+            boolean success = close(entry.file, path);
             if (!success)
-                mInactiveCache.add(new SharedFileInfo(path, file));
+                mInactiveCache.add(new SharedFileInfo(path, entry.file));
         } else {
             sLog.debug("Attempted to remove %s but could not find it in the cache.", path);
         }
@@ -233,12 +269,10 @@ public class FileDescriptorCache
             if (file.getNumReaders() == 0) {
                 file.close();
                 if (mUncompressedFileCache != null) {
-                    synchronized (this) {
-                        if (!mCache.containsKey(path)) {
-                            mUncompressedFileCache.remove(path);
-                        } else {
-                            sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.");
-                        }
+                    if (!mCache.containsKey(path)) {
+                        mUncompressedFileCache.remove(path);
+                    } else {
+                        sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.");
                     }
                 }
                 return true;
@@ -265,7 +299,7 @@ public class FileDescriptorCache
         }
     }
 
-    public synchronized int getSize() {
+    public int getSize() {
         return mCache.size();
     }
 
@@ -273,30 +307,48 @@ public class FileDescriptorCache
         return mHitRate.getAverage();
     }
 
+    /**
+     * Evicts the least recently used entries once the cache is over its
+     * maximum size.  Large caches are trimmed to slightly below the maximum so
+     * that the next few misses don't each have to sort the whole cache.
+     */
     private void pruneIfNecessary() {
-         if (getSize() <= mMaxSize)
+        int maxSize = mMaxSize;
+        if (mCache.size() <= maxSize || !mPruning.compareAndSet(false, true))
             return;
 
-        List<Map.Entry<String, SharedFile>> removeList = new ArrayList<Map.Entry<String, SharedFile>>();
-
-        synchronized (this) {
-            Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-            while (iEntries.hasNext() && mCache.size() > mMaxSize) {
-                Map.Entry<String, SharedFile> mapEntry = iEntries.next();
-                iEntries.remove();
-                removeList.add(mapEntry);
+        List<SharedFileInfo> removeList = new ArrayList<SharedFileInfo>();
+        try {
+            List<Map.Entry<String, CacheEntry>> entries = new ArrayList<Map.Entry<String, CacheEntry>>(mCache.entrySet());
+            int numToRemove = entries.size() - (maxSize - maxSize / 16);
+            if (numToRemove > 0) {
+                // Snapshot the access times so that concurrent hits can't reorder entries during the sort.
+                long[] order = new long[entries.size()];
+                for (int i = 0; i < order.length; i++) {
+                    order[i] = entries.get(i).getValue().lastAccess;
+                }
+                long[] sorted = order.clone();
+                Arrays.sort(sorted);
+                long cutoff = sorted[numToRemove - 1];
+                for (int i = 0; i < order.length && removeList.size() < numToRemove; i++) {
+                    Map.Entry<String, CacheEntry> mapEntry = entries.get(i);
+                    if (order[i] <= cutoff && mCache.remove(mapEntry.getKey(), mapEntry.getValue())) {
+                        removeList.add(new SharedFileInfo(mapEntry.getKey(), mapEntry.getValue().file));
+                    }
+                }
             }
+        } finally {
+            mPruning.set(false);
         }
-        for (Map.Entry<String, SharedFile> mapEntry : removeList) {
-            String path = mapEntry.getKey();
-            SharedFile file = mapEntry.getValue();
+
+        for (SharedFileInfo info : removeList) {
             try {
-                boolean success = close(file, path);
+                boolean success = close(info.file, info.path);
                 if (!success) {
-                    mInactiveCache.add(new SharedFileInfo(path, file));
+                    mInactiveCache.add(info);
                 }
             } catch (IOException e) {
-                ZimbraLog.store.warn("Unable to close file descriptor for " + path, e);
+                ZimbraLog.store.warn("Unable to close file descriptor for " + info.path, e);
             }
         }
 
@@ -22,26 +22,33 @@ package com.zimbra.cs.store;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
- * Synchronized container for a <tt>RandomAccessFile</tt> object.  Used by multiple
- * <tt>BlobInputStream</tt> objects that share a single file descriptor.
+ * Container for a <tt>FileChannel</tt> shared by multiple
+ * <tt>BlobInputStream</tt> objects.  Reads are positional, so readers of the
+ * same file don't serialize on a shared file pointer.
  */
 public class SharedFile {
 
     private File mFile;
-    private RandomAccessFile mRAF;
-    private long mPos = 0;
-    
+    private volatile FileChannel mChannel;
+    /** Where the last read ended; only used to estimate the seek rate. */
+    private volatile long mPos = 0;
+
     /**
      * Keep track of the number of threads that are reading from this file.
      * We do this so that we don't delete a file that's being read on
      * Windows (bug 43497).
      */
-    private int mNumReaders;
-    
+    private final AtomicInteger mNumReaders = new AtomicInteger();
+
     /**
      * Remember the file's length, in case we have an open file descriptor and the
      * uncompressed cache deletes this file from disk.
@@ -62,70 +69,110 @@ public class SharedFile {
         }
         mFile = file;
         mLength = file.length();
-        openIfNecessary();
+        getChannel();
     }
 
-    synchronized long getLength() {
+    long getLength() {
         return mLength;
     }
-    
-    synchronized int read(long fileOffset, byte[] b, int off, int len)
+
+    int read(long fileOffset, byte[] b, int off, int len)
     throws IOException {
-        int numRead = 0;
-        boolean seeked = false;
-        openIfNecessary();
-        
-        if (mPos != fileOffset) {
-            mRAF.seek(fileOffset);
-            mPos = fileOffset;
-            seeked = true;
+        ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+        int numRead;
+        FileChannel channel = getChannel();
+        try {
+            numRead = channel.read(dst, fileOffset);
+        } catch (ClosedChannelException e) {
+            // Another reader was interrupted, which closes the channel for everyone.  Retry once on a new one.
+            if (e instanceof ClosedByInterruptException) {
+                throw e;
+            }
+            numRead = reopen(channel).read(dst, fileOffset);
         }
-        numRead = mRAF.read(b, off, len);
-        mPos += numRead;
-        
-        if (seeked) {
+
+        if (mPos != fileOffset) {
             ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(100);
         } else {
             ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(0);
         }
+        if (numRead > 0) {
+            mPos = fileOffset + numRead;
+        }
         ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_READ.increment();
         return numRead;
     }
-    
-    synchronized void aboutToRead() {
-        mNumReaders++;
+
+    /**
+     * Maps <tt>count</tt> bytes starting at <tt>fileOffset</tt> read-only.  The
+     * mapping stays valid after the file descriptor is closed.
+     */
+    ByteBuffer map(long fileOffset, long count)
+    throws IOException {
+        return getChannel().map(FileChannel.MapMode.READ_ONLY, fileOffset, count);
     }
-    
-    synchronized void doneReading() {
-        if (mNumReaders > 0) {
-            mNumReaders--;
+
+    void aboutToRead() {
+        mNumReaders.incrementAndGet();
+    }
+
+    void doneReading() {
+        while (true) {
+            int n = mNumReaders.get();
+            if (n <= 0 || mNumReaders.compareAndSet(n, n - 1)) {
+                return;
+            }
         }
     }
-    
-    synchronized int getNumReaders() {
-        return mNumReaders;
+
+    int getNumReaders() {
+        return mNumReaders.get();
     }
-    
-    private synchronized void openIfNecessary()
+
+    private FileChannel getChannel()
     throws IOException {
-        if (mRAF == null) {
-            if (!mFile.exists()) {
-                throw new IOException(mFile.getPath() + " does not exist.");
+        FileChannel channel = mChannel;
+        if (channel == null) {
+            synchronized (this) {
+                channel = mChannel;
+                if (channel == null) {
+                    channel = open();
+                }
             }
-            mRAF = new RandomAccessFile(mFile, "r");
-            mPos = 0;
         }
+        return channel;
+    }
+
+    private synchronized FileChannel reopen(FileChannel stale)
+    throws IOException {
+        if (mChannel == stale || mChannel == null) {
+            return open();
+        }
+        return mChannel;
     }
-    
+
+    private FileChannel open()
+    throws IOException {
+        if (!mFile.exists()) {
+            throw new IOException(mFile.getPath() + " does not exist.");
+        }
+        @SuppressWarnings("resource")
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        mChannel = raf.getChannel();
+        mPos = 0;
+        return mChannel;
+    }
+
     synchronized void close()
     throws IOException {
-        if (mRAF != null) {
-            mRAF.close();
+        if (mChannel != null) {
+            mChannel.close();
             mPos = 0;
-            mRAF = null;
+            mChannel = null;
         }
     }
-    
+
+    @Override
     public String toString() {
         return mFile.toString();
     }
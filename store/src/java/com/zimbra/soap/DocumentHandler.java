@@ -276,6 +276,15 @@ public abstract class DocumentHandler {
         return true;
     }
 
+    /** Returns <tt>true</tt> if the handler can build responses large enough
+     *  to be worth encoding as they are produced.  Such a handler finds
+     *  {@link SoapServlet#ENCODE_RESPONSE_INCREMENTALLY} in the context when
+     *  it is the top-level request and nothing but the servlet will read its
+     *  response; encoded children can't be read back. */
+    public boolean encodesResponseIncrementally() {
+        return false;
+    }
+
     /** Returns whether the client making the SOAP request is localhost. */
     protected boolean clientIsLocal(Map<String, Object> context) {
         HttpServletRequest req = (HttpServletRequest) context.get(SoapServlet.SERVLET_REQUEST);
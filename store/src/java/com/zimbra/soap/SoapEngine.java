@@ -20,7 +20,20 @@ package com.zimbra.soap;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
@@ -31,6 +44,8 @@ import javax.xml.stream.XMLStreamReader;
 import org.eclipse.jetty.continuation.ContinuationSupport;
 
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
@@ -60,8 +75,12 @@ import com.zimbra.cs.redolog.RedoLogProvider;
 import com.zimbra.cs.service.AuthProvider;
 import com.zimbra.cs.service.admin.AdminAccessControl;
 import com.zimbra.cs.service.admin.AdminDocumentHandler;
+import com.zimbra.cs.service.admin.AdminWaitSetRequest;
+import com.zimbra.cs.service.mail.NoOp;
+import com.zimbra.cs.service.mail.WaitSetRequest;
 import com.zimbra.cs.servlet.CsrfFilter;
 import com.zimbra.cs.servlet.CsrfTokenException;
+import com.zimbra.cs.servlet.ZThreadLocal;
 import com.zimbra.cs.servlet.ZimbraInvalidLoginFilter;
 import com.zimbra.cs.servlet.util.CsrfUtil;
 import com.zimbra.cs.session.Session;
@@ -113,6 +132,9 @@ public class SoapEngine {
 
     private final DocumentDispatcher dispatcher = new DocumentDispatcher();
 
+    /** Runs the sub-requests of {@code <BatchRequest execution="parallel">}. */
+    private static final ExecutorService BATCH_EXECUTOR = newBatchExecutor();
+
     SoapEngine() {
         SoapTransport.setDefaultUserAgent(SoapTransport.DEFAULT_USER_AGENT_NAME, BuildInfo.VERSION);
     }
@@ -465,28 +487,30 @@ public class SoapEngine {
                 if (!isResumed) {
                     ZimbraLog.soap.info(doc.getName());
                 }
-                for (Element req : doc.listElements()) {
-                    String id = req.getAttribute(A_REQUEST_CORRELATOR, null);
-                    long start = System.currentTimeMillis();
-                    Element br = dispatchRequest(dispatcher.getHandler(req), req, context, zsc);
-                    if (!isResumed) {
-                        ZimbraLog.soap.info("(batch) %s elapsed=%d", req.getName(), System.currentTimeMillis() - start);
-                    }
-                    if (id != null) {
-                        br.addAttribute(A_REQUEST_CORRELATOR, id);
-                    }
-                    responseBody.addNonUniqueElement(br);
-                    if (!contOnError && responseProto.isFault(br)) {
-                        break;
-                    }
-                    if (proxyAuthToken != null) {
-                        // requests will invalidate it when proxying locally;
-                        // make sure it's set for each sub-request in batch
-                        zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
+                if (ZimbraNamespace.EXECUTION_PARALLEL.equals(doc.getAttribute(ZimbraNamespace.A_EXECUTION, null))) {
+                    dispatchParallelBatch(doc, responseBody, contOnError, isResumed, context, zsc, proxyAuthToken);
+                } else {
+                    for (Element req : doc.listElements()) {
+                        Element br = dispatchBatchedRequest(dispatcher.getHandler(req), req, context, zsc, isResumed);
+                        responseBody.addNonUniqueElement(br);
+                        if (!contOnError && responseProto.isFault(br)) {
+                            break;
+                        }
+                        if (proxyAuthToken != null) {
+                            // requests will invalidate it when proxying locally;
+                            // make sure it's set for each sub-request in batch
+                            zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
+                        }
                     }
                 }
             } else {
                 String id = doc.getAttribute(A_REQUEST_CORRELATOR, null);
+                if (handler != null && handler.encodesResponseIncrementally() &&
+                        context.containsKey(SoapServlet.SERVLET_RESPONSE) &&
+                        LC.soap_response_incremental_encoding_enabled.booleanValue()) {
+                    // unlike batched sub-responses, this response is only read by the servlet serializing it
+                    context.put(SoapServlet.ENCODE_RESPONSE_INCREMENTALLY, Boolean.TRUE);
+                }
                 long start = System.currentTimeMillis();
                 responseBody = dispatchRequest(handler, doc, context, zsc);
                 if (!isResumed) {
@@ -530,6 +554,233 @@ public class SoapEngine {
         return responseProto.soapEnvelope(responseBody, responseHeader);
     }
 
+    /**
+     * Dispatches one sub-request of a batch on the calling thread and tags the response with the
+     * sub-request's correlator.
+     */
+    private Element dispatchBatchedRequest(DocumentHandler handler, Element req, Map<String, Object> context,
+            ZimbraSoapContext zsc, boolean isResumed) {
+        String id = req.getAttribute(A_REQUEST_CORRELATOR, null);
+        long start = System.currentTimeMillis();
+        Element br = dispatchRequest(handler, req, context, zsc);
+        if (!isResumed) {
+            ZimbraLog.soap.info("(batch) %s elapsed=%d", req.getName(), System.currentTimeMillis() - start);
+        }
+        if (id != null) {
+            br.addAttribute(A_REQUEST_CORRELATOR, id);
+        }
+        return br;
+    }
+
+    /**
+     * Handles a {@code <BatchRequest execution="parallel">}.  Sub-requests are handed to a shared, bounded
+     * executor and their responses are collected in request order, so the {@code BatchResponse} looks exactly
+     * like the sequential one.  Sub-requests that may suspend the servlet continuation (NoOp, WaitSet) can't
+     * leave the servlet thread; they run inline once everything submitted before them has completed, as do
+     * sub-requests whose auth token can't be copied.  With {@code onerror="stop"}, the first fault (in request
+     * order) ends the batch and cancels whatever hasn't started yet.  Running sub-requests are never interrupted.
+     * <p>
+     * The session is resolved, or created, once on the batch's own context before anything is handed off, and every
+     * sub-request refers to it.  Session and authentication changes made by a sub-request are merged back into the
+     * batch's context in request order, so the response header reports them as for a sequential batch.
+     */
+    private void dispatchParallelBatch(Element batch, Element responseBody, boolean contOnError, boolean isResumed,
+            Map<String, Object> context, ZimbraSoapContext zsc, String proxyAuthToken) {
+        Session session = getBatchSession(batch, zsc);
+        List<BatchTask> pending = new ArrayList<BatchTask>();
+        for (Element req : batch.listElements()) {
+            DocumentHandler handler = dispatcher.getHandler(req);
+            ZimbraSoapContext taskZsc = null;
+            if (canDispatchInParallel(handler)) {
+                try {
+                    taskZsc = zsc.copyForParallelRequest(session);
+                } catch (ServiceException e) {
+                    LOG.debug("running batch sub-request %s inline", req.getName(), e);
+                }
+            }
+            if (taskZsc != null) {
+                BatchTask task = new BatchTask(handler, req, context, taskZsc, isResumed);
+                try {
+                    task.future = BATCH_EXECUTOR.submit(task);
+                } catch (RejectedExecutionException e) {
+                    // executor shut down; fall back to the servlet thread
+                    task.future = Futures.immediateFuture(task.call());
+                }
+                pending.add(task);
+                continue;
+            }
+            if (!collectBatchResponses(pending, responseBody, contOnError, zsc, proxyAuthToken)) {
+                return;
+            }
+            Element br = dispatchBatchedRequest(handler, req, context, zsc, isResumed);
+            responseBody.addNonUniqueElement(br);
+            if (!contOnError && zsc.getResponseProtocol().isFault(br)) {
+                return;
+            }
+            if (proxyAuthToken != null) {
+                zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
+            }
+        }
+        collectBatchResponses(pending, responseBody, contOnError, zsc, proxyAuthToken);
+    }
+
+    /**
+     * Waits for the outstanding parallel sub-requests in order and appends their responses.  Returns
+     * {@code false} if the batch must stop because of {@code onerror="stop"}.
+     */
+    private boolean collectBatchResponses(List<BatchTask> pending, Element responseBody, boolean contOnError,
+            ZimbraSoapContext zsc, String proxyAuthToken) {
+        SoapProtocol soapProto = zsc.getResponseProtocol();
+        boolean proceed = true;
+        for (BatchTask task : pending) {
+            if (!proceed) {
+                task.future.cancel(false);
+                continue;
+            }
+            Element br = task.await(soapProto);
+            if (task.completed) {
+                zsc.mergeParallelRequest(task.zsc, task.authToken);
+            }
+            responseBody.addNonUniqueElement(br);
+            if (!contOnError && soapProto.isFault(br)) {
+                proceed = false;
+            }
+        }
+        pending.clear();
+        if (proxyAuthToken != null) {
+            zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
+        }
+        return proceed;
+    }
+
+    /**
+     * Returns the session the sub-requests of a parallel batch share: the one referenced by the batch's context, or
+     * a new one recorded on it, of the type the first sub-request that can leave the servlet thread would use.
+     */
+    private Session getBatchSession(Element batch, ZimbraSoapContext zsc) {
+        for (Element req : batch.listElements()) {
+            DocumentHandler handler = dispatcher.getHandler(req);
+            if (canDispatchInParallel(handler)) {
+                handler.getSession(zsc);
+                return DocumentHandler.getReferencedSession(zsc);
+            }
+        }
+        return null;
+    }
+
+    private static boolean canDispatchInParallel(DocumentHandler handler) {
+        return handler != null && !(handler instanceof NoOp) && !(handler instanceof WaitSetRequest) &&
+                !(handler instanceof AdminWaitSetRequest);
+    }
+
+    /**
+     * One sub-request of a parallel {@code BatchRequest}.  Runs with its own copy of the request context map
+     * (handlers put per-request state such as the session in it) and of the {@link ZimbraSoapContext} (proxying
+     * handlers set the proxy auth token on it), and with the submitting thread's logging and servlet request
+     * context.
+     */
+    private final class BatchTask implements Callable<Element> {
+        private final DocumentHandler handler;
+        private final Element request;
+        private final Map<String, Object> context;
+        private final ZimbraSoapContext zsc;
+        /** the auth token {@link #zsc} started with, to tell whether the sub-request replaced it */
+        private final AuthToken authToken;
+        private final boolean isResumed;
+        private final Thread caller = Thread.currentThread();
+        private final Map<String, String> logContext = ZimbraLog.getContextMap();
+        private final RequestContext requestContext = ZThreadLocal.getRequestContext();
+        private final long submitted = System.currentTimeMillis();
+        Future<Element> future;
+        /** whether the sub-request finished in time, so that its changes to {@link #zsc} can be merged */
+        boolean completed;
+
+        BatchTask(DocumentHandler handler, Element request, Map<String, Object> context, ZimbraSoapContext zsc,
+                boolean isResumed) {
+            this.handler = handler;
+            this.request = request;
+            this.context = new HashMap<String, Object>(context);
+            this.zsc = zsc;
+            this.authToken = zsc.getAuthToken();
+            this.isResumed = isResumed;
+        }
+
+        @Override
+        public Element call() {
+            // the executor runs the task on the servlet thread when it is saturated; leave that thread's context alone
+            boolean handedOff = Thread.currentThread() != caller;
+            if (handedOff) {
+                ZimbraLog.clearContext();
+                for (Map.Entry<String, String> entry : logContext.entrySet()) {
+                    ZimbraLog.addToContext(entry.getKey(), entry.getValue());
+                }
+                ZThreadLocal.setContext(requestContext);
+            }
+            try {
+                long start = System.currentTimeMillis();
+                Element response = dispatchRequest(handler, request, context, zsc);
+                if (!isResumed) {
+                    ZimbraLog.soap.info("(batch) %s elapsed=%d queued=%d", request.getName(),
+                            System.currentTimeMillis() - start, start - submitted);
+                }
+                return response;
+            } finally {
+                if (handedOff) {
+                    ZimbraLog.clearContext();
+                    ZThreadLocal.unset();
+                }
+            }
+        }
+
+        /**
+         * Waits for the sub-request to finish, up to {@code soap_batch_parallel_timeout_ms} after it was
+         * submitted, and returns its response or a fault.  A sub-request that times out is cancelled; if it has
+         * already started it is not interrupted, so it finishes on its own, and its response and its changes to
+         * the context are dropped.
+         */
+        Element await(SoapProtocol soapProto) {
+            Element response;
+            long remaining = submitted + LC.soap_batch_parallel_timeout_ms.longValue() - System.currentTimeMillis();
+            try {
+                response = future.get(Math.max(remaining, 0L), TimeUnit.MILLISECONDS);
+                completed = true;
+            } catch (TimeoutException e) {
+                // don't interrupt the handler; it may be in the middle of a mailbox transaction or a redo log write
+                future.cancel(false);
+                ZimbraLog.soap.warn("(batch) %s timed out after %dms", request.getName(),
+                        System.currentTimeMillis() - submitted);
+                response = soapFault(soapProto, "batch sub-request timed out", ServiceException.FAILURE(
+                        "timed out after " + LC.soap_batch_parallel_timeout_ms.longValue() + "ms", null));
+            } catch (InterruptedException e) {
+                future.cancel(false);
+                Thread.currentThread().interrupt();
+                response = soapFault(soapProto, "batch sub-request interrupted",
+                        ServiceException.INTERRUPTED(request.getName()));
+            } catch (ExecutionException e) {
+                response = soapFault(soapProto, "batch sub-request failed",
+                        ServiceException.FAILURE(e.getCause().toString(), e.getCause()));
+            } catch (CancellationException e) {
+                response = soapFault(soapProto, "batch sub-request cancelled",
+                        ServiceException.INTERRUPTED(request.getName()));
+            }
+            String id = request.getAttribute(A_REQUEST_CORRELATOR, null);
+            if (id != null) {
+                response.addAttribute(A_REQUEST_CORRELATOR, id);
+            }
+            return response;
+        }
+    }
+
+    private static ExecutorService newBatchExecutor() {
+        int threads = Math.max(LC.soap_batch_parallel_threads.intValue(), 1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(Math.max(LC.soap_batch_parallel_queue_size.intValue(), 1)),
+                new ThreadFactoryBuilder().setNameFormat("BatchRequest-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     private Element getSoapContextElement(SoapProtocol soapProto, Element envelope) throws ServiceException {
         Element contextElmt = null;
         if (soapProto != null && soapProto.getHeader(envelope) != null) {
@@ -558,6 +809,7 @@ public class SoapEngine {
     Element dispatchRequest(DocumentHandler handler, Element soapReqElem,
             Map<String, Object> context,ZimbraSoapContext zsc) {
         long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         SoapProtocol soapProto = zsc.getResponseProtocol();
 
         if (soapReqElem == null) {
@@ -644,7 +896,7 @@ public class SoapEngine {
                     handler.logAuditAccess(at.getAdminAccountId(), acctId, acctId);
                 }
                 response = handler.handle(soapReqElem, context);
-                ZimbraPerf.SOAP_TRACKER.addStat(getStatName(soapReqElem), startTime);
+                ZimbraPerf.SOAP_TRACKER.addStatNanos(getStatName(soapReqElem), startNanos);
                 long duration = System.currentTimeMillis() - startTime;
                 if (LC.zimbra_slow_logging_enabled.booleanValue() && duration > LC.zimbra_slow_logging_threshold.longValue() &&
                         !soapReqElem.getQName().getName().equals(MailConstants.SYNC_REQUEST.getName())) {
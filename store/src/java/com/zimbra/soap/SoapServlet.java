@@ -76,6 +76,9 @@ public class SoapServlet extends ZimbraServlet {
     public static final String IS_ADMIN_REQUEST = "zimbra.isadminreq";
     /** Flag for requests that want to force invalidation of client cookies */
     public static final String INVALIDATE_COOKIES = "zimbra.invalidateCookies";
+    /** Set by {@link SoapEngine} when only this servlet will read the response, so the handler may encode children
+     *  incrementally; see {@link DocumentHandler#encodesResponseIncrementally()} */
+    public static final String ENCODE_RESPONSE_INCREMENTALLY = "zimbra.encodeResponseIncrementally";
 
     /**
      * Keeps track of extra services added by extensions.
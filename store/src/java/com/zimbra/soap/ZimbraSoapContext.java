@@ -46,6 +46,7 @@ import com.zimbra.cs.account.AuthTokenException;
 import com.zimbra.cs.account.GuestAccount;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.ShareInfoData;
+import com.zimbra.cs.account.ZimbraAuthToken;
 import com.zimbra.cs.account.accesscontrol.Rights;
 import com.zimbra.cs.mailbox.ACL;
 import com.zimbra.cs.mailbox.OperationContext;
@@ -258,6 +259,58 @@ public final class ZimbraSoapContext {
         }
     }
 
+    /**
+     * Returns a copy of this context for a sub-request of a parallel {@code BatchRequest}.  The copy is built by the
+     * proxying constructor and then put back on this hop and this request's change constraint.  It has its own copy
+     * of the auth token, because handlers set the proxy auth token on it, and it refers to {@code session}, which the
+     * caller resolves once for the whole batch so that sub-requests don't each create one.  Without a session,
+     * notifications are disabled on the copy.  Returns {@code null} if the auth token can't be copied.
+     */
+    ZimbraSoapContext copyForParallelRequest(Session session) throws ServiceException {
+        AuthToken authToken = null;
+        if (mAuthToken instanceof ZimbraAuthToken) {
+            try {
+                authToken = ((ZimbraAuthToken) mAuthToken).clone();
+            } catch (CloneNotSupportedException e) {
+                return null;
+            }
+        } else if (mAuthToken != null) {
+            return null;
+        }
+        ZimbraSoapContext copy = new ZimbraSoapContext(this, authToken, mRequestedAccountId, session);
+        copy.mHopCount = mHopCount;
+        copy.mSessionProxied = mSessionProxied;
+        copy.mChangeConstraintType = mChangeConstraintType;
+        copy.mMaximumChangeId = mMaximumChangeId;
+        copy.mOriginalUserAgent = mOriginalUserAgent;
+        copy.mNotificationFormat = mNotificationFormat;
+        copy.mCurWaitSetID = mCurWaitSetID;
+        if (session == null) {
+            copy.disableNotifications();
+        }
+        return copy;
+    }
+
+    /**
+     * Carries the authentication and session changes that a parallel sub-request made on {@code copy}, a context
+     * from {@link #copyForParallelRequest}, back into this context, as if the sub-request had run on it.
+     *
+     * @param copiedToken the auth token {@code copy} started with
+     */
+    void mergeParallelRequest(ZimbraSoapContext copy, AuthToken copiedToken) {
+        if (copy.mAuthToken != copiedToken && copy.mAuthToken != null) {
+            if (copy.mAuthTokenAccountId != null && !copy.mAuthTokenAccountId.equals(mAuthTokenAccountId)) {
+                clearSessionInfo();
+            }
+            setAuthToken(copy.mAuthToken);
+        }
+        SessionInfo sinfo = copy.mSessionInfo;
+        if (mSessionEnabled && sinfo != null &&
+                (mSessionInfo == null || !mSessionInfo.sessionId.equals(sinfo.sessionId))) {
+            mSessionInfo = new SessionInfo(sinfo.sessionId, sinfo.sequence, sinfo.created);
+        }
+    }
+
     /**
      * Creates a {@link ZimbraSoapContext} from the {@code <context>}
      * {@link Element} from the SOAP header.
@@ -706,6 +759,12 @@ public final class ZimbraSoapContext {
         return mSessionInfo;
     }
 
+    /** Returns the ID of the session this request refers to or created, or
+     *  <tt>null</tt> if it has none. */
+    public String getSessionId() {
+        return mSessionInfo == null ? null : mSessionInfo.sessionId;
+    }
+
     public SessionInfo setProxySession(String sessionId) {
         if (!mSessionEnabled || sessionId == null) {
             mSessionInfo = null;